@@ -41,13 +41,17 @@ import java.time.Instant;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.stream.Collectors;
 
 import static android.provider.CallLog.Calls.AUTO_MISSED_EMERGENCY_CALL;
@@ -204,6 +208,9 @@ public class Analytics {
         public void setCallEvents(EventManager.EventRecord records) {
         }
 
+        public void compactCallEvents() {
+        }
+
         public void setCallIsVideo(boolean isVideo) {
         }
 
@@ -250,6 +257,8 @@ public class Analytics {
         public boolean isEmergency = false;
 
         public EventManager.EventRecord callEvents;
+        // Replaces callEvents once the call is destroyed, see compactCallEvents.
+        public CallEventLog callEventLog;
 
         public boolean isVideo = false;
         public List<TelecomLogClass.VideoEvent> videoEvents;
@@ -284,6 +293,7 @@ public class Analytics {
             this.connectionService = other.connectionService;
             this.isEmergency = other.isEmergency;
             this.callEvents = other.callEvents;
+            this.callEventLog = other.callEventLog;
             this.isVideo = other.isVideo;
             this.videoEvents = other.videoEvents;
             this.callProperties = other.callProperties;
@@ -370,6 +380,27 @@ public class Analytics {
             this.callEvents = records;
         }
 
+        /**
+         * Replaces the {@link EventManager.EventRecord} of the call with a {@link CallEventLog},
+         * so that the events of the last {@link #MAX_NUM_CALLS_TO_STORE} calls are kept without
+         * keeping their event records alive.  Called once the call has been destroyed.
+         * <p>
+         * A call with more than {@link CallEventLog#MAX_EVENTS} events keeps only the latest
+         * ones, so its {@link #toProto()} no longer lists the oldest events, and the first event
+         * it lists has no time since the last event.  Its event timings are unaffected, since
+         * they are taken from the whole record.
+         */
+        @Override
+        public void compactCallEvents() {
+            synchronized (sLock) {
+                if (callEvents == null) {
+                    return;
+                }
+                callEventLog = CallEventLog.fromEventRecord(callEvents);
+                callEvents = null;
+            }
+        }
+
         @Override
         public void setCallIsVideo(boolean isVideo) {
             this.isVideo = isVideo;
@@ -509,6 +540,14 @@ public class Analytics {
                 result.callTimings = callEvents.extractEventTimings().stream()
                         .map(Analytics::logEventTimingToProtoEventTiming)
                         .toArray(TelecomLogClass.EventTimingEntry[]::new);
+            } else if (callEventLog != null) {
+                result.callEvents = convertCallEventLogToProtoEvents(callEventLog);
+                result.callTimings = new TelecomLogClass.EventTimingEntry[
+                        callEventLog.getTimingCount()];
+                for (int i = 0; i < callEventLog.getTimingCount(); i++) {
+                    result.callTimings[i] = toProtoEventTiming(callEventLog.getTimingName(i),
+                            callEventLog.getTimingMillis(i));
+                }
             }
             result.videoEvents =
                     videoEvents.toArray(new TelecomLogClass.VideoEvent[videoEvents.size()]);
@@ -650,19 +689,159 @@ public class Analytics {
     public static final int MAX_NUM_CALLS_TO_STORE = 100;
     public static final int MAX_NUM_DUMP_TIMES_TO_STORE = 100;
 
-    private static final Object sLock = new Object(); // Coarse lock for all of analytics
+    public static final int MAX_NUM_SESSION_TIMINGS_TO_STORE = 1024;
+
+    /**
+     * Fixed-capacity record of the most recent session timings, and a histogram of the timings
+     * of each session type.
+     * <p>
+     * Each timing is packed into one slot of an {@link AtomicLongArray}, with the session type in
+     * the low bits and the time in the high bits, so appending a timing from a binder thread needs
+     * neither a lock nor an allocation, and a reader never sees half of a timing.  A timing which
+     * is appended while the ring is read may be missed, or read as the timing it replaces.  The
+     * histograms are updated with every append, so the averages are not recomputed from the
+     * timings when analytics are dumped.
+     */
+    private static final class SessionTimingRing {
+        private static final int SESSION_TYPE_BITS = 16;
+        private static final long SESSION_TYPE_MASK = (1L << SESSION_TYPE_BITS) - 1;
+        private static final long MAX_TIME_MILLIS = Long.MAX_VALUE >>> SESSION_TYPE_BITS;
+        // Bucket 0 holds timings of 0 ms, and bucket i > 0 timings of [2^(i-1), 2^i) ms, except
+        // for the last bucket, which holds all longer timings.
+        private static final int NUM_HISTOGRAM_BUCKETS = 16;
+
+        private final int[] mSessionIds;
+        private final Map<Integer, Integer> mSessionIdToType = new HashMap<>();
+        private final int mMask;
+        private final AtomicLongArray mEntries;
+        // Sequence number of the next timing to append, and of the first one since the last drain.
+        private final AtomicLong mNextSeq = new AtomicLong(0);
+        private final AtomicLong mFirstSeq = new AtomicLong(0);
+        private final AtomicLongArray mCounts;
+        private final AtomicLongArray mSumsMillis;
+        private final AtomicLongArray mHistograms;
+
+        SessionTimingRing(int capacity, Collection<Integer> sessionIds) {
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("capacity must be a power of two");
+            }
+            mSessionIds = sessionIds.stream().sorted().mapToInt(Integer::intValue).toArray();
+            for (int type = 0; type < mSessionIds.length; type++) {
+                mSessionIdToType.put(mSessionIds[type], type);
+            }
+            mMask = capacity - 1;
+            mEntries = new AtomicLongArray(capacity);
+            mCounts = new AtomicLongArray(mSessionIds.length);
+            mSumsMillis = new AtomicLongArray(mSessionIds.length);
+            mHistograms = new AtomicLongArray(mSessionIds.length * NUM_HISTOGRAM_BUCKETS);
+        }
+
+        void add(int sessionId, long timeMillis) {
+            Integer type = mSessionIdToType.get(sessionId);
+            if (type == null) {
+                return;
+            }
+            long time = Math.max(0, Math.min(timeMillis, MAX_TIME_MILLIS));
+            long seq = mNextSeq.getAndIncrement();
+            // Types are stored offset by one, so that an empty slot is never read as a timing.
+            mEntries.set((int) (seq & mMask), (time << SESSION_TYPE_BITS) | (type + 1));
+            mCounts.incrementAndGet(type);
+            mSumsMillis.addAndGet(type, time);
+            mHistograms.incrementAndGet(type * NUM_HISTOGRAM_BUCKETS + getBucket(time));
+        }
+
+        List<SessionTiming> getTimings() {
+            return getTimings(mFirstSeq.get(), mNextSeq.get());
+        }
+
+        /**
+         * Returns the timings and resets the ring and its histograms in one step.  The boundary
+         * between drains is a sequence number, so a timing appended while the ring is drained is
+         * returned by either this drain or the next one, never by both.
+         */
+        List<SessionTiming> drainTimings() {
+            long end = mNextSeq.get();
+            long start = mFirstSeq.getAndSet(end);
+            for (int type = 0; type < mSessionIds.length; type++) {
+                mCounts.set(type, 0);
+                mSumsMillis.set(type, 0);
+            }
+            for (int i = 0; i < mHistograms.length(); i++) {
+                mHistograms.set(i, 0);
+            }
+            return getTimings(start, end);
+        }
+
+        private List<SessionTiming> getTimings(long firstSeq, long end) {
+            long start = Math.max(firstSeq, end - mEntries.length());
+            List<SessionTiming> timings = new ArrayList<>((int) Math.max(0, end - start));
+            for (long seq = start; seq < end; seq++) {
+                long entry = mEntries.get((int) (seq & mMask));
+                if (entry != 0) {
+                    timings.add(new SessionTiming(
+                            mSessionIds[(int) (entry & SESSION_TYPE_MASK) - 1],
+                            entry >>> SESSION_TYPE_BITS));
+                }
+            }
+            return timings;
+        }
+
+        void dump(IndentingPrintWriter writer) {
+            for (int type = 0; type < mSessionIds.length; type++) {
+                long count = mCounts.get(type);
+                if (count > 0 && sSessionIdToLogSession.containsKey(mSessionIds[type])) {
+                    writer.printf("%s: %.2f\n", sSessionIdToLogSession.get(mSessionIds[type]),
+                            (double) mSumsMillis.get(type) / count);
+                }
+            }
+            writer.println("Session timing histograms (ms): ");
+            writer.increaseIndent();
+            for (int type = 0; type < mSessionIds.length; type++) {
+                if (mCounts.get(type) == 0
+                        || !sSessionIdToLogSession.containsKey(mSessionIds[type])) {
+                    continue;
+                }
+                StringBuilder sb = new StringBuilder();
+                sb.append(sSessionIdToLogSession.get(mSessionIds[type])).append(':');
+                for (int bucket = 0; bucket < NUM_HISTOGRAM_BUCKETS; bucket++) {
+                    long count = mHistograms.get(type * NUM_HISTOGRAM_BUCKETS + bucket);
+                    if (count == 0) {
+                        continue;
+                    }
+                    sb.append(bucket == NUM_HISTOGRAM_BUCKETS - 1 ? " >=" : " <")
+                            .append(bucket == NUM_HISTOGRAM_BUCKETS - 1
+                                    ? 1L << (bucket - 1) : 1L << bucket)
+                            .append('=').append(count);
+                }
+                writer.println(sb.toString());
+            }
+            writer.decreaseIndent();
+        }
+
+        private static int getBucket(long timeMillis) {
+            return Math.min(Long.SIZE - Long.numberOfLeadingZeros(timeMillis),
+                    NUM_HISTOGRAM_BUCKETS - 1);
+        }
+    }
+
+    private static final Object sLock = new Object(); // Guards sCallIdToInfo
     private static final LinkedBlockingDeque<Long> sDumpTimes =
             new LinkedBlockingDeque<>(MAX_NUM_DUMP_TIMES_TO_STORE);
-    private static final Map<String, CallInfoImpl> sCallIdToInfo = new HashMap<>();
-    private static final LinkedList<String> sActiveCallIds = new LinkedList<>();
-    private static final List<SessionTiming> sSessionTimings = new LinkedList<>();
+    // The most recently initiated calls, in the order they were initiated.
+    private static final Map<String, CallInfoImpl> sCallIdToInfo =
+            new LinkedHashMap<String, CallInfoImpl>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CallInfoImpl> eldest) {
+                    return size() > MAX_NUM_CALLS_TO_STORE;
+                }
+            };
+    private static final SessionTimingRing sSessionTimings = new SessionTimingRing(
+            MAX_NUM_SESSION_TIMINGS_TO_STORE, sLogSessionToSessionId.values());
 
     public static void addSessionTiming(String sessionName, long time) {
-        if (sLogSessionToSessionId.containsKey(sessionName)) {
-            synchronized (sLock) {
-                sSessionTimings.add(new SessionTiming(sLogSessionToSessionId.get(sessionName),
-                        time));
-            }
+        Integer sessionId = sLogSessionToSessionId.get(sessionName);
+        if (sessionId != null) {
+            sSessionTimings.add(sessionId, time);
         }
     }
 
@@ -670,12 +849,7 @@ public class Analytics {
         Log.i(TAG, "Starting analytics for call " + callId);
         CallInfoImpl callInfo = new CallInfoImpl(callId, direction);
         synchronized (sLock) {
-            while (sActiveCallIds.size() >= MAX_NUM_CALLS_TO_STORE) {
-                String callToRemove = sActiveCallIds.remove();
-                sCallIdToInfo.remove(callToRemove);
-            }
             sCallIdToInfo.put(callId, callInfo);
-            sActiveCallIds.add(callId);
         }
         return callInfo;
     }
@@ -687,9 +861,8 @@ public class Analytics {
             calls.addAll(sCallIdToInfo.values().stream()
                     .map(CallInfoImpl::toParcelableAnalytics)
                     .collect(Collectors.toList()));
-            sessionTimings.addAll(sSessionTimings);
+            sessionTimings.addAll(sSessionTimings.drainTimings());
             sCallIdToInfo.clear();
-            sSessionTimings.clear();
         }
         return new TelecomAnalytics(sessionTimings, calls);
     }
@@ -702,16 +875,18 @@ public class Analytics {
             result.callLogs = sCallIdToInfo.values().stream()
                     .map(CallInfoImpl::toProto)
                     .toArray(TelecomLogClass.CallLog[]::new);
-            result.sessionTimings = sSessionTimings.stream()
+            boolean clear = args.length > 1 && CLEAR_ANALYTICS_ARG.equals(args[1]);
+            List<SessionTiming> sessionTimings =
+                    clear ? sSessionTimings.drainTimings() : sSessionTimings.getTimings();
+            result.sessionTimings = sessionTimings.stream()
                     .map(timing -> new TelecomLogClass.LogSessionTiming()
                             .setSessionEntryPoint(timing.getKey())
                             .setTimeMillis(timing.getTime()))
                     .toArray(TelecomLogClass.LogSessionTiming[]::new);
             result.setHardwareRevision(SystemProperties.get("ro.boot.revision", ""));
             result.setCarrierId(getCarrierId(context));
-            if (args.length > 1 && CLEAR_ANALYTICS_ARG.equals(args[1])) {
+            if (clear) {
                 sCallIdToInfo.clear();
-                sSessionTimings.clear();
             }
         }
         String encodedProto = Base64.encodeToString(
@@ -767,16 +942,26 @@ public class Analytics {
                 // do nothing, leave the list in a partially sorted state.
             }
 
+            long callEventLogBytes = 0;
             for (String callId : callIds) {
+                CallInfoImpl callInfo = sCallIdToInfo.get(callId);
                 writer.printf("Call %s: ", callId);
-                writer.println(sCallIdToInfo.get(callId).toString());
+                writer.println(callInfo.toString());
+                if (callInfo.callEventLog != null) {
+                    writer.increaseIndent();
+                    writer.println("callEvents:");
+                    writer.increaseIndent();
+                    callInfo.callEventLog.dump(writer);
+                    writer.decreaseIndent();
+                    writer.decreaseIndent();
+                    callEventLogBytes += callInfo.callEventLog.getRetainedSizeBytes();
+                }
+            }
+            if (callEventLogBytes > 0) {
+                writer.println("Call event logs: ~" + callEventLogBytes + " bytes");
             }
 
-            Map<Integer, Double> averageTimings = SessionTiming.averageTimings(sSessionTimings);
-            averageTimings.entrySet().stream()
-                    .filter(e -> sSessionIdToLogSession.containsKey(e.getKey()))
-                    .forEach(e -> writer.printf("%s: %.2f\n",
-                            sSessionIdToLogSession.get(e.getKey()), e.getValue()));
+            sSessionTimings.dump(writer);
             writer.println("Hardware Version: " + SystemProperties.get("ro.boot.revision", ""));
             writer.println("Past analytics dumps: ");
             writer.increaseIndent();
@@ -835,15 +1020,39 @@ public class Analytics {
         return events.toArray(new TelecomLogClass.Event[events.size()]);
     }
 
+    private static TelecomLogClass.Event[] convertCallEventLogToProtoEvents(
+            CallEventLog callEventLog) {
+        long timeOfLastEvent = -1;
+        ArrayList<TelecomLogClass.Event> events = new ArrayList<>(callEventLog.size());
+        for (int i = 0; i < callEventLog.size(); i++) {
+            String eventName = callEventLog.getEventName(i);
+            if (sLogEventToAnalyticsEvent.containsKey(eventName)) {
+                long time = callEventLog.getTime(i);
+                TelecomLogClass.Event event = new TelecomLogClass.Event();
+                event.setEventName(sLogEventToAnalyticsEvent.get(eventName));
+                event.setTimeSinceLastEventMillis(roundToOneSigFig(
+                        timeOfLastEvent < 0 ? -1 : time - timeOfLastEvent));
+                events.add(event);
+                timeOfLastEvent = time;
+            }
+        }
+        return events.toArray(new TelecomLogClass.Event[events.size()]);
+    }
+
     private static TelecomLogClass.EventTimingEntry logEventTimingToProtoEventTiming(
             EventManager.EventRecord.EventTiming logEventTiming) {
+        return toProtoEventTiming(logEventTiming.name, logEventTiming.time);
+    }
+
+    private static TelecomLogClass.EventTimingEntry toProtoEventTiming(String name,
+            long timeMillis) {
         int analyticsEventTimingName =
-                sLogEventTimingToAnalyticsEventTiming.containsKey(logEventTiming.name) ?
-                        sLogEventTimingToAnalyticsEventTiming.get(logEventTiming.name) :
+                sLogEventTimingToAnalyticsEventTiming.containsKey(name) ?
+                        sLogEventTimingToAnalyticsEventTiming.get(name) :
                         ParcelableCallAnalytics.EventTiming.INVALID;
         return new TelecomLogClass.EventTimingEntry()
                 .setTimingName(analyticsEventTimingName)
-                .setTimeMillis(logEventTiming.time);
+                .setTimeMillis(timeMillis);
     }
 
     @VisibleForTesting
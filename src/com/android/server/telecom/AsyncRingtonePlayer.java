@@ -72,10 +72,29 @@ public class AsyncRingtonePlayer {
      */
     private final ArrayList<CountDownLatch> mPendingRingingLatches = new ArrayList<>();
 
+    /**
+     * Set to true if the ringtone thread is kept between calls rather than being started for each
+     * call and quit once the ringtone has stopped.
+     */
+    private boolean mKeepThreadAlive = false;
+
     public AsyncRingtonePlayer() {
         // Empty
     }
 
+    /**
+     * Keeps the ringtone thread running once the ringtone has stopped, so that the next call does
+     * not have to start a new one.  The thread is started right away.
+     */
+    public void setKeepThreadAlive(boolean keepThreadAlive) {
+        synchronized (this) {
+            mKeepThreadAlive = keepThreadAlive;
+            if (keepThreadAlive && mHandler == null) {
+                mHandler = getNewHandler();
+            }
+        }
+    }
+
     /**
      * Plays the appropriate ringtone for the specified call.
      * If {@link VolumeShaper.Configuration} is specified, it is applied to the ringtone to change
@@ -282,7 +301,9 @@ public class AsyncRingtonePlayer {
         setRingtone(null);
 
         synchronized(this) {
-            if (mHandler.hasMessages(EVENT_PLAY)) {
+            if (mKeepThreadAlive) {
+                Log.v(this, "Keeping alive ringtone thread for subsequent calls.");
+            } else if (mHandler.hasMessages(EVENT_PLAY)) {
                 Log.v(this, "Keeping alive ringtone thread for subsequent play request.");
             } else {
                 mHandler.removeMessages(EVENT_STOP);
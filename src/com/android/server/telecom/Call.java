@@ -613,6 +613,12 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
      */
     private boolean mIsSelfManaged = false;
 
+    /**
+     * The {@link CallStateIndex} this call is counted in, if any; re-indexed whenever one of the
+     * properties it is indexed by changes.
+     */
+    private CallStateIndex mCallStateIndex;
+
     private boolean mIsTransactionalCall = false;
     private CallingPackageIdentity mCallingPackageIdentity = new CallingPackageIdentity();
 
@@ -992,6 +998,9 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
         closeRttStreams();
 
         Log.addEvent(this, LogUtils.Events.DESTROYED);
+        if (mFlags.compactCallEventLog()) {
+            mAnalytics.compactCallEvents();
+        }
         mDestroyed = true;
     }
 
@@ -1301,6 +1310,7 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
             updateVideoHistoryViaState(mState, newState);
 
             mState = newState;
+            onCallStatePropertyChanged();
             maybeLoadCannedSmsResponses();
 
             if (mState == CallState.ACTIVE || mState == CallState.ON_HOLD) {
@@ -1770,6 +1780,7 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
     public void setTargetPhoneAccount(PhoneAccountHandle accountHandle) {
         if (!Objects.equals(mTargetPhoneAccountHandle, accountHandle)) {
             mTargetPhoneAccountHandle = accountHandle;
+            onCallStatePropertyChanged();
             // Update the last MO emergency call in the helper, if applicable.
             if (isEmergencyCall() && !isIncoming()) {
                 mCallsManager.getEmergencyCallHelper().setLastOutgoingEmergencyCallPAH(
@@ -1937,11 +1948,32 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
 
     public void setIsSelfManaged(boolean isSelfManaged) {
         mIsSelfManaged = isSelfManaged;
+        onCallStatePropertyChanged();
 
         // Connection properties will add/remove the PROPERTY_SELF_MANAGED.
         setConnectionProperties(getConnectionProperties());
     }
 
+    /**
+     * Sets the {@link CallStateIndex} this call is counted in.  Used by {@link CallStateIndex}.
+     */
+    void setCallStateIndex(CallStateIndex callStateIndex) {
+        mCallStateIndex = callStateIndex;
+    }
+
+    /**
+     * Called when a property of this call which is tracked by the {@link CallStateIndex} or the
+     * {@link CallStateSnapshot} changes.
+     */
+    private void onCallStatePropertyChanged() {
+        if (mCallStateIndex != null) {
+            mCallStateIndex.update(this);
+        }
+        if (mCallsManager != null) {
+            mCallsManager.onCallStatePropertyChanged(this);
+        }
+    }
+
     public boolean isTransactionalCall() {
         return mIsTransactionalCall;
     }
@@ -2238,6 +2270,7 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
         if (changedProperties != 0) {
             int previousProperties = mConnectionProperties;
             mConnectionProperties = connectionProperties;
+            onCallStatePropertyChanged();
             boolean didRttChange =
                     (changedProperties & Connection.PROPERTY_IS_RTT) == Connection.PROPERTY_IS_RTT;
             if (didRttChange) {
@@ -3018,7 +3051,8 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
             boolean shouldDisconnectUponTimeout, String callingMethod) {
         TransactionManager tm = TransactionManager.getInstance();
         tm.addTransaction(new VerifyCallStateChangeTransaction(mCallsManager,
-                this, targetCallState, shouldDisconnectUponTimeout), new OutcomeReceiver<>() {
+                this, targetCallState, shouldDisconnectUponTimeout), getId(),
+                new OutcomeReceiver<>() {
             @Override
             public void onResult(VoipCallTransactionResult result) {
             }
@@ -3568,6 +3602,7 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
             mParentCall.removeChildCall(this);
         }
         mParentCall = parentCall;
+        onCallStatePropertyChanged();
     }
 
     /**
@@ -4170,6 +4205,7 @@ public class Call implements CreateConnectionResponse, EventManager.Loggable,
         Log.i(this, "Setting associated user for call: %s", associatedUser);
         Preconditions.checkNotNull(associatedUser);
         mAssociatedUser = associatedUser;
+        onCallStatePropertyChanged();
     }
 
     static int getStateFromConnectionState(int state) {
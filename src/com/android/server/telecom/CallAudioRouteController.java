@@ -1,55 +1,469 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
 package com.android.server.telecom;
 
+import static com.android.server.telecom.CallAudioRouteStateMachine.ACTIVE_FOCUS;
+import static com.android.server.telecom.CallAudioRouteStateMachine.AUDIO_ROUTE_TO_LOG_EVENT;
+import static com.android.server.telecom.CallAudioRouteStateMachine.BLUETOOTH_DEVICE_LIST_CHANGED;
+import static com.android.server.telecom.CallAudioRouteStateMachine.BT_ACTIVE_DEVICE_GONE;
+import static com.android.server.telecom.CallAudioRouteStateMachine.BT_ACTIVE_DEVICE_PRESENT;
+import static com.android.server.telecom.CallAudioRouteStateMachine.BT_AUDIO_CONNECTED;
+import static com.android.server.telecom.CallAudioRouteStateMachine.BT_AUDIO_DISCONNECTED;
+import static com.android.server.telecom.CallAudioRouteStateMachine.BT_AUDIO_PENDING;
+import static com.android.server.telecom.CallAudioRouteStateMachine.CONNECT_DOCK;
+import static com.android.server.telecom.CallAudioRouteStateMachine.CONNECT_WIRED_HEADSET;
+import static com.android.server.telecom.CallAudioRouteStateMachine.DISCONNECT_DOCK;
+import static com.android.server.telecom.CallAudioRouteStateMachine.DISCONNECT_WIRED_HEADSET;
+import static com.android.server.telecom.CallAudioRouteStateMachine.INCLUDE_BLUETOOTH_IN_BASELINE;
+import static com.android.server.telecom.CallAudioRouteStateMachine.MUTE_EXTERNALLY_CHANGED;
+import static com.android.server.telecom.CallAudioRouteStateMachine.MUTE_OFF;
+import static com.android.server.telecom.CallAudioRouteStateMachine.MUTE_ON;
+import static com.android.server.telecom.CallAudioRouteStateMachine.NO_FOCUS;
+import static com.android.server.telecom.CallAudioRouteStateMachine.NO_INCLUDE_BLUETOOTH_IN_BASELINE;
+import static com.android.server.telecom.CallAudioRouteStateMachine.RINGING_FOCUS;
+import static com.android.server.telecom.CallAudioRouteStateMachine.ROUTE_BLUETOOTH;
+import static com.android.server.telecom.CallAudioRouteStateMachine.ROUTE_EARPIECE;
+import static com.android.server.telecom.CallAudioRouteStateMachine.ROUTE_SPEAKER;
+import static com.android.server.telecom.CallAudioRouteStateMachine.ROUTE_STREAMING;
+import static com.android.server.telecom.CallAudioRouteStateMachine.ROUTE_WIRED_HEADSET;
+import static com.android.server.telecom.CallAudioRouteStateMachine.RUN_RUNNABLE;
+import static com.android.server.telecom.CallAudioRouteStateMachine.SPEAKER_OFF;
+import static com.android.server.telecom.CallAudioRouteStateMachine.SPEAKER_ON;
+import static com.android.server.telecom.CallAudioRouteStateMachine.STREAMING_FORCE_DISABLED;
+import static com.android.server.telecom.CallAudioRouteStateMachine.STREAMING_FORCE_ENABLED;
+import static com.android.server.telecom.CallAudioRouteStateMachine.SWITCH_BASELINE_ROUTE;
+import static com.android.server.telecom.CallAudioRouteStateMachine.SWITCH_BLUETOOTH;
+import static com.android.server.telecom.CallAudioRouteStateMachine.SWITCH_EARPIECE;
+import static com.android.server.telecom.CallAudioRouteStateMachine.SWITCH_FOCUS;
+import static com.android.server.telecom.CallAudioRouteStateMachine.SWITCH_HEADSET;
+import static com.android.server.telecom.CallAudioRouteStateMachine.SWITCH_SPEAKER;
+import static com.android.server.telecom.CallAudioRouteStateMachine.TOGGLE_MUTE;
+import static com.android.server.telecom.CallAudioRouteStateMachine.UPDATE_SYSTEM_AUDIO_ROUTE;
+import static com.android.server.telecom.CallAudioRouteStateMachine.USER_SWITCH_BASELINE_ROUTE;
+import static com.android.server.telecom.CallAudioRouteStateMachine.USER_SWITCH_BLUETOOTH;
+import static com.android.server.telecom.CallAudioRouteStateMachine.USER_SWITCH_EARPIECE;
+import static com.android.server.telecom.CallAudioRouteStateMachine.USER_SWITCH_HEADSET;
+import static com.android.server.telecom.CallAudioRouteStateMachine.USER_SWITCH_SPEAKER;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.AudioDeviceInfo;
+import android.media.AudioManager;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Message;
 import android.telecom.CallAudioState;
+import android.telecom.Log;
+import android.telecom.Logging.Session;
+import android.util.SparseArray;
 
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.SomeArgs;
 import com.android.internal.util.IndentingPrintWriter;
+import com.android.server.telecom.bluetooth.BluetoothRouteManager;
+import com.android.server.telecom.flags.FeatureFlags;
 
+/**
+ * Table-driven implementation of {@link CallAudioRouteAdapter}, used in place of
+ * {@link CallAudioRouteStateMachine} when refactored audio route switching is enabled.
+ * <p>
+ * The controller has the same ten states, accepts the same messages and keeps the same hidden
+ * state as the state machine.  Instead of passing each message through a hierarchy of
+ * {@code State} objects, every outcome which depends only on the current state, the message and
+ * the available routes is computed once, when the controller is created, and stored in a flat
+ * table keyed by (state, message, available route mask).  An entry holds the state to transition
+ * to and a set of action bits, so dispatching a message is a single table load followed by the
+ * actions the entry names.  The few outcomes which also depend on runtime state (in-band ringing,
+ * whether the user explicitly left Bluetooth, whether the call was on speaker, and the baseline
+ * route) are resolved by those actions.
+ * <p>
+ * As in the state machine, a transition requested while handling a message takes effect once
+ * the message has been handled.  All messages are processed on a single dedicated handler.
+ */
 public class CallAudioRouteController implements CallAudioRouteAdapter {
-    private Handler mHandler;
+    private static final String NAME = CallAudioRouteController.class.getSimpleName();
+
+    /** States; the values index {@link #STATE_NAMES} and {@link #STATE_ROUTES}. */
+    private static final int STATE_ACTIVE_EARPIECE = 0;
+    private static final int STATE_ACTIVE_HEADSET = 1;
+    private static final int STATE_ACTIVE_BLUETOOTH = 2;
+    private static final int STATE_ACTIVE_SPEAKER = 3;
+    private static final int STATE_RINGING_BLUETOOTH = 4;
+    private static final int STATE_QUIESCENT_EARPIECE = 5;
+    private static final int STATE_QUIESCENT_HEADSET = 6;
+    private static final int STATE_QUIESCENT_BLUETOOTH = 7;
+    private static final int STATE_QUIESCENT_SPEAKER = 8;
+    private static final int STATE_STREAMING = 9;
+    private static final int NUM_STATES = 10;
+    /** Used for no state, and in table entries which do not transition. */
+    private static final int NO_STATE = 0xF;
+
+    private static final String[] STATE_NAMES = {
+            "ActiveEarpieceRoute",
+            "ActiveHeadsetRoute",
+            "ActiveBluetoothRoute",
+            "ActiveSpeakerRoute",
+            "RingingBluetoothRoute",
+            "QuiescentEarpieceRoute",
+            "QuiescentHeadsetRoute",
+            "QuiescentBluetoothRoute",
+            "QuiescentSpeakerRoute",
+            "StreamingState"};
 
-    public CallAudioRouteController() {
-        HandlerThread handlerThread = new HandlerThread(this.getClass().getSimpleName());
-        handlerThread.start();
-        mHandler = new Handler(handlerThread.getLooper());
+    private static final int[] STATE_ROUTES = {
+            ROUTE_EARPIECE,
+            ROUTE_WIRED_HEADSET,
+            ROUTE_BLUETOOTH,
+            ROUTE_SPEAKER,
+            ROUTE_BLUETOOTH,
+            ROUTE_EARPIECE,
+            ROUTE_WIRED_HEADSET,
+            ROUTE_BLUETOOTH,
+            ROUTE_SPEAKER,
+            ROUTE_STREAMING};
+
+    /** Audio route log events, built once so that transitions do not build strings. */
+    private static final String[] ENTERING_STATE_EVENTS = new String[NUM_STATES];
+    private static final String[] LEAVING_STATE_EVENTS = new String[NUM_STATES];
+
+    static {
+        for (int state = 0; state < NUM_STATES; state++) {
+            ENTERING_STATE_EVENTS[state] = "Entering state " + STATE_NAMES[state];
+            LEAVING_STATE_EVENTS[state] = "Leaving state " + STATE_NAMES[state];
+        }
     }
-    @Override
-    public void initialize() {
+
+    /**
+     * Table indices of the messages whose handling depends on the current state.  SWITCH_FOCUS
+     * is split into one index per focus type.
+     */
+    private static final int MSG_CONNECT_WIRED_HEADSET = 0;
+    private static final int MSG_DISCONNECT_WIRED_HEADSET = 1;
+    private static final int MSG_CONNECT_DOCK = 2;
+    private static final int MSG_DISCONNECT_DOCK = 3;
+    private static final int MSG_BT_ACTIVE_DEVICE_PRESENT = 4;
+    private static final int MSG_BT_ACTIVE_DEVICE_GONE = 5;
+    private static final int MSG_SWITCH_EARPIECE = 6;
+    private static final int MSG_SWITCH_BLUETOOTH = 7;
+    private static final int MSG_SWITCH_HEADSET = 8;
+    private static final int MSG_SWITCH_SPEAKER = 9;
+    private static final int MSG_SPEAKER_ON = 10;
+    private static final int MSG_SPEAKER_OFF = 11;
+    private static final int MSG_STREAMING_FORCE_ENABLED = 12;
+    private static final int MSG_STREAMING_FORCE_DISABLED = 13;
+    private static final int MSG_USER_SWITCH_EARPIECE = 14;
+    private static final int MSG_USER_SWITCH_BLUETOOTH = 15;
+    private static final int MSG_USER_SWITCH_HEADSET = 16;
+    private static final int MSG_USER_SWITCH_SPEAKER = 17;
+    private static final int MSG_BT_AUDIO_DISCONNECTED = 18;
+    private static final int MSG_BT_AUDIO_CONNECTED = 19;
+    private static final int MSG_BT_AUDIO_PENDING = 20;
+    private static final int MSG_FOCUS_NONE = 21;
+    private static final int MSG_FOCUS_ACTIVE = 22;
+    private static final int MSG_FOCUS_RINGING = 23;
+    private static final int NUM_TABLE_MESSAGES = 24;
+
+    /** Earpiece, Bluetooth, wired headset, speaker and streaming. */
+    private static final int ROUTE_MASK_BITS = 5;
+    private static final int ROUTE_MASK = (1 << ROUTE_MASK_BITS) - 1;
+
+    /**
+     * Layout of a table entry.  The low bits hold the state to transition to, or
+     * {@link #NO_STATE}; the remaining bits are the actions to take, which are taken in the
+     * order they are declared.  An entry of 0 means the message is not handled in that state.
+     */
+    private static final int ENTRY_STATE_MASK = 0xF;
+    private static final int HANDLED = 1 << 4;
+    /** The message is a no-op because the route it switches to is not available. */
+    private static final int A_NOT_AVAILABLE = 1 << 5;
+    /** The message is not expected in this state. */
+    private static final int A_UNEXPECTED = 1 << 6;
+    /** Record that the user explicitly switched away from Bluetooth. */
+    private static final int A_LEAVE_BLUETOOTH = 1 << 7;
+    /** Record that the user explicitly switched away from the speaker. */
+    private static final int A_LEAVE_SPEAKER = 1 << 8;
+    /** Clear the communication device of the current route. */
+    private static final int A_CLEAR_COMMUNICATION_DEVICE = 1 << 9;
+    /**
+     * If Bluetooth audio can be connected directly (the call has active focus or in-band
+     * ringing is enabled), only connect it, clearing the communication device of the current
+     * route if {@link #A_DIRECT_CLEARS_COMMUNICATION_DEVICE} is also set.  Otherwise take the
+     * rest of the entry, except for connecting Bluetooth audio.
+     */
+    private static final int A_IF_NOT_DIRECT_BLUETOOTH = 1 << 10;
+    private static final int A_DIRECT_CLEARS_COMMUNICATION_DEVICE = 1 << 11;
+    private static final int A_SPEAKER_ON = 1 << 12;
+    private static final int A_BLUETOOTH_OFF = 1 << 13;
+    private static final int A_BLUETOOTH_ON = 1 << 14;
+    private static final int A_SWITCH_HEADSET = 1 << 15;
+    /** Switch to Bluetooth, unless the user explicitly switched away from it. */
+    private static final int A_SWITCH_BLUETOOTH = 1 << 16;
+    private static final int A_SWITCH_BASELINE = 1 << 17;
+    /** Go back to the speaker if the call was on it, otherwise to the baseline route. */
+    private static final int A_HEADSET_DISCONNECTED = 1 << 18;
+    /** Leave Bluetooth after the Bluetooth stack disconnected the audio. */
+    private static final int A_BLUETOOTH_DISCONNECTED = 1 << 19;
+    /** Switch to the baseline route, unless Bluetooth audio is connected or pending. */
+    private static final int A_SPEAKER_OFF = 1 << 20;
+    /** Bluetooth audio connected while already on the Bluetooth route. */
+    private static final int A_BLUETOOTH_CONNECTED = 1 << 21;
+    private static final int A_DISCONNECT_BLUETOOTH_AUDIO = 1 << 22;
+    private static final int A_REINITIALIZE = 1 << 23;
+    private static final int A_NOTIFY_AUDIO_OPERATIONS_COMPLETE = 1 << 24;
+
+    private final BroadcastReceiver mMuteChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.startSession("CARC.mCR");
+            try {
+                if (AudioManager.ACTION_MICROPHONE_MUTE_CHANGED.equals(intent.getAction())) {
+                    if (mCallsManager.isInEmergencyCall()) {
+                        Log.i(this, "Mute was externally changed when there's an emergency call. "
+                                + "Forcing mute back off.");
+                        sendInternalMessage(MUTE_OFF);
+                    } else {
+                        sendInternalMessage(MUTE_EXTERNALLY_CHANGED);
+                    }
+                } else if (AudioManager.STREAM_MUTE_CHANGED_ACTION.equals(intent.getAction())) {
+                    int streamType = intent.getIntExtra(AudioManager.EXTRA_VOLUME_STREAM_TYPE, -1);
+                    boolean isStreamMuted = intent.getBooleanExtra(
+                            AudioManager.EXTRA_STREAM_VOLUME_MUTED, false);
+
+                    if (streamType == AudioManager.STREAM_RING && !isStreamMuted) {
+                        Log.i(this, "Ring stream was un-muted.");
+                        mCallAudioManager.onRingerModeChange();
+                    }
+                } else {
+                    Log.w(this, "Received non-mute-change intent");
+                }
+            } finally {
+                Log.endSession();
+            }
+        }
+    };
+
+    private final BroadcastReceiver mSpeakerPhoneChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.startSession("CARC.mSPCR");
+            try {
+                if (AudioManager.ACTION_SPEAKERPHONE_STATE_CHANGED.equals(intent.getAction())) {
+                    if (mAudioManager != null) {
+                        if (mAudioManager.isSpeakerphoneOn()) {
+                            sendInternalMessage(SPEAKER_ON);
+                        } else {
+                            sendInternalMessage(SPEAKER_OFF);
+                        }
+                    }
+                } else {
+                    Log.w(this, "Received non-speakerphone-change intent");
+                }
+            } finally {
+                Log.endSession();
+            }
+        }
+    };
+
+    private final Context mContext;
+    private final CallsManager mCallsManager;
+    private final AudioManager mAudioManager;
+    private final BluetoothRouteManager mBluetoothRouteManager;
+    private final StatusBarNotifier mStatusBarNotifier;
+    private final CallAudioCommunicationDeviceTracker mCommunicationDeviceTracker;
+    private final FeatureFlags mFeatureFlags;
+    private final TelecomSystem.SyncRoot mLock;
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+    /** Operations on the audio system shared with {@link CallAudioRouteStateMachine}. */
+    private final CallAudioRouteHelper mHelper;
+    private final int[] mTransitions;
+    private CallAudioManager mCallAudioManager;
+
+    // The following are only accessed on the handler thread.
+    private int mState = NO_STATE;
+    private int mPendingState = NO_STATE;
+    private int mDeviceSupportedRoutes;
+    private int mAvailableRoutes;
+    private int mAudioFocusType = NO_FOCUS;
+    private boolean mWasOnSpeaker;
+    private boolean mIsMuted;
+    private boolean mHasUserExplicitlyLeftBluetooth = false;
+    private long mNumMessages;
+    private long mNumTransitions;
+    /**
+     * Session names for each message code, built on first use so that messages do not build
+     * strings.  Only used on {@link #mHandler}.
+     */
+    private final SparseArray<String> mSessionNames = new SparseArray<>();
+
+    // CallAudioState is used as an interface to communicate with many other system components.
+    // No internal state transitions should depend on this variable.
+    private CallAudioState mCurrentCallAudioState;
+    private CallAudioState mLastKnownCallAudioState;
+
+    public CallAudioRouteController(
+            Context context,
+            CallsManager callsManager,
+            BluetoothRouteManager bluetoothManager,
+            WiredHeadsetManager wiredHeadsetManager,
+            StatusBarNotifier statusBarNotifier,
+            CallAudioManager.AudioServiceFactory audioServiceFactory,
+            int earpieceControl,
+            CallAudioCommunicationDeviceTracker communicationDeviceTracker,
+            FeatureFlags featureFlags) {
+        this(context, callsManager, bluetoothManager, wiredHeadsetManager, statusBarNotifier,
+                audioServiceFactory, earpieceControl, null /* looper */,
+                communicationDeviceTracker, featureFlags);
+    }
+
+    /**
+     * @param looper The looper to process messages on, or {@code null} to start a dedicated
+     *               handler thread.
+     */
+    @VisibleForTesting
+    public CallAudioRouteController(
+            Context context,
+            CallsManager callsManager,
+            BluetoothRouteManager bluetoothManager,
+            WiredHeadsetManager wiredHeadsetManager,
+            StatusBarNotifier statusBarNotifier,
+            CallAudioManager.AudioServiceFactory audioServiceFactory,
+            int earpieceControl,
+            Looper looper,
+            CallAudioCommunicationDeviceTracker communicationDeviceTracker,
+            FeatureFlags featureFlags) {
+        mContext = context;
+        mCallsManager = callsManager;
+        mAudioManager = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
+        mBluetoothRouteManager = bluetoothManager;
+        mStatusBarNotifier = statusBarNotifier;
+        mCommunicationDeviceTracker = communicationDeviceTracker;
+        mFeatureFlags = featureFlags;
+        mLock = callsManager.getLock();
+        if (looper == null) {
+            mHandlerThread = new HandlerThread(NAME);
+            mHandlerThread.start();
+            looper = mHandlerThread.getLooper();
+        } else {
+            mHandlerThread = null;
+        }
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                CallAudioRouteController.this.handleMessage(msg);
+            }
+        };
+        mHelper = new CallAudioRouteHelper(context, callsManager, mAudioManager, bluetoothManager,
+                wiredHeadsetManager, statusBarNotifier, audioServiceFactory, earpieceControl,
+                communicationDeviceTracker, featureFlags);
+        mTransitions = buildTransitions();
     }
 
     @Override
-    public void sendMessageWithSessionInfo(int message) {
+    public void setCallAudioManager(CallAudioManager callAudioManager) {
+        mCallAudioManager = callAudioManager;
     }
 
+    /**
+     * Initializes the controller with info on initial audio route, supported audio routes,
+     * and mute status.
+     */
     @Override
-    public void sendMessageWithSessionInfo(int message, int arg) {
+    public void initialize() {
+        initialize(getInitialAudioState());
+    }
+
+    public void initialize(CallAudioState initState) {
+        if ((initState.getRoute() & getCurrentCallSupportedRoutes()) == 0) {
+            Log.e(this, new IllegalArgumentException(), "Route %d specified when supported call"
+                    + " routes are: %d", initState.getRoute(), getCurrentCallSupportedRoutes());
+        }
+
+        mCurrentCallAudioState = initState;
+        mLastKnownCallAudioState = initState;
+        mDeviceSupportedRoutes = initState.getSupportedRouteMask();
+        mAvailableRoutes = mDeviceSupportedRoutes & getCurrentCallSupportedRoutes();
+        mIsMuted = initState.isMuted();
+        mWasOnSpeaker = false;
+        IntentFilter micMuteChangedFilter = new IntentFilter(
+                AudioManager.ACTION_MICROPHONE_MUTE_CHANGED);
+        micMuteChangedFilter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY);
+        mContext.registerReceiver(mMuteChangeReceiver, micMuteChangedFilter);
+
+        IntentFilter muteChangedFilter = new IntentFilter(AudioManager.STREAM_MUTE_CHANGED_ACTION);
+        muteChangedFilter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY);
+        mContext.registerReceiver(mMuteChangeReceiver, muteChangedFilter);
 
+        IntentFilter speakerChangedFilter = new IntentFilter(
+                AudioManager.ACTION_SPEAKERPHONE_STATE_CHANGED);
+        speakerChangedFilter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY);
+        mContext.registerReceiver(mSpeakerPhoneChangeReceiver, speakerChangedFilter);
+
+        mStatusBarNotifier.notifyMute(initState.isMuted());
+        int initialState = getQuiescentState(initState.getRoute());
+        // Enter the initial state on the handler, ahead of any message sent after this call.
+        mHandler.post(() -> {
+            mState = initialState;
+            enterState(initialState);
+        });
     }
 
+    /**
+     * Getter for the current CallAudioState object that the controller is keeping track of.
+     */
     @Override
-    public void sendMessageWithSessionInfo(int message, int arg, String data) {
+    public CallAudioState getCurrentCallAudioState() {
+        return mCurrentCallAudioState;
+    }
 
+    @VisibleForTesting
+    public CallAudioState getLastKnownCallAudioState() {
+        return mLastKnownCallAudioState;
     }
 
     @Override
-    public void sendMessage(int message, Runnable r) {
+    public void sendMessageWithSessionInfo(int message) {
+        sendMessageWithSessionInfo(message, 0, null);
+    }
 
+    @Override
+    public void sendMessageWithSessionInfo(int message, int arg) {
+        sendMessageWithSessionInfo(message, arg, null);
     }
 
     @Override
-    public void setCallAudioManager(CallAudioManager callAudioManager) {
+    public void sendMessageWithSessionInfo(int message, int arg, String data) {
+        SomeArgs args = SomeArgs.obtain();
+        args.arg1 = Log.createSubsession();
+        args.arg2 = data;
+        mHandler.obtainMessage(message, arg, 0, args).sendToTarget();
     }
 
     @Override
-    public CallAudioState getCurrentCallAudioState() {
-        return null;
+    public void sendMessage(int message, Runnable r) {
+        mHandler.obtainMessage(message, r).sendToTarget();
     }
 
     @Override
     public boolean isHfpDeviceAvailable() {
-        return false;
+        return mBluetoothRouteManager.isBluetoothAvailable();
     }
 
     @Override
@@ -57,8 +471,1058 @@ public class CallAudioRouteController implements CallAudioRouteAdapter {
         return mHandler;
     }
 
+    /**
+     * Stops processing messages; pending messages are discarded.
+     */
+    @VisibleForTesting
+    public void quit() {
+        mHandler.removeCallbacksAndMessages(null);
+        if (mHandlerThread != null) {
+            mHandlerThread.quitSafely();
+        }
+    }
+
     @Override
     public void dump(IndentingPrintWriter pw) {
+        int state = mState;
+        pw.print("Current state: ");
+        pw.println(state == NO_STATE ? "none" : STATE_NAMES[state]);
+        pw.println("Messages processed: " + mNumMessages + ", transitions: " + mNumTransitions);
+        pw.println("Pending messages:");
+        pw.increaseIndent();
+        mHandler.getLooper().dump(pw::println, "");
+        pw.decreaseIndent();
+    }
+
+    private String getSessionName(int what) {
+        String sessionName = mSessionNames.get(what);
+        if (sessionName == null) {
+            sessionName = "CARC.pM_" + CallAudioRouteStateMachine.getMessageName(what, "unknown");
+            mSessionNames.put(what, sessionName);
+        }
+        return sessionName;
+    }
+
+    private void handleMessage(Message msg) {
+        SomeArgs args = (msg.obj instanceof SomeArgs) ? (SomeArgs) msg.obj : null;
+        if (args != null) {
+            Log.continueSession((Session) args.arg1, getSessionName(msg.what));
+            Log.i(this, "Message received: %s=%d, arg1=%d",
+                    CallAudioRouteStateMachine.getMessageName(msg.what, "unknown"), msg.what,
+                    msg.arg1);
+        }
+        try {
+            if (mState == NO_STATE) {
+                Log.w(this, "Ignoring message %d received before initialization", msg.what);
+                return;
+            }
+            mNumMessages++;
+            processMessage(msg.what, msg.arg1, args != null ? (String) args.arg2 : null, msg.obj);
+            if (mPendingState != NO_STATE) {
+                performTransition();
+            }
+        } finally {
+            if (args != null) {
+                Log.endSession();
+                args.recycle();
+            }
+        }
+    }
+
+    private void processMessage(int what, int arg, String address, Object obj) {
+        // State-independent handling, which always comes first.
+        int addedRoutes = 0;
+        int removedRoutes = 0;
+        switch (what) {
+            case CONNECT_WIRED_HEADSET:
+                Log.addEvent(mCallsManager.getForegroundCall(), LogUtils.Events.AUDIO_ROUTE,
+                        "Wired headset connected");
+                removedRoutes |= ROUTE_EARPIECE;
+                addedRoutes |= ROUTE_WIRED_HEADSET;
+                break;
+            case DISCONNECT_WIRED_HEADSET:
+                Log.addEvent(mCallsManager.getForegroundCall(), LogUtils.Events.AUDIO_ROUTE,
+                        "Wired headset disconnected");
+                removedRoutes |= ROUTE_WIRED_HEADSET;
+                if (mHelper.doesDeviceSupportEarpieceRoute()) {
+                    addedRoutes |= ROUTE_EARPIECE;
+                }
+                break;
+            case BT_ACTIVE_DEVICE_PRESENT:
+                Log.addEvent(mCallsManager.getForegroundCall(), LogUtils.Events.AUDIO_ROUTE,
+                        "Bluetooth active device present");
+                break;
+            case BT_ACTIVE_DEVICE_GONE:
+                Log.addEvent(mCallsManager.getForegroundCall(), LogUtils.Events.AUDIO_ROUTE,
+                        "Bluetooth active device gone");
+                break;
+            case BLUETOOTH_DEVICE_LIST_CHANGED:
+                Log.addEvent(mCallsManager.getForegroundCall(), LogUtils.Events.AUDIO_ROUTE,
+                        "Bluetooth device list changed");
+                if (mBluetoothRouteManager.getConnectedDevices().size() > 0) {
+                    addedRoutes |= ROUTE_BLUETOOTH;
+                } else {
+                    removedRoutes |= ROUTE_BLUETOOTH;
+                }
+                updateAvailableRoutes(removedRoutes, addedRoutes);
+                return;
+            case SWITCH_BASELINE_ROUTE:
+                sendInternalMessage(calculateBaselineRouteMessage(false,
+                        arg == INCLUDE_BLUETOOTH_IN_BASELINE));
+                return;
+            case USER_SWITCH_BASELINE_ROUTE:
+                sendInternalMessage(calculateBaselineRouteMessage(true,
+                        arg == INCLUDE_BLUETOOTH_IN_BASELINE));
+                return;
+            case USER_SWITCH_BLUETOOTH:
+                // If the user tries to switch to BT, reset the explicitly-switched-away flag.
+                mHasUserExplicitlyLeftBluetooth = false;
+                break;
+            case SWITCH_FOCUS:
+                // Perform BT hearing aid active device caching/restoration
+                if (mAudioFocusType != NO_FOCUS && arg == NO_FOCUS) {
+                    mBluetoothRouteManager.restoreHearingAidDevice();
+                } else if (mAudioFocusType == NO_FOCUS && arg != NO_FOCUS) {
+                    mBluetoothRouteManager.cacheHearingAidDevice();
+                }
+                mAudioFocusType = arg;
+                break;
+            case MUTE_ON:
+            case MUTE_OFF:
+            case MUTE_EXTERNALLY_CHANGED:
+            case TOGGLE_MUTE:
+            case UPDATE_SYSTEM_AUDIO_ROUTE:
+            case RUN_RUNNABLE:
+                processStatelessMessage(what, obj);
+                return;
+            default:
+                break;
+        }
+        if (addedRoutes != 0 || removedRoutes != 0) {
+            updateAvailableRoutes(removedRoutes, addedRoutes);
+        }
+
+        int message = getTableMessage(what, arg);
+        int entry = message < 0 ? 0
+                : mTransitions[getTableIndex(mState, message, mAvailableRoutes & ROUTE_MASK)];
+        if (entry == 0) {
+            Log.e(this, new IllegalStateException(), "Unexpected message code %d", what);
+            return;
+        }
+        performActions(entry, what, address);
+    }
+
+    /**
+     * Takes the actions of a table entry.  Actions which request a transition only record it;
+     * it is performed once the message has been handled.
+     */
+    private void performActions(int entry, int what, String address) {
+        if ((entry & A_NOT_AVAILABLE) != 0) {
+            Log.w(this, "Ignoring %s command. Not available.",
+                    CallAudioRouteStateMachine.getMessageName(what, Integer.toString(what)));
+        }
+        if ((entry & A_UNEXPECTED) != 0) {
+            Log.e(this, new IllegalStateException(), "%s not expected in %s",
+                    CallAudioRouteStateMachine.getMessageName(what, Integer.toString(what)),
+                    STATE_NAMES[mState]);
+        }
+        if ((entry & A_LEAVE_BLUETOOTH) != 0) {
+            mHasUserExplicitlyLeftBluetooth = true;
+        }
+        if ((entry & A_LEAVE_SPEAKER) != 0) {
+            mWasOnSpeaker = false;
+        }
+        if ((entry & A_CLEAR_COMMUNICATION_DEVICE) != 0) {
+            clearCommunicationDevice();
+        }
+        if ((entry & A_IF_NOT_DIRECT_BLUETOOTH) != 0) {
+            if (mAudioFocusType == ACTIVE_FOCUS
+                    || mBluetoothRouteManager.isInbandRingingEnabled()) {
+                if ((entry & A_DIRECT_CLEARS_COMMUNICATION_DEVICE) != 0) {
+                    clearCommunicationDevice();
+                }
+                if ((entry & A_BLUETOOTH_ON) != 0) {
+                    // Omit transition to ActiveBluetoothRoute until actual connection.
+                    setBluetoothOn(address);
+                }
+                return;
+            }
+            entry &= ~A_BLUETOOTH_ON;
+        }
+        if ((entry & A_SPEAKER_ON) != 0) {
+            setSpeakerphoneOn(true);
+        }
+        if ((entry & A_BLUETOOTH_OFF) != 0) {
+            setBluetoothOff();
+        }
+        if ((entry & A_BLUETOOTH_ON) != 0) {
+            setBluetoothOn(address);
+        }
+        if ((entry & A_SWITCH_HEADSET) != 0) {
+            sendInternalMessage(SWITCH_HEADSET);
+        }
+        if ((entry & A_SWITCH_BLUETOOTH) != 0) {
+            if (!mHasUserExplicitlyLeftBluetooth) {
+                sendInternalMessage(SWITCH_BLUETOOTH);
+            } else {
+                Log.i(this, "Not switching to BT route from %s because user has explicitly "
+                        + "disconnected.", STATE_NAMES[mState]);
+            }
+        }
+        if ((entry & A_SWITCH_BASELINE) != 0) {
+            sendInternalMessage(SWITCH_BASELINE_ROUTE, INCLUDE_BLUETOOTH_IN_BASELINE);
+        }
+        if ((entry & A_HEADSET_DISCONNECTED) != 0) {
+            if (mWasOnSpeaker) {
+                setSpeakerphoneOn(true);
+                sendInternalMessage(SWITCH_SPEAKER);
+            } else {
+                sendInternalMessage(SWITCH_BASELINE_ROUTE, INCLUDE_BLUETOOTH_IN_BASELINE);
+            }
+        }
+        if ((entry & A_BLUETOOTH_DISCONNECTED) != 0) {
+            handleBtInitiatedDisconnect();
+        }
+        if ((entry & A_SPEAKER_OFF) != 0) {
+            // Check if we already requested to connect to other devices and are just waiting
+            // for their response; the baseline route would be re-evaluated incorrectly.
+            if (!mBluetoothRouteManager.isBluetoothAudioConnectedOrPending()) {
+                sendInternalMessage(SWITCH_BASELINE_ROUTE, INCLUDE_BLUETOOTH_IN_BASELINE);
+            }
+        }
+        if ((entry & A_BLUETOOTH_CONNECTED) != 0) {
+            // Send ringer mode change because we enter the active route even when HFP is
+            // connecting, and update the in-call app in case the active BT device changed.
+            mCallAudioManager.onRingerModeChange();
+            updateSystemAudioState();
+        }
+        if ((entry & A_DISCONNECT_BLUETOOTH_AUDIO) != 0) {
+            mBluetoothRouteManager.disconnectAudio();
+        }
+        int state = entry & ENTRY_STATE_MASK;
+        if (state != NO_STATE) {
+            transitionTo(state);
+        }
+        if ((entry & A_REINITIALIZE) != 0) {
+            reinitialize();
+        }
+        if ((entry & A_NOTIFY_AUDIO_OPERATIONS_COMPLETE) != 0) {
+            mCallAudioManager.notifyAudioOperationsComplete();
+        }
+    }
+
+    /**
+     * Handles the messages which do not depend on the current state.
+     */
+    private void processStatelessMessage(int what, Object obj) {
+        switch (what) {
+            case MUTE_ON:
+                setMuteOn(true);
+                updateSystemMuteState();
+                return;
+            case MUTE_OFF:
+                setMuteOn(false);
+                updateSystemMuteState();
+                return;
+            case MUTE_EXTERNALLY_CHANGED:
+                mIsMuted = mAudioManager.isMicrophoneMute();
+                if (isInActiveState()) {
+                    updateSystemMuteState();
+                }
+                return;
+            case TOGGLE_MUTE:
+                sendInternalMessage(mIsMuted ? MUTE_OFF : MUTE_ON);
+                return;
+            case UPDATE_SYSTEM_AUDIO_ROUTE:
+                if (mFeatureFlags.availableRoutesNeverUpdatedAfterSetSystemAudioState()) {
+                    // Ensure available routes is updated.
+                    updateRouteForForegroundCall();
+                    // Ensure current audio state gets updated to take this into account.
+                    updateInternalCallAudioState();
+                    // Either resend the current audio state as it stands, or update to reflect any
+                    // changes put into place based on mAvailableRoutes
+                    setSystemAudioState(mCurrentCallAudioState, true);
+                } else {
+                    updateInternalCallAudioState();
+                    updateRouteForForegroundCall();
+                    setSystemAudioState(mLastKnownCallAudioState, true);
+                }
+                return;
+            case RUN_RUNNABLE:
+                ((Runnable) obj).run();
+                return;
+            default:
+                Log.e(this, new IllegalStateException(), "Unexpected message code %d", what);
+        }
+    }
+
+    private void transitionTo(int state) {
+        mPendingState = state;
+    }
+
+    private void performTransition() {
+        int state = mPendingState;
+        mPendingState = NO_STATE;
+        Call foregroundCall = mCallsManager.getForegroundCall();
+        Log.addEvent(foregroundCall, LogUtils.Events.AUDIO_ROUTE, LEAVING_STATE_EVENTS[mState]);
+        mState = state;
+        mNumTransitions++;
+        enterState(state);
+    }
+
+    private void enterState(int state) {
+        Call foregroundCall = mCallsManager.getForegroundCall();
+        Log.addEvent(foregroundCall, LogUtils.Events.AUDIO_ROUTE, ENTERING_STATE_EVENTS[state]);
+        if (isActiveState(state)) {
+            Log.addEvent(foregroundCall, AUDIO_ROUTE_TO_LOG_EVENT.get(STATE_ROUTES[state],
+                    LogUtils.Events.AUDIO_ROUTE));
+        }
+        switch (state) {
+            case STATE_ACTIVE_EARPIECE:
+            case STATE_ACTIVE_HEADSET:
+                setSpeakerphoneOn(false);
+                if (mFeatureFlags.callAudioCommunicationDeviceRefactor()) {
+                    mCommunicationDeviceTracker.setCommunicationDevice(
+                            getCommunicationDeviceType(state), null);
+                }
+                setSystemAudioState(new CallAudioState(mIsMuted, STATE_ROUTES[state],
+                        mAvailableRoutes, null, mBluetoothRouteManager.getConnectedDevices()),
+                        true);
+                updateInternalCallAudioState();
+                break;
+            case STATE_ACTIVE_BLUETOOTH:
+                setSpeakerphoneOn(false);
+                // Try arbitrarily connecting to BT audio if we haven't already, in case the
+                // connection failed to be set while in a quiescent route in-call.
+                if (mFeatureFlags.callAudioCommunicationDeviceRefactor()) {
+                    setBluetoothOn(null);
+                }
+                if (mFeatureFlags.updateRouteMaskWhenBtConnected()) {
+                    mAvailableRoutes |= ROUTE_BLUETOOTH;
+                }
+                setSystemAudioState(new CallAudioState(mIsMuted, ROUTE_BLUETOOTH,
+                        mAvailableRoutes, mBluetoothRouteManager.getBluetoothAudioConnectedDevice(),
+                        mBluetoothRouteManager.getConnectedDevices()), true);
+                updateInternalCallAudioState();
+                // Do not send RINGER_MODE_CHANGE if no Bluetooth SCO audio device is available
+                if (mBluetoothRouteManager.getBluetoothAudioConnectedDevice() != null) {
+                    mCallAudioManager.onRingerModeChange();
+                }
+                break;
+            case STATE_RINGING_BLUETOOTH:
+                setSpeakerphoneOn(false);
+                // Do not enable SCO audio here, since RING is being sent to the headset.
+                setSystemAudioState(new CallAudioState(mIsMuted, ROUTE_BLUETOOTH,
+                        mAvailableRoutes, mBluetoothRouteManager.getBluetoothAudioConnectedDevice(),
+                        mBluetoothRouteManager.getConnectedDevices()));
+                updateInternalCallAudioState();
+                break;
+            case STATE_ACTIVE_SPEAKER:
+                // Don't set speakerphone on here -- we might end up in this state by following
+                // the speaker state that some other app commanded.
+                mWasOnSpeaker = true;
+                setSystemAudioState(new CallAudioState(mIsMuted, ROUTE_SPEAKER,
+                        mAvailableRoutes, null, mBluetoothRouteManager.getConnectedDevices()),
+                        true);
+                updateInternalCallAudioState();
+                break;
+            case STATE_QUIESCENT_BLUETOOTH:
+                mHasUserExplicitlyLeftBluetooth = false;
+                if (mFeatureFlags.resetMuteWhenEnteringQuiescentBtRoute()) {
+                    setMuteOn(false);
+                }
+                updateInternalCallAudioState();
+                break;
+            case STATE_QUIESCENT_EARPIECE:
+            case STATE_QUIESCENT_HEADSET:
+            case STATE_QUIESCENT_SPEAKER:
+                mHasUserExplicitlyLeftBluetooth = false;
+                updateInternalCallAudioState();
+                break;
+            case STATE_STREAMING:
+                updateSystemAudioState();
+                break;
+        }
+    }
+
+    /**
+     * Precomputes the outcome of every message in every state for every combination of
+     * available routes.  Feature flags are read once here, so the table reflects the flags at
+     * the time the controller is created.
+     */
+    private int[] buildTransitions() {
+        int[] transitions = new int[getTableIndex(NUM_STATES, 0, 0)];
+        for (int state = 0; state < NUM_STATES; state++) {
+            for (int message = 0; message < NUM_TABLE_MESSAGES; message++) {
+                for (int routes = 0; routes <= ROUTE_MASK; routes++) {
+                    // As in the state machine, the route family handles a message first.
+                    int entry = getRouteFamilyEntry(state, message);
+                    if (entry == 0) {
+                        entry = getStateEntry(state, message, routes);
+                    }
+                    transitions[getTableIndex(state, message, routes)] = entry;
+                }
+            }
+        }
+        return transitions;
+    }
+
+    /**
+     * @return the entry for a message handled the same way by the active and quiescent states
+     *         of a route, or 0 if the message is handled by the state itself.
+     */
+    private static int getRouteFamilyEntry(int state, int message) {
+        if (state == STATE_STREAMING) {
+            return 0;
+        }
+        switch (STATE_ROUTES[state]) {
+            case ROUTE_EARPIECE:
+                switch (message) {
+                    case MSG_CONNECT_WIRED_HEADSET:
+                        return stay(A_SWITCH_HEADSET);
+                    case MSG_BT_ACTIVE_DEVICE_PRESENT:
+                        return stay(A_SWITCH_BLUETOOTH);
+                    case MSG_DISCONNECT_WIRED_HEADSET:
+                        return stay(A_UNEXPECTED);
+                    case MSG_BT_ACTIVE_DEVICE_GONE:
+                    case MSG_BT_AUDIO_DISCONNECTED:
+                    case MSG_DISCONNECT_DOCK:
+                        return stay(0);
+                    case MSG_STREAMING_FORCE_ENABLED:
+                        return to(STATE_STREAMING);
+                }
+                return 0;
+            case ROUTE_WIRED_HEADSET:
+                switch (message) {
+                    case MSG_CONNECT_WIRED_HEADSET:
+                        return stay(A_UNEXPECTED);
+                    case MSG_BT_ACTIVE_DEVICE_PRESENT:
+                        return stay(A_SWITCH_BLUETOOTH);
+                    case MSG_DISCONNECT_WIRED_HEADSET:
+                        return stay(A_HEADSET_DISCONNECTED);
+                    case MSG_BT_ACTIVE_DEVICE_GONE:
+                    case MSG_BT_AUDIO_DISCONNECTED:
+                    case MSG_CONNECT_DOCK:
+                    case MSG_DISCONNECT_DOCK:
+                        return stay(0);
+                }
+                return 0;
+            case ROUTE_BLUETOOTH:
+                switch (message) {
+                    case MSG_CONNECT_WIRED_HEADSET:
+                        return stay(A_SWITCH_HEADSET);
+                    case MSG_BT_ACTIVE_DEVICE_GONE:
+                        return stay(A_BLUETOOTH_DISCONNECTED | A_LEAVE_SPEAKER);
+                    case MSG_BT_ACTIVE_DEVICE_PRESENT:
+                        // The active device should not have been null while on Bluetooth.
+                    case MSG_DISCONNECT_WIRED_HEADSET:
+                    case MSG_CONNECT_DOCK:
+                    case MSG_DISCONNECT_DOCK:
+                        return stay(0);
+                    case MSG_STREAMING_FORCE_ENABLED:
+                        return to(STATE_STREAMING);
+                }
+                return 0;
+            case ROUTE_SPEAKER:
+                switch (message) {
+                    case MSG_CONNECT_WIRED_HEADSET:
+                        return stay(A_SWITCH_HEADSET);
+                    case MSG_BT_ACTIVE_DEVICE_PRESENT:
+                        return stay(A_SWITCH_BLUETOOTH);
+                    case MSG_DISCONNECT_DOCK:
+                        return stay(A_SWITCH_BASELINE);
+                    case MSG_BT_ACTIVE_DEVICE_GONE:
+                    case MSG_DISCONNECT_WIRED_HEADSET:
+                    case MSG_BT_AUDIO_DISCONNECTED:
+                    case MSG_CONNECT_DOCK:
+                        return stay(0);
+                    case MSG_STREAMING_FORCE_ENABLED:
+                        return to(STATE_STREAMING);
+                }
+                return 0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return the entry for a message handled by a state itself, or 0 if it is not handled.
+     */
+    private int getStateEntry(int state, int message, int routes) {
+        final int clearCommunicationDevice =
+                mFeatureFlags.callAudioCommunicationDeviceRefactor()
+                        ? A_CLEAR_COMMUNICATION_DEVICE : 0;
+        switch (state) {
+            case STATE_ACTIVE_EARPIECE:
+                switch (message) {
+                    case MSG_SWITCH_EARPIECE:
+                    case MSG_USER_SWITCH_EARPIECE:
+                    case MSG_SPEAKER_OFF:
+                    case MSG_FOCUS_ACTIVE:
+                    case MSG_FOCUS_RINGING:
+                        return stay(0);
+                    case MSG_BT_AUDIO_CONNECTED:
+                        return to(STATE_ACTIVE_BLUETOOTH);
+                    case MSG_SWITCH_BLUETOOTH:
+                    case MSG_USER_SWITCH_BLUETOOTH:
+                        return ifAvailable(routes, ROUTE_BLUETOOTH,
+                                to(STATE_RINGING_BLUETOOTH) | clearCommunicationDevice
+                                        | A_IF_NOT_DIRECT_BLUETOOTH | A_BLUETOOTH_ON);
+                    case MSG_SWITCH_HEADSET:
+                    case MSG_USER_SWITCH_HEADSET:
+                        return ifAvailable(routes, ROUTE_WIRED_HEADSET,
+                                to(STATE_ACTIVE_HEADSET) | clearCommunicationDevice);
+                    case MSG_CONNECT_DOCK:
+                        // Switch to speaker mode when docked and in a call.
+                    case MSG_SWITCH_SPEAKER:
+                    case MSG_USER_SWITCH_SPEAKER:
+                        return to(STATE_ACTIVE_SPEAKER) | clearCommunicationDevice | A_SPEAKER_ON;
+                    case MSG_SPEAKER_ON:
+                        return to(STATE_ACTIVE_SPEAKER);
+                    case MSG_FOCUS_NONE:
+                        return stay(A_REINITIALIZE | A_NOTIFY_AUDIO_OPERATIONS_COMPLETE);
+                }
+                return 0;
+            case STATE_QUIESCENT_EARPIECE:
+                switch (message) {
+                    case MSG_SWITCH_EARPIECE:
+                    case MSG_USER_SWITCH_EARPIECE:
+                    case MSG_SPEAKER_ON:
+                        // Ignore speakerphone state changes outside of calls.
+                    case MSG_SPEAKER_OFF:
+                        return stay(0);
+                    case MSG_BT_AUDIO_CONNECTED:
+                        return to(STATE_ACTIVE_BLUETOOTH);
+                    case MSG_SWITCH_BLUETOOTH:
+                    case MSG_USER_SWITCH_BLUETOOTH:
+                        return ifAvailable(routes, ROUTE_BLUETOOTH,
+                                to(STATE_QUIESCENT_BLUETOOTH));
+                    case MSG_SWITCH_HEADSET:
+                    case MSG_USER_SWITCH_HEADSET:
+                        return ifAvailable(routes, ROUTE_WIRED_HEADSET,
+                                to(STATE_QUIESCENT_HEADSET));
+                    case MSG_CONNECT_DOCK:
+                        // Go to the quiescent speaker route when out of a call.
+                    case MSG_SWITCH_SPEAKER:
+                    case MSG_USER_SWITCH_SPEAKER:
+                        return to(STATE_QUIESCENT_SPEAKER);
+                    case MSG_FOCUS_ACTIVE:
+                    case MSG_FOCUS_RINGING:
+                        return to(STATE_ACTIVE_EARPIECE);
+                    case MSG_FOCUS_NONE:
+                        return stay(A_NOTIFY_AUDIO_OPERATIONS_COMPLETE);
+                }
+                return 0;
+            case STATE_ACTIVE_HEADSET:
+                switch (message) {
+                    case MSG_SWITCH_EARPIECE:
+                    case MSG_USER_SWITCH_EARPIECE:
+                        return ifAvailable(routes, ROUTE_EARPIECE,
+                                to(STATE_ACTIVE_EARPIECE) | clearCommunicationDevice);
+                    case MSG_BT_AUDIO_CONNECTED:
+                        return to(STATE_ACTIVE_BLUETOOTH);
+                    case MSG_SWITCH_BLUETOOTH:
+                    case MSG_USER_SWITCH_BLUETOOTH:
+                        return ifAvailable(routes, ROUTE_BLUETOOTH,
+                                to(STATE_RINGING_BLUETOOTH) | A_IF_NOT_DIRECT_BLUETOOTH
+                                        | (clearCommunicationDevice != 0
+                                                ? A_DIRECT_CLEARS_COMMUNICATION_DEVICE : 0)
+                                        | A_BLUETOOTH_ON);
+                    case MSG_SWITCH_HEADSET:
+                    case MSG_USER_SWITCH_HEADSET:
+                    case MSG_SPEAKER_OFF:
+                    case MSG_FOCUS_ACTIVE:
+                    case MSG_FOCUS_RINGING:
+                        return stay(0);
+                    case MSG_SWITCH_SPEAKER:
+                    case MSG_USER_SWITCH_SPEAKER:
+                        return to(STATE_ACTIVE_SPEAKER) | clearCommunicationDevice | A_SPEAKER_ON;
+                    case MSG_SPEAKER_ON:
+                        return to(STATE_ACTIVE_SPEAKER);
+                    case MSG_FOCUS_NONE:
+                        return stay(A_REINITIALIZE | A_NOTIFY_AUDIO_OPERATIONS_COMPLETE);
+                    case MSG_STREAMING_FORCE_ENABLED:
+                        return to(STATE_STREAMING);
+                }
+                return 0;
+            case STATE_QUIESCENT_HEADSET:
+                switch (message) {
+                    case MSG_SWITCH_EARPIECE:
+                    case MSG_USER_SWITCH_EARPIECE:
+                        return ifAvailable(routes, ROUTE_EARPIECE,
+                                to(STATE_QUIESCENT_EARPIECE));
+                    case MSG_BT_AUDIO_CONNECTED:
+                        return to(STATE_ACTIVE_BLUETOOTH);
+                    case MSG_SWITCH_BLUETOOTH:
+                    case MSG_USER_SWITCH_BLUETOOTH:
+                        return ifAvailable(routes, ROUTE_BLUETOOTH,
+                                to(STATE_QUIESCENT_BLUETOOTH));
+                    case MSG_SWITCH_HEADSET:
+                    case MSG_USER_SWITCH_HEADSET:
+                    case MSG_SPEAKER_ON:
+                        // Ignore speakerphone state changes outside of calls.
+                    case MSG_SPEAKER_OFF:
+                        return stay(0);
+                    case MSG_SWITCH_SPEAKER:
+                    case MSG_USER_SWITCH_SPEAKER:
+                        return to(STATE_QUIESCENT_SPEAKER);
+                    case MSG_FOCUS_ACTIVE:
+                    case MSG_FOCUS_RINGING:
+                        return to(STATE_ACTIVE_HEADSET);
+                    case MSG_FOCUS_NONE:
+                        return stay(A_NOTIFY_AUDIO_OPERATIONS_COMPLETE);
+                }
+                return 0;
+            case STATE_ACTIVE_BLUETOOTH:
+                switch (message) {
+                    case MSG_USER_SWITCH_EARPIECE:
+                        return A_LEAVE_BLUETOOTH | ifAvailable(routes, ROUTE_EARPIECE,
+                                to(STATE_ACTIVE_EARPIECE) | A_BLUETOOTH_OFF);
+                    case MSG_SWITCH_EARPIECE:
+                        return ifAvailable(routes, ROUTE_EARPIECE,
+                                to(STATE_ACTIVE_EARPIECE) | A_BLUETOOTH_OFF);
+                    case MSG_BT_AUDIO_CONNECTED:
+                        return stay(A_BLUETOOTH_CONNECTED);
+                    case MSG_SWITCH_BLUETOOTH:
+                    case MSG_USER_SWITCH_BLUETOOTH:
+                        return stay(A_BLUETOOTH_ON);
+                    case MSG_USER_SWITCH_HEADSET:
+                        return A_LEAVE_BLUETOOTH | ifAvailable(routes, ROUTE_WIRED_HEADSET,
+                                to(STATE_ACTIVE_HEADSET) | A_BLUETOOTH_OFF);
+                    case MSG_SWITCH_HEADSET:
+                        return ifAvailable(routes, ROUTE_WIRED_HEADSET,
+                                to(STATE_ACTIVE_HEADSET) | A_BLUETOOTH_OFF);
+                    case MSG_USER_SWITCH_SPEAKER:
+                        return to(STATE_ACTIVE_SPEAKER) | A_LEAVE_BLUETOOTH | A_SPEAKER_ON
+                                | A_BLUETOOTH_OFF;
+                    case MSG_SWITCH_SPEAKER:
+                        return to(STATE_ACTIVE_SPEAKER) | A_SPEAKER_ON | A_BLUETOOTH_OFF;
+                    case MSG_SPEAKER_ON:
+                        return to(STATE_ACTIVE_SPEAKER) | A_BLUETOOTH_OFF;
+                    case MSG_SPEAKER_OFF:
+                    case MSG_FOCUS_ACTIVE:
+                        return stay(0);
+                    case MSG_FOCUS_NONE:
+                        // Only disconnect audio here instead of routing away from BT entirely.
+                        if (mFeatureFlags.transitRouteBeforeAudioDisconnectBt()) {
+                            return to(STATE_QUIESCENT_BLUETOOTH) | A_DISCONNECT_BLUETOOTH_AUDIO
+                                    | A_NOTIFY_AUDIO_OPERATIONS_COMPLETE;
+                        }
+                        return stay(A_DISCONNECT_BLUETOOTH_AUDIO | A_REINITIALIZE
+                                | A_NOTIFY_AUDIO_OPERATIONS_COMPLETE);
+                    case MSG_FOCUS_RINGING:
+                        // Focus is now ringing, so only in-band ringing keeps audio on BT.
+                        return to(STATE_RINGING_BLUETOOTH) | A_IF_NOT_DIRECT_BLUETOOTH
+                                | A_BLUETOOTH_OFF;
+                    case MSG_BT_AUDIO_DISCONNECTED:
+                        return stay(A_BLUETOOTH_DISCONNECTED);
+                }
+                return 0;
+            case STATE_RINGING_BLUETOOTH:
+                switch (message) {
+                    case MSG_USER_SWITCH_EARPIECE:
+                        return A_LEAVE_BLUETOOTH | ifAvailable(routes, ROUTE_EARPIECE,
+                                to(STATE_ACTIVE_EARPIECE));
+                    case MSG_SWITCH_EARPIECE:
+                        return ifAvailable(routes, ROUTE_EARPIECE, to(STATE_ACTIVE_EARPIECE));
+                    case MSG_BT_AUDIO_CONNECTED:
+                        return to(STATE_ACTIVE_BLUETOOTH);
+                    case MSG_SWITCH_BLUETOOTH:
+                    case MSG_USER_SWITCH_BLUETOOTH:
+                    case MSG_SPEAKER_OFF:
+                    case MSG_FOCUS_RINGING:
+                        // Audio disconnecting while ringing w/o in-band should not cause a
+                        // route switch, since the device is still connected.
+                    case MSG_BT_AUDIO_DISCONNECTED:
+                        return stay(0);
+                    case MSG_USER_SWITCH_HEADSET:
+                        return A_LEAVE_BLUETOOTH | ifAvailable(routes, ROUTE_WIRED_HEADSET,
+                                to(STATE_ACTIVE_HEADSET));
+                    case MSG_SWITCH_HEADSET:
+                        return ifAvailable(routes, ROUTE_WIRED_HEADSET, to(STATE_ACTIVE_HEADSET));
+                    case MSG_USER_SWITCH_SPEAKER:
+                        return to(STATE_ACTIVE_SPEAKER) | A_LEAVE_BLUETOOTH | A_SPEAKER_ON;
+                    case MSG_SWITCH_SPEAKER:
+                        return to(STATE_ACTIVE_SPEAKER) | A_SPEAKER_ON;
+                    case MSG_SPEAKER_ON:
+                        return to(STATE_ACTIVE_SPEAKER);
+                    case MSG_FOCUS_NONE:
+                        return stay(A_REINITIALIZE | A_NOTIFY_AUDIO_OPERATIONS_COMPLETE);
+                    case MSG_FOCUS_ACTIVE:
+                        return stay(A_BLUETOOTH_ON);
+                }
+                return 0;
+            case STATE_QUIESCENT_BLUETOOTH:
+                switch (message) {
+                    case MSG_SWITCH_EARPIECE:
+                    case MSG_USER_SWITCH_EARPIECE:
+                        return ifAvailable(routes, ROUTE_EARPIECE,
+                                to(STATE_QUIESCENT_EARPIECE));
+                    case MSG_BT_AUDIO_CONNECTED:
+                        return to(STATE_ACTIVE_BLUETOOTH);
+                    case MSG_SWITCH_BLUETOOTH:
+                    case MSG_USER_SWITCH_BLUETOOTH:
+                    case MSG_SPEAKER_ON:
+                        // Ignore speakerphone state changes outside of calls.
+                    case MSG_SPEAKER_OFF:
+                        // Audio disconnecting while quiescent should not cause a route switch,
+                        // since the device is still connected.
+                    case MSG_BT_AUDIO_DISCONNECTED:
+                        return stay(0);
+                    case MSG_SWITCH_HEADSET:
+                    case MSG_USER_SWITCH_HEADSET:
+                        return ifAvailable(routes, ROUTE_WIRED_HEADSET,
+                                to(STATE_QUIESCENT_HEADSET));
+                    case MSG_SWITCH_SPEAKER:
+                    case MSG_USER_SWITCH_SPEAKER:
+                        return to(STATE_QUIESCENT_SPEAKER);
+                    case MSG_FOCUS_ACTIVE:
+                        // The connection to BT may fail while in-call, in which case we still
+                        // want to be in the active route.
+                        if (mFeatureFlags.callAudioCommunicationDeviceRefactor()) {
+                            return to(STATE_ACTIVE_BLUETOOTH);
+                        }
+                        return stay(A_BLUETOOTH_ON);
+                    case MSG_FOCUS_RINGING:
+                        return to(STATE_RINGING_BLUETOOTH) | A_IF_NOT_DIRECT_BLUETOOTH
+                                | A_BLUETOOTH_ON;
+                    case MSG_FOCUS_NONE:
+                        return stay(A_NOTIFY_AUDIO_OPERATIONS_COMPLETE);
+                }
+                return 0;
+            case STATE_ACTIVE_SPEAKER:
+                switch (message) {
+                    case MSG_USER_SWITCH_EARPIECE:
+                        return A_LEAVE_SPEAKER | ifAvailable(routes, ROUTE_EARPIECE,
+                                to(STATE_ACTIVE_EARPIECE));
+                    case MSG_SWITCH_EARPIECE:
+                        return ifAvailable(routes, ROUTE_EARPIECE, to(STATE_ACTIVE_EARPIECE));
+                    case MSG_BT_AUDIO_CONNECTED:
+                        return to(STATE_ACTIVE_BLUETOOTH);
+                    case MSG_USER_SWITCH_BLUETOOTH:
+                        return A_LEAVE_SPEAKER | ifAvailable(routes, ROUTE_BLUETOOTH,
+                                to(STATE_RINGING_BLUETOOTH) | A_IF_NOT_DIRECT_BLUETOOTH
+                                        | A_BLUETOOTH_ON);
+                    case MSG_SWITCH_BLUETOOTH:
+                        return ifAvailable(routes, ROUTE_BLUETOOTH,
+                                to(STATE_RINGING_BLUETOOTH) | A_IF_NOT_DIRECT_BLUETOOTH
+                                        | A_BLUETOOTH_ON);
+                    case MSG_USER_SWITCH_HEADSET:
+                        return A_LEAVE_SPEAKER | ifAvailable(routes, ROUTE_WIRED_HEADSET,
+                                to(STATE_ACTIVE_HEADSET));
+                    case MSG_SWITCH_HEADSET:
+                        return ifAvailable(routes, ROUTE_WIRED_HEADSET, to(STATE_ACTIVE_HEADSET));
+                    case MSG_SWITCH_SPEAKER:
+                    case MSG_USER_SWITCH_SPEAKER:
+                    case MSG_SPEAKER_ON:
+                    case MSG_FOCUS_ACTIVE:
+                    case MSG_FOCUS_RINGING:
+                        return stay(0);
+                    case MSG_SPEAKER_OFF:
+                        return stay(A_SPEAKER_OFF);
+                    case MSG_FOCUS_NONE:
+                        return stay(A_REINITIALIZE | A_NOTIFY_AUDIO_OPERATIONS_COMPLETE);
+                }
+                return 0;
+            case STATE_QUIESCENT_SPEAKER:
+                switch (message) {
+                    case MSG_SWITCH_EARPIECE:
+                    case MSG_USER_SWITCH_EARPIECE:
+                        return ifAvailable(routes, ROUTE_EARPIECE,
+                                to(STATE_QUIESCENT_EARPIECE));
+                    case MSG_BT_AUDIO_CONNECTED:
+                        return to(STATE_ACTIVE_BLUETOOTH);
+                    case MSG_SWITCH_BLUETOOTH:
+                    case MSG_USER_SWITCH_BLUETOOTH:
+                        return ifAvailable(routes, ROUTE_BLUETOOTH,
+                                to(STATE_QUIESCENT_BLUETOOTH));
+                    case MSG_SWITCH_HEADSET:
+                    case MSG_USER_SWITCH_HEADSET:
+                        return ifAvailable(routes, ROUTE_WIRED_HEADSET,
+                                to(STATE_QUIESCENT_HEADSET));
+                    case MSG_SWITCH_SPEAKER:
+                    case MSG_USER_SWITCH_SPEAKER:
+                    case MSG_SPEAKER_ON:
+                        return stay(0);
+                    case MSG_SPEAKER_OFF:
+                        return stay(A_SWITCH_BASELINE);
+                    case MSG_FOCUS_ACTIVE:
+                    case MSG_FOCUS_RINGING:
+                        return to(STATE_ACTIVE_SPEAKER) | A_SPEAKER_ON;
+                    case MSG_FOCUS_NONE:
+                        return stay(A_NOTIFY_AUDIO_OPERATIONS_COMPLETE);
+                }
+                return 0;
+            case STATE_STREAMING:
+                switch (message) {
+                    case MSG_SWITCH_EARPIECE:
+                    case MSG_USER_SWITCH_EARPIECE:
+                    case MSG_SPEAKER_OFF:
+                    case MSG_SPEAKER_ON:
+                    case MSG_BT_AUDIO_CONNECTED:
+                    case MSG_SWITCH_BLUETOOTH:
+                    case MSG_USER_SWITCH_BLUETOOTH:
+                    case MSG_SWITCH_HEADSET:
+                    case MSG_USER_SWITCH_HEADSET:
+                    case MSG_SWITCH_SPEAKER:
+                    case MSG_USER_SWITCH_SPEAKER:
+                    case MSG_FOCUS_ACTIVE:
+                    case MSG_FOCUS_RINGING:
+                        return stay(0);
+                    case MSG_FOCUS_NONE:
+                        return stay(A_REINITIALIZE | A_NOTIFY_AUDIO_OPERATIONS_COMPLETE);
+                    case MSG_STREAMING_FORCE_DISABLED:
+                        return stay(A_REINITIALIZE);
+                }
+                return 0;
+            default:
+                return 0;
+        }
+    }
+
+    private static int getTableIndex(int state, int message, int routes) {
+        return ((state * NUM_TABLE_MESSAGES + message) << ROUTE_MASK_BITS) | routes;
+    }
+
+    /**
+     * @return the table index of a message, or -1 if its handling does not depend on the state.
+     */
+    private static int getTableMessage(int what, int arg) {
+        switch (what) {
+            case CONNECT_WIRED_HEADSET: return MSG_CONNECT_WIRED_HEADSET;
+            case DISCONNECT_WIRED_HEADSET: return MSG_DISCONNECT_WIRED_HEADSET;
+            case CONNECT_DOCK: return MSG_CONNECT_DOCK;
+            case DISCONNECT_DOCK: return MSG_DISCONNECT_DOCK;
+            case BT_ACTIVE_DEVICE_PRESENT: return MSG_BT_ACTIVE_DEVICE_PRESENT;
+            case BT_ACTIVE_DEVICE_GONE: return MSG_BT_ACTIVE_DEVICE_GONE;
+            case SWITCH_EARPIECE: return MSG_SWITCH_EARPIECE;
+            case SWITCH_BLUETOOTH: return MSG_SWITCH_BLUETOOTH;
+            case SWITCH_HEADSET: return MSG_SWITCH_HEADSET;
+            case SWITCH_SPEAKER: return MSG_SWITCH_SPEAKER;
+            case SPEAKER_ON: return MSG_SPEAKER_ON;
+            case SPEAKER_OFF: return MSG_SPEAKER_OFF;
+            case STREAMING_FORCE_ENABLED: return MSG_STREAMING_FORCE_ENABLED;
+            case STREAMING_FORCE_DISABLED: return MSG_STREAMING_FORCE_DISABLED;
+            case USER_SWITCH_EARPIECE: return MSG_USER_SWITCH_EARPIECE;
+            case USER_SWITCH_BLUETOOTH: return MSG_USER_SWITCH_BLUETOOTH;
+            case USER_SWITCH_HEADSET: return MSG_USER_SWITCH_HEADSET;
+            case USER_SWITCH_SPEAKER: return MSG_USER_SWITCH_SPEAKER;
+            case BT_AUDIO_DISCONNECTED: return MSG_BT_AUDIO_DISCONNECTED;
+            case BT_AUDIO_CONNECTED: return MSG_BT_AUDIO_CONNECTED;
+            case BT_AUDIO_PENDING: return MSG_BT_AUDIO_PENDING;
+            case SWITCH_FOCUS:
+                switch (arg) {
+                    case NO_FOCUS: return MSG_FOCUS_NONE;
+                    case ACTIVE_FOCUS: return MSG_FOCUS_ACTIVE;
+                    case RINGING_FOCUS: return MSG_FOCUS_RINGING;
+                    default: return -1;
+                }
+            default:
+                return -1;
+        }
+    }
+
+    private static int to(int state) {
+        return HANDLED | state;
+    }
+
+    private static int stay(int actions) {
+        return HANDLED | NO_STATE | actions;
+    }
+
+    private static int ifAvailable(int routes, int route, int entry) {
+        return (routes & route) != 0 ? entry : stay(A_NOT_AVAILABLE);
+    }
+
+    private static boolean isActiveState(int state) {
+        return state <= STATE_ACTIVE_SPEAKER || state == STATE_STREAMING;
+    }
+
+    /**
+     * @return {@code true} if the audio state is reported to the system in the specified state.
+     */
+    private static boolean isSystemAudioState(int state) {
+        return state <= STATE_RINGING_BLUETOOTH || state == STATE_STREAMING;
+    }
+
+    private static int getQuiescentState(int route) {
+        switch (route) {
+            case ROUTE_EARPIECE:
+                return STATE_QUIESCENT_EARPIECE;
+            case ROUTE_BLUETOOTH:
+                return STATE_QUIESCENT_BLUETOOTH;
+            case ROUTE_WIRED_HEADSET:
+                return STATE_QUIESCENT_HEADSET;
+            case ROUTE_STREAMING:
+                return STATE_STREAMING;
+            default:
+                return STATE_QUIESCENT_SPEAKER;
+        }
+    }
+
+    private static int getCommunicationDeviceType(int state) {
+        return STATE_ROUTES[state] == ROUTE_WIRED_HEADSET
+                ? AudioDeviceInfo.TYPE_WIRED_HEADSET : AudioDeviceInfo.TYPE_BUILTIN_EARPIECE;
+    }
+
+    private boolean isInActiveState() {
+        return mState != NO_STATE && isActiveState(mState);
+    }
+
+    private void clearCommunicationDevice() {
+        mCommunicationDeviceTracker.clearCommunicationDevice(getCommunicationDeviceType(mState));
+    }
+
+    private void handleBtInitiatedDisconnect() {
+        if (mState != STATE_ACTIVE_BLUETOOTH) {
+            sendInternalMessage(SWITCH_BASELINE_ROUTE, NO_INCLUDE_BLUETOOTH_IN_BASELINE);
+            return;
+        }
+        // If BT tells us that something got disconnected, we don't want to disconnect BT before
+        // transitioning, since BT might be trying to connect another device in the meantime.
+        int command = calculateBaselineRouteMessage(false, false);
+        switch (command) {
+            case SWITCH_EARPIECE:
+                transitionTo(STATE_ACTIVE_EARPIECE);
+                break;
+            case SWITCH_HEADSET:
+                transitionTo(STATE_ACTIVE_HEADSET);
+                break;
+            case SWITCH_SPEAKER:
+                setSpeakerphoneOn(true);
+                transitionTo(STATE_ACTIVE_SPEAKER);
+                break;
+            default:
+                Log.w(this, "Got unexpected code " + command + " when processing a"
+                        + " BT-initiated audio disconnect");
+                // Some fallback logic to make sure we make it off the bluetooth route.
+                sendInternalMessage(SWITCH_BASELINE_ROUTE, NO_INCLUDE_BLUETOOTH_IN_BASELINE);
+                break;
+        }
+    }
+
+    private void updateAvailableRoutes(int removedRoutes, int addedRoutes) {
+        mAvailableRoutes = modifyRoutes(mAvailableRoutes, removedRoutes, addedRoutes, true);
+        mDeviceSupportedRoutes = modifyRoutes(mDeviceSupportedRoutes, removedRoutes,
+                addedRoutes, false);
+        updateSystemAudioState();
+    }
+
+    private void updateSystemAudioState() {
+        updateInternalCallAudioState();
+        if (isSystemAudioState(mState)) {
+            setSystemAudioState(mCurrentCallAudioState);
+        }
+    }
+
+    private void setSpeakerphoneOn(boolean on) {
+        mHelper.setSpeakerphoneOn(on);
+    }
+
+    private void setBluetoothOn(String address) {
+        mHelper.setBluetoothOn(address, () -> sendInternalMessage(BT_AUDIO_CONNECTED));
+    }
+
+    private void setBluetoothOff() {
+        mHelper.setBluetoothOff();
+    }
+
+    private void setMuteOn(boolean mute) {
+        mIsMuted = mute;
+        mHelper.setMuteOn(mute, this::isInActiveState);
+    }
+
+    private void updateSystemMuteState() {
+        CallAudioState newCallAudioState = new CallAudioState(mIsMuted,
+                mCurrentCallAudioState.getRoute(),
+                mAvailableRoutes,
+                mCurrentCallAudioState.getActiveBluetoothDevice(),
+                mBluetoothRouteManager.getConnectedDevices());
+        setSystemAudioState(newCallAudioState);
+        updateInternalCallAudioState();
+    }
+
+    /**
+     * Updates the CallAudioState object from current internal state. The result is used for
+     * external communication only.
+     */
+    private void updateInternalCallAudioState() {
+        mCurrentCallAudioState = new CallAudioState(mIsMuted, STATE_ROUTES[mState],
+                mAvailableRoutes, mBluetoothRouteManager.getBluetoothAudioConnectedDevice(),
+                mBluetoothRouteManager.getConnectedDevices());
+    }
+
+    private void setSystemAudioState(CallAudioState newCallAudioState) {
+        setSystemAudioState(newCallAudioState, false);
+    }
+
+    private void setSystemAudioState(CallAudioState newCallAudioState, boolean force) {
+        synchronized (mLock) {
+            Log.i(this, "setSystemAudioState: changing from %s to %s", mLastKnownCallAudioState,
+                    newCallAudioState);
+            if (force || !newCallAudioState.equals(mLastKnownCallAudioState)) {
+                mStatusBarNotifier.notifyMute(newCallAudioState.isMuted());
+                mCallsManager.onCallAudioStateChanged(mLastKnownCallAudioState, newCallAudioState);
+                mHelper.updateAudioStateForTrackedCalls(newCallAudioState);
+                mLastKnownCallAudioState = newCallAudioState;
+            }
+        }
+    }
+
+    private void sendInternalMessage(int messageCode) {
+        sendInternalMessage(messageCode, 0);
+    }
+
+    private void sendInternalMessage(int messageCode, int arg1) {
+        // Internal messages are sent at the front of the queue, so that the actions they
+        // complete appear atomic with respect to externally-sourced messages.
+        Session subsession = Log.createSubsession();
+        if (subsession != null) {
+            SomeArgs args = SomeArgs.obtain();
+            args.arg1 = subsession;
+            mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(messageCode, arg1, 0, args));
+        } else {
+            mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(messageCode, arg1, 0));
+        }
+    }
+
+    private CallAudioState getInitialAudioState() {
+        return mHelper.getInitialAudioState();
+    }
+
+    private int calculateBaselineRouteMessage(boolean isExplicitUserRequest,
+            boolean includeBluetooth) {
+        return mHelper.calculateBaselineRouteMessage(mAvailableRoutes,
+                mHasUserExplicitlyLeftBluetooth, isExplicitUserRequest, includeBluetooth);
+    }
+
+    private void reinitialize() {
+        CallAudioState initState = getInitialAudioState();
+        mDeviceSupportedRoutes = initState.getSupportedRouteMask();
+        mAvailableRoutes = mDeviceSupportedRoutes & getCurrentCallSupportedRoutes();
+        mIsMuted = initState.isMuted();
+        setSpeakerphoneOn(initState.getRoute() == CallAudioState.ROUTE_SPEAKER);
+        setMuteOn(mIsMuted);
+        mWasOnSpeaker = false;
+        mHasUserExplicitlyLeftBluetooth = false;
+        mLastKnownCallAudioState = initState;
+        transitionTo(getQuiescentState(initState.getRoute()));
+    }
+
+    private void updateRouteForForegroundCall() {
+        mAvailableRoutes = mDeviceSupportedRoutes & getCurrentCallSupportedRoutes();
+
+        // Move to baseline route in the case the current route is no longer available.
+        if ((mAvailableRoutes & mCurrentCallAudioState.getRoute()) == 0) {
+            sendInternalMessage(calculateBaselineRouteMessage(false, true));
+        }
+    }
+
+    private int getCurrentCallSupportedRoutes() {
+        return mHelper.getCurrentCallSupportedRoutes();
+    }
 
+    private int modifyRoutes(int base, int remove, int add, boolean considerCurrentCall) {
+        return mHelper.modifyRoutes(base, remove, add, considerCurrentCall);
     }
 }
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import static com.android.server.telecom.CallAudioRouteStateMachine.EARPIECE_FORCE_DISABLED;
+import static com.android.server.telecom.CallAudioRouteStateMachine.EARPIECE_FORCE_ENABLED;
+import static com.android.server.telecom.CallAudioRouteStateMachine.ROUTE_BLUETOOTH;
+import static com.android.server.telecom.CallAudioRouteStateMachine.ROUTE_EARPIECE;
+import static com.android.server.telecom.CallAudioRouteStateMachine.ROUTE_SPEAKER;
+import static com.android.server.telecom.CallAudioRouteStateMachine.ROUTE_WIRED_HEADSET;
+import static com.android.server.telecom.CallAudioRouteStateMachine.SWITCH_BLUETOOTH;
+import static com.android.server.telecom.CallAudioRouteStateMachine.SWITCH_EARPIECE;
+import static com.android.server.telecom.CallAudioRouteStateMachine.SWITCH_HEADSET;
+import static com.android.server.telecom.CallAudioRouteStateMachine.SWITCH_SPEAKER;
+import static com.android.server.telecom.CallAudioRouteStateMachine.USER_SWITCH_BLUETOOTH;
+import static com.android.server.telecom.CallAudioRouteStateMachine.USER_SWITCH_EARPIECE;
+import static com.android.server.telecom.CallAudioRouteStateMachine.USER_SWITCH_HEADSET;
+import static com.android.server.telecom.CallAudioRouteStateMachine.USER_SWITCH_SPEAKER;
+
+import android.app.ActivityManager;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.pm.UserInfo;
+import android.media.AudioDeviceInfo;
+import android.media.AudioManager;
+import android.media.IAudioService;
+import android.os.Binder;
+import android.os.RemoteException;
+import android.os.UserHandle;
+import android.telecom.CallAudioState;
+import android.telecom.Log;
+
+import com.android.server.telecom.bluetooth.BluetoothRouteManager;
+import com.android.server.telecom.flags.FeatureFlags;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Operations on the audio system and Bluetooth which are shared by
+ * {@link CallAudioRouteStateMachine} and {@link CallAudioRouteController}.  The state of the
+ * route (the current route, available routes and mute state) stays with the caller.
+ */
+final class CallAudioRouteHelper {
+    private final Context mContext;
+    private final CallsManager mCallsManager;
+    private final AudioManager mAudioManager;
+    private final BluetoothRouteManager mBluetoothRouteManager;
+    private final WiredHeadsetManager mWiredHeadsetManager;
+    private final StatusBarNotifier mStatusBarNotifier;
+    private final CallAudioManager.AudioServiceFactory mAudioServiceFactory;
+    private final CallAudioCommunicationDeviceTracker mCommunicationDeviceTracker;
+    private final FeatureFlags mFeatureFlags;
+    private final TelecomSystem.SyncRoot mLock;
+    private final boolean mDoesDeviceSupportEarpieceRoute;
+
+    CallAudioRouteHelper(
+            Context context,
+            CallsManager callsManager,
+            AudioManager audioManager,
+            BluetoothRouteManager bluetoothManager,
+            WiredHeadsetManager wiredHeadsetManager,
+            StatusBarNotifier statusBarNotifier,
+            CallAudioManager.AudioServiceFactory audioServiceFactory,
+            int earpieceControl,
+            CallAudioCommunicationDeviceTracker communicationDeviceTracker,
+            FeatureFlags featureFlags) {
+        mContext = context;
+        mCallsManager = callsManager;
+        mAudioManager = audioManager;
+        mBluetoothRouteManager = bluetoothManager;
+        mWiredHeadsetManager = wiredHeadsetManager;
+        mStatusBarNotifier = statusBarNotifier;
+        mAudioServiceFactory = audioServiceFactory;
+        mCommunicationDeviceTracker = communicationDeviceTracker;
+        mFeatureFlags = featureFlags;
+        mLock = callsManager.getLock();
+        switch (earpieceControl) {
+            case EARPIECE_FORCE_DISABLED:
+                mDoesDeviceSupportEarpieceRoute = false;
+                break;
+            case EARPIECE_FORCE_ENABLED:
+                mDoesDeviceSupportEarpieceRoute = true;
+                break;
+            default:
+                mDoesDeviceSupportEarpieceRoute = checkForEarpieceSupport();
+        }
+    }
+
+    boolean doesDeviceSupportEarpieceRoute() {
+        return mDoesDeviceSupportEarpieceRoute;
+    }
+
+    void setSpeakerphoneOn(boolean on) {
+        Log.i(this, "turning speaker phone %s", on);
+        final boolean hasAnyCalls = mCallsManager.hasAnyCalls();
+        // These APIs are all via two-way binder calls so can potentially block Telecom.  Since none
+        // of this has to happen in the Telecom lock we'll offload it to the async executor.
+        boolean speakerOn = false;
+        if (mFeatureFlags.callAudioCommunicationDeviceRefactor()) {
+            if (on) {
+                speakerOn = mCommunicationDeviceTracker.setCommunicationDevice(
+                        AudioDeviceInfo.TYPE_BUILTIN_SPEAKER, null);
+            } else {
+                mCommunicationDeviceTracker.clearCommunicationDevice(
+                        AudioDeviceInfo.TYPE_BUILTIN_SPEAKER);
+            }
+        } else {
+            speakerOn = processLegacySpeakerCommunicationDevice(on);
+        }
+        mStatusBarNotifier.notifySpeakerphone(hasAnyCalls && speakerOn);
+    }
+
+    /**
+     * @param address The device to connect, or {@code null} for any device.
+     * @param onAlreadyConnected Run if {@code address} is {@code null} and a device is already
+     *                           connected; the caller should then treat Bluetooth audio as
+     *                           connected.
+     */
+    void setBluetoothOn(String address, Runnable onAlreadyConnected) {
+        if (mBluetoothRouteManager.isBluetoothAvailable()) {
+            BluetoothDevice connectedDevice =
+                    mBluetoothRouteManager.getBluetoothAudioConnectedDevice();
+            if (address == null && connectedDevice != null) {
+                // null means connect to any device, so if we're already connected to some device,
+                // that means we can just tell ourselves that it's connected.
+                // Do still try to connect audio though, so that BluetoothRouteManager knows that
+                // there's an active call.
+                Log.i(this, "Bluetooth audio already on.");
+                onAlreadyConnected.run();
+                mBluetoothRouteManager.connectBluetoothAudio(connectedDevice.getAddress());
+                return;
+            }
+            if (connectedDevice == null || !Objects.equals(address, connectedDevice.getAddress())) {
+                Log.i(this, "connecting bluetooth audio: %s", address);
+                mBluetoothRouteManager.connectBluetoothAudio(address);
+            }
+        }
+    }
+
+    void setBluetoothOff() {
+        if (mBluetoothRouteManager.isBluetoothAvailable()) {
+            if (mBluetoothRouteManager.isBluetoothAudioConnectedOrPending()) {
+                Log.i(this, "disconnecting bluetooth audio");
+                mBluetoothRouteManager.disconnectBluetoothAudio();
+            }
+        }
+    }
+
+    /**
+     * Logs the mute change and, if the route is active, applies it to the microphone.
+     * @param isInActiveState Whether the route is active; only checked if the microphone mute
+     *                        state differs.
+     */
+    void setMuteOn(boolean mute, BooleanSupplier isInActiveState) {
+        Log.addEvent(mCallsManager.getForegroundCall(), mute ?
+                LogUtils.Events.MUTE : LogUtils.Events.UNMUTE);
+        if (mute != mAudioManager.isMicrophoneMute() && isInActiveState.getAsBoolean()) {
+            IAudioService audio = mAudioServiceFactory.getAudioService();
+            Log.i(this, "changing microphone mute state to: %b [serviceIsNull=%b]",
+                    mute, audio == null);
+            if (audio != null) {
+                try {
+                    // We use the audio service directly here so that we can specify
+                    // the current user. Telecom runs in the system_server process which
+                    // may run as a separate user from the foreground user. If we
+                    // used AudioManager directly, we would change mute for the system's
+                    // user and not the current foreground, which we want to avoid.
+                    audio.setMicrophoneMute(mute, mContext.getOpPackageName(),
+                            getCurrentUserId(), mContext.getAttributionTag());
+                } catch (RemoteException e) {
+                    Log.e(this, e, "Remote exception while toggling mute.");
+                }
+                // TODO: Check microphone state after attempting to set to ensure that
+                // our state corroborates AudioManager's state.
+            }
+        }
+    }
+
+    void updateAudioStateForTrackedCalls(CallAudioState newCallAudioState) {
+        Set<Call> calls = mCallsManager.getTrackedCalls();
+        for (Call call : calls) {
+            if (call != null && call.getConnectionService() != null) {
+                call.getConnectionService().onCallAudioStateChanged(call, newCallAudioState);
+            }
+        }
+    }
+
+    int calculateSupportedRoutes() {
+        int routeMask = CallAudioState.ROUTE_SPEAKER;
+
+        if (mWiredHeadsetManager.isPluggedIn()) {
+            routeMask |= CallAudioState.ROUTE_WIRED_HEADSET;
+        } else if (mDoesDeviceSupportEarpieceRoute){
+            routeMask |= CallAudioState.ROUTE_EARPIECE;
+        }
+
+        if (mBluetoothRouteManager.isBluetoothAvailable()) {
+            routeMask |=  CallAudioState.ROUTE_BLUETOOTH;
+        }
+
+        return routeMask;
+    }
+
+    CallAudioState getInitialAudioState() {
+        int supportedRouteMask = calculateSupportedRoutes() & getCurrentCallSupportedRoutes();
+        final int route;
+
+        if ((supportedRouteMask & ROUTE_BLUETOOTH) != 0
+                && mBluetoothRouteManager.hasBtActiveDevice()) {
+            route = ROUTE_BLUETOOTH;
+        } else if ((supportedRouteMask & ROUTE_WIRED_HEADSET) != 0) {
+            route = ROUTE_WIRED_HEADSET;
+        } else if ((supportedRouteMask & ROUTE_EARPIECE) != 0) {
+            route = ROUTE_EARPIECE;
+        } else {
+            route = ROUTE_SPEAKER;
+        }
+
+        return new CallAudioState(false, route, supportedRouteMask, null,
+                mBluetoothRouteManager.getConnectedDevices());
+    }
+
+    /**
+     * @param availableRoutes The routes currently available.
+     * @param hasUserExplicitlyLeftBluetooth Whether the user switched away from Bluetooth.
+     * @return the message which switches to the baseline route.
+     */
+    int calculateBaselineRouteMessage(int availableRoutes, boolean hasUserExplicitlyLeftBluetooth,
+            boolean isExplicitUserRequest, boolean includeBluetooth) {
+        boolean isSkipEarpiece = false;
+        if (!isExplicitUserRequest) {
+            synchronized (mLock) {
+                // Check video calls to skip earpiece since the baseline for video
+                // calls should be the speakerphone route
+                isSkipEarpiece = mCallsManager.hasVideoCall();
+            }
+        }
+        if ((availableRoutes & ROUTE_BLUETOOTH) != 0
+                && !hasUserExplicitlyLeftBluetooth
+                && includeBluetooth && !isWatchActiveOrOnlyWatchesAvailable()) {
+            return isExplicitUserRequest ? USER_SWITCH_BLUETOOTH : SWITCH_BLUETOOTH;
+        } else if ((availableRoutes & ROUTE_EARPIECE) != 0 && !isSkipEarpiece) {
+            return isExplicitUserRequest ? USER_SWITCH_EARPIECE : SWITCH_EARPIECE;
+        } else if ((availableRoutes & ROUTE_WIRED_HEADSET) != 0) {
+            return isExplicitUserRequest ? USER_SWITCH_HEADSET : SWITCH_HEADSET;
+        } else {
+            return isExplicitUserRequest ? USER_SWITCH_SPEAKER : SWITCH_SPEAKER;
+        }
+    }
+
+    int getCurrentCallSupportedRoutes() {
+        int supportedRoutes = CallAudioState.ROUTE_ALL;
+
+        if (mCallsManager.getForegroundCall() != null) {
+            supportedRoutes &= mCallsManager.getForegroundCall().getSupportedAudioRoutes();
+        }
+
+        return supportedRoutes;
+    }
+
+    int modifyRoutes(int base, int remove, int add, boolean considerCurrentCall) {
+        base &= ~remove;
+
+        if (considerCurrentCall) {
+            add &= getCurrentCallSupportedRoutes();
+        }
+
+        base |= add;
+
+        return base;
+    }
+
+    private int getCurrentUserId() {
+        final long ident = Binder.clearCallingIdentity();
+        try {
+            UserInfo currentUser = ActivityManager.getService().getCurrentUser();
+            return currentUser.id;
+        } catch (RemoteException e) {
+            // Activity manager not running, nothing we can do assume user 0.
+        } finally {
+            Binder.restoreCallingIdentity(ident);
+        }
+        return UserHandle.USER_OWNER;
+    }
+
+    private boolean checkForEarpieceSupport() {
+        AudioDeviceInfo[] deviceList = mAudioManager.getDevices(AudioManager.GET_DEVICES_OUTPUTS);
+        for (AudioDeviceInfo device: deviceList) {
+            if (device.getType() == AudioDeviceInfo.TYPE_BUILTIN_EARPIECE) {
+                return true;
+            }
+        }
+        // No earpiece found
+        return false;
+    }
+
+    private boolean isWatchActiveOrOnlyWatchesAvailable() {
+        if (!mFeatureFlags.ignoreAutoRouteToWatchDevice()) {
+            Log.i(this, "isWatchActiveOrOnlyWatchesAvailable: Flag is disabled.");
+            return false;
+        }
+
+        boolean containsWatchDevice = false;
+        boolean containsNonWatchDevice = false;
+        Collection<BluetoothDevice> connectedBtDevices =
+                mBluetoothRouteManager.getConnectedDevices();
+
+        for (BluetoothDevice connectedDevice: connectedBtDevices) {
+            if (mBluetoothRouteManager.isWatch(connectedDevice)) {
+                containsWatchDevice = true;
+            } else {
+                containsNonWatchDevice = true;
+            }
+        }
+
+        // Don't ignore switch if watch is already the active device.
+        boolean isActiveDeviceWatch = mBluetoothRouteManager.isWatch(
+                mBluetoothRouteManager.getBluetoothAudioConnectedDevice());
+        Log.i(this, "isWatchActiveOrOnlyWatchesAvailable: contains watch: %s, contains "
+                + "non-wearable device: %s, is active device a watch: %s.",
+                containsWatchDevice, containsNonWatchDevice, isActiveDeviceWatch);
+        return containsWatchDevice && !containsNonWatchDevice && !isActiveDeviceWatch;
+    }
+
+    private boolean processLegacySpeakerCommunicationDevice(boolean on) {
+        AudioDeviceInfo speakerDevice = null;
+        for (AudioDeviceInfo info : mAudioManager.getAvailableCommunicationDevices()) {
+            if (info.getType() == AudioDeviceInfo.TYPE_BUILTIN_SPEAKER) {
+                speakerDevice = info;
+                break;
+            }
+        }
+        boolean speakerOn = false;
+        if (speakerDevice != null && on) {
+            boolean result = mAudioManager.setCommunicationDevice(speakerDevice);
+            if (result) {
+                speakerOn = true;
+            }
+        } else {
+            AudioDeviceInfo curDevice = mAudioManager.getCommunicationDevice();
+            if (curDevice != null
+                    && curDevice.getType() == AudioDeviceInfo.TYPE_BUILTIN_SPEAKER) {
+                mAudioManager.clearCommunicationDevice();
+            }
+        }
+        return speakerOn;
+    }
+}
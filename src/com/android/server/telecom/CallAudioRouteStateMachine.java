@@ -17,22 +17,16 @@
 package com.android.server.telecom;
 
 
-import android.app.ActivityManager;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.pm.UserInfo;
 import android.media.AudioDeviceInfo;
 import android.media.AudioManager;
-import android.media.IAudioService;
-import android.os.Binder;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
-import android.os.RemoteException;
-import android.os.UserHandle;
 import android.telecom.CallAudioState;
 import android.telecom.Log;
 import android.telecom.Logging.Session;
@@ -49,8 +43,6 @@ import com.android.server.telecom.flags.FeatureFlags;
 
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Objects;
-import java.util.Set;
 import java.util.concurrent.Executor;
 
 /**
@@ -228,6 +220,13 @@ public class CallAudioRouteStateMachine extends StateMachine implements CallAudi
         put(RUN_RUNNABLE, "RUN_RUNNABLE");
     }};
 
+    /**
+     * @return the name of a message code, or {@code defaultName} if the code is not known.
+     */
+    static String getMessageName(int messageCode, String defaultName) {
+        return MESSAGE_CODE_TO_NAME.get(messageCode, defaultName);
+    }
+
     private static final String ACTIVE_EARPIECE_ROUTE_NAME = "ActiveEarpieceRoute";
     private static final String ACTIVE_BLUETOOTH_ROUTE_NAME = "ActiveBluetoothRoute";
     private static final String ACTIVE_SPEAKER_ROUTE_NAME = "ActiveSpeakerRoute";
@@ -296,7 +295,7 @@ public class CallAudioRouteStateMachine extends StateMachine implements CallAudi
                     Log.addEvent(mCallsManager.getForegroundCall(), LogUtils.Events.AUDIO_ROUTE,
                             "Wired headset disconnected");
                     removedRoutes |= ROUTE_WIRED_HEADSET;
-                    if (mDoesDeviceSupportEarpieceRoute) {
+                    if (mHelper.doesDeviceSupportEarpieceRoute()) {
                         addedRoutes |= ROUTE_EARPIECE;
                     }
                     break;
@@ -1570,7 +1569,8 @@ public class CallAudioRouteStateMachine extends StateMachine implements CallAudi
     private final WiredHeadsetManager mWiredHeadsetManager;
     private final StatusBarNotifier mStatusBarNotifier;
     private final CallAudioManager.AudioServiceFactory mAudioServiceFactory;
-    private boolean mDoesDeviceSupportEarpieceRoute;
+    /** Operations on the audio system shared with {@link CallAudioRouteController}. */
+    private final CallAudioRouteHelper mHelper;
     private final TelecomSystem.SyncRoot mLock;
     private boolean mHasUserExplicitlyLeftBluetooth = false;
 
@@ -1609,7 +1609,10 @@ public class CallAudioRouteStateMachine extends StateMachine implements CallAudi
         mAsyncTaskExecutor = asyncTaskExecutor;
         mCommunicationDeviceTracker = communicationDeviceTracker;
         mFeatureFlags = featureFlags;
-        createStates(earpieceControl);
+        mHelper = new CallAudioRouteHelper(context, callsManager, mAudioManager, bluetoothManager,
+                wiredHeadsetManager, statusBarNotifier, audioServiceFactory, earpieceControl,
+                communicationDeviceTracker, featureFlags);
+        createStates();
     }
 
     /** Used for testing only */
@@ -1635,21 +1638,13 @@ public class CallAudioRouteStateMachine extends StateMachine implements CallAudi
         mAsyncTaskExecutor = asyncTaskExecutor;
         mCommunicationDeviceTracker = communicationDeviceTracker;
         mFeatureFlags = featureFlags;
-        createStates(earpieceControl);
+        mHelper = new CallAudioRouteHelper(context, callsManager, mAudioManager, bluetoothManager,
+                wiredHeadsetManager, statusBarNotifier, audioServiceFactory, earpieceControl,
+                communicationDeviceTracker, featureFlags);
+        createStates();
     }
 
-    private void createStates(int earpieceControl) {
-        switch (earpieceControl) {
-            case EARPIECE_FORCE_DISABLED:
-                mDoesDeviceSupportEarpieceRoute = false;
-                break;
-            case EARPIECE_FORCE_ENABLED:
-                mDoesDeviceSupportEarpieceRoute = true;
-                break;
-            default:
-                mDoesDeviceSupportEarpieceRoute = checkForEarpieceSupport();
-        }
-
+    private void createStates() {
         addState(mActiveEarpieceRoute);
         addState(mActiveHeadsetRoute);
         addState(mActiveBluetoothRoute);
@@ -1830,79 +1825,20 @@ public class CallAudioRouteStateMachine extends StateMachine implements CallAudi
     }
 
     private void setSpeakerphoneOn(boolean on) {
-        Log.i(this, "turning speaker phone %s", on);
-        final boolean hasAnyCalls = mCallsManager.hasAnyCalls();
-        // These APIs are all via two-way binder calls so can potentially block Telecom.  Since none
-        // of this has to happen in the Telecom lock we'll offload it to the async executor.
-        boolean speakerOn = false;
-        if (mFeatureFlags.callAudioCommunicationDeviceRefactor()) {
-            if (on) {
-                speakerOn = mCommunicationDeviceTracker.setCommunicationDevice(
-                        AudioDeviceInfo.TYPE_BUILTIN_SPEAKER, null);
-            } else {
-                mCommunicationDeviceTracker.clearCommunicationDevice(
-                        AudioDeviceInfo.TYPE_BUILTIN_SPEAKER);
-            }
-        } else {
-            speakerOn = processLegacySpeakerCommunicationDevice(on);
-        }
-        mStatusBarNotifier.notifySpeakerphone(hasAnyCalls && speakerOn);
+        mHelper.setSpeakerphoneOn(on);
     }
 
     private void setBluetoothOn(String address) {
-        if (mBluetoothRouteManager.isBluetoothAvailable()) {
-            BluetoothDevice connectedDevice =
-                    mBluetoothRouteManager.getBluetoothAudioConnectedDevice();
-            if (address == null && connectedDevice != null) {
-                // null means connect to any device, so if we're already connected to some device,
-                // that means we can just tell ourselves that it's connected.
-                // Do still try to connect audio though, so that BluetoothRouteManager knows that
-                // there's an active call.
-                Log.i(this, "Bluetooth audio already on.");
-                sendInternalMessage(BT_AUDIO_CONNECTED);
-                mBluetoothRouteManager.connectBluetoothAudio(connectedDevice.getAddress());
-                return;
-            }
-            if (connectedDevice == null || !Objects.equals(address, connectedDevice.getAddress())) {
-                Log.i(this, "connecting bluetooth audio: %s", address);
-                mBluetoothRouteManager.connectBluetoothAudio(address);
-            }
-        }
+        mHelper.setBluetoothOn(address, () -> sendInternalMessage(BT_AUDIO_CONNECTED));
     }
 
     private void setBluetoothOff() {
-        if (mBluetoothRouteManager.isBluetoothAvailable()) {
-            if (mBluetoothRouteManager.isBluetoothAudioConnectedOrPending()) {
-                Log.i(this, "disconnecting bluetooth audio");
-                mBluetoothRouteManager.disconnectBluetoothAudio();
-            }
-        }
+        mHelper.setBluetoothOff();
     }
 
     private void setMuteOn(boolean mute) {
         mIsMuted = mute;
-        Log.addEvent(mCallsManager.getForegroundCall(), mute ?
-                LogUtils.Events.MUTE : LogUtils.Events.UNMUTE);
-        if (mute != mAudioManager.isMicrophoneMute() && isInActiveState()) {
-            IAudioService audio = mAudioServiceFactory.getAudioService();
-            Log.i(this, "changing microphone mute state to: %b [serviceIsNull=%b]",
-                    mute, audio == null);
-            if (audio != null) {
-                try {
-                    // We use the audio service directly here so that we can specify
-                    // the current user. Telecom runs in the system_server process which
-                    // may run as a separate user from the foreground user. If we
-                    // used AudioManager directly, we would change mute for the system's
-                    // user and not the current foreground, which we want to avoid.
-                    audio.setMicrophoneMute(mute, mContext.getOpPackageName(),
-                            getCurrentUserId(), mContext.getAttributionTag());
-                } catch (RemoteException e) {
-                    Log.e(this, e, "Remote exception while toggling mute.");
-                }
-                // TODO: Check microphone state after attempting to set to ensure that
-                // our state corroborates AudioManager's state.
-            }
-        }
+        mHelper.setMuteOn(mute, this::isInActiveState);
     }
 
     private void updateSystemMuteState() {
@@ -1956,37 +1892,12 @@ public class CallAudioRouteStateMachine extends StateMachine implements CallAudi
             if (force || !newCallAudioState.equals(mLastKnownCallAudioState)) {
                 mStatusBarNotifier.notifyMute(newCallAudioState.isMuted());
                 mCallsManager.onCallAudioStateChanged(mLastKnownCallAudioState, newCallAudioState);
-                updateAudioStateForTrackedCalls(newCallAudioState);
+                mHelper.updateAudioStateForTrackedCalls(newCallAudioState);
                 mLastKnownCallAudioState = newCallAudioState;
             }
         }
     }
 
-    private void updateAudioStateForTrackedCalls(CallAudioState newCallAudioState) {
-        Set<Call> calls = mCallsManager.getTrackedCalls();
-        for (Call call : calls) {
-            if (call != null && call.getConnectionService() != null) {
-                call.getConnectionService().onCallAudioStateChanged(call, newCallAudioState);
-            }
-        }
-    }
-
-    private int calculateSupportedRoutes() {
-        int routeMask = CallAudioState.ROUTE_SPEAKER;
-
-        if (mWiredHeadsetManager.isPluggedIn()) {
-            routeMask |= CallAudioState.ROUTE_WIRED_HEADSET;
-        } else if (mDoesDeviceSupportEarpieceRoute){
-            routeMask |= CallAudioState.ROUTE_EARPIECE;
-        }
-
-        if (mBluetoothRouteManager.isBluetoothAvailable()) {
-            routeMask |=  CallAudioState.ROUTE_BLUETOOTH;
-        }
-
-        return routeMask;
-    }
-
     private void sendInternalMessage(int messageCode) {
         sendInternalMessage(messageCode, 0);
     }
@@ -2015,35 +1926,7 @@ public class CallAudioRouteStateMachine extends StateMachine implements CallAudi
     }
 
     private CallAudioState getInitialAudioState() {
-        int supportedRouteMask = calculateSupportedRoutes() & getCurrentCallSupportedRoutes();
-        final int route;
-
-        if ((supportedRouteMask & ROUTE_BLUETOOTH) != 0
-                && mBluetoothRouteManager.hasBtActiveDevice()) {
-            route = ROUTE_BLUETOOTH;
-        } else if ((supportedRouteMask & ROUTE_WIRED_HEADSET) != 0) {
-            route = ROUTE_WIRED_HEADSET;
-        } else if ((supportedRouteMask & ROUTE_EARPIECE) != 0) {
-            route = ROUTE_EARPIECE;
-        } else {
-            route = ROUTE_SPEAKER;
-        }
-
-        return new CallAudioState(false, route, supportedRouteMask, null,
-                mBluetoothRouteManager.getConnectedDevices());
-    }
-
-    private int getCurrentUserId() {
-        final long ident = Binder.clearCallingIdentity();
-        try {
-            UserInfo currentUser = ActivityManager.getService().getCurrentUser();
-            return currentUser.id;
-        } catch (RemoteException e) {
-            // Activity manager not running, nothing we can do assume user 0.
-        } finally {
-            Binder.restoreCallingIdentity(ident);
-        }
-        return UserHandle.USER_OWNER;
+        return mHelper.getInitialAudioState();
     }
 
     public boolean isInActiveState() {
@@ -2055,90 +1938,10 @@ public class CallAudioRouteStateMachine extends StateMachine implements CallAudi
         return currentState.isActive();
     }
 
-    private boolean checkForEarpieceSupport() {
-        AudioDeviceInfo[] deviceList = mAudioManager.getDevices(AudioManager.GET_DEVICES_OUTPUTS);
-        for (AudioDeviceInfo device: deviceList) {
-            if (device.getType() == AudioDeviceInfo.TYPE_BUILTIN_EARPIECE) {
-                return true;
-            }
-        }
-        // No earpiece found
-        return false;
-    }
-
-    private boolean isWatchActiveOrOnlyWatchesAvailable() {
-        if (!mFeatureFlags.ignoreAutoRouteToWatchDevice()) {
-            Log.i(this, "isWatchActiveOrOnlyWatchesAvailable: Flag is disabled.");
-            return false;
-        }
-
-        boolean containsWatchDevice = false;
-        boolean containsNonWatchDevice = false;
-        Collection<BluetoothDevice> connectedBtDevices =
-                mBluetoothRouteManager.getConnectedDevices();
-
-        for (BluetoothDevice connectedDevice: connectedBtDevices) {
-            if (mBluetoothRouteManager.isWatch(connectedDevice)) {
-                containsWatchDevice = true;
-            } else {
-                containsNonWatchDevice = true;
-            }
-        }
-
-        // Don't ignore switch if watch is already the active device.
-        boolean isActiveDeviceWatch = mBluetoothRouteManager.isWatch(
-                mBluetoothRouteManager.getBluetoothAudioConnectedDevice());
-        Log.i(this, "isWatchActiveOrOnlyWatchesAvailable: contains watch: %s, contains "
-                + "non-wearable device: %s, is active device a watch: %s.",
-                containsWatchDevice, containsNonWatchDevice, isActiveDeviceWatch);
-        return containsWatchDevice && !containsNonWatchDevice && !isActiveDeviceWatch;
-    }
-
-    private boolean processLegacySpeakerCommunicationDevice(boolean on) {
-        AudioDeviceInfo speakerDevice = null;
-        for (AudioDeviceInfo info : mAudioManager.getAvailableCommunicationDevices()) {
-            if (info.getType() == AudioDeviceInfo.TYPE_BUILTIN_SPEAKER) {
-                speakerDevice = info;
-                break;
-            }
-        }
-        boolean speakerOn = false;
-        if (speakerDevice != null && on) {
-            boolean result = mAudioManager.setCommunicationDevice(speakerDevice);
-            if (result) {
-                speakerOn = true;
-            }
-        } else {
-            AudioDeviceInfo curDevice = mAudioManager.getCommunicationDevice();
-            if (curDevice != null
-                    && curDevice.getType() == AudioDeviceInfo.TYPE_BUILTIN_SPEAKER) {
-                mAudioManager.clearCommunicationDevice();
-            }
-        }
-        return speakerOn;
-    }
-
     private int calculateBaselineRouteMessage(boolean isExplicitUserRequest,
             boolean includeBluetooth) {
-        boolean isSkipEarpiece = false;
-        if (!isExplicitUserRequest) {
-            synchronized (mLock) {
-                // Check video calls to skip earpiece since the baseline for video
-                // calls should be the speakerphone route
-                isSkipEarpiece = mCallsManager.hasVideoCall();
-            }
-        }
-        if ((mAvailableRoutes & ROUTE_BLUETOOTH) != 0
-                && !mHasUserExplicitlyLeftBluetooth
-                && includeBluetooth && !isWatchActiveOrOnlyWatchesAvailable()) {
-            return isExplicitUserRequest ? USER_SWITCH_BLUETOOTH : SWITCH_BLUETOOTH;
-        } else if ((mAvailableRoutes & ROUTE_EARPIECE) != 0 && !isSkipEarpiece) {
-            return isExplicitUserRequest ? USER_SWITCH_EARPIECE : SWITCH_EARPIECE;
-        } else if ((mAvailableRoutes & ROUTE_WIRED_HEADSET) != 0) {
-            return isExplicitUserRequest ? USER_SWITCH_HEADSET : SWITCH_HEADSET;
-        } else {
-            return isExplicitUserRequest ? USER_SWITCH_SPEAKER : SWITCH_SPEAKER;
-        }
+        return mHelper.calculateBaselineRouteMessage(mAvailableRoutes,
+                mHasUserExplicitlyLeftBluetooth, isExplicitUserRequest, includeBluetooth);
     }
 
     private void reinitialize() {
@@ -2166,25 +1969,11 @@ public class CallAudioRouteStateMachine extends StateMachine implements CallAudi
     }
 
     private int getCurrentCallSupportedRoutes() {
-        int supportedRoutes = CallAudioState.ROUTE_ALL;
-
-        if (mCallsManager.getForegroundCall() != null) {
-            supportedRoutes &= mCallsManager.getForegroundCall().getSupportedAudioRoutes();
-        }
-
-        return supportedRoutes;
+        return mHelper.getCurrentCallSupportedRoutes();
     }
 
     private int modifyRoutes(int base, int remove, int add, boolean considerCurrentCall) {
-        base &= ~remove;
-
-        if (considerCurrentCall) {
-            add &= getCurrentCallSupportedRoutes();
-        }
-
-        base |= add;
-
-        return base;
+        return mHelper.modifyRoutes(base, remove, add, considerCurrentCall);
     }
 
     public Handler getAdapterHandler() {
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.telecom.Logging.EventManager;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact, bounded log of the events of one call.  {@link Analytics} keeps one of these for
+ * each destroyed call in place of the call's {@link EventManager.EventRecord}, which holds every
+ * event as an object with its own strings and data.
+ * <p>
+ * Event and timing names are interned into IDs shared by all calls, so an event takes an
+ * {@code int}, a {@code long} time and a {@code long} payload.  Payloads which are small
+ * primitives are kept; other payloads are dropped, since only {@link EventManager}'s own dump
+ * shows them.  Once the log is full, the oldest events are overwritten.  Nothing is formatted
+ * until the log is dumped.
+ */
+public class CallEventLog {
+    /**
+     * The number of events kept for a call.  Calls with more events than this lose their oldest
+     * events from their analytics once compacted, see {@link Analytics.CallInfoImpl}.
+     */
+    public static final int MAX_EVENTS = 256;
+
+    private static final long NO_PAYLOAD = Long.MIN_VALUE;
+
+    private static final DateTimeFormatter DATE_TIME_FORMATTER =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    /** Guards {@link #sIdsByName} and {@link #sNames}. */
+    private static final Object sNamesLock = new Object();
+    private static final ArrayMap<String, Integer> sIdsByName = new ArrayMap<>();
+    private static final List<String> sNames = new ArrayList<>();
+
+    private final int[] mEventIds;
+    private final long[] mTimes;
+    private final long[] mPayloads;
+    /** The index of the oldest event. */
+    private int mStart = 0;
+    private int mSize = 0;
+    private int mNumDropped = 0;
+
+    private int[] mTimingIds = new int[0];
+    private long[] mTimingMillis = new long[0];
+
+    public CallEventLog(int capacity) {
+        mEventIds = new int[capacity];
+        mTimes = new long[capacity];
+        mPayloads = new long[capacity];
+    }
+
+    /**
+     * Creates a log holding the events and event timings of an {@link EventManager.EventRecord}.
+     */
+    public static CallEventLog fromEventRecord(EventManager.EventRecord record) {
+        List<EventManager.Event> events = record.getEvents();
+        CallEventLog log = new CallEventLog(Math.max(1, Math.min(events.size(), MAX_EVENTS)));
+        for (EventManager.Event event : events) {
+            log.add(event.eventId, event.time, event.data);
+        }
+        List<EventManager.EventRecord.EventTiming> timings = record.extractEventTimings();
+        log.mTimingIds = new int[timings.size()];
+        log.mTimingMillis = new long[timings.size()];
+        for (int i = 0; i < timings.size(); i++) {
+            log.mTimingIds[i] = intern(timings.get(i).name);
+            log.mTimingMillis[i] = timings.get(i).time;
+        }
+        return log;
+    }
+
+    /**
+     * Adds an event, overwriting the oldest one if the log is full.
+     *
+     * @param name The name of the event, one of {@link LogUtils.Events}.
+     * @param timeMillis When the event happened, in milliseconds since the epoch.
+     * @param data The data of the event; only kept if it is a small primitive.
+     */
+    public void add(String name, long timeMillis, Object data) {
+        int index;
+        if (mSize < mEventIds.length) {
+            index = (mStart + mSize) % mEventIds.length;
+            mSize++;
+        } else {
+            index = mStart;
+            mStart = (mStart + 1) % mEventIds.length;
+            mNumDropped++;
+        }
+        mEventIds[index] = intern(name);
+        mTimes[index] = timeMillis;
+        mPayloads[index] = toPayload(data);
+    }
+
+    /** @return The number of events in the log. */
+    public int size() {
+        return mSize;
+    }
+
+    /** @return The number of events overwritten because the log was full. */
+    public int getNumDropped() {
+        return mNumDropped;
+    }
+
+    /**
+     * @param i The position of the event, oldest first.
+     * @return The name of the event.
+     */
+    public String getEventName(int i) {
+        return getName(mEventIds[toIndex(i)]);
+    }
+
+    /**
+     * @param i The position of the event, oldest first.
+     * @return When the event happened, in milliseconds since the epoch.
+     */
+    public long getTime(int i) {
+        return mTimes[toIndex(i)];
+    }
+
+    /** @return The number of event timings, see {@link EventManager.EventRecord.EventTiming}. */
+    public int getTimingCount() {
+        return mTimingIds.length;
+    }
+
+    public String getTimingName(int i) {
+        return getName(mTimingIds[i]);
+    }
+
+    public long getTimingMillis(int i) {
+        return mTimingMillis[i];
+    }
+
+    /**
+     * @return An estimate of the heap kept alive by this log, in bytes; the interned names are
+     *         shared between calls and are not counted.
+     */
+    @VisibleForTesting
+    public long getRetainedSizeBytes() {
+        // Object header and fields, plus an array header for each of the five arrays.
+        long size = 48 + 5 * 16;
+        size += (long) mEventIds.length * (Integer.BYTES + 2 * Long.BYTES);
+        size += (long) mTimingIds.length * (Integer.BYTES + Long.BYTES);
+        return size;
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        if (mNumDropped > 0) {
+            pw.println("(" + mNumDropped + " older events dropped)");
+        }
+        for (int i = 0; i < mSize; i++) {
+            int index = toIndex(i);
+            StringBuilder sb = new StringBuilder();
+            sb.append(DATE_TIME_FORMATTER.format(Instant.ofEpochMilli(mTimes[index])
+                    .atZone(ZoneId.systemDefault())));
+            sb.append(" - ").append(getName(mEventIds[index]));
+            if (mPayloads[index] != NO_PAYLOAD) {
+                sb.append(" (").append(mPayloads[index]).append(')');
+            }
+            pw.println(sb.toString());
+        }
+        if (mTimingIds.length > 0) {
+            pw.print("Timings (milliseconds):");
+            for (int i = 0; i < mTimingIds.length; i++) {
+                pw.print(" " + getName(mTimingIds[i]) + ": " + mTimingMillis[i]);
+            }
+            pw.println();
+        }
+    }
+
+    private int toIndex(int i) {
+        if (i < 0 || i >= mSize) {
+            throw new IndexOutOfBoundsException("Event " + i + " of " + mSize);
+        }
+        return (mStart + i) % mEventIds.length;
+    }
+
+    private static long toPayload(Object data) {
+        if (data instanceof Integer || data instanceof Long || data instanceof Short
+                || data instanceof Byte) {
+            return ((Number) data).longValue();
+        }
+        if (data instanceof Boolean) {
+            return ((Boolean) data) ? 1 : 0;
+        }
+        return NO_PAYLOAD;
+    }
+
+    private static int intern(String name) {
+        synchronized (sNamesLock) {
+            Integer id = sIdsByName.get(name);
+            if (id == null) {
+                id = sNames.size();
+                sNames.add(name);
+                sIdsByName.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    private static String getName(int id) {
+        synchronized (sNamesLock) {
+            return sNames.get(id);
+        }
+    }
+}
@@ -197,6 +197,13 @@ public class CallIntentProcessor {
             return;
         }
 
+        if (!disposition.callImmediately) {
+            // Emergency calls are left to bind when they are added, since they have to reach the
+            // system dialer rather than the InCallService an early bind would pick.
+            callsManager.prebindInCallServices(phoneAccountHandle, initiatingUser,
+                    "outgoing call intent");
+        }
+
         // Send to CallsManager to ensure the InCallUI gets kicked off before the broadcast returns
         CompletableFuture<Call> callFuture = callsManager
                 .startOutgoingCall(handle, phoneAccountHandle, clientExtras, initiatingUser,
@@ -267,6 +274,8 @@ public class CallIntentProcessor {
         Log.d(CallIntentProcessor.class,
                 "Processing incoming call from connection service [%s]",
                 phoneAccountHandle.getComponentName());
+        callsManager.prebindInCallServices(phoneAccountHandle,
+                phoneAccountHandle.getUserHandle(), "incoming call intent");
         callsManager.processIncomingCallIntent(phoneAccountHandle, clientExtras);
     }
 
@@ -31,9 +31,12 @@ import android.location.CountryDetector;
 import android.location.Location;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.UserHandle;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.os.UserManager;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
@@ -47,16 +50,22 @@ import android.telecom.VideoProfile;
 import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SubscriptionManager;
+import android.util.ArrayMap;
 import android.util.Pair;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.server.telecom.callfiltering.CallFilteringResult;
 import com.android.server.telecom.flags.FeatureFlags;
 
 import org.lineageos.lib.phone.SensitivePhoneNumbers;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
 import java.util.stream.Stream;
@@ -105,6 +114,11 @@ public final class CallLogManager extends CallsManagerListenerBase {
             UUID.fromString("d9b38771-ff36-417b-8723-2363a870c702");
     private static final String LOG_CALL_FAILED_ANOMALY_DESC =
             "Based on the current user, Telecom detected failure to record a call to the call log.";
+    /**
+     * The maximum number of calls written by the {@link CallLogWriter} in one batch.  Listeners of
+     * the calls in a batch are notified once the whole batch has been written.
+     */
+    private static final int MAX_CALL_LOG_BATCH_SIZE = 32;
 
     private final Context mContext;
     private final CarrierConfigManager mCarrierConfigManager;
@@ -121,6 +135,8 @@ public final class CallLogManager extends CallsManagerListenerBase {
     private Object mLock;
     private String mCurrentCountryIso;
     private SensitivePhoneNumbers mSensitivePhoneNumbers;
+    // Created when the first call is logged; guarded by mLock.
+    private CallLogWriter mCallLogWriter;
 
     private final FeatureFlags mFeatureFlags;
 
@@ -427,7 +443,11 @@ public final class CallLogManager extends CallsManagerListenerBase {
             Log.addEvent(call, LogUtils.Events.LOG_CALL, "number=" + Log.piiHandle(logNumber)
                     + ",postDial=" + Log.piiHandle(call.getPostDialDigits()) + ",pres="
                     + call.getHandlePresentation());
-            logCallAsync(args);
+            if (mFeatureFlags.batchCallLogWrites()) {
+                getCallLogWriter().enqueue(args);
+            } else {
+                logCallAsync(args);
+            }
         } else {
             Log.addEvent(call, LogUtils.Events.SKIP_CALL_LOG);
         }
@@ -614,6 +634,187 @@ public final class CallLogManager extends CallsManagerListenerBase {
         }
     }
 
+    /**
+     * Writes calls to the call log on a single background thread, in the order they were logged.
+     * <p>
+     * Each pass of the writer takes the calls queued since the previous pass and writes them as a
+     * batch.  The call log statistics used to detect lost entries (see
+     * {@link #getCallLogStats(Call)}) are queried once per user for the whole batch rather than
+     * around every insert.  The check after the inserts is made on this thread once the
+     * notification of the batch's listeners has been posted to the main thread, so it does not
+     * delay them; it may run before or while they are notified.
+     */
+    private final class CallLogWriter {
+        private final Handler mHandler;
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        // The calls waiting to be written; guarded by mQueue, as are the fields below it.
+        private final ArrayDeque<AddCallArgs> mQueue = new ArrayDeque<>();
+        private boolean mIsDrainScheduled = false;
+        private int mMaxQueueDepth = 0;
+        private long mNumBatches = 0;
+        private long mNumCallsWritten = 0;
+        private long mNumFailures = 0;
+        private long mTotalInsertMillis = 0;
+        private long mMaxInsertMillis = 0;
+
+        CallLogWriter() {
+            HandlerThread thread = new HandlerThread("CallLogWriter");
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        }
+
+        void enqueue(AddCallArgs args) {
+            synchronized (mQueue) {
+                mQueue.add(args);
+                mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+                if (mIsDrainScheduled) {
+                    return;
+                }
+                mIsDrainScheduled = true;
+            }
+            mHandler.post(this::drain);
+        }
+
+        int getQueueDepth() {
+            synchronized (mQueue) {
+                return mQueue.size();
+            }
+        }
+
+        Handler getHandler() {
+            return mHandler;
+        }
+
+        private void drain() {
+            List<AddCallArgs> batch = new ArrayList<>(MAX_CALL_LOG_BATCH_SIZE);
+            synchronized (mQueue) {
+                while (!mQueue.isEmpty() && batch.size() < MAX_CALL_LOG_BATCH_SIZE) {
+                    batch.add(mQueue.poll());
+                }
+                if (mQueue.isEmpty()) {
+                    mIsDrainScheduled = false;
+                } else {
+                    mHandler.post(this::drain);
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            Map<UserHandle, Pair<Integer, Integer>> startStats = new ArrayMap<>();
+            for (AddCallArgs c : batch) {
+                if (!startStats.containsKey(c.call.getAssociatedUser())) {
+                    startStats.put(c.call.getAssociatedUser(), getCallLogStats(c.call));
+                }
+            }
+
+            Uri[] result = new Uri[batch.size()];
+            // A call written for each user, used to query the stats after the batch.
+            Map<UserHandle, Call> writtenCalls = new ArrayMap<>();
+            int numFailures = 0;
+            long totalInsertMillis = 0;
+            long maxInsertMillis = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                AddCallArgs c = batch.get(i);
+                long startMillis = SystemClock.elapsedRealtime();
+                try {
+                    result[i] = Calls.addCall(c.context, c.params);
+                    writtenCalls.put(c.call.getAssociatedUser(), c.call);
+                    Log.i(TAG, "LogCall; logged callId=%s, uri=%s", c.call.getId(), result[i]);
+                } catch (Exception e) {
+                    // See LogCallAsyncTask; a failed write must not crash the process.
+                    Log.e(TAG, e, "LogCall: Exception raised adding callId=%s", c.call.getId());
+                    result[i] = null;
+                    numFailures++;
+                    mAnomalyReporterAdapter.reportAnomaly(LOG_CALL_FAILED_ANOMALY_ID,
+                            LOG_CALL_FAILED_ANOMALY_DESC);
+                }
+                long insertMillis = SystemClock.elapsedRealtime() - startMillis;
+                totalInsertMillis += insertMillis;
+                maxInsertMillis = Math.max(maxInsertMillis, insertMillis);
+            }
+            synchronized (mQueue) {
+                mNumBatches++;
+                mNumCallsWritten += batch.size() - numFailures;
+                mNumFailures += numFailures;
+                mTotalInsertMillis += totalInsertMillis;
+                mMaxInsertMillis = Math.max(mMaxInsertMillis, maxInsertMillis);
+            }
+
+            mMainHandler.post(() -> {
+                for (int i = 0; i < result.length; i++) {
+                    if (result[i] == null) {
+                        Log.w(TAG, "Failed to write call to the log.");
+                    }
+                    if (batch.get(i).logCallCompletedListener != null) {
+                        batch.get(i).logCallCompletedListener.onLogCompleted(result[i]);
+                    }
+                }
+            });
+
+            // Checked here rather than after the listeners have run, so that the next batch has
+            // not been written yet and cannot hide a lost entry.
+            for (Map.Entry<UserHandle, Call> entry : writtenCalls.entrySet()) {
+                Pair<Integer, Integer> start = startStats.get(entry.getKey());
+                Pair<Integer, Integer> end = getCallLogStats(entry.getValue());
+                Log.i(TAG, "LogCall; batch of %d logged, startCount=%d, startMaxId=%d, "
+                        + "endCount=%d, endMaxId=%d", batch.size(), start.first, start.second,
+                        end.first, end.second);
+                if ((end.second - start.second) <= 0) {
+                    // See LogCallAsyncTask; no call was added for this user.
+                    mAnomalyReporterAdapter.reportAnomaly(LOG_CALL_FAILED_ANOMALY_ID,
+                            LOG_CALL_FAILED_ANOMALY_DESC);
+                }
+            }
+        }
+
+        void dump(IndentingPrintWriter pw) {
+            synchronized (mQueue) {
+                long numInserts = mNumCallsWritten + mNumFailures;
+                pw.println("queueDepth: " + mQueue.size() + ", maxQueueDepth: " + mMaxQueueDepth
+                        + ", batches: " + mNumBatches + ", callsWritten: " + mNumCallsWritten
+                        + ", failures: " + mNumFailures);
+                pw.println("avgInsertMillis: "
+                        + (numInserts == 0 ? 0 : mTotalInsertMillis / numInserts)
+                        + ", maxInsertMillis: " + mMaxInsertMillis);
+            }
+        }
+    }
+
+    private CallLogWriter getCallLogWriter() {
+        synchronized (mLock) {
+            if (mCallLogWriter == null) {
+                mCallLogWriter = new CallLogWriter();
+            }
+            return mCallLogWriter;
+        }
+    }
+
+    /**
+     * @return the number of calls waiting to be written to the call log.
+     */
+    @VisibleForTesting
+    public int getCallLogQueueDepth() {
+        synchronized (mLock) {
+            return mCallLogWriter == null ? 0 : mCallLogWriter.getQueueDepth();
+        }
+    }
+
+    @VisibleForTesting
+    public Handler getCallLogWriterHandler() {
+        return getCallLogWriter().getHandler();
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            if (mCallLogWriter == null) {
+                pw.println("No calls logged.");
+                return;
+            }
+            mCallLogWriter.dump(pw);
+        }
+    }
+
     private void sendAddCallBroadcast(int callType, long duration) {
         Intent callAddIntent = new Intent(ACTION_CALLS_TABLE_ADD_ENTRY);
         callAddIntent.putExtra(CALL_TYPE, callType);
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.telecom.Log;
+import android.telecom.PhoneAccountHandle;
+import android.util.ArrayMap;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Objects;
+
+/**
+ * Counts of the calls tracked by {@link CallsManager}, by state, by whether the call is
+ * self-managed and by target {@link PhoneAccountHandle}.  Used to answer
+ * {@link CallsManager#getNumCallsWithState} without walking every call.
+ * <p>
+ * Only calls which {@link CallsManager#getNumCallsWithState} counts are indexed: conference
+ * children and external calls are left out.  A call is re-indexed by {@link #update(Call)}
+ * whenever its state, parent, connection properties, self-managed status or target phone account
+ * changes, so the counts stay correct however the change was made.
+ * <p>
+ * Guarded by the {@link TelecomSystem.SyncRoot}, like the calls themselves.
+ */
+public class CallStateIndex {
+    private static final int NUM_STATES = CallState.SIMULATED_RINGING + 1;
+    private static final int MANAGED = 0;
+    private static final int SELF_MANAGED = 1;
+
+    /** Where a call is currently counted. */
+    private static final class Entry {
+        final int mState;
+        final int mGroup;
+        final PhoneAccountHandle mAccount;
+
+        Entry(int state, int group, PhoneAccountHandle account) {
+            mState = state;
+            mGroup = group;
+            mAccount = account;
+        }
+
+        boolean matches(Entry other) {
+            return other != null && mState == other.mState && mGroup == other.mGroup
+                    && Objects.equals(mAccount, other.mAccount);
+        }
+    }
+
+    private final ArrayMap<Call, Entry> mEntries = new ArrayMap<>();
+    private final int[][] mCounts = new int[2][NUM_STATES];
+    private final ArrayMap<PhoneAccountHandle, int[]> mManagedCountsByAccount = new ArrayMap<>();
+    private final ArrayMap<PhoneAccountHandle, int[]> mSelfManagedCountsByAccount =
+            new ArrayMap<>();
+
+    /**
+     * Starts indexing a call, or re-indexes it if it is already indexed.
+     */
+    public void add(Call call) {
+        call.setCallStateIndex(this);
+        update(call);
+    }
+
+    /**
+     * Stops indexing a call.
+     */
+    public void remove(Call call) {
+        call.setCallStateIndex(null);
+        Entry entry = mEntries.remove(call);
+        if (entry != null) {
+            adjust(entry, -1);
+        }
+    }
+
+    /**
+     * Re-indexes a call after one of the properties it is indexed by has changed.
+     */
+    public void update(Call call) {
+        Entry newEntry = createEntry(call);
+        Entry oldEntry = mEntries.get(call);
+        if (newEntry == null ? oldEntry == null : newEntry.matches(oldEntry)) {
+            return;
+        }
+        if (oldEntry != null) {
+            adjust(oldEntry, -1);
+        }
+        if (newEntry != null) {
+            mEntries.put(call, newEntry);
+            adjust(newEntry, 1);
+        } else {
+            mEntries.remove(call);
+        }
+    }
+
+    /**
+     * Determines the number of calls matching the specified criteria; see
+     * {@link CallsManager#getNumCallsWithState(int, Call, PhoneAccountHandle, int...)}.
+     *
+     * @param includeManaged Whether to count managed calls.
+     * @param includeSelfManaged Whether to count self-managed calls.
+     * @param excludeCall Where {@code non-null}, this call is excluded from the count.
+     * @param phoneAccountHandle Where {@code non-null}, only calls for this
+     *                           {@link PhoneAccountHandle} are counted.
+     * @param states The list of {@link CallState}s to include in the count.
+     * @return Count of calls matching criteria.
+     */
+    public int getNumCalls(boolean includeManaged, boolean includeSelfManaged, Call excludeCall,
+            PhoneAccountHandle phoneAccountHandle, int... states) {
+        int count = 0;
+        if (includeManaged) {
+            count += getNumCalls(MANAGED, phoneAccountHandle, states);
+        }
+        if (includeSelfManaged) {
+            count += getNumCalls(SELF_MANAGED, phoneAccountHandle, states);
+        }
+        Entry excluded = excludeCall == null ? null : mEntries.get(excludeCall);
+        if (excluded != null
+                && (excluded.mGroup == MANAGED ? includeManaged : includeSelfManaged)
+                && (phoneAccountHandle == null || phoneAccountHandle.equals(excluded.mAccount))
+                && containsState(states, excluded.mState)) {
+            count--;
+        }
+        return count;
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("indexed calls: " + mEntries.size());
+        for (int state = 0; state < NUM_STATES; state++) {
+            if (mCounts[MANAGED][state] == 0 && mCounts[SELF_MANAGED][state] == 0) {
+                continue;
+            }
+            pw.println(CallState.toString(state) + ": managed=" + mCounts[MANAGED][state]
+                    + ", selfManaged=" + mCounts[SELF_MANAGED][state]);
+        }
+    }
+
+    private int getNumCalls(int group, PhoneAccountHandle phoneAccountHandle, int... states) {
+        int[] counts = phoneAccountHandle == null ? mCounts[group]
+                : getCountsByAccount(group).get(phoneAccountHandle);
+        if (counts == null) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = 0; i < states.length; i++) {
+            // Callers may pass the same state twice; count its calls once, as a filter would.
+            if (isValidState(states[i]) && !containsState(states, i, states[i])) {
+                count += counts[states[i]];
+            }
+        }
+        return count;
+    }
+
+    private void adjust(Entry entry, int delta) {
+        mCounts[entry.mGroup][entry.mState] += delta;
+        if (entry.mAccount == null) {
+            return;
+        }
+        ArrayMap<PhoneAccountHandle, int[]> countsByAccount = getCountsByAccount(entry.mGroup);
+        int[] counts = countsByAccount.get(entry.mAccount);
+        if (counts == null) {
+            counts = new int[NUM_STATES];
+            countsByAccount.put(entry.mAccount, counts);
+        }
+        counts[entry.mState] += delta;
+        if (delta < 0 && isEmpty(counts)) {
+            countsByAccount.remove(entry.mAccount);
+        }
+    }
+
+    private ArrayMap<PhoneAccountHandle, int[]> getCountsByAccount(int group) {
+        return group == MANAGED ? mManagedCountsByAccount : mSelfManagedCountsByAccount;
+    }
+
+    private static Entry createEntry(Call call) {
+        if (call.getParentCall() != null || call.isExternalCall()) {
+            return null;
+        }
+        int state = call.getState();
+        if (!isValidState(state)) {
+            Log.w(CallStateIndex.class.getSimpleName(), "Not indexing call %s in state %d",
+                    call.getId(), state);
+            return null;
+        }
+        return new Entry(state, call.isSelfManaged() ? SELF_MANAGED : MANAGED,
+                call.getTargetPhoneAccount());
+    }
+
+    private static boolean isValidState(int state) {
+        return state >= 0 && state < NUM_STATES;
+    }
+
+    private static boolean containsState(int[] states, int state) {
+        return containsState(states, states.length, state);
+    }
+
+    /** Whether one of the first {@code length} entries of {@code states} is {@code state}. */
+    private static boolean containsState(int[] states, int length, int state) {
+        for (int i = 0; i < length; i++) {
+            if (states[i] == state) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isEmpty(int[] counts) {
+        for (int count : counts) {
+            if (count != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.os.UserHandle;
+import android.telecom.PhoneAccount;
+import android.telephony.TelephonyManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Collection;
+
+/**
+ * Immutable view of the calls tracked by {@link CallsManager}, used to answer read-only binder
+ * queries such as {@link android.telecom.TelecomManager#isInCall()} without acquiring the
+ * {@link TelecomSystem.SyncRoot}.
+ * <p>
+ * A new snapshot is built and published by {@link CallsManager} whenever a call is added or
+ * removed, after each call state change has been sent to the listeners, and whenever a
+ * {@link Call} reports that a property captured here changed (state, parent, external,
+ * self-managed, phone account, associated user).  Readers only ever see a fully constructed
+ * snapshot, so no locking is needed to query it.
+ */
+public final class CallStateSnapshot {
+    /** Snapshot used before any call has been tracked. */
+    public static final CallStateSnapshot EMPTY =
+            new CallStateSnapshot(new Entry[0], TelephonyManager.CALL_STATE_IDLE);
+
+    /**
+     * The subset of a {@link Call}'s state needed by the lock-free queries.
+     */
+    @VisibleForTesting
+    public static final class Entry {
+        public final int state;
+        public final boolean isSelfManaged;
+        public final boolean isExternal;
+        public final boolean hasParent;
+        public final boolean isMultiUser;
+        public final UserHandle associatedUser;
+
+        public Entry(int state, boolean isSelfManaged, boolean isExternal, boolean hasParent,
+                boolean isMultiUser, UserHandle associatedUser) {
+            this.state = state;
+            this.isSelfManaged = isSelfManaged;
+            this.isExternal = isExternal;
+            this.hasParent = hasParent;
+            this.isMultiUser = isMultiUser;
+            this.associatedUser = associatedUser;
+        }
+
+        static Entry fromCall(Call call) {
+            PhoneAccount account = call.getPhoneAccountFromHandle();
+            return new Entry(call.getState(), call.isSelfManaged(), call.isExternalCall(),
+                    call.getParentCall() != null,
+                    account != null && account.hasCapabilities(PhoneAccount.CAPABILITY_MULTI_USER),
+                    call.getAssociatedUser());
+        }
+
+        boolean isVisibleForUser(UserHandle userHandle) {
+            return isMultiUser || (associatedUser != null && associatedUser.equals(userHandle));
+        }
+    }
+
+    private final Entry[] mEntries;
+    private final int mPhoneState;
+
+    @VisibleForTesting
+    public CallStateSnapshot(Entry[] entries, int phoneState) {
+        mEntries = entries;
+        mPhoneState = phoneState;
+    }
+
+    /**
+     * Builds a snapshot from the calls currently tracked by {@link CallsManager}.  Must be called
+     * with the {@link TelecomSystem.SyncRoot} held.
+     * @param calls The calls to capture.
+     * @param phoneState The {@link TelephonyManager} call state last broadcast.
+     * @return the new snapshot.
+     */
+    static CallStateSnapshot create(Collection<Call> calls, int phoneState) {
+        Entry[] entries = new Entry[calls.size()];
+        int i = 0;
+        for (Call call : calls) {
+            entries[i++] = Entry.fromCall(call);
+        }
+        return new CallStateSnapshot(entries, phoneState);
+    }
+
+    /**
+     * @return the {@link TelephonyManager} call state at the time of the snapshot.
+     * @see CallsManager#getCallState()
+     */
+    public int getCallState() {
+        return mPhoneState;
+    }
+
+    /**
+     * @return the number of calls captured in this snapshot.
+     */
+    public int getNumCalls() {
+        return mEntries.length;
+    }
+
+    /**
+     * @see CallsManager#hasRingingOrSimulatedRingingCall()
+     */
+    public boolean hasRingingOrSimulatedRingingCall() {
+        for (Entry entry : mEntries) {
+            // Only top-level calls, as in CallsManager#getFirstCallWithState.
+            if (entry.hasParent || entry.isExternal) {
+                continue;
+            }
+            if (entry.state == CallState.SIMULATED_RINGING || entry.state == CallState.RINGING
+                    || entry.state == CallState.ANSWERED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @see CallsManager#hasOngoingCalls(UserHandle, boolean)
+     */
+    public boolean hasOngoingCalls(UserHandle callingUser, boolean hasCrossUserAccess) {
+        return hasOngoingCalls(false /* managedOnly */, callingUser, hasCrossUserAccess);
+    }
+
+    /**
+     * @see CallsManager#hasOngoingManagedCalls(UserHandle, boolean)
+     */
+    public boolean hasOngoingManagedCalls(UserHandle callingUser, boolean hasCrossUserAccess) {
+        return hasOngoingCalls(true /* managedOnly */, callingUser, hasCrossUserAccess);
+    }
+
+    private boolean hasOngoingCalls(boolean managedOnly, UserHandle callingUser,
+            boolean hasCrossUserAccess) {
+        for (Entry entry : mEntries) {
+            if (entry.hasParent || entry.isExternal) {
+                continue;
+            }
+            if (managedOnly && entry.isSelfManaged) {
+                continue;
+            }
+            if (!isOngoingState(entry.state)) {
+                continue;
+            }
+            if (hasCrossUserAccess || entry.isVisibleForUser(callingUser)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isOngoingState(int state) {
+        for (int ongoingState : CallsManager.ONGOING_CALL_STATES) {
+            if (ongoingState == state) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
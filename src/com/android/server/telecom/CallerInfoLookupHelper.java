@@ -17,17 +17,26 @@
 package com.android.server.telecom;
 
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.provider.ContactsContract;
 import android.telecom.Log;
 import android.telecom.Logging.Runnable;
 import android.telecom.Logging.Session;
 import android.text.TextUtils;
+import android.util.LruCache;
 import android.util.Pair;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.server.telecom.flags.FeatureFlags;
+
 import android.telecom.CallerInfo;
 import android.telecom.CallerInfoAsyncQuery;
 
@@ -58,6 +67,32 @@ public class CallerInfoLookupHelper {
         }
     }
 
+    /**
+     * A completed lookup, kept so that later calls from the same number do not need to query the
+     * contacts provider again.  Lookups are made in the contacts of the current user, so these are
+     * cached per user.
+     */
+    private static class CachedCallerInfo {
+        public final CallerInfo callerInfo;
+        public final long cachedTimeMillis;
+        public final int sizeBytes;
+
+        public CachedCallerInfo(CallerInfo callerInfo, long cachedTimeMillis) {
+            this.callerInfo = callerInfo;
+            this.cachedTimeMillis = cachedTimeMillis;
+            int photoBytes = callerInfo.cachedPhotoIcon == null
+                    ? 0 : callerInfo.cachedPhotoIcon.getAllocationByteCount();
+            sizeBytes = CACHE_ENTRY_OVERHEAD_BYTES + photoBytes;
+        }
+    }
+
+    /** Maximum memory used by the cached caller info, including the decoded contact photos. */
+    private static final int MAX_CACHE_SIZE_BYTES = 4 * 1024 * 1024;
+    /** Estimated memory used by a cached caller info, excluding its contact photo. */
+    private static final int CACHE_ENTRY_OVERHEAD_BYTES = 1024;
+    /** Time after which cached caller info is no longer used. */
+    private static final long CACHE_TTL_MILLIS = 5 * 60 * 1000;
+
     private final Map<Uri, CallerInfoQueryInfo> mQueryEntries = new HashMap<>();
 
     private final CallerInfoAsyncQueryFactory mCallerInfoAsyncQueryFactory;
@@ -65,15 +100,48 @@ public class CallerInfoLookupHelper {
     private final Context mContext;
     private final TelecomSystem.SyncRoot mLock;
     private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<Pair<Integer, Uri>, CachedCallerInfo> mCallerInfoCache;
+    /** The user whose contacts are looked up; the key of new entries in the cache. */
+    private int mCurrentUserId = ActivityManager.getCurrentUser();
+    private long mNumCacheHits = 0;
+    private long mNumCacheMisses = 0;
+    private long mNumCacheInvalidations = 0;
+
+    /** Clears the cached caller info whenever the contacts change. */
+    private final ContentObserver mContactsObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            synchronized (mLock) {
+                Log.i(CallerInfoLookupHelper.this, "Contacts changed; clearing cached caller info");
+                mCallerInfoCache.evictAll();
+                mNumCacheInvalidations++;
+            }
+        }
+    };
 
     public CallerInfoLookupHelper(Context context,
             CallerInfoAsyncQueryFactory callerInfoAsyncQueryFactory,
             ContactsAsyncHelper contactsAsyncHelper,
-            TelecomSystem.SyncRoot lock) {
+            TelecomSystem.SyncRoot lock,
+            FeatureFlags featureFlags) {
         mCallerInfoAsyncQueryFactory = callerInfoAsyncQueryFactory;
         mContactsAsyncHelper = contactsAsyncHelper;
         mContext = context;
         mLock = lock;
+        if (featureFlags.cacheCallerInfoLookups()) {
+            mCallerInfoCache = new LruCache<Pair<Integer, Uri>, CachedCallerInfo>(
+                    MAX_CACHE_SIZE_BYTES) {
+                @Override
+                protected int sizeOf(Pair<Integer, Uri> key, CachedCallerInfo value) {
+                    return value.sizeBytes;
+                }
+            };
+            mContext.getContentResolver().registerContentObserver(
+                    ContactsContract.AUTHORITY_URI, true /* notifyForDescendants */,
+                    mContactsObserver, UserHandle.USER_ALL);
+        } else {
+            mCallerInfoCache = null;
+        }
     }
 
     /**
@@ -129,7 +197,18 @@ public class CallerInfoLookupHelper {
             return;
         }
 
+        final int userId;
         synchronized (mLock) {
+            userId = mCurrentUserId;
+            CallerInfo cachedInfo = getCachedCallerInfo(userId, handle);
+            if (cachedInfo != null) {
+                Log.i(this, "Using cached caller info for handle %s", Log.piiHandle(handle));
+                listener.onCallerInfoQueryComplete(handle, cachedInfo);
+                if (cachedInfo.cachedPhoto != null || cachedInfo.cachedPhotoIcon != null) {
+                    listener.onContactPhotoQueryComplete(handle, cachedInfo);
+                }
+                return;
+            }
             if (mQueryEntries.containsKey(handle)) {
                 CallerInfoQueryInfo info = mQueryEntries.get(handle);
                 if (info.callerInfo != null) {
@@ -165,7 +244,7 @@ public class CallerInfoLookupHelper {
                 try {
                     CallerInfoAsyncQuery query = mCallerInfoAsyncQueryFactory.startQuery(
                             0, mContext, number,
-                            makeCallerInfoQueryListener(handle), continuedSession);
+                            makeCallerInfoQueryListener(userId, handle), continuedSession);
                     if (query == null) {
                         Log.w(this, "Lookup failed for %s.", Log.piiHandle(handle));
                         Log.cancelSubsession(continuedSession);
@@ -179,7 +258,7 @@ public class CallerInfoLookupHelper {
     }
 
     private CallerInfoAsyncQuery.OnQueryCompleteListener makeCallerInfoQueryListener(
-            final Uri handle) {
+            final int userId, final Uri handle) {
         return (token, cookie, ci) -> {
             synchronized (mLock) {
                 Log.continueSession((Session) cookie, "CILH.oQC");
@@ -195,10 +274,11 @@ public class CallerInfoLookupHelper {
                             Log.i(CallerInfoLookupHelper.this, "There is no photo for this " +
                                     "contact, skipping photo query");
                             mQueryEntries.remove(handle);
+                            cacheCallerInfo(userId, handle, ci);
                         } else {
                             info.callerInfo = ci;
                             info.imageQueryPending = true;
-                            startPhotoLookup(handle, ci.getContactDisplayPhotoUri());
+                            startPhotoLookup(userId, handle, ci.getContactDisplayPhotoUri());
                         }
                     } else {
                         Log.i(CallerInfoLookupHelper.this, "CI query for handle %s has completed," +
@@ -211,7 +291,8 @@ public class CallerInfoLookupHelper {
         };
     }
 
-    private void startPhotoLookup(final Uri handle, final Uri contactPhotoUri) {
+    private void startPhotoLookup(final int userId, final Uri handle,
+            final Uri contactPhotoUri) {
         mHandler.post(new Runnable("CILH.sPL", null) {
             @Override
             public void loggedRun() {
@@ -219,7 +300,7 @@ public class CallerInfoLookupHelper {
                 try {
                     mContactsAsyncHelper.startObtainPhotoAsync(
                             0, mContext, contactPhotoUri,
-                            makeContactPhotoListener(handle), continuedSession);
+                            makeContactPhotoListener(userId, handle), continuedSession);
                 } catch (Throwable t) {
                     Log.cancelSubsession(continuedSession);
                     throw t;
@@ -229,7 +310,7 @@ public class CallerInfoLookupHelper {
     }
 
     private ContactsAsyncHelper.OnImageLoadCompleteListener makeContactPhotoListener(
-            final Uri handle) {
+            final int userId, final Uri handle) {
         return (token, photo, photoIcon, cookie) -> {
             synchronized (mLock) {
                 Log.continueSession((Session) cookie, "CLIH.oILC");
@@ -248,6 +329,7 @@ public class CallerInfoLookupHelper {
                             l.onContactPhotoQueryComplete(handle, info.callerInfo);
                         }
                         mQueryEntries.remove(handle);
+                        cacheCallerInfo(userId, handle, info.callerInfo);
                     } else {
                         Log.i(CallerInfoLookupHelper.this, "Photo query for handle %s has" +
                                 " completed, but there are no listeners left.",
@@ -260,6 +342,71 @@ public class CallerInfoLookupHelper {
         };
     }
 
+    /**
+     * Called when the current user changes; later lookups are made in the contacts of the new
+     * user, and are not answered with caller info cached for the previous one.
+     */
+    public void onUserSwitch(UserHandle userHandle) {
+        synchronized (mLock) {
+            mCurrentUserId = userHandle.getIdentifier();
+        }
+    }
+
+    /**
+     * @return the caller info cached for the handle in the contacts of the user, or {@code null}
+     * if there is none or it has expired.  Must be called with {@link #mLock} held.
+     */
+    private CallerInfo getCachedCallerInfo(int userId, Uri handle) {
+        if (mCallerInfoCache == null) {
+            return null;
+        }
+        Pair<Integer, Uri> key = new Pair<>(userId, handle);
+        CachedCallerInfo cached = mCallerInfoCache.get(key);
+        if (cached != null
+                && SystemClock.elapsedRealtime() - cached.cachedTimeMillis > CACHE_TTL_MILLIS) {
+            mCallerInfoCache.remove(key);
+            cached = null;
+        }
+        if (cached == null) {
+            mNumCacheMisses++;
+            return null;
+        }
+        mNumCacheHits++;
+        return cached.callerInfo;
+    }
+
+    /**
+     * Caches the result of a lookup made in the contacts of the user.  Must be called with
+     * {@link #mLock} held.
+     */
+    private void cacheCallerInfo(int userId, Uri handle, CallerInfo callerInfo) {
+        if (mCallerInfoCache == null || callerInfo == null) {
+            return;
+        }
+        mCallerInfoCache.put(new Pair<>(userId, handle), new CachedCallerInfo(callerInfo,
+                SystemClock.elapsedRealtime()));
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("pendingQueries: " + mQueryEntries.size());
+            if (mCallerInfoCache == null) {
+                return;
+            }
+            pw.println("cachedCallerInfo: " + mCallerInfoCache.size() / 1024 + "KB of "
+                    + mCallerInfoCache.maxSize() / 1024 + "KB, entries="
+                    + mCallerInfoCache.snapshot().size()
+                    + ", hits=" + mNumCacheHits + ", misses=" + mNumCacheMisses
+                    + ", evictions=" + mCallerInfoCache.evictionCount()
+                    + ", invalidations=" + mNumCacheInvalidations);
+        }
+    }
+
+    @VisibleForTesting
+    public long getNumCacheHits() {
+        return mNumCacheHits;
+    }
+
     @VisibleForTesting
     public Map<Uri, CallerInfoQueryInfo> getCallerInfoEntries() {
         return mQueryEntries;
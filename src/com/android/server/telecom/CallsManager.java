@@ -121,8 +121,10 @@ import com.android.server.telecom.bluetooth.BluetoothRouteManager;
 import com.android.server.telecom.bluetooth.BluetoothStateReceiver;
 import com.android.server.telecom.callfiltering.BlockCheckerAdapter;
 import com.android.server.telecom.callfiltering.BlockCheckerFilter;
+import com.android.server.telecom.callfiltering.BlockedNumberIndex;
 import com.android.server.telecom.callfiltering.BlockedNumbersAdapter;
 import com.android.server.telecom.callfiltering.CallFilterResultCallback;
+import com.android.server.telecom.callfiltering.CallFilteringScheduler;
 import com.android.server.telecom.callfiltering.CallFilteringResult;
 import com.android.server.telecom.callfiltering.CallFilteringResult.Builder;
 import com.android.server.telecom.callfiltering.CallScreeningServiceFilter;
@@ -442,6 +444,7 @@ public class CallsManager extends Call.ListenerBase
     private final DisconnectedCallNotifier mDisconnectedCallNotifier;
     private IncomingCallNotifier mIncomingCallNotifier;
     private final CallerInfoLookupHelper mCallerInfoLookupHelper;
+    private final TonePlaybackEngine mTonePlaybackEngine;
     private final DefaultDialerCache mDefaultDialerCache;
     private final Timeouts.Adapter mTimeoutsAdapter;
     private final PhoneNumberUtilsAdapter mPhoneNumberUtilsAdapter;
@@ -466,6 +469,19 @@ public class CallsManager extends Call.ListenerBase
     private final CallStreamingNotification mCallStreamingNotification;
     private final FeatureFlags mFeatureFlags;
 
+    /**
+     * Immutable view of {@link #mCalls} which read-only binder queries can consult without
+     * holding {@link #mLock}.  Only published when the
+     * {@link FeatureFlags#lockFreeCallStateQueries()} flag is enabled.
+     */
+    private volatile CallStateSnapshot mCallStateSnapshot = CallStateSnapshot.EMPTY;
+
+    /**
+     * Counts of {@link #mCalls} by state, used by {@link #getNumCallsWithState} when the
+     * {@link FeatureFlags#callStateIndex()} flag is enabled.
+     */
+    private final CallStateIndex mCallStateIndex = new CallStateIndex();
+
     private final IncomingCallFilterGraphProvider mIncomingCallFilterGraphProvider;
 
     private final ConnectionServiceFocusManager.CallsManagerRequester mRequester =
@@ -621,7 +637,17 @@ public class CallsManager extends Call.ListenerBase
                     featureFlags
             );
         } else {
-            callAudioRouteAdapter = new CallAudioRouteController();
+            callAudioRouteAdapter = new CallAudioRouteController(
+                    context,
+                    this,
+                    bluetoothManager,
+                    wiredHeadsetManager,
+                    statusBarNotifier,
+                    audioServiceFactory,
+                    CallAudioRouteStateMachine.EARPIECE_AUTO_DETECT,
+                    communicationDeviceTracker,
+                    featureFlags
+            );
         }
         callAudioRouteAdapter.initialize();
 
@@ -638,9 +664,12 @@ public class CallsManager extends Call.ListenerBase
                         new InCallTonePlayer.MediaPlayerAdapterImpl(
                                 MediaPlayer.create(mContext, resourceId, attributes,
                                         audioManager.generateAudioSessionId()));
+        mTonePlaybackEngine = featureFlags.reuseTonePlayerWorker()
+                ? new TonePlaybackEngine(toneGeneratorFactory, mediaPlayerFactory) : null;
         InCallTonePlayer.Factory playerFactory = new InCallTonePlayer.Factory(
                 callAudioRoutePeripheralAdapter, lock, toneGeneratorFactory, mediaPlayerFactory,
-                () -> audioManager.getStreamVolume(AudioManager.STREAM_RING) > 0);
+                () -> audioManager.getStreamVolume(AudioManager.STREAM_RING) > 0,
+                mTonePlaybackEngine);
 
         SystemSettingsUtil systemSettingsUtil = new SystemSettingsUtil();
         RingtoneFactory ringtoneFactory = new RingtoneFactory(this, context);
@@ -810,6 +839,8 @@ public class CallsManager extends Call.ListenerBase
     @Override
     public void onSuccessfulIncomingCall(Call incomingCall) {
         Log.d(this, "onSuccessfulIncomingCall");
+        // Resolve the ringtone while the call is filtered, rather than once it starts ringing.
+        mRinger.prepareForIncomingCall(incomingCall);
         PhoneAccount phoneAccount = mPhoneAccountRegistrar.getPhoneAccountUnchecked(
                 incomingCall.getTargetPhoneAccount());
         Bundle extras =
@@ -857,7 +888,7 @@ public class CallsManager extends Call.ListenerBase
                 incomingHfpCall,
                 this::onCallFilteringComplete, mContext, mTimeoutsAdapter, mLock);
         graph.addFilter(dndCallFilter);
-        mGraphHandlerThreads.add(graph.getHandlerThread());
+        trackGraphHandlerThread(graph);
         return graph;
     }
 
@@ -878,7 +909,8 @@ public class CallsManager extends Call.ListenerBase
         DirectToVoicemailFilter voicemailFilter = new DirectToVoicemailFilter(incomingCall,
                 mCallerInfoLookupHelper);
         BlockCheckerFilter blockCheckerFilter = new BlockCheckerFilter(mContext, incomingCall,
-                mCallerInfoLookupHelper, new BlockCheckerAdapter());
+                mCallerInfoLookupHelper, new BlockCheckerAdapter(getBlockedNumberIndex()),
+                getCallFilteringScheduler());
         DndCallFilter dndCallFilter = new DndCallFilter(incomingCall, getRinger());
         CallScreeningServiceFilter carrierCallScreeningServiceFilter =
                 new CallScreeningServiceFilter(incomingCall, carrierPackageName,
@@ -905,10 +937,31 @@ public class CallsManager extends Call.ListenerBase
         IncomingCallFilterGraph.addEdge(blockCheckerFilter, carrierCallScreeningServiceFilter);
         IncomingCallFilterGraph.addEdge(carrierCallScreeningServiceFilter,
                 callScreeningServiceFilter);
-        mGraphHandlerThreads.add(graph.getHandlerThread());
+        trackGraphHandlerThread(graph);
         return graph;
     }
 
+    private void trackGraphHandlerThread(IncomingCallFilterGraph graph) {
+        // Graphs running on the shared CallFilteringScheduler have no dedicated thread.
+        if (graph.getHandlerThread() != null) {
+            mGraphHandlerThreads.add(graph.getHandlerThread());
+        }
+    }
+
+    /**
+     * @return the shared call filtering scheduler, or {@code null} if filtering uses a dedicated
+     * thread per call.
+     */
+    private CallFilteringScheduler getCallFilteringScheduler() {
+        return mFeatureFlags.sharedCallFilteringScheduler()
+                ? CallFilteringScheduler.getInstance() : null;
+    }
+
+    private BlockedNumberIndex getBlockedNumberIndex() {
+        return mFeatureFlags.blockedNumberIndex()
+                ? BlockedNumberIndex.getInstance(mContext) : null;
+    }
+
     private String getCarrierPackageName() {
         ComponentName componentName = null;
         CarrierConfigManager configManager = (CarrierConfigManager) mContext.getSystemService
@@ -1158,6 +1211,7 @@ public class CallsManager extends Call.ListenerBase
         for (CallsManagerListener listener : mListeners) {
             listener.onIsConferencedChanged(call);
         }
+        publishCallStateSnapshot();
     }
 
     @Override
@@ -2574,6 +2628,25 @@ public class CallsManager extends Call.ListenerBase
         return targetPhoneAccount != null && targetPhoneAccount.isSelfManaged();
     }
 
+    /**
+     * Starts binding to the InCallServices ahead of a call which is about to be placed or
+     * received, see {@link InCallController#prebindToServices(String)}.  Nothing is bound for
+     * self-managed calls, or for calls of a user other than the current one.
+     *
+     * @param phoneAccountHandle The phone account of the call, if known.
+     * @param userHandle The user the call is for.
+     * @param reason Why the InCallServices are bound, for logging.
+     */
+    public void prebindInCallServices(PhoneAccountHandle phoneAccountHandle,
+            UserHandle userHandle, String reason) {
+        if (!mFeatureFlags.prebindInCallServices() || mInCallController == null
+                || !Objects.equals(mCurrentUserHandle, userHandle)
+                || (phoneAccountHandle != null && isSelfManaged(phoneAccountHandle, userHandle))) {
+            return;
+        }
+        mInCallController.prebindToServices(reason);
+    }
+
     public void onCallRedirectionComplete(Call call, Uri handle,
                                           PhoneAccountHandle phoneAccountHandle,
                                           GatewayInfo gatewayInfo, boolean speakerphoneOn,
@@ -3469,6 +3542,7 @@ public class CallsManager extends Call.ListenerBase
         for (CallsManagerListener listener : mListeners) {
             listener.onExternalCallChanged(call, isExternalCall);
         }
+        publishCallStateSnapshot();
     }
 
     @Override
@@ -4364,6 +4438,7 @@ public class CallsManager extends Call.ListenerBase
         Log.i(this, "addCall(%s)", call);
         call.addListener(this);
         mCalls.add(call);
+        mCallStateIndex.add(call);
         mSelfManagedCallsBeingSetup.remove(call);
 
         // Specifies the time telecom finished routing the call. This is used by the dialer for
@@ -4385,6 +4460,7 @@ public class CallsManager extends Call.ListenerBase
                 Trace.endSection();
             }
         }
+        publishCallStateSnapshot();
         Trace.endSection();
     }
 
@@ -4406,6 +4482,7 @@ public class CallsManager extends Call.ListenerBase
         boolean shouldNotify = false;
         if (mCalls.contains(call)) {
             mCalls.remove(call);
+            mCallStateIndex.remove(call);
             shouldNotify = true;
         }
         mSelfManagedCallsBeingSetup.remove(call);
@@ -4425,6 +4502,7 @@ public class CallsManager extends Call.ListenerBase
                     Trace.endSection();
                 }
             }
+            publishCallStateSnapshot();
         }
         Trace.endSection();
     }
@@ -4517,7 +4595,40 @@ public class CallsManager extends Call.ListenerBase
                     Trace.endSection();
                 }
             }
+            publishCallStateSnapshot();
+        }
+    }
+
+    /**
+     * Rebuilds and publishes the {@link CallStateSnapshot} used by lock-free binder queries.
+     * Called after listeners are notified so that the phone state computed by
+     * {@link PhoneStateBroadcaster} is up to date.
+     */
+    private void publishCallStateSnapshot() {
+        if (!mFeatureFlags.lockFreeCallStateQueries()) {
+            return;
         }
+        mCallStateSnapshot = CallStateSnapshot.create(mCalls, getCallState());
+    }
+
+    /**
+     * Called by a {@link Call} when one of the properties captured by {@link CallStateSnapshot}
+     * changes, so that the snapshot does not go stale between the points where it is otherwise
+     * published.
+     */
+    void onCallStatePropertyChanged(Call call) {
+        if (mCalls.contains(call)) {
+            publishCallStateSnapshot();
+        }
+    }
+
+    /**
+     * Retrieves the most recently published {@link CallStateSnapshot}.  Safe to call without
+     * holding the {@link TelecomSystem.SyncRoot}.
+     * @return the current call state snapshot.
+     */
+    public CallStateSnapshot getCallStateSnapshot() {
+        return mCallStateSnapshot;
     }
 
     /**
@@ -4696,6 +4807,10 @@ public class CallsManager extends Call.ListenerBase
     @VisibleForTesting
     public int getNumCallsWithState(final int callFilter, Call excludeCall,
                                     PhoneAccountHandle phoneAccountHandle, int... states) {
+        if (mFeatureFlags.callStateIndex()) {
+            return mCallStateIndex.getNumCalls(callFilter != CALL_FILTER_SELF_MANAGED,
+                    callFilter != CALL_FILTER_MANAGED, excludeCall, phoneAccountHandle, states);
+        }
 
         Set<Integer> desiredStates = IntStream.of(states).boxed().collect(Collectors.toSet());
 
@@ -4747,6 +4862,10 @@ public class CallsManager extends Call.ListenerBase
     public int getNumCallsWithState(final int callFilter, Call excludeCall,
             UserHandle callingUser, boolean hasCrossUserAccess,
             PhoneAccountHandle phoneAccountHandle, int... states) {
+        if (hasCrossUserAccess) {
+            // Every call is visible, so this is the same as the unscoped count.
+            return getNumCallsWithState(callFilter, excludeCall, phoneAccountHandle, states);
+        }
 
         Set<Integer> desiredStates = IntStream.of(states).boxed().collect(Collectors.toSet());
 
@@ -5411,6 +5530,9 @@ public class CallsManager extends Call.ListenerBase
         mCurrentUserHandle = userHandle;
         mMissedCallNotifier.setCurrentUserHandle(userHandle);
         mRoleManagerAdapter.setCurrentUserHandle(userHandle);
+        if (mCallerInfoLookupHelper != null) {
+            mCallerInfoLookupHelper.onUserSwitch(userHandle);
+        }
         final UserManager userManager = UserManager.get(mContext);
         List<UserInfo> profiles = userManager.getEnabledProfiles(userHandle.getIdentifier());
         for (UserInfo profile : profiles) {
@@ -5677,6 +5799,13 @@ public class CallsManager extends Call.ListenerBase
             pw.decreaseIndent();
         }
 
+        if (mFeatureFlags.callStateIndex()) {
+            pw.println("mCallStateIndex:");
+            pw.increaseIndent();
+            mCallStateIndex.dump(pw);
+            pw.decreaseIndent();
+        }
+
         if (mPendingCall != null) {
             pw.print("mPendingCall:");
             pw.println(mPendingCall.getId());
@@ -5736,6 +5865,48 @@ public class CallsManager extends Call.ListenerBase
             pw.decreaseIndent();
         }
 
+        if (mTransactionManager != null) {
+            pw.println("mTransactionManager:");
+            pw.increaseIndent();
+            mTransactionManager.dump(pw);
+            pw.decreaseIndent();
+        }
+
+        if (mFeatureFlags.sharedCallFilteringScheduler()) {
+            pw.println("CallFilteringScheduler:");
+            pw.increaseIndent();
+            CallFilteringScheduler.getInstance().dump(pw);
+            pw.decreaseIndent();
+        }
+
+        if (mFeatureFlags.blockedNumberIndex()) {
+            pw.println("BlockedNumberIndex:");
+            pw.increaseIndent();
+            BlockedNumberIndex.getInstance(mContext).dump(pw);
+            pw.decreaseIndent();
+        }
+
+        if (mFeatureFlags.batchCallLogWrites() && mCallLogManager != null) {
+            pw.println("mCallLogManager:");
+            pw.increaseIndent();
+            mCallLogManager.dump(pw);
+            pw.decreaseIndent();
+        }
+
+        if (mCallerInfoLookupHelper != null) {
+            pw.println("mCallerInfoLookupHelper:");
+            pw.increaseIndent();
+            mCallerInfoLookupHelper.dump(pw);
+            pw.decreaseIndent();
+        }
+
+        if (mTonePlaybackEngine != null) {
+            pw.println("mTonePlaybackEngine:");
+            pw.increaseIndent();
+            mTonePlaybackEngine.dump(pw);
+            pw.decreaseIndent();
+        }
+
         if (mDefaultDialerCache != null) {
             pw.println("mDefaultDialerCache:");
             pw.increaseIndent();
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.telecom.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ordered queue of the adapter callbacks made by one {@link android.telecom.ConnectionService}.
+ * <p>
+ * Callbacks are queued by the binder thread which receives them, so that the binder thread does
+ * not have to wait for the Telecom lock, and are run in the order they were received on the
+ * looper given at construction.  Up to {@link #MAX_BATCH_SIZE} callbacks are run each time the
+ * lock is taken, and other work on the looper is given a chance to run between batches, so that
+ * a ConnectionService which makes a large number of callbacks cannot hold up the rest of Telecom.
+ * <p>
+ * Once more than {@link #MAX_PENDING_CALLBACKS} callbacks are waiting, the binder thread runs the
+ * queued callbacks itself before returning.  This bounds the size of the queue, and slows down a
+ * ConnectionService which makes callbacks faster than Telecom can handle them.
+ */
+public class ConnectionServiceAdapterMailbox {
+    /** An adapter callback. */
+    public interface Callback {
+        void run() throws RemoteException;
+    }
+
+    /** The most callbacks run each time the lock is taken on the looper. */
+    @VisibleForTesting
+    public static final int MAX_BATCH_SIZE = 32;
+
+    /** The most callbacks which may be waiting before the binder thread runs them itself. */
+    @VisibleForTesting
+    public static final int MAX_PENDING_CALLBACKS = 256;
+
+    private final TelecomSystem.SyncRoot mLock;
+    private final Handler mHandler;
+    private final String mName;
+
+    /** Callbacks waiting to be run; guarded by itself. */
+    private final ArrayDeque<Callback> mPendingCallbacks = new ArrayDeque<>();
+    /** Whether {@link #mDrainRunnable} is posted; guarded by {@link #mPendingCallbacks}. */
+    private boolean mIsDrainScheduled = false;
+    private final Runnable mDrainRunnable = this::drainBatch;
+
+    private final AtomicLong mNumCallbacks = new AtomicLong(0);
+    private final AtomicLong mNumBatches = new AtomicLong(0);
+    private final AtomicLong mNumCallerDrains = new AtomicLong(0);
+    private volatile int mMaxPendingCallbacks = 0;
+
+    public ConnectionServiceAdapterMailbox(String name, TelecomSystem.SyncRoot lock,
+            Looper looper) {
+        mName = name;
+        mLock = lock;
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Queues a callback to be run after the callbacks already queued.
+     */
+    public void post(Callback callback) {
+        mNumCallbacks.incrementAndGet();
+        int numPending;
+        synchronized (mPendingCallbacks) {
+            mPendingCallbacks.add(callback);
+            numPending = mPendingCallbacks.size();
+            if (!mIsDrainScheduled) {
+                mIsDrainScheduled = true;
+                mHandler.post(mDrainRunnable);
+            }
+        }
+        if (numPending > mMaxPendingCallbacks) {
+            mMaxPendingCallbacks = numPending;
+        }
+        if (numPending > MAX_PENDING_CALLBACKS) {
+            mNumCallerDrains.incrementAndGet();
+            drain(Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Runs every queued callback on the calling thread.  Used before a callback which must run
+     * on its binder thread, so that it is not run ahead of the callbacks received before it.
+     */
+    public void flush() {
+        drain(Integer.MAX_VALUE);
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        int numPending;
+        synchronized (mPendingCallbacks) {
+            numPending = mPendingCallbacks.size();
+        }
+        pw.println(mName + ": callbacks: " + mNumCallbacks.get() + ", batches: "
+                + mNumBatches.get() + ", callerDrains: " + mNumCallerDrains.get()
+                + ", pending: " + numPending + ", maxPending: " + mMaxPendingCallbacks);
+    }
+
+    private void drainBatch() {
+        synchronized (mPendingCallbacks) {
+            mIsDrainScheduled = false;
+        }
+        mNumBatches.incrementAndGet();
+        drain(MAX_BATCH_SIZE);
+        synchronized (mPendingCallbacks) {
+            if (!mPendingCallbacks.isEmpty() && !mIsDrainScheduled) {
+                mIsDrainScheduled = true;
+                mHandler.post(mDrainRunnable);
+            }
+        }
+    }
+
+    private void drain(int maxCallbacks) {
+        // Callbacks are taken off the queue and run while holding the lock, so that callbacks
+        // drained on the looper and on a binder thread are never run out of order.
+        synchronized (mLock) {
+            for (int i = 0; i < maxCallbacks; i++) {
+                Callback callback;
+                synchronized (mPendingCallbacks) {
+                    callback = mPendingCallbacks.poll();
+                }
+                if (callback == null) {
+                    return;
+                }
+                try {
+                    callback.run();
+                } catch (RemoteException | RuntimeException e) {
+                    Log.e(this, e, "%s: adapter callback failed", mName);
+                }
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ import com.android.internal.util.IndentingPrintWriter;
 import com.android.server.telecom.flags.FeatureFlags;
 
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Searches for and returns connection services.
@@ -99,9 +100,13 @@ public class ConnectionServiceRepository {
     public void dump(IndentingPrintWriter pw) {
         pw.println("mServiceCache:");
         pw.increaseIndent();
-        for (Pair<ComponentName, UserHandle> cacheKey : mServiceCache.keySet()) {
-            ComponentName componentName = cacheKey.first;
+        for (Map.Entry<Pair<ComponentName, UserHandle>, ConnectionServiceWrapper> entry :
+                mServiceCache.entrySet()) {
+            ComponentName componentName = entry.getKey().first;
             pw.println(componentName);
+            pw.increaseIndent();
+            entry.getValue().dumpAdapterMailbox(pw);
+            pw.decreaseIndent();
         }
         pw.decreaseIndent();
     }
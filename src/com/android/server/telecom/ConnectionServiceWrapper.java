@@ -32,6 +32,7 @@ import android.os.Binder;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
@@ -63,6 +64,7 @@ import com.android.internal.telecom.IConnectionService;
 import com.android.internal.telecom.IConnectionServiceAdapter;
 import com.android.internal.telecom.IVideoProvider;
 import com.android.internal.telecom.RemoteServiceCallback;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.Preconditions;
 import com.android.server.telecom.flags.FeatureFlags;
 import com.android.server.telecom.flags.Flags;
@@ -1343,7 +1345,278 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
         }
     }
 
+    /**
+     * Adapter given to the {@link ConnectionService} when adapter callbacks are queued in
+     * {@link #mAdapterMailbox}.  Callbacks which check the identity of their caller, such as the
+     * {@code MODIFY_PHONE_STATE} checks of {@link Adapter#setConferenceState} and
+     * {@link Adapter#setCallDirection}, must not be queued: once drained on the main looper they
+     * would see Telecom's own identity.  They flush the mailbox and are run on their binder
+     * thread instead.
+     */
+    private final class MailboxAdapter extends IConnectionServiceAdapter.Stub {
+        @Override
+        public void handleCreateConnectionComplete(String callId, ConnectionRequest request,
+                ParcelableConnection connection, Session.Info sessionInfo) {
+            mAdapterMailbox.flush();
+            mAdapter.handleCreateConnectionComplete(callId, request, connection, sessionInfo);
+        }
+
+        @Override
+        public void handleCreateConferenceComplete(String callId, ConnectionRequest request,
+                ParcelableConference conference, Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.handleCreateConferenceComplete(callId, request,
+                    conference, sessionInfo));
+        }
+
+        @Override
+        public void setActive(String callId, Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setActive(callId, sessionInfo));
+        }
+
+        @Override
+        public void setRinging(String callId, Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setRinging(callId, sessionInfo));
+        }
+
+        @Override
+        public void resetConnectionTime(String callId, Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.resetConnectionTime(callId, sessionInfo));
+        }
+
+        @Override
+        public void setVideoProvider(String callId, IVideoProvider videoProvider,
+                Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setVideoProvider(callId, videoProvider,
+                    sessionInfo));
+        }
+
+        @Override
+        public void setDialing(String callId, Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setDialing(callId, sessionInfo));
+        }
+
+        @Override
+        public void setPulling(String callId, Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setPulling(callId, sessionInfo));
+        }
+
+        @Override
+        public void setDisconnected(String callId, DisconnectCause disconnectCause,
+                Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setDisconnected(callId, disconnectCause,
+                    sessionInfo));
+        }
+
+        @Override
+        public void setOnHold(String callId, Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setOnHold(callId, sessionInfo));
+        }
+
+        @Override
+        public void setRingbackRequested(String callId, boolean ringback,
+                Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setRingbackRequested(callId, ringback,
+                    sessionInfo));
+        }
+
+        @Override
+        public void removeCall(String callId, Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.removeCall(callId, sessionInfo));
+        }
+
+        @Override
+        public void setConnectionCapabilities(String callId, int connectionCapabilities,
+                Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setConnectionCapabilities(callId,
+                    connectionCapabilities, sessionInfo));
+        }
+
+        @Override
+        public void setConnectionProperties(String callId, int connectionProperties,
+                Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setConnectionProperties(callId,
+                    connectionProperties, sessionInfo));
+        }
+
+        @Override
+        public void setIsConferenced(String callId, String conferenceCallId,
+                Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setIsConferenced(callId, conferenceCallId,
+                    sessionInfo));
+        }
+
+        @Override
+        public void setConferenceMergeFailed(String callId, Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setConferenceMergeFailed(callId, sessionInfo));
+        }
+
+        @Override
+        public void addConferenceCall(String callId, ParcelableConference parcelableConference,
+                Session.Info sessionInfo) {
+            mAdapterMailbox.flush();
+            mAdapter.addConferenceCall(callId, parcelableConference, sessionInfo);
+        }
+
+        @Override
+        public void onPostDialWait(String callId, String remaining,
+                Session.Info sessionInfo) throws RemoteException {
+            mAdapterMailbox.post(() -> mAdapter.onPostDialWait(callId, remaining, sessionInfo));
+        }
+
+        @Override
+        public void onPostDialChar(String callId, char nextChar,
+                Session.Info sessionInfo) throws RemoteException {
+            mAdapterMailbox.post(() -> mAdapter.onPostDialChar(callId, nextChar, sessionInfo));
+        }
+
+        @Override
+        public void queryRemoteConnectionServices(RemoteServiceCallback callback,
+                String callingPackage, Session.Info sessionInfo) {
+            mAdapterMailbox.flush();
+            mAdapter.queryRemoteConnectionServices(callback, callingPackage, sessionInfo);
+        }
+
+        @Override
+        public void setVideoState(String callId, int videoState, Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setVideoState(callId, videoState, sessionInfo));
+        }
+
+        @Override
+        public void setIsVoipAudioMode(String callId, boolean isVoip, Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setIsVoipAudioMode(callId, isVoip, sessionInfo));
+        }
+
+        @Override
+        public void setAudioRoute(String callId, int audioRoute, String bluetoothAddress,
+                Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setAudioRoute(callId, audioRoute, bluetoothAddress,
+                    sessionInfo));
+        }
+
+        @Override
+        public void requestCallEndpointChange(String callId, CallEndpoint endpoint,
+                ResultReceiver callback, Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.requestCallEndpointChange(callId, endpoint,
+                    callback, sessionInfo));
+        }
+
+        @Override
+        public void setStatusHints(String callId, StatusHints statusHints,
+                Session.Info sessionInfo) {
+            mAdapterMailbox.flush();
+            mAdapter.setStatusHints(callId, statusHints, sessionInfo);
+        }
+
+        @Override
+        public void putExtras(String callId, Bundle extras, Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.putExtras(callId, extras, sessionInfo));
+        }
+
+        @Override
+        public void removeExtras(String callId, List<String> keys, Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.removeExtras(callId, keys, sessionInfo));
+        }
+
+        @Override
+        public void setAddress(String callId, Uri address, int presentation,
+                Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setAddress(callId, address, presentation,
+                    sessionInfo));
+        }
+
+        @Override
+        public void setCallerDisplayName(String callId, String callerDisplayName, int presentation,
+                Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setCallerDisplayName(callId, callerDisplayName,
+                    presentation, sessionInfo));
+        }
+
+        @Override
+        public void setConferenceableConnections(String callId, List<String> conferenceableCallIds,
+                Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.setConferenceableConnections(callId,
+                    conferenceableCallIds, sessionInfo));
+        }
+
+        @Override
+        public void addExistingConnection(String callId, ParcelableConnection connection,
+                Session.Info sessionInfo) {
+            mAdapterMailbox.flush();
+            mAdapter.addExistingConnection(callId, connection, sessionInfo);
+        }
+
+        @Override
+        public void onConnectionEvent(String callId, String event, Bundle extras,
+                Session.Info sessionInfo) {
+            mAdapterMailbox.post(() -> mAdapter.onConnectionEvent(callId, event, extras,
+                    sessionInfo));
+        }
+
+        @Override
+        public void onRttInitiationSuccess(String callId,
+                Session.Info sessionInfo) throws RemoteException {
+            mAdapterMailbox.post(() -> mAdapter.onRttInitiationSuccess(callId, sessionInfo));
+        }
+
+        @Override
+        public void onRttInitiationFailure(String callId, int reason,
+                Session.Info sessionInfo) throws RemoteException {
+            mAdapterMailbox.post(() -> mAdapter.onRttInitiationFailure(callId, reason,
+                    sessionInfo));
+        }
+
+        @Override
+        public void onRttSessionRemotelyTerminated(String callId,
+                Session.Info sessionInfo) throws RemoteException {
+            mAdapterMailbox.post(() -> mAdapter.onRttSessionRemotelyTerminated(callId,
+                    sessionInfo));
+        }
+
+        @Override
+        public void onRemoteRttRequest(String callId,
+                Session.Info sessionInfo) throws RemoteException {
+            mAdapterMailbox.post(() -> mAdapter.onRemoteRttRequest(callId, sessionInfo));
+        }
+
+        @Override
+        public void onPhoneAccountChanged(String callId, PhoneAccountHandle pHandle,
+                Session.Info sessionInfo) throws RemoteException {
+            mAdapterMailbox.flush();
+            mAdapter.onPhoneAccountChanged(callId, pHandle, sessionInfo);
+        }
+
+        @Override
+        public void onConnectionServiceFocusReleased(
+                Session.Info sessionInfo) throws RemoteException {
+            mAdapterMailbox.post(() -> mAdapter.onConnectionServiceFocusReleased(sessionInfo));
+        }
+
+        @Override
+        public void setConferenceState(String callId, boolean isConference,
+                Session.Info sessionInfo) throws RemoteException {
+            mAdapterMailbox.flush();
+            mAdapter.setConferenceState(callId, isConference, sessionInfo);
+        }
+
+        @Override
+        public void setCallDirection(String callId, int direction, Session.Info sessionInfo) {
+            mAdapterMailbox.flush();
+            mAdapter.setCallDirection(callId, direction, sessionInfo);
+        }
+
+        @Override
+        public void queryLocation(String callId, long timeoutMillis, String provider,
+                ResultReceiver callback, Session.Info sessionInfo) {
+            mAdapterMailbox.flush();
+            mAdapter.queryLocation(callId, timeoutMillis, provider, callback, sessionInfo);
+        }
+    }
+
     private final Adapter mAdapter = new Adapter();
+    /** Queues adapter callbacks, or {@code null} if they are run on their binder thread. */
+    private final ConnectionServiceAdapterMailbox mAdapterMailbox;
+    /** The adapter given to the {@link ConnectionService}. */
+    private final IConnectionServiceAdapter.Stub mServiceAdapter;
     private final CallIdMapper mCallIdMapper = new CallIdMapper(Call::getConnectionId);
     private final Map<String, CreateConnectionResponse> mPendingResponses = new HashMap<>();
 
@@ -1390,6 +1663,14 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
         mAppOpsManager = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
         mContext = context;
         mFlags = featureFlags;
+        if (featureFlags.connectionServiceAdapterMailbox()) {
+            mAdapterMailbox = new ConnectionServiceAdapterMailbox(
+                    componentName.flattenToShortString(), lock, Looper.getMainLooper());
+            mServiceAdapter = new MailboxAdapter();
+        } else {
+            mAdapterMailbox = null;
+            mServiceAdapter = mAdapter;
+        }
     }
 
     /** See {@link IConnectionService#addConnectionServiceAdapter}. */
@@ -2404,14 +2685,18 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
     protected void setServiceInterface(IBinder binder) {
         mServiceInterface = IConnectionService.Stub.asInterface(binder);
         Log.v(this, "Adding Connection Service Adapter.");
-        addConnectionServiceAdapter(mAdapter);
+        addConnectionServiceAdapter(mServiceAdapter);
     }
 
     /** {@inheritDoc} */
     @Override
     protected void removeServiceInterface() {
         Log.v(this, "Removing Connection Service Adapter.");
-        removeConnectionServiceAdapter(mAdapter);
+        removeConnectionServiceAdapter(mServiceAdapter);
+        if (mAdapterMailbox != null) {
+            // Apply whatever the service reported before it went away.
+            mAdapterMailbox.flush();
+        }
         // We have lost our service connection. Notify the world that this service is done.
         // We must notify the adapter before CallsManager. The adapter will force any pending
         // outgoing calls to try the next service. This needs to happen before CallsManager
@@ -2664,6 +2949,17 @@ public class ConnectionServiceWrapper extends ServiceBinder implements
         return sb.toString();
     }
 
+    /**
+     * Dumps the queue of adapter callbacks, if adapter callbacks are queued.
+     *
+     * @param pw The {@code IndentingPrintWriter} to write the state to.
+     */
+    public void dumpAdapterMailbox(IndentingPrintWriter pw) {
+        if (mAdapterMailbox != null) {
+            mAdapterMailbox.dump(pw);
+        }
+    }
+
     @VisibleForTesting
     public void setScheduledExecutorService(ScheduledExecutorService service) {
         mScheduledExecutor = service;
@@ -31,6 +31,7 @@ import android.os.UserHandle;
 import android.provider.Settings;
 import android.telecom.DefaultDialerManager;
 import android.telecom.Log;
+import android.util.IntArray;
 import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -85,9 +86,7 @@ public class DefaultDialerCache {
                     return;
                 }
 
-                synchronized (mLock) {
-                    refreshCachesForUsersWithPackage(packageName);
-                }
+                refreshCaches(packageName);
 
             } finally {
                 Log.endSession();
@@ -119,9 +118,7 @@ public class DefaultDialerCache {
             try {
                 // We don't get the user ID of the user that changed here, so we'll have to
                 // refresh all of the users.
-                synchronized (mLock) {
-                    refreshCachesForUsersWithPackage(null);
-                }
+                refreshCaches(null);
             } finally {
                 Log.endSession();
             }
@@ -135,7 +132,17 @@ public class DefaultDialerCache {
 
     private final Context mContext;
     private final DefaultDialerManagerAdapter mDefaultDialerManagerAdapter;
+    /**
+     * Guards {@link #mCurrentDefaultDialerPerUser}.  This is the Telecom lock, unless
+     * {@link #mUsesOwnLock} is set.
+     */
     private final TelecomSystem.SyncRoot mLock;
+    /**
+     * Whether {@link #mLock} is used only by this cache.  If so, the refreshes on package, role
+     * and user changes do not take the Telecom lock, and {@link RoleManagerAdapter} is never
+     * called while {@link #mLock} is held.
+     */
+    private final boolean mUsesOwnLock;
     private final ComponentName mSystemDialerComponentName;
     private final RoleManagerAdapter mRoleManagerAdapter;
     private SparseArray<String> mCurrentDefaultDialerPerUser = new SparseArray<>();
@@ -145,10 +152,24 @@ public class DefaultDialerCache {
             DefaultDialerManagerAdapter defaultDialerManagerAdapter,
             RoleManagerAdapter roleManagerAdapter,
             TelecomSystem.SyncRoot lock) {
+        this(context, defaultDialerManagerAdapter, roleManagerAdapter, lock,
+                false /* useOwnLock */);
+    }
+
+    /**
+     * @param lock The Telecom lock.
+     * @param useOwnLock Whether to guard the cache with a lock of its own instead of the Telecom
+     *                   lock.
+     */
+    public DefaultDialerCache(Context context,
+            DefaultDialerManagerAdapter defaultDialerManagerAdapter,
+            RoleManagerAdapter roleManagerAdapter,
+            TelecomSystem.SyncRoot lock, boolean useOwnLock) {
         mContext = context;
         mDefaultDialerManagerAdapter = defaultDialerManagerAdapter;
         mRoleManagerAdapter = roleManagerAdapter;
-        mLock = lock;
+        mUsesOwnLock = useOwnLock;
+        mLock = useOwnLock ? new TelecomSystem.SyncRoot() { } : lock;
         Resources resources = mContext.getResources();
         mSystemDialerComponentName = new ComponentName(resources.getString(
                 com.android.internal.R.string.config_defaultDialer),
@@ -255,21 +276,45 @@ public class DefaultDialerCache {
         return currentDefaultDialer;
     }
 
+    /**
+     * Refreshes the caches on a package, role or user change, see
+     * {@link #refreshCachesForUsersWithPackage}.  Unless the cache has its own lock, this is done
+     * with the Telecom lock held.
+     */
+    private void refreshCaches(String packageName) {
+        if (mUsesOwnLock) {
+            refreshCachesForUsersWithPackage(packageName);
+            return;
+        }
+        synchronized (mLock) {
+            refreshCachesForUsersWithPackage(packageName);
+        }
+    }
+
     /**
      * Refreshes the cache for users that currently have packageName as their cached default dialer.
      * If packageName is null, refresh all caches.
      * @param packageName Name of the affected package.
      */
     private void refreshCachesForUsersWithPackage(String packageName) {
-        for (int i = 0; i < mCurrentDefaultDialerPerUser.size(); i++) {
-            int userId = mCurrentDefaultDialerPerUser.keyAt(i);
-            if (packageName == null ||
-                    Objects.equals(packageName, mCurrentDefaultDialerPerUser.get(userId))) {
-                String newDefaultDialer = refreshCacheForUser(userId);
-                Log.v(LOG_TAG, "Refreshing default dialer for user %d: now %s",
-                        userId, newDefaultDialer);
+        // Find the users to refresh first; the role holders are then looked up without the lock,
+        // unless the caller holds it.
+        IntArray userIds = new IntArray();
+        synchronized (mLock) {
+            for (int i = 0; i < mCurrentDefaultDialerPerUser.size(); i++) {
+                int userId = mCurrentDefaultDialerPerUser.keyAt(i);
+                if (packageName == null ||
+                        Objects.equals(packageName, mCurrentDefaultDialerPerUser.get(userId))) {
+                    userIds.add(userId);
+                }
             }
         }
+        for (int i = 0; i < userIds.size(); i++) {
+            int userId = userIds.get(i);
+            String newDefaultDialer = refreshCacheForUser(userId);
+            Log.v(LOG_TAG, "Refreshing default dialer for user %d: now %s",
+                    userId, newDefaultDialer);
+        }
     }
 
     public void dumpCache(IndentingPrintWriter pw) {
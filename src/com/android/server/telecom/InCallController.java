@@ -142,6 +142,15 @@ public class InCallController extends CallsManagerListenerBase implements
         public Call mCall;
     }
 
+    /**
+     * The merged parameters of the call update requests received for a call since its last
+     * update was sent.
+     */
+    private static class PendingCallUpdate {
+        boolean mVideoProviderChanged;
+        boolean mRttInfoChanged;
+    }
+
     public static class InCallServiceInfo {
         private final ComponentName mComponentName;
         private boolean mIsExternalCallsSupported;
@@ -859,32 +868,32 @@ public class InCallController extends CallsManagerListenerBase implements
     private final Call.Listener mCallListener = new Call.ListenerBase() {
         @Override
         public void onConnectionCapabilitiesChanged(Call call) {
-            updateCall(call);
+            scheduleCallUpdate(call);
         }
 
         @Override
         public void onConnectionPropertiesChanged(Call call, boolean didRttChange) {
-            updateCall(call, false /* includeVideoProvider */, didRttChange, null);
+            scheduleCallUpdate(call, false /* videoProviderChanged */, didRttChange);
         }
 
         @Override
         public void onCannedSmsResponsesLoaded(Call call) {
-            updateCall(call);
+            scheduleCallUpdate(call);
         }
 
         @Override
         public void onVideoCallProviderChanged(Call call) {
-            updateCall(call, true /* videoProviderChanged */, false, null);
+            scheduleCallUpdate(call, true /* videoProviderChanged */, false /* rttInfoChanged */);
         }
 
         @Override
         public void onStatusHintsChanged(Call call) {
-            updateCall(call);
+            scheduleCallUpdate(call);
         }
 
         @Override
         public void onCallerInfoChanged(Call call) {
-            updateCall(call);
+            scheduleCallUpdate(call);
         }
 
         /**
@@ -904,7 +913,7 @@ public class InCallController extends CallsManagerListenerBase implements
         public void onExtrasChanged(Call call, int source, Bundle extras,
                 String requestingPackageName) {
             if (source == Call.SOURCE_CONNECTION_SERVICE) {
-                updateCall(call);
+                scheduleCallUpdate(call);
             } else if (source == Call.SOURCE_INCALL_SERVICE && requestingPackageName != null) {
                 // If the change originated from another InCallService, we'll propagate the change
                 // to all other InCallServices running, EXCEPT the one who made the original change.
@@ -930,69 +939,74 @@ public class InCallController extends CallsManagerListenerBase implements
             if (source == Call.SOURCE_INCALL_SERVICE) {
                 return;
             }
-            updateCall(call);
+            scheduleCallUpdate(call);
         }
 
         @Override
         public void onHandleChanged(Call call) {
-            updateCall(call);
+            scheduleCallUpdate(call);
         }
 
         @Override
         public void onCallerDisplayNameChanged(Call call) {
-            updateCall(call);
+            scheduleCallUpdate(call);
         }
 
         @Override
         public void onCallDirectionChanged(Call call) {
-            updateCall(call);
+            scheduleCallUpdate(call);
         }
 
         @Override
         public void onVideoStateChanged(Call call, int previousVideoState, int newVideoState) {
-            updateCall(call);
+            scheduleCallUpdate(call);
         }
 
         @Override
         public void onTargetPhoneAccountChanged(Call call) {
-            updateCall(call);
+            scheduleCallUpdate(call);
         }
 
         @Override
         public void onConferenceableCallsChanged(Call call) {
-            updateCall(call);
+            scheduleCallUpdate(call);
         }
 
         @Override
         public void onConnectionEvent(Call call, String event, Bundle extras) {
+            flushCallUpdate(call);
             notifyConnectionEvent(call, event, extras);
         }
 
         @Override
         public void onHandoverFailed(Call call, int error) {
+            flushCallUpdate(call);
             notifyHandoverFailed(call, error);
         }
 
         @Override
         public void onHandoverComplete(Call call) {
+            flushCallUpdate(call);
             notifyHandoverComplete(call);
         }
 
         @Override
         public void onRttInitiationFailure(Call call, int reason) {
+            flushCallUpdate(call);
             notifyRttInitiationFailure(call, reason);
-            updateCall(call, false, true, null);
+            scheduleCallUpdate(call, false /* videoProviderChanged */, true /* rttInfoChanged */);
         }
 
         @Override
         public void onRemoteRttRequest(Call call, int requestId) {
+            flushCallUpdate(call);
             notifyRemoteRttRequest(call, requestId);
         }
 
         @Override
         public void onCallerNumberVerificationStatusChanged(Call call,
                 int callerNumberVerificationStatus) {
-            updateCall(call);
+            scheduleCallUpdate(call);
         }
     };
 
@@ -1071,6 +1085,8 @@ public class InCallController extends CallsManagerListenerBase implements
             try {
                 if (Intent.ACTION_PACKAGE_CHANGED.equals(intent.getAction())) {
                     synchronized (mLock) {
+                        // This receiver may run before mInCallServiceResolutionInvalidator.
+                        mInCallServiceResolutionCache.invalidateAll();
                         int uid = intent.getIntExtra(Intent.EXTRA_UID, 0);
                         UserHandle userHandle = UserHandle.getUserHandleForUid(uid);
                         boolean isManagedProfile = um.isManagedProfile(userHandle.getIdentifier());
@@ -1147,6 +1163,20 @@ public class InCallController extends CallsManagerListenerBase implements
         }
     };
 
+    /**
+     * Drops the resolved InCallServices kept in {@link #mInCallServiceResolutionCache} when
+     * packages or users change.
+     */
+    private final BroadcastReceiver mInCallServiceResolutionInvalidator =
+            new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(InCallController.this, "Invalidating resolved InCallServices on %s",
+                    intent.getAction());
+            mInCallServiceResolutionCache.invalidateAll();
+        }
+    };
+
     private final SystemStateListener mSystemStateListener = new SystemStateListener() {
         @Override
         public void onCarModeChanged(int priority, String packageName, boolean isCarMode) {
@@ -1170,12 +1200,30 @@ public class InCallController extends CallsManagerListenerBase implements
         }
     };
 
-    private static final int IN_CALL_SERVICE_TYPE_INVALID = 0;
-    private static final int IN_CALL_SERVICE_TYPE_DEFAULT_DIALER_UI = 1;
-    private static final int IN_CALL_SERVICE_TYPE_SYSTEM_UI = 2;
-    private static final int IN_CALL_SERVICE_TYPE_CAR_MODE_UI = 3;
-    private static final int IN_CALL_SERVICE_TYPE_NON_UI = 4;
-    private static final int IN_CALL_SERVICE_TYPE_COMPANION = 5;
+    @VisibleForTesting
+    public static final int IN_CALL_SERVICE_TYPE_INVALID = 0;
+    @VisibleForTesting
+    public static final int IN_CALL_SERVICE_TYPE_DEFAULT_DIALER_UI = 1;
+    @VisibleForTesting
+    public static final int IN_CALL_SERVICE_TYPE_SYSTEM_UI = 2;
+    @VisibleForTesting
+    public static final int IN_CALL_SERVICE_TYPE_CAR_MODE_UI = 3;
+    @VisibleForTesting
+    public static final int IN_CALL_SERVICE_TYPE_NON_UI = 4;
+    @VisibleForTesting
+    public static final int IN_CALL_SERVICE_TYPE_COMPANION = 5;
+
+    /**
+     * Number of distinct {@link ParcelableCall}s which can be built for a single call update; see
+     * {@link #getParcelableCallVariant}.
+     */
+    private static final int NUM_PARCELABLE_CALL_VARIANTS = 8;
+    private static final int VARIANT_SUPPORTS_EXTERNAL_CALLS = 1;
+    private static final int VARIANT_INCLUDE_RTT_CALL = 1 << 1;
+    private static final int VARIANT_SYSTEM_IN_CALL_SERVICE = 1 << 2;
+
+    /** Maximum time a coalesced call update is held back before it is sent. */
+    private static final long CALL_UPDATE_COALESCING_DELAY_MILLIS = 10;
 
     private static final int[] LIVE_CALL_STATES = { CallState.ACTIVE, CallState.PULLING,
             CallState.DISCONNECTING };
@@ -1184,6 +1232,26 @@ public class InCallController extends CallsManagerListenerBase implements
     private final Map<UserHandle, Map<InCallServiceInfo, IInCallService>>
             mInCallServices = new ArrayMap<>();
 
+    /** Number of {@link ParcelableCall}s built to send call updates. */
+    private long mNumParcelableCallsBuilt = 0;
+
+    /** Number of call updates sent with a {@link ParcelableCall} built for another service. */
+    private long mNumParcelableCallsReused = 0;
+
+    /**
+     * Call updates which have been requested but not yet sent, see {@link #scheduleCallUpdate}.
+     */
+    private final Map<Call, PendingCallUpdate> mPendingCallUpdates = new ArrayMap<>();
+
+    /** Number of call updates sent to the InCallServices. */
+    private long mNumCallUpdatesSent = 0;
+
+    /** Number of call update requests merged into another update of the same call. */
+    private long mNumCallUpdatesMerged = 0;
+
+    /** Number of pending call updates discarded because their call was removed. */
+    private long mNumCallUpdatesDropped = 0;
+
     private final CallIdMapper mCallIdMapper = new CallIdMapper(Call::getId);
 
     private final Context mContext;
@@ -1242,6 +1310,74 @@ public class InCallController extends CallsManagerListenerBase implements
     private ArraySet<String> mActiveCarrierPrivilegedApps = new ArraySet<>();
     private FeatureFlags mFeatureFlags;
 
+    /**
+     * The InCallServices resolved for each user, used when the
+     * {@link FeatureFlags#cacheInCallServiceResolution()} flag is enabled.
+     */
+    private final InCallServiceResolutionCache mInCallServiceResolutionCache =
+            new InCallServiceResolutionCache();
+
+    /** A bind to the InCallServices of a user whose first call has not been sent yet. */
+    private static final class PendingBind {
+        final long mStartMillis;
+        /** Whether the bind was made ahead of a call, see {@link #prebindToServices}. */
+        final boolean mIsPrebind;
+
+        PendingBind(long startMillis, boolean isPrebind) {
+            mStartMillis = startMillis;
+            mIsPrebind = isPrebind;
+        }
+    }
+
+    /** Time from binding to the InCallServices until the first call was sent to them. */
+    private static final class BindLatencyStats {
+        long mCount = 0;
+        long mTotalMillis = 0;
+        long mMaxMillis = 0;
+
+        void add(long millis) {
+            mCount++;
+            mTotalMillis += millis;
+            mMaxMillis = Math.max(mMaxMillis, millis);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount + ", avg=" + (mCount == 0 ? 0 : mTotalMillis / mCount)
+                    + "ms, max=" + mMaxMillis + "ms";
+        }
+    }
+
+    /**
+     * The binds whose first call has not been sent yet, by user.  Only tracked when the
+     * {@link FeatureFlags#prebindInCallServices()} flag is enabled.
+     */
+    private final Map<UserHandle, PendingBind> mPendingBinds = new ArrayMap<>();
+
+    /**
+     * The scheduled checks which unbind the InCallServices of a user once they have been kept
+     * bound without calls for long enough, see {@link #keepBoundFor}.
+     */
+    private final Map<UserHandle, java.lang.Runnable> mKeepBoundRunnables = new ArrayMap<>();
+
+    /**
+     * The users in {@link #mKeepBoundRunnables} whose InCallServices are kept bound after their
+     * last call was removed, rather than ahead of a call by {@link #prebindToServices}.
+     */
+    private final Set<UserHandle> mWarmWindowUsers = new ArraySet<>();
+
+    private final BindLatencyStats mColdBindLatency = new BindLatencyStats();
+    private final BindLatencyStats mPrebindLatency = new BindLatencyStats();
+
+    /** Number of times the InCallServices were bound ahead of a call. */
+    private long mNumPrebinds = 0;
+
+    /** Number of binds ahead of a call which were unbound before a call was sent. */
+    private long mNumPrebindsUnused = 0;
+
+    /** Number of calls added while the InCallServices were kept bound without calls. */
+    private long mNumCallsAddedToWarmServices = 0;
+
     public InCallController(Context context, TelecomSystem.SyncRoot lock, CallsManager callsManager,
             SystemStateHelper systemStateHelper, DefaultDialerCache defaultDialerCache,
             Timeouts.Adapter timeoutsAdapter, EmergencyCallHelper emergencyCallHelper,
@@ -1263,6 +1399,21 @@ public class InCallController extends CallsManagerListenerBase implements
         userAddedFilter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY);
         mContext.registerReceiver(mUserAddedReceiver, userAddedFilter);
         mFeatureFlags = featureFlags;
+        if (mFeatureFlags.cacheInCallServiceResolution()) {
+            IntentFilter packageFilter = new IntentFilter();
+            packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            packageFilter.addDataScheme("package");
+            mContext.registerReceiverAsUser(mInCallServiceResolutionInvalidator, UserHandle.ALL,
+                    packageFilter, null, null);
+            IntentFilter userFilter = new IntentFilter();
+            userFilter.addAction(Intent.ACTION_USER_REMOVED);
+            userFilter.addAction(Intent.ACTION_USER_SWITCHED);
+            mContext.registerReceiverAsUser(mInCallServiceResolutionInvalidator, UserHandle.ALL,
+                    userFilter, null, null);
+        }
     }
 
     private void restrictPhoneCallOps() {
@@ -1350,6 +1501,10 @@ public class InCallController extends CallsManagerListenerBase implements
             InCallServiceConnection inCallServiceConnection =
                     mInCallServiceConnections.get(userFromCall);
 
+            if (cancelKeepBound(userFromCall)) {
+                mNumCallsAddedToWarmServices++;
+            }
+
             // We are bound, and we are connected.
             adjustServiceBindingsForEmergency(userFromCall);
 
@@ -1400,6 +1555,9 @@ public class InCallController extends CallsManagerListenerBase implements
                     }
                 }
                 Log.i(this, "Call added to components: %s", componentsUpdated);
+                if (!componentsUpdated.isEmpty()) {
+                    onFirstCallSent(userFromCall);
+                }
             }
         }
     }
@@ -1418,6 +1576,15 @@ public class InCallController extends CallsManagerListenerBase implements
                 ? callsAssociatedWithUserFromCall.count() == 0
                 : mCallsManager.getCalls().isEmpty();
         if (isCallCountZero) {
+            long unbindDelayMillis = mTimeoutsAdapter.getCallRemoveUnbindInCallServicesDelay(
+                    mContext.getContentResolver());
+            if (mFeatureFlags.prebindInCallServices()) {
+                // Keep the services bound in case another call follows soon; they are unbound by
+                // keepBoundFor once the window passes without a call.
+                keepBoundFor(userFromCall, Math.max(unbindDelayMillis,
+                        mTimeoutsAdapter.getInCallServiceWarmWindowMillis(
+                                mContext.getContentResolver())), true /* isWarmWindow */);
+            }
             /** Let's add a 2 second delay before we send unbind to the services to hopefully
              *  give them enough time to process all the pending messages.
              */
@@ -1431,14 +1598,18 @@ public class InCallController extends CallsManagerListenerBase implements
                             ? callsAssociatedWithUserFromCall.count() == 0
                             : mCallsManager.getCalls().isEmpty();
                     if (isCallCountZero) {
-                        unbindFromServices(userFromCall);
+                        if (!mFeatureFlags.prebindInCallServices()) {
+                            unbindFromServices(userFromCall);
+                        }
                         mEmergencyCallHelper.maybeRevokeTemporaryLocationPermission();
                     }
                 }
-            }.prepare(), mTimeoutsAdapter.getCallRemoveUnbindInCallServicesDelay(
-                    mContext.getContentResolver()));
+            }.prepare(), unbindDelayMillis);
         }
         call.removeListener(mCallListener);
+        if (mPendingCallUpdates.remove(call) != null) {
+            mNumCallUpdatesDropped++;
+        }
         mCallIdMapper.removeCall(call);
         if (mCallIdMapper.getCalls().isEmpty()) {
             mActiveCarrierPrivilegedApps.clear();
@@ -1848,6 +2019,8 @@ public class InCallController extends CallsManagerListenerBase implements
      */
     public void unbindFromServices(UserHandle userHandle) {
         Log.i(this, "Unbinding from services for user %s", userHandle);
+        cancelKeepBound(userHandle);
+        mPendingBinds.remove(userHandle);
         try {
             mContext.unregisterReceiver(mPackageChangedReceiver);
         } catch (IllegalArgumentException e) {
@@ -1932,7 +2105,12 @@ public class InCallController extends CallsManagerListenerBase implements
 
         // Actually try binding to the UI InCallService.
         if (inCallServiceConnection.connect(call) ==
-                InCallServiceConnection.CONNECTION_SUCCEEDED || call.isSelfManaged()) {
+                InCallServiceConnection.CONNECTION_SUCCEEDED
+                || (call != null && call.isSelfManaged())) {
+            if (mFeatureFlags.prebindInCallServices()) {
+                mPendingBinds.putIfAbsent(userFromCall,
+                        new PendingBind(mClockProxy.elapsedRealtime(), call == null));
+            }
             // Only connect to the non-ui InCallServices if we actually connected to the main UI
             // one, or if the call is self-managed (in which case we'd still want to keep Wear, BT,
             // etc. informed.
@@ -1951,6 +2129,100 @@ public class InCallController extends CallsManagerListenerBase implements
                 packageChangedFilter, null, null);
     }
 
+    /**
+     * Starts binding to the UI and non-UI InCallServices of the current user ahead of a call
+     * which is about to be placed or received, so that the call can be sent to them as soon as
+     * it is added.  If no call is added, the InCallServices are unbound again after
+     * {@link Timeouts#getInCallServicePrebindTimeoutMillis}.
+     *
+     * @param reason Why the InCallServices are bound, for logging.
+     */
+    public void prebindToServices(String reason) {
+        if (!mFeatureFlags.prebindInCallServices()) {
+            return;
+        }
+        UserHandle userHandle = mCallsManager.getCurrentUserHandle();
+        if (hasCallsForUser(userHandle)) {
+            // The services are bound, or will be, for the calls which exist already.
+            return;
+        }
+        keepBoundFor(userHandle, mTimeoutsAdapter.getInCallServicePrebindTimeoutMillis(
+                mContext.getContentResolver()), false /* isWarmWindow */);
+        if (isBoundAndConnectedToServices(userHandle)) {
+            Log.i(this, "prebindToServices: already bound for %s; reason=%s", userHandle, reason);
+            return;
+        }
+        Log.i(this, "prebindToServices: binding for %s; reason=%s", userHandle, reason);
+        mNumPrebinds++;
+        bindToServices(null);
+    }
+
+    /**
+     * Keeps the InCallServices of a user bound for a while when the user has no calls, replacing
+     * any earlier request to keep them bound.
+     *
+     * @param isWarmWindow {@code true} if the services are kept bound after the last call of the
+     *        user was removed, {@code false} if they are bound ahead of a call.
+     */
+    private void keepBoundFor(UserHandle userHandle, long delayMillis, boolean isWarmWindow) {
+        cancelKeepBound(userHandle);
+        java.lang.Runnable runnable = new Runnable("ICC.kBF", mLock) {
+            @Override
+            public void loggedRun() {
+                mKeepBoundRunnables.remove(userHandle);
+                mWarmWindowUsers.remove(userHandle);
+                if (hasCallsForUser(userHandle)
+                        || !mInCallServiceConnections.containsKey(userHandle)) {
+                    return;
+                }
+                PendingBind pendingBind = mPendingBinds.get(userHandle);
+                if (pendingBind != null && pendingBind.mIsPrebind) {
+                    mNumPrebindsUnused++;
+                }
+                unbindFromServices(userHandle);
+            }
+        }.prepare();
+        mKeepBoundRunnables.put(userHandle, runnable);
+        if (isWarmWindow) {
+            mWarmWindowUsers.add(userHandle);
+        }
+        mHandler.postDelayed(runnable, delayMillis);
+    }
+
+    /**
+     * @return {@code true} if the InCallServices of the user were being kept bound after their
+     *         last call was removed; {@code false} if they were not kept bound, or were bound
+     *         ahead of a call.
+     */
+    private boolean cancelKeepBound(UserHandle userHandle) {
+        java.lang.Runnable runnable = mKeepBoundRunnables.remove(userHandle);
+        boolean wasWarmWindow = mWarmWindowUsers.remove(userHandle);
+        if (runnable != null) {
+            mHandler.removeCallbacks(runnable);
+        }
+        return wasWarmWindow;
+    }
+
+    private boolean hasCallsForUser(UserHandle userHandle) {
+        return mFeatureFlags.associatedUserRefactorForWorkProfile()
+                ? mCallsManager.getCalls().stream()
+                        .anyMatch((c) -> getUserFromCall(c).equals(userHandle))
+                : !mCallsManager.getCalls().isEmpty();
+    }
+
+    /**
+     * Records the time from binding to the InCallServices of a user until the first call was
+     * sent to them.
+     */
+    private void onFirstCallSent(UserHandle userHandle) {
+        PendingBind pendingBind = mPendingBinds.remove(userHandle);
+        if (pendingBind == null) {
+            return;
+        }
+        long latencyMillis = mClockProxy.elapsedRealtime() - pendingBind.mStartMillis;
+        (pendingBind.mIsPrebind ? mPrebindLatency : mColdBindLatency).add(latencyMillis);
+    }
+
     private void updateNonUiInCallServices(Call call) {
         UserHandle userFromCall = getUserFromCall(call);
         UserHandle parentUser = null;
@@ -2125,13 +2397,6 @@ public class InCallController extends CallsManagerListenerBase implements
             int requestedType, boolean ignoreDisabled) {
         List<InCallServiceInfo> retval = new LinkedList<>();
 
-        Intent serviceIntent = new Intent(InCallService.SERVICE_INTERFACE);
-        if (packageName != null) {
-            serviceIntent.setPackage(packageName);
-        }
-        if (componentName != null) {
-            serviceIntent.setComponent(componentName);
-        }
         Log.i(this,
                 "getComponents, pkgname: " + packageName + " comp: " + componentName + " userid: "
                         + userHandle.getIdentifier() + " requestedType: " + requestedType);
@@ -2142,10 +2407,8 @@ public class InCallController extends CallsManagerListenerBase implements
                 userContext.getPackageManager() : packageManager;
 
 
-        for (ResolveInfo entry : packageManager.queryIntentServicesAsUser(
-                serviceIntent,
-                PackageManager.GET_META_DATA | PackageManager.MATCH_DISABLED_COMPONENTS,
-                userHandle.getIdentifier())) {
+        for (ResolveInfo entry : queryInCallServices(userHandle, packageName, componentName,
+                packageManager)) {
             ServiceInfo serviceInfo = entry.serviceInfo;
 
             if (serviceInfo != null) {
@@ -2193,6 +2456,41 @@ public class InCallController extends CallsManagerListenerBase implements
         return retval;
     }
 
+    /**
+     * Finds the InCallServices of a user, optionally limited to a package or component.  When the
+     * {@link FeatureFlags#cacheInCallServiceResolution()} flag is enabled, what the
+     * PackageManager returned is reused until packages or users change.  The checks made on each
+     * service by the caller are not cached.
+     */
+    private List<ResolveInfo> queryInCallServices(UserHandle userHandle, String packageName,
+            ComponentName componentName, PackageManager packageManager) {
+        int userId = userHandle.getIdentifier();
+        int generation = 0;
+        if (mFeatureFlags.cacheInCallServiceResolution()) {
+            List<ResolveInfo> cached = mInCallServiceResolutionCache.get(userId, packageName,
+                    componentName);
+            if (cached != null) {
+                return cached;
+            }
+            generation = mInCallServiceResolutionCache.getGeneration();
+        }
+
+        Intent serviceIntent = new Intent(InCallService.SERVICE_INTERFACE);
+        if (packageName != null) {
+            serviceIntent.setPackage(packageName);
+        }
+        if (componentName != null) {
+            serviceIntent.setComponent(componentName);
+        }
+        List<ResolveInfo> result = packageManager.queryIntentServicesAsUser(serviceIntent,
+                PackageManager.GET_META_DATA | PackageManager.MATCH_DISABLED_COMPONENTS, userId);
+        if (mFeatureFlags.cacheInCallServiceResolution()) {
+            result = mInCallServiceResolutionCache.put(userId, packageName, componentName,
+                    generation, result);
+        }
+        return result;
+    }
+
     private boolean isServiceEnabled(ComponentName componentName,
             ServiceInfo serviceInfo, PackageManager packageManager) {
         if (packageManager == null) {
@@ -2345,6 +2643,9 @@ public class InCallController extends CallsManagerListenerBase implements
         for (Call call : calls) {
             numCallsSent += sendCallToService(call, info, inCallService);
         }
+        if (numCallsSent > 0 && info.getType() != IN_CALL_SERVICE_TYPE_NON_UI) {
+            onFirstCallSent(userHandle);
+        }
         try {
             inCallService.onCallAudioStateChanged(mCallsManager.getAudioState());
             inCallService.onCanAddCallChanged(mCallsManager.canAddCall());
@@ -2434,10 +2735,94 @@ public class InCallController extends CallsManagerListenerBase implements
      */
     private void updateCall(Call call, boolean videoProviderChanged, boolean rttInfoChanged,
             String exceptPackageName) {
+        PendingCallUpdate pendingUpdate = mPendingCallUpdates.remove(call);
+        if (pendingUpdate != null) {
+            if (exceptPackageName == null) {
+                // This update supersedes the pending one.
+                videoProviderChanged |= pendingUpdate.mVideoProviderChanged;
+                rttInfoChanged |= pendingUpdate.mRttInfoChanged;
+                mNumCallUpdatesMerged++;
+            } else {
+                // The excepted package still needs the pending update.
+                sendCallUpdate(call, pendingUpdate.mVideoProviderChanged,
+                        pendingUpdate.mRttInfoChanged, null /* exceptPackageName */);
+            }
+        }
+        sendCallUpdate(call, videoProviderChanged, rttInfoChanged, exceptPackageName);
+    }
+
+    /**
+     * Informs the {@link InCallService} instances of the updated call information once any
+     * further changes made to the call in quick succession have been made.  Several requests for
+     * the same call are merged into a single update, which is sent after at most
+     * {@link #CALL_UPDATE_COALESCING_DELAY_MILLIS}, or earlier if the call is updated immediately
+     * (e.g. because its state changed) or another event is sent for the call.
+     *
+     * @param call The {@link Call}.
+     * @param videoProviderChanged {@code true} if the video provider changed.
+     * @param rttInfoChanged {@code true} if any information about the RTT session changed.
+     */
+    private void scheduleCallUpdate(Call call, boolean videoProviderChanged,
+            boolean rttInfoChanged) {
+        if (!mFeatureFlags.coalesceInCallServiceUpdates()) {
+            updateCall(call, videoProviderChanged, rttInfoChanged, null);
+            return;
+        }
+        PendingCallUpdate pendingUpdate = mPendingCallUpdates.get(call);
+        if (pendingUpdate != null) {
+            mNumCallUpdatesMerged++;
+        } else {
+            pendingUpdate = new PendingCallUpdate();
+            if (mPendingCallUpdates.isEmpty()) {
+                mHandler.postDelayed(new Runnable("ICC.fCU", mLock) {
+                    @Override
+                    public void loggedRun() {
+                        flushCallUpdates();
+                    }
+                }.prepare(), CALL_UPDATE_COALESCING_DELAY_MILLIS);
+            }
+            mPendingCallUpdates.put(call, pendingUpdate);
+        }
+        pendingUpdate.mVideoProviderChanged |= videoProviderChanged;
+        pendingUpdate.mRttInfoChanged |= rttInfoChanged;
+    }
+
+    private void scheduleCallUpdate(Call call) {
+        scheduleCallUpdate(call, false /* videoProviderChanged */, false /* rttInfoChanged */);
+    }
+
+    /**
+     * Sends the pending update of a call, if there is one, so that it is not reordered with an
+     * event which is about to be sent for the call.
+     */
+    private void flushCallUpdate(Call call) {
+        PendingCallUpdate pendingUpdate = mPendingCallUpdates.remove(call);
+        if (pendingUpdate != null) {
+            sendCallUpdate(call, pendingUpdate.mVideoProviderChanged,
+                    pendingUpdate.mRttInfoChanged, null /* exceptPackageName */);
+        }
+    }
+
+    private void flushCallUpdates() {
+        List<Map.Entry<Call, PendingCallUpdate>> pendingUpdates =
+                new ArrayList<>(mPendingCallUpdates.entrySet());
+        mPendingCallUpdates.clear();
+        for (Map.Entry<Call, PendingCallUpdate> entry : pendingUpdates) {
+            sendCallUpdate(entry.getKey(), entry.getValue().mVideoProviderChanged,
+                    entry.getValue().mRttInfoChanged, null /* exceptPackageName */);
+        }
+    }
+
+    private void sendCallUpdate(Call call, boolean videoProviderChanged, boolean rttInfoChanged,
+            String exceptPackageName) {
         UserHandle userFromCall = getUserFromCall(call);
         if (mInCallServices.containsKey(userFromCall)) {
             Log.i(this, "Sending updateCall %s", call);
+            mNumCallUpdatesSent++;
             List<ComponentName> componentsUpdated = new ArrayList<>();
+            ParcelableCall[] parcelableCallVariants =
+                    mFeatureFlags.shareParcelableCallAcrossServices()
+                            ? new ParcelableCall[NUM_PARCELABLE_CALL_VARIANTS] : null;
             for (Map.Entry<InCallServiceInfo, IInCallService> entry : mInCallServices.
                     get(userFromCall).entrySet()) {
                 InCallServiceInfo info = entry.getKey();
@@ -2460,10 +2845,10 @@ public class InCallController extends CallsManagerListenerBase implements
                     continue;
                 }
 
-                ParcelableCall parcelableCall = ParcelableCallUtils.toParcelableCall(
+                ParcelableCall parcelableCall = getParcelableCallVariant(
+                        parcelableCallVariants,
                         call,
                         videoProviderChanged /* includeVideoProvider */,
-                        mCallsManager.getPhoneAccountRegistrar(),
                         info.isExternalCallsSupported(),
                         rttInfoChanged && info.equals(
                                 mInCallServiceConnections.get(userFromCall).getInfo()),
@@ -2487,6 +2872,70 @@ public class InCallController extends CallsManagerListenerBase implements
         }
     }
 
+    /**
+     * Returns the {@link ParcelableCall} to send to an {@link InCallService} for a call update.
+     * Apart from the per-service sanitization done by {@link #sanitizeParcelableCallForService},
+     * the {@link ParcelableCall} only depends on the service through whether it supports external
+     * calls, whether it receives the RTT call and whether it is a system service, so services
+     * which agree on all three share the same instance.
+     *
+     * @param variants The variants already built for this update, or {@code null} to build a new
+     *                 {@link ParcelableCall} for every service.
+     */
+    private ParcelableCall getParcelableCallVariant(ParcelableCall[] variants, Call call,
+            boolean includeVideoProvider, boolean supportsExternalCalls, boolean includeRttCall,
+            boolean isForSystemInCallService) {
+        int variant = (supportsExternalCalls ? VARIANT_SUPPORTS_EXTERNAL_CALLS : 0)
+                | (includeRttCall ? VARIANT_INCLUDE_RTT_CALL : 0)
+                | (isForSystemInCallService ? VARIANT_SYSTEM_IN_CALL_SERVICE : 0);
+        if (variants != null && variants[variant] != null) {
+            mNumParcelableCallsReused++;
+            return variants[variant];
+        }
+        ParcelableCall parcelableCall = ParcelableCallUtils.toParcelableCall(
+                call,
+                includeVideoProvider,
+                mCallsManager.getPhoneAccountRegistrar(),
+                supportsExternalCalls,
+                includeRttCall,
+                isForSystemInCallService);
+        mNumParcelableCallsBuilt++;
+        if (variants != null) {
+            variants[variant] = parcelableCall;
+        }
+        return parcelableCall;
+    }
+
+    @VisibleForTesting
+    public long getNumParcelableCallsBuilt() {
+        return mNumParcelableCallsBuilt;
+    }
+
+    @VisibleForTesting
+    public long getNumParcelableCallsReused() {
+        return mNumParcelableCallsReused;
+    }
+
+    @VisibleForTesting
+    public long getNumCallUpdatesMerged() {
+        return mNumCallUpdatesMerged;
+    }
+
+    @VisibleForTesting
+    public long getNumCallUpdatesDropped() {
+        return mNumCallUpdatesDropped;
+    }
+
+    @VisibleForTesting
+    public long getNumPrebinds() {
+        return mNumPrebinds;
+    }
+
+    @VisibleForTesting
+    public long getNumCallsAddedToWarmServices() {
+        return mNumCallsAddedToWarmServices;
+    }
+
     /**
      * Adds the call to the list of calls tracked by the {@link InCallController}.
      * @param call The call to add.
@@ -2548,7 +2997,31 @@ public class InCallController extends CallsManagerListenerBase implements
         }
         pw.decreaseIndent();
 
+        pw.println("parcelableCallsBuilt: " + mNumParcelableCallsBuilt
+                + ", parcelableCallsReused: " + mNumParcelableCallsReused);
+        pw.println("callUpdatesSent: " + mNumCallUpdatesSent
+                + ", callUpdatesMerged: " + mNumCallUpdatesMerged
+                + ", callUpdatesDropped: " + mNumCallUpdatesDropped
+                + ", callUpdatesPending: " + mPendingCallUpdates.size());
+
         mCarModeTracker.dump(pw);
+
+        if (mFeatureFlags.cacheInCallServiceResolution()) {
+            pw.println("InCallServiceResolutionCache:");
+            pw.increaseIndent();
+            mInCallServiceResolutionCache.dump(pw);
+            pw.decreaseIndent();
+        }
+
+        if (mFeatureFlags.prebindInCallServices()) {
+            pw.println("prebinds: " + mNumPrebinds + ", prebindsUnused: " + mNumPrebindsUnused
+                    + ", callsAddedToWarmServices: " + mNumCallsAddedToWarmServices);
+            pw.println("bindToFirstAddCall:");
+            pw.increaseIndent();
+            pw.println("cold: " + mColdBindLatency);
+            pw.println("prebound: " + mPrebindLatency);
+            pw.decreaseIndent();
+        }
     }
 
     /**
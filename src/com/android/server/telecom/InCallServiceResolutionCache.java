@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.content.ComponentName;
+import android.content.pm.ResolveInfo;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Per-user record of the {@link android.telecom.InCallService}s which {@link InCallController}
+ * has found through {@link android.content.pm.PackageManager#queryIntentServicesAsUser}, so that
+ * binding to the InCallServices for a new call does not have to query the PackageManager again.
+ * <p>
+ * Only what the query returned is kept; it changes only when packages or users do, and
+ * {@link InCallController} clears the entries when they do.  The type of each InCallService, which
+ * depends on the default dialer, the car mode app and on permissions and app-ops such as
+ * {@code MANAGE_ONGOING_CALLS}, is worked out again every time the InCallServices are bound to,
+ * so that a revoked grant takes effect on the next bind.
+ */
+public class InCallServiceResolutionCache {
+    /** The arguments of one InCallService query. */
+    private static final class Query {
+        final String mPackageName;
+        final ComponentName mComponentName;
+
+        Query(String packageName, ComponentName componentName) {
+            mPackageName = packageName;
+            mComponentName = componentName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Query)) {
+                return false;
+            }
+            Query that = (Query) o;
+            return Objects.equals(mPackageName, that.mPackageName)
+                    && Objects.equals(mComponentName, that.mComponentName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mPackageName, mComponentName);
+        }
+    }
+
+    private final SparseArray<ArrayMap<Query, List<ResolveInfo>>> mUserEntries =
+            new SparseArray<>();
+    private long mNumHits = 0;
+    private long mNumMisses = 0;
+    private long mNumInvalidations = 0;
+    /** Incremented by {@link #invalidateAll}. */
+    private int mGeneration = 0;
+
+    /**
+     * Gets the result of an earlier query.
+     *
+     * @param userId The user the query is for.
+     * @param packageName The package the query was limited to, or {@code null}.
+     * @param componentName The component the query was limited to, or {@code null}.
+     * @return The services found by the earlier query, or {@code null} if the query has to be made
+     *         again.  The list must not be modified.
+     */
+    public synchronized List<ResolveInfo> get(int userId, String packageName,
+            ComponentName componentName) {
+        ArrayMap<Query, List<ResolveInfo>> entry = mUserEntries.get(userId);
+        List<ResolveInfo> result = entry == null ? null
+                : entry.get(new Query(packageName, componentName));
+        if (result == null) {
+            mNumMisses++;
+            return null;
+        }
+        mNumHits++;
+        return result;
+    }
+
+    /**
+     * Gets a value to pass to {@link #put}, read before a query is made so that a result which
+     * was found before an invalidation is not recorded after it.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Records the result of a query.  The arguments are as for {@link #get}.
+     *
+     * @param generation The {@link #getGeneration()} read before the query was made.
+     * @return The list to use in place of {@code result}, which must not be modified.
+     */
+    public synchronized List<ResolveInfo> put(int userId, String packageName,
+            ComponentName componentName, int generation, List<ResolveInfo> result) {
+        List<ResolveInfo> cached = Collections.unmodifiableList(new ArrayList<>(result));
+        if (generation != mGeneration) {
+            return cached;
+        }
+        ArrayMap<Query, List<ResolveInfo>> entry = mUserEntries.get(userId);
+        if (entry == null) {
+            entry = new ArrayMap<>();
+            mUserEntries.put(userId, entry);
+        }
+        entry.put(new Query(packageName, componentName), cached);
+        return cached;
+    }
+
+    /**
+     * Drops everything found for every user.
+     */
+    public synchronized void invalidateAll() {
+        mGeneration++;
+        if (mUserEntries.size() > 0) {
+            mUserEntries.clear();
+            mNumInvalidations++;
+        }
+    }
+
+    public synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("hits: " + mNumHits + ", misses: " + mNumMisses + ", invalidations: "
+                + mNumInvalidations);
+        for (int i = 0; i < mUserEntries.size(); i++) {
+            pw.println("user " + mUserEntries.keyAt(i) + ": queries: "
+                    + mUserEntries.valueAt(i).size());
+        }
+    }
+}
@@ -40,7 +40,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  * media resource file.
  * To use, create an instance using InCallTonePlayer.Factory (passing in the TONE_* constant for
  * the tone you want) and start() it. Implemented on top of {@link Thread} so that the tone plays in
- * its own thread.
+ * its own thread, unless the factory has a {@link TonePlaybackEngine}, in which case the tone is
+ * played on one of the engine's workers.
  */
 public class InCallTonePlayer extends Thread {
 
@@ -54,15 +55,29 @@ public class InCallTonePlayer extends Thread {
         private final ToneGeneratorFactory mToneGeneratorFactory;
         private final MediaPlayerFactory mMediaPlayerFactory;
         private final AudioManagerAdapter mAudioManagerAdapter;
+        private final TonePlaybackEngine mTonePlaybackEngine;
 
         public Factory(CallAudioRoutePeripheralAdapter callAudioRoutePeripheralAdapter,
                 TelecomSystem.SyncRoot lock, ToneGeneratorFactory toneGeneratorFactory,
                 MediaPlayerFactory mediaPlayerFactory, AudioManagerAdapter audioManagerAdapter) {
+            this(callAudioRoutePeripheralAdapter, lock, toneGeneratorFactory, mediaPlayerFactory,
+                    audioManagerAdapter, null /* tonePlaybackEngine */);
+        }
+
+        /**
+         * @param tonePlaybackEngine The engine to play tones on, or {@code null} to play each
+         *                           tone on its own thread.
+         */
+        public Factory(CallAudioRoutePeripheralAdapter callAudioRoutePeripheralAdapter,
+                TelecomSystem.SyncRoot lock, ToneGeneratorFactory toneGeneratorFactory,
+                MediaPlayerFactory mediaPlayerFactory, AudioManagerAdapter audioManagerAdapter,
+                @Nullable TonePlaybackEngine tonePlaybackEngine) {
             mCallAudioRoutePeripheralAdapter = callAudioRoutePeripheralAdapter;
             mLock = lock;
             mToneGeneratorFactory = toneGeneratorFactory;
             mMediaPlayerFactory = mediaPlayerFactory;
             mAudioManagerAdapter = audioManagerAdapter;
+            mTonePlaybackEngine = tonePlaybackEngine;
         }
 
         public void setCallAudioManager(CallAudioManager callAudioManager) {
@@ -72,7 +87,7 @@ public class InCallTonePlayer extends Thread {
         public InCallTonePlayer createPlayer(Call call, int tone) {
             return new InCallTonePlayer(call, tone, mCallAudioManager,
                     mCallAudioRoutePeripheralAdapter, mLock, mToneGeneratorFactory,
-                    mMediaPlayerFactory, mAudioManagerAdapter);
+                    mMediaPlayerFactory, mAudioManagerAdapter, mTonePlaybackEngine);
         }
     }
 
@@ -216,6 +231,7 @@ public class InCallTonePlayer extends Thread {
     private final ToneGeneratorFactory mToneGenerator;
     private final MediaPlayerFactory mMediaPlayerFactory;
     private final AudioManagerAdapter mAudioManagerAdapter;
+    private final TonePlaybackEngine mTonePlaybackEngine;
 
     /**
      * Latch used for awaiting on playback, which may be interrupted if the tone is stopped from
@@ -236,7 +252,8 @@ public class InCallTonePlayer extends Thread {
             TelecomSystem.SyncRoot lock,
             ToneGeneratorFactory toneGeneratorFactory,
             MediaPlayerFactory mediaPlayerFactor,
-            AudioManagerAdapter audioManagerAdapter) {
+            AudioManagerAdapter audioManagerAdapter,
+            TonePlaybackEngine tonePlaybackEngine) {
         mCall = call;
         mState = STATE_OFF;
         mToneId = toneId;
@@ -246,6 +263,7 @@ public class InCallTonePlayer extends Thread {
         mToneGenerator = toneGeneratorFactory;
         mMediaPlayerFactory = mediaPlayerFactor;
         mAudioManagerAdapter = audioManagerAdapter;
+        mTonePlaybackEngine = tonePlaybackEngine;
     }
 
     /** {@inheritDoc} */
@@ -400,7 +418,9 @@ public class InCallTonePlayer extends Thread {
             // If the ToneGenerator creation fails, just continue without it. It is a local audio
             // signal, and is not as important.
             try {
-                toneGenerator = mToneGenerator.get(stream, toneVolume);
+                toneGenerator = mTonePlaybackEngine != null
+                        ? mTonePlaybackEngine.acquireToneGenerator(stream, toneVolume)
+                        : mToneGenerator.get(stream, toneVolume);
             } catch (RuntimeException e) {
                 Log.w(this, "Failed to create ToneGenerator.", e);
                 return;
@@ -424,7 +444,11 @@ public class InCallTonePlayer extends Thread {
             mState = STATE_STOPPED;
         } finally {
             if (toneGenerator != null) {
-                toneGenerator.release();
+                if (mTonePlaybackEngine != null) {
+                    mTonePlaybackEngine.releaseToneGenerator(stream, toneVolume, toneGenerator);
+                } else {
+                    toneGenerator.release();
+                }
             }
         }
     }
@@ -442,7 +466,9 @@ public class InCallTonePlayer extends Thread {
                 .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
                 .setLegacyStreamType(stream)
                 .build();
-        mToneMediaPlayer = mMediaPlayerFactory.get(toneResourceId, attributes);
+        mToneMediaPlayer = mTonePlaybackEngine != null
+                ? mTonePlaybackEngine.acquireMediaTone(toneResourceId, stream, attributes)
+                : mMediaPlayerFactory.get(toneResourceId, attributes);
         mToneMediaPlayer.setLooping(false);
         int durationMillis = mToneMediaPlayer.getDuration();
         mToneMediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
@@ -489,7 +515,11 @@ public class InCallTonePlayer extends Thread {
             mSession = Log.createSubsession();
         }
 
-        super.start();
+        if (mTonePlaybackEngine != null) {
+            mTonePlaybackEngine.play(this);
+        } else {
+            super.start();
+        }
         return true;
     }
 
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records, for each place a lock is taken, how long callers wait for the lock and how long they
+ * hold it.  A call site is measured like this:
+ * <pre>
+ * try (LockContentionTracker.Section section = mLockContentionTracker.enter("TSI.iIC")) {
+ *     synchronized (mLock) {
+ *         section.acquired();
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * When the tracker is disabled, {@link #enter(String)} returns a shared section which records
+ * nothing.
+ */
+public class LockContentionTracker {
+    /** The time spent waiting for and holding a lock at one call site. */
+    public interface Section extends AutoCloseable {
+        /** Called once the lock has been taken. */
+        void acquired();
+
+        /** Called once the lock has been released. */
+        @Override
+        void close();
+    }
+
+    private static final Section NO_OP_SECTION = new Section() {
+        @Override
+        public void acquired() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /** Totals for one call site. */
+    @VisibleForTesting
+    public static class SiteStats {
+        final AtomicLong mCount = new AtomicLong(0);
+        final AtomicLong mTotalWaitNanos = new AtomicLong(0);
+        final AtomicLong mMaxWaitNanos = new AtomicLong(0);
+        final AtomicLong mTotalHoldNanos = new AtomicLong(0);
+        final AtomicLong mMaxHoldNanos = new AtomicLong(0);
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getTotalWaitNanos() {
+            return mTotalWaitNanos.get();
+        }
+
+        public long getTotalHoldNanos() {
+            return mTotalHoldNanos.get();
+        }
+    }
+
+    private final class TrackedSection implements Section {
+        private final SiteStats mStats;
+        private final long mRequestedNanos = System.nanoTime();
+        private long mAcquiredNanos = 0;
+
+        TrackedSection(SiteStats stats) {
+            mStats = stats;
+        }
+
+        @Override
+        public void acquired() {
+            mAcquiredNanos = System.nanoTime();
+            long waitNanos = mAcquiredNanos - mRequestedNanos;
+            mStats.mTotalWaitNanos.addAndGet(waitNanos);
+            mStats.mMaxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        }
+
+        @Override
+        public void close() {
+            if (mAcquiredNanos == 0) {
+                // The lock was never taken.
+                return;
+            }
+            long holdNanos = System.nanoTime() - mAcquiredNanos;
+            mStats.mCount.incrementAndGet();
+            mStats.mTotalHoldNanos.addAndGet(holdNanos);
+            mStats.mMaxHoldNanos.accumulateAndGet(holdNanos, Math::max);
+        }
+    }
+
+    private final boolean mIsEnabled;
+    private final ConcurrentHashMap<String, SiteStats> mSiteStats = new ConcurrentHashMap<>();
+
+    public LockContentionTracker(boolean isEnabled) {
+        mIsEnabled = isEnabled;
+    }
+
+    /**
+     * Starts measuring a wait for a lock.
+     *
+     * @param site A short name for the call site, in the style of a log session name.
+     */
+    public Section enter(String site) {
+        if (!mIsEnabled) {
+            return NO_OP_SECTION;
+        }
+        return new TrackedSection(mSiteStats.computeIfAbsent(site, s -> new SiteStats()));
+    }
+
+    @VisibleForTesting
+    public SiteStats getSiteStats(String site) {
+        return mSiteStats.get(site);
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        if (!mIsEnabled) {
+            pw.println("disabled");
+            return;
+        }
+        List<String> sites = new ArrayList<>(mSiteStats.keySet());
+        // Call sites which waited longest in total come first.
+        sites.sort((a, b) -> Long.compare(mSiteStats.get(b).mTotalWaitNanos.get(),
+                mSiteStats.get(a).mTotalWaitNanos.get()));
+        for (String site : sites) {
+            SiteStats stats = mSiteStats.get(site);
+            long count = Math.max(stats.mCount.get(), 1);
+            pw.println(site + ": count=" + stats.mCount.get()
+                    + ", wait avg/max=" + toMicros(stats.mTotalWaitNanos.get() / count) + "/"
+                    + toMicros(stats.mMaxWaitNanos.get()) + "us"
+                    + ", hold avg/max=" + toMicros(stats.mTotalHoldNanos.get() / count) + "/"
+                    + toMicros(stats.mMaxHoldNanos.get()) + "us");
+        }
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
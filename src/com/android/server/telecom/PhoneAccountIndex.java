@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.os.UserHandle;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.util.SparseArray;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Secondary indexes over the {@link PhoneAccount}s known to the {@link PhoneAccountRegistrar},
+ * used to narrow the accounts considered by a lookup before the registrar applies its full set
+ * of filters.
+ * <p>
+ * Accounts are indexed by handle, package name, user, supported URI scheme and capability bit.
+ * Each index entry lists the matching accounts in the same order as the registrar's account
+ * list, so candidates are always returned in the order of the list itself.  The registrar keeps
+ * the index up to date as it adds and removes accounts: an added account is appended to its
+ * entries, as it is to the list.  When the registrar sorts its list, only the entries which have
+ * gained accounts since the previous sort are sorted again; since the sort is stable, the order
+ * of the other entries does not change.
+ * <p>
+ * Changes to the index must not run concurrently with each other or with lookups; the registrar
+ * makes them under the write lock it changes its account list under.  Lookups may run
+ * concurrently with each other, under the read lock.
+ */
+public final class PhoneAccountIndex {
+    private static final int MULTI_USER_BIT =
+            Integer.numberOfTrailingZeros(PhoneAccount.CAPABILITY_MULTI_USER);
+
+    /** The registrar's account list; read only. */
+    private final List<PhoneAccount> mAccounts;
+    private final Map<PhoneAccountHandle, PhoneAccount> mByHandle = new HashMap<>();
+    private final Map<String, List<PhoneAccount>> mByPackage = new HashMap<>();
+    private final Map<UserHandle, List<PhoneAccount>> mByUser = new HashMap<>();
+    private final Map<String, List<PhoneAccount>> mByUriScheme = new HashMap<>();
+    /** Keyed by capability bit; only bits which some account has are present. */
+    private final SparseArray<List<PhoneAccount>> mByCapability = new SparseArray<>();
+    /** The entries which have gained accounts since they were last sorted. */
+    private final Set<List<PhoneAccount>> mUnsortedEntries =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    /**
+     * The position of each account in {@link #mAccounts}, used to merge entries; {@code null}
+     * until it is needed after an account is removed or the accounts are sorted.  Built by
+     * whichever lookup first needs it, so it is published with a volatile write.
+     */
+    private volatile IdentityHashMap<PhoneAccount, Integer> mPositions;
+
+    private PhoneAccountIndex(List<PhoneAccount> accounts) {
+        mAccounts = accounts;
+    }
+
+    /**
+     * Builds an index over the specified accounts.
+     * @param accounts The registrar's account list.  The index keeps a reference to it, and
+     *                 must be told of every change to it.
+     * @return the index.
+     */
+    public static PhoneAccountIndex build(List<PhoneAccount> accounts) {
+        PhoneAccountIndex index = new PhoneAccountIndex(accounts);
+        for (PhoneAccount account : accounts) {
+            index.addToEntries(account);
+        }
+        return index;
+    }
+
+    /**
+     * Indexes an account which was appended to the account list.
+     */
+    public void add(PhoneAccount account) {
+        addToEntries(account);
+        if (mPositions != null) {
+            mPositions.put(account, mAccounts.size() - 1);
+        }
+    }
+
+    /**
+     * Stops indexing an account which was removed from the account list.
+     */
+    public void remove(PhoneAccount account) {
+        PhoneAccountHandle handle = account.getAccountHandle();
+        String packageName = handle.getComponentName().getPackageName();
+        removeFromEntry(mByPackage, packageName, account);
+        removeFromEntry(mByUser, handle.getUserHandle(), account);
+        List<String> schemes = account.getSupportedUriSchemes();
+        for (String scheme : schemes == null ? List.<String>of() : schemes) {
+            removeFromEntry(mByUriScheme, scheme, account);
+        }
+        int capabilities = account.getCapabilities();
+        while (capabilities != 0) {
+            int bit = Integer.numberOfTrailingZeros(capabilities);
+            capabilities &= ~(1 << bit);
+            List<PhoneAccount> entry = mByCapability.get(bit);
+            if (entry != null && removeIdentical(entry, account) && entry.isEmpty()) {
+                mByCapability.remove(bit);
+                mUnsortedEntries.remove(entry);
+            }
+        }
+        if (mByHandle.get(handle) == account) {
+            mByHandle.remove(handle);
+            // Fall back to another account with the same handle, as a scan of the list would.
+            List<PhoneAccount> samePackage = mByPackage.get(packageName);
+            if (samePackage != null) {
+                for (PhoneAccount other : samePackage) {
+                    if (Objects.equals(handle, other.getAccountHandle())) {
+                        mByHandle.put(handle, other);
+                        break;
+                    }
+                }
+            }
+        }
+        mPositions = null;
+    }
+
+    /**
+     * Brings the index in line with the account list after it was sorted.
+     * @param comparator The comparator the account list was sorted with, using a stable sort.
+     */
+    public void sort(Comparator<PhoneAccount> comparator) {
+        if (mUnsortedEntries.isEmpty()) {
+            return;
+        }
+        for (List<PhoneAccount> entry : mUnsortedEntries) {
+            entry.sort(comparator);
+        }
+        mUnsortedEntries.clear();
+        mPositions = null;
+    }
+
+    /**
+     * @return the number of indexed accounts.
+     */
+    public int size() {
+        return mAccounts.size();
+    }
+
+    /**
+     * @param handle The handle of the account.
+     * @return the account with the specified handle, or {@code null} if there is none.
+     */
+    public PhoneAccount getAccount(PhoneAccountHandle handle) {
+        return mByHandle.get(handle);
+    }
+
+    /**
+     * Returns a superset of the accounts which match all of the specified criteria, in the order
+     * of the registrar's account list.  The most selective of the criteria is used; callers must
+     * still apply every filter to the returned accounts.
+     *
+     * @param capabilities Capabilities the accounts must all have; ignored if 0.
+     * @param uriScheme URI scheme the accounts must support; ignored if {@code null}.
+     * @param packageName Package the accounts must belong to; ignored if {@code null}.
+     * @param userHandle User the accounts must belong to, in addition to accounts with
+     *                   {@link PhoneAccount#CAPABILITY_MULTI_USER}; ignored if {@code null}.
+     * @return the candidate accounts.
+     */
+    public List<PhoneAccount> getCandidates(int capabilities, String uriScheme,
+            String packageName, UserHandle userHandle) {
+        List<PhoneAccount> best = mAccounts;
+        if (packageName != null) {
+            best = smallest(best, mByPackage.get(packageName));
+        }
+        if (uriScheme != null) {
+            best = smallest(best, mByUriScheme.get(uriScheme));
+        }
+        int remaining = capabilities;
+        while (remaining != 0) {
+            int bit = Integer.numberOfTrailingZeros(remaining);
+            remaining &= ~(1 << bit);
+            best = smallest(best, mByCapability.get(bit));
+        }
+        if (userHandle != null && !best.isEmpty()) {
+            List<PhoneAccount> multiUser = mByCapability.get(MULTI_USER_BIT,
+                    Collections.emptyList());
+            List<PhoneAccount> forUser = mByUser.getOrDefault(userHandle,
+                    Collections.emptyList());
+            if (forUser.size() + multiUser.size() < best.size()) {
+                return merge(forUser, multiUser);
+            }
+        }
+        return new ArrayList<>(best);
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("accounts: " + mAccounts.size() + ", packages: " + mByPackage.size()
+                + ", users: " + mByUser.size() + ", uriSchemes: " + mByUriScheme.size()
+                + ", unsortedEntries: " + mUnsortedEntries.size());
+    }
+
+    private void addToEntries(PhoneAccount account) {
+        PhoneAccountHandle handle = account.getAccountHandle();
+        // Keep the first of any duplicate handles, as a scan of the list would.
+        mByHandle.putIfAbsent(handle, account);
+        addToEntry(mByPackage, handle.getComponentName().getPackageName(), account);
+        addToEntry(mByUser, handle.getUserHandle(), account);
+        List<String> schemes = account.getSupportedUriSchemes();
+        for (String scheme : schemes == null ? List.<String>of() : schemes) {
+            List<PhoneAccount> entry = mByUriScheme.get(scheme);
+            // An account may list the same scheme more than once.
+            if (entry == null || entry.get(entry.size() - 1) != account) {
+                addToEntry(mByUriScheme, scheme, account);
+            }
+        }
+        int capabilities = account.getCapabilities();
+        while (capabilities != 0) {
+            int bit = Integer.numberOfTrailingZeros(capabilities);
+            capabilities &= ~(1 << bit);
+            List<PhoneAccount> entry = mByCapability.get(bit);
+            if (entry == null) {
+                entry = new ArrayList<>();
+                mByCapability.put(bit, entry);
+            }
+            entry.add(account);
+            mUnsortedEntries.add(entry);
+        }
+    }
+
+    private <K> void addToEntry(Map<K, List<PhoneAccount>> entries, K key,
+            PhoneAccount account) {
+        List<PhoneAccount> entry = entries.computeIfAbsent(key, k -> new ArrayList<>());
+        entry.add(account);
+        mUnsortedEntries.add(entry);
+    }
+
+    private <K> void removeFromEntry(Map<K, List<PhoneAccount>> entries, K key,
+            PhoneAccount account) {
+        List<PhoneAccount> entry = entries.get(key);
+        if (entry != null && removeIdentical(entry, account) && entry.isEmpty()) {
+            entries.remove(key);
+            mUnsortedEntries.remove(entry);
+        }
+    }
+
+    /**
+     * Merges two entries into a single list without duplicates, in the order of the account
+     * list.
+     */
+    private List<PhoneAccount> merge(List<PhoneAccount> a, List<PhoneAccount> b) {
+        if (b.isEmpty()) {
+            return new ArrayList<>(a);
+        }
+        IdentityHashMap<PhoneAccount, Integer> positions = getPositions();
+        List<PhoneAccount> merged = new ArrayList<>(a.size() + b.size());
+        int i = 0;
+        int j = 0;
+        while (i < a.size() || j < b.size()) {
+            if (j >= b.size()) {
+                merged.add(a.get(i++));
+            } else if (i >= a.size()) {
+                merged.add(b.get(j++));
+            } else {
+                int positionA = positions.get(a.get(i));
+                int positionB = positions.get(b.get(j));
+                if (positionA < positionB) {
+                    merged.add(a.get(i++));
+                } else if (positionB < positionA) {
+                    merged.add(b.get(j++));
+                } else {
+                    merged.add(a.get(i++));
+                    j++;
+                }
+            }
+        }
+        return merged;
+    }
+
+    private IdentityHashMap<PhoneAccount, Integer> getPositions() {
+        IdentityHashMap<PhoneAccount, Integer> positions = mPositions;
+        if (positions != null) {
+            return positions;
+        }
+        synchronized (this) {
+            if (mPositions == null) {
+                positions = new IdentityHashMap<>(mAccounts.size());
+                for (int i = 0; i < mAccounts.size(); i++) {
+                    positions.put(mAccounts.get(i), i);
+                }
+                mPositions = positions;
+            }
+            return mPositions;
+        }
+    }
+
+    private static List<PhoneAccount> smallest(List<PhoneAccount> current,
+            List<PhoneAccount> entry) {
+        if (entry == null) {
+            return Collections.emptyList();
+        }
+        return entry.size() < current.size() ? entry : current;
+    }
+
+    /**
+     * Removes an account from an entry; accounts are compared by identity, since distinct
+     * accounts in the list may be equal.
+     *
+     * @return {@code true} if the account was in the entry.
+     */
+    private static boolean removeIdentical(List<PhoneAccount> entry, PhoneAccount account) {
+        for (int i = entry.size() - 1; i >= 0; i--) {
+            if (entry.get(i) == account) {
+                entry.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -35,6 +35,8 @@ import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.UserHandle;
@@ -54,6 +56,7 @@ import android.text.TextUtils;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.EventLog;
+import android.util.Pair;
 import android.util.Xml;
 
 // TODO: Needed for move to system service: import com.android.internal.R;
@@ -61,6 +64,7 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.XmlUtils;
 import com.android.modules.utils.ModifiedUtf8;
+import com.android.server.telecom.flags.FeatureFlags;
 import com.android.server.telecom.flags.Flags;
 
 import org.xmlpull.v1.XmlPullParser;
@@ -78,6 +82,7 @@ import java.lang.Integer;
 import java.lang.SecurityException;
 import java.lang.String;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -87,6 +92,10 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -144,6 +153,7 @@ public class PhoneAccountRegistrar {
             try {
                 synchronized (mLock) {
                     if (intent.getAction().equals(Intent.ACTION_MANAGED_PROFILE_REMOVED)) {
+                        invalidateResolveComponentCache(null);
                         cleanupOrphanedPhoneAccounts();
                     }
                 }
@@ -153,7 +163,47 @@ public class PhoneAccountRegistrar {
         }
     };
 
+    /**
+     * Receiver for package changes which may change how a {@link ConnectionService} component
+     * resolves, used to invalidate the {@link #resolveComponent} cache.
+     */
+    private final BroadcastReceiver mPackageChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.startSession("PARpR.oR");
+            try {
+                Uri data = intent.getData();
+                invalidateResolveComponentCache(data == null ? null : data.getSchemeSpecificPart());
+            } finally {
+                Log.endSession();
+            }
+        }
+    };
+
+    /**
+     * Receiver for device shutdown, used to flush any state which has not yet been persisted.
+     */
+    private final BroadcastReceiver mShutdownReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.startSession("PARsR.oR");
+            try {
+                flushPendingWrites();
+            } finally {
+                Log.endSession();
+            }
+        }
+    };
+
     public static final String FILE_NAME = "phone-account-registrar-state.xml";
+    /** Suffix of the binary state file, which replaces the ".xml" suffix of the XML file. */
+    public static final String BINARY_FILE_SUFFIX = ".pb";
+    /**
+     * How long to wait after a change before persisting the state, so that a burst of changes
+     * (e.g. an app registering several accounts) is written once.
+     */
+    @VisibleForTesting
+    public static final long WRITE_DELAY_MILLIS = 500;
     public static final String ICON_ERROR_MSG =
             "Icon cannot be written to memory. Try compressing or downsizing";
     @VisibleForTesting
@@ -168,6 +218,11 @@ public class PhoneAccountRegistrar {
 
     private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
     private final AtomicFile mAtomicFile;
+    /**
+     * File the state is stored in using {@link PhoneAccountStateBinarySerializer}; {@code null}
+     * when the state is stored as XML.  While it is in use, the XML file is no longer written.
+     */
+    private final AtomicFile mBinaryAtomicFile;
     private final Context mContext;
     private final UserManager mUserManager;
     private final TelephonyManager mTelephonyManager;
@@ -175,28 +230,77 @@ public class PhoneAccountRegistrar {
     private final DefaultDialerCache mDefaultDialerCache;
     private final AppLabelProxy mAppLabelProxy;
     private final TelecomSystem.SyncRoot mLock;
+    private final FeatureFlags mFeatureFlags;
     private State mState;
-    private UserHandle mCurrentUserHandle;
-    private String mTestPhoneAccountPackageNameFilter;
+    /** Incremented whenever accounts are added to or removed from {@link State#accounts}. */
+    private final AtomicLong mAccountsGeneration = new AtomicLong(0);
+    /**
+     * Guards {@link #mAccountIndex}.  The write lock is held while accounts are added to,
+     * removed from or sorted in {@link State#accounts}, so that the index follows the list;
+     * lookups hold the read lock.  Together with the concurrent collections in {@link State},
+     * this lets the methods which only read the accounts be called without the Telecom lock.
+     */
+    private final ReentrantReadWriteLock mAccountsLock = new ReentrantReadWriteLock();
+    /** Index over {@link State#accounts}; {@code null} until it is first used. */
+    private PhoneAccountIndex mAccountIndex;
+    /** Number of times {@link #mAccountIndex} was built from the whole account list. */
+    private int mNumAccountIndexBuilds = 0;
+    /**
+     * Cache of {@link #resolveComponent} results, keyed by component and user.  Invalidated when
+     * a package is added, removed or changed.
+     */
+    private final Map<Pair<ComponentName, UserHandle>, List<ResolveInfo>> mResolveComponentCache =
+            new ConcurrentHashMap<>();
+    /** Incremented on every invalidation so that in-flight lookups do not cache stale results. */
+    private final AtomicLong mResolveComponentCacheGeneration = new AtomicLong(0);
+    private final AtomicLong mResolveComponentCacheHits = new AtomicLong(0);
+    private final AtomicLong mResolveComponentCacheMisses = new AtomicLong(0);
+    private final AtomicLong mResolveComponentMissNanos = new AtomicLong(0);
+    private volatile UserHandle mCurrentUserHandle;
+    private volatile String mTestPhoneAccountPackageNameFilter;
     private interface PhoneAccountRegistrarWriteLock {}
     private final PhoneAccountRegistrarWriteLock mWriteLock =
             new PhoneAccountRegistrarWriteLock() {};
+    /** Handler used to persist the state when writes are coalesced; {@code null} otherwise. */
+    private Handler mWriteHandler;
+    /** {@code true} while a change to the state has not yet been persisted. */
+    private final AtomicBoolean mWritePending = new AtomicBoolean(false);
+    /** The {@link #mAccountsGeneration} the accounts were last sorted at. */
+    private long mSortedAccountsGeneration = -1;
+    private final AtomicLong mNumWriteRequests = new AtomicLong(0);
+    private final AtomicLong mNumStateWrites = new AtomicLong(0);
+    private final Runnable mWriteRunnable = () -> {
+        Log.startSession("PAR.wPS");
+        try {
+            writePendingState();
+        } finally {
+            Log.endSession();
+        }
+    };
 
     @VisibleForTesting
     public PhoneAccountRegistrar(Context context, TelecomSystem.SyncRoot lock,
-            DefaultDialerCache defaultDialerCache, AppLabelProxy appLabelProxy) {
-        this(context, lock, FILE_NAME, defaultDialerCache, appLabelProxy);
+            DefaultDialerCache defaultDialerCache, AppLabelProxy appLabelProxy,
+            FeatureFlags featureFlags) {
+        this(context, lock, FILE_NAME, defaultDialerCache, appLabelProxy, featureFlags);
     }
 
     @VisibleForTesting
     public PhoneAccountRegistrar(Context context, TelecomSystem.SyncRoot lock, String fileName,
-            DefaultDialerCache defaultDialerCache, AppLabelProxy appLabelProxy) {
+            DefaultDialerCache defaultDialerCache, AppLabelProxy appLabelProxy,
+            FeatureFlags featureFlags) {
 
         mAtomicFile = new AtomicFile(new File(context.getFilesDir(), fileName));
+        String baseName = fileName.endsWith(".xml")
+                ? fileName.substring(0, fileName.length() - ".xml".length()) : fileName;
+        AtomicFile binaryAtomicFile =
+                new AtomicFile(new File(context.getFilesDir(), baseName + BINARY_FILE_SUFFIX));
+        mBinaryAtomicFile = featureFlags.binaryPhoneAccountStorage() ? binaryAtomicFile : null;
 
         mState = new State();
         mContext = context;
         mLock = lock;
+        mFeatureFlags = featureFlags;
         mUserManager = UserManager.get(context);
         mDefaultDialerCache = defaultDialerCache;
         mSubscriptionManager = SubscriptionManager.from(mContext);
@@ -209,7 +313,26 @@ public class PhoneAccountRegistrar {
         intentFilter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY);
         mContext.registerReceiver(mManagedProfileReceiver, intentFilter);
 
-        read();
+        if (mFeatureFlags.coalescePhoneAccountWrites()) {
+            HandlerThread writeThread = new HandlerThread("PhoneAccountRegistrarWriter");
+            writeThread.start();
+            mWriteHandler = new Handler(writeThread.getLooper());
+            mContext.registerReceiver(mShutdownReceiver,
+                    new IntentFilter(Intent.ACTION_SHUTDOWN));
+        }
+
+        if (mFeatureFlags.cacheResolveComponent()) {
+            IntentFilter packageIntentFilter = new IntentFilter();
+            packageIntentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            packageIntentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            packageIntentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            packageIntentFilter.addDataScheme("package");
+            packageIntentFilter.setPriority(IntentFilter.SYSTEM_HIGH_PRIORITY);
+            mContext.registerReceiverAsUser(mPackageChangedReceiver, UserHandle.ALL,
+                    packageIntentFilter, null, null);
+        }
+
+        read(binaryAtomicFile);
     }
 
     /**
@@ -656,6 +779,8 @@ public class PhoneAccountRegistrar {
         }
         Log.d(this, "setCurrentUserHandle, %s", userHandle);
         mCurrentUserHandle = userHandle;
+        // Make sure that changes made by the previous user are durable.
+        flushPendingWrites();
     }
 
     /**
@@ -740,18 +865,69 @@ public class PhoneAccountRegistrar {
 
     private List<ResolveInfo> resolveComponent(ComponentName componentName,
             UserHandle userHandle) {
-        PackageManager pm = mContext.getPackageManager();
-        Intent intent = new Intent(ConnectionService.SERVICE_INTERFACE);
-        intent.setComponent(componentName);
-        try {
-            if (userHandle != null) {
-                return pm.queryIntentServicesAsUser(intent, 0, userHandle.getIdentifier());
-            } else {
-                return pm.queryIntentServices(intent, 0);
+        if (!mFeatureFlags.cacheResolveComponent()) {
+            try {
+                return queryConnectionService(componentName, userHandle);
+            } catch (SecurityException e) {
+                Log.e(this, e, "%s is not visible for the calling user", componentName);
+                return Collections.EMPTY_LIST;
             }
+        }
+
+        Pair<ComponentName, UserHandle> key = new Pair<>(componentName, userHandle);
+        List<ResolveInfo> resolveInfos = mResolveComponentCache.get(key);
+        if (resolveInfos != null) {
+            mResolveComponentCacheHits.incrementAndGet();
+            return resolveInfos;
+        }
+
+        long generation = mResolveComponentCacheGeneration.get();
+        long startNanos = System.nanoTime();
+        try {
+            resolveInfos = Collections.unmodifiableList(
+                    queryConnectionService(componentName, userHandle));
         } catch (SecurityException e) {
+            // Not cached; the calling user may change.
             Log.e(this, e, "%s is not visible for the calling user", componentName);
             return Collections.EMPTY_LIST;
+        } finally {
+            mResolveComponentCacheMisses.incrementAndGet();
+            mResolveComponentMissNanos.addAndGet(System.nanoTime() - startNanos);
+        }
+        mResolveComponentCache.put(key, resolveInfos);
+        if (generation != mResolveComponentCacheGeneration.get()) {
+            // The cache was invalidated while the component was being resolved, so the result
+            // may already be stale.
+            mResolveComponentCache.remove(key);
+        }
+        return resolveInfos;
+    }
+
+    private List<ResolveInfo> queryConnectionService(ComponentName componentName,
+            UserHandle userHandle) {
+        PackageManager pm = mContext.getPackageManager();
+        Intent intent = new Intent(ConnectionService.SERVICE_INTERFACE);
+        intent.setComponent(componentName);
+        if (userHandle != null) {
+            return pm.queryIntentServicesAsUser(intent, 0, userHandle.getIdentifier());
+        } else {
+            return pm.queryIntentServices(intent, 0);
+        }
+    }
+
+    /**
+     * Removes cached {@link #resolveComponent} results.
+     *
+     * @param packageName The package whose components should be removed, or {@code null} to
+     *                    remove all components.
+     */
+    private void invalidateResolveComponentCache(String packageName) {
+        mResolveComponentCacheGeneration.incrementAndGet();
+        if (packageName == null) {
+            mResolveComponentCache.clear();
+        } else {
+            mResolveComponentCache.keySet().removeIf(
+                    key -> packageName.equals(key.first.getPackageName()));
         }
     }
 
@@ -1112,7 +1288,7 @@ public class PhoneAccountRegistrar {
         PhoneAccount oldAccount = getPhoneAccountUnchecked(account.getAccountHandle());
         if (oldAccount != null) {
             enforceSelfManagedAccountUnmodified(account, oldAccount);
-            mState.accounts.remove(oldAccount);
+            removeAccount(oldAccount);
             isEnabled = oldAccount.isEnabled();
             Log.i(this, "Modify account: %s", getAccountDiffString(account, oldAccount));
             isNewAccount = false;
@@ -1142,7 +1318,7 @@ public class PhoneAccountRegistrar {
                     .build();
         }
 
-        mState.accounts.add(account);
+        addAccount(account);
         // Set defaults and replace based on the group Id.
         maybeReplaceOldAccount(account);
         // Reset enabled state to whatever the value was if the account was already registered,
@@ -1167,7 +1343,7 @@ public class PhoneAccountRegistrar {
     public void unregisterPhoneAccount(PhoneAccountHandle accountHandle) {
         PhoneAccount account = getPhoneAccountUnchecked(accountHandle);
         if (account != null) {
-            if (mState.accounts.remove(account)) {
+            if (removeAccount(account)) {
                 write();
                 fireAccountsChanged();
                 fireAccountUnRegistered(accountHandle);
@@ -1206,7 +1382,7 @@ public class PhoneAccountRegistrar {
             if (Objects.equals(packageName, handle.getComponentName().getPackageName())
                     && Objects.equals(userHandle, handle.getUserHandle())) {
                 Log.i(this, "Removing phone account " + phoneAccount.getLabel());
-                mState.accounts.remove(phoneAccount);
+                removeAccount(phoneAccount);
                 accountsRemoved = true;
             }
         }
@@ -1450,6 +1626,9 @@ public class PhoneAccountRegistrar {
      * @return The corresponding phone account if one exists.
      */
     public PhoneAccount getPhoneAccountUnchecked(PhoneAccountHandle handle) {
+        if (mFeatureFlags.indexedPhoneAccountLookup()) {
+            return readAccountIndex(index -> index.getAccount(handle));
+        }
         for (PhoneAccount m : mState.accounts) {
             if (Objects.equals(handle, m.getAccountHandle())) {
                 return m;
@@ -1543,8 +1722,17 @@ public class PhoneAccountRegistrar {
             boolean includeDisabledAccounts,
             UserHandle userHandle,
             boolean crossUserAccess) {
-        List<PhoneAccount> accounts = new ArrayList<>(mState.accounts.size());
-        for (PhoneAccount m : mState.accounts) {
+        List<PhoneAccount> candidates = mState.accounts;
+        if (mFeatureFlags.indexedPhoneAccountLookup()) {
+            // Narrow the accounts considered using the index; every filter below is still
+            // applied to the candidates.
+            UserHandle candidateUserHandle =
+                    crossUserAccess || mCurrentUserHandle == null ? null : userHandle;
+            candidates = readAccountIndex(index -> index.getCandidates(capabilities, uriScheme,
+                    packageName, candidateUserHandle));
+        }
+        List<PhoneAccount> accounts = new ArrayList<>(candidates.size());
+        for (PhoneAccount m : candidates) {
             if (!(m.isEnabled() || includeDisabledAccounts)) {
                 // Do not include disabled accounts.
                 continue;
@@ -1586,6 +1774,96 @@ public class PhoneAccountRegistrar {
         return accounts;
     }
 
+    /**
+     * Appends an account to {@link State#accounts}, and adds it to the index if there is one.
+     */
+    private void addAccount(PhoneAccount account) {
+        mAccountsLock.writeLock().lock();
+        try {
+            mState.accounts.add(account);
+            if (mAccountIndex != null) {
+                mAccountIndex.add(account);
+            }
+        } finally {
+            mAccountsLock.writeLock().unlock();
+        }
+        mAccountsGeneration.incrementAndGet();
+    }
+
+    /**
+     * Removes an account from {@link State#accounts}, and from the index if there is one.
+     *
+     * @return {@code true} if the account was registered.
+     */
+    private boolean removeAccount(PhoneAccount account) {
+        mAccountsLock.writeLock().lock();
+        try {
+            if (!mState.accounts.remove(account)) {
+                return false;
+            }
+            if (mAccountIndex != null) {
+                mAccountIndex.remove(account);
+            }
+        } finally {
+            mAccountsLock.writeLock().unlock();
+        }
+        mAccountsGeneration.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes several accounts from {@link State#accounts}.  This only happens when the state is
+     * cleaned up, so the index is simply built again when it is next used.
+     */
+    private boolean removeAccounts(Collection<PhoneAccount> accounts) {
+        mAccountsLock.writeLock().lock();
+        try {
+            if (!mState.accounts.removeAll(accounts)) {
+                return false;
+            }
+            mAccountIndex = null;
+        } finally {
+            mAccountsLock.writeLock().unlock();
+        }
+        mAccountsGeneration.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Looks up accounts in the {@link PhoneAccountIndex}, building the index first if it is not
+     * yet in use.
+     */
+    private <T> T readAccountIndex(Function<PhoneAccountIndex, T> lookup) {
+        mAccountsLock.readLock().lock();
+        try {
+            if (mAccountIndex != null) {
+                return lookup.apply(mAccountIndex);
+            }
+        } finally {
+            mAccountsLock.readLock().unlock();
+        }
+        mAccountsLock.writeLock().lock();
+        try {
+            if (mAccountIndex == null) {
+                mAccountIndex = PhoneAccountIndex.build(mState.accounts);
+                mNumAccountIndexBuilds++;
+            }
+            return lookup.apply(mAccountIndex);
+        } finally {
+            mAccountsLock.writeLock().unlock();
+        }
+    }
+
+    @VisibleForTesting
+    public int getNumAccountIndexBuilds() {
+        mAccountsLock.readLock().lock();
+        try {
+            return mNumAccountIndexBuilds;
+        } finally {
+            mAccountsLock.readLock().unlock();
+        }
+    }
+
     /**
      * Clean up the orphan {@code PhoneAccount}. An orphan {@code PhoneAccount} is a phone
      * account that does not have a {@code UserHandle} or belongs to a deleted package.
@@ -1613,7 +1891,7 @@ public class PhoneAccountRegistrar {
             }
         }
 
-        mState.accounts.removeAll(badAccountsList);
+        removeAccounts(badAccountsList);
 
         return badAccountsList.size();
     }
@@ -1710,6 +1988,31 @@ public class PhoneAccountRegistrar {
             pw.increaseIndent();
             pw.println("test emergency PhoneAccount filter: " + mTestPhoneAccountPackageNameFilter);
             pw.decreaseIndent();
+            if (mWriteHandler != null) {
+                pw.println("stateWrites: requested=" + mNumWriteRequests.get()
+                        + ", written=" + mNumStateWrites.get()
+                        + ", pending=" + mWritePending.get());
+            }
+            if (mFeatureFlags.cacheResolveComponent()) {
+                long hits = mResolveComponentCacheHits.get();
+                long misses = mResolveComponentCacheMisses.get();
+                long avgMissNanos = misses == 0 ? 0 : mResolveComponentMissNanos.get() / misses;
+                pw.println("resolveComponentCache: size=" + mResolveComponentCache.size()
+                        + ", hits=" + hits + ", misses=" + misses
+                        + ", hitRate=" + (hits + misses == 0 ? 0 : hits * 100 / (hits + misses))
+                        + "%, avgMissMicros=" + avgMissNanos / 1000
+                        + ", estimatedSavedMillis=" + hits * avgMissNanos / 1000000);
+            }
+            if (mFeatureFlags.indexedPhoneAccountLookup()) {
+                pw.println("accountIndex:");
+                pw.increaseIndent();
+                readAccountIndex(index -> {
+                    index.dump(pw);
+                    pw.println("builds: " + mNumAccountIndexBuilds);
+                    return null;
+                });
+                pw.decreaseIndent();
+            }
         }
     }
 
@@ -1755,7 +2058,17 @@ public class PhoneAccountRegistrar {
             };
 
             // Sort the phone accounts.
-            mState.accounts.sort(bySimCapability.thenComparing(bySortOrder.thenComparing(byLabel)));
+            Comparator<PhoneAccount> comparator =
+                    bySimCapability.thenComparing(bySortOrder.thenComparing(byLabel));
+            mAccountsLock.writeLock().lock();
+            try {
+                mState.accounts.sort(comparator);
+                if (mAccountIndex != null) {
+                    mAccountIndex.sort(comparator);
+                }
+            } finally {
+                mAccountsLock.writeLock().unlock();
+            }
         }
     }
 
@@ -1765,38 +2078,148 @@ public class PhoneAccountRegistrar {
     //
 
     private class AsyncXmlWriter extends AsyncTask<ByteArrayOutputStream, Void, Void> {
+        /**
+         * @param args The state, serialized for {@link #getStateFile()}.
+         */
         @Override
         public Void doInBackground(ByteArrayOutputStream... args) {
-            final ByteArrayOutputStream buffer = args[0];
-            FileOutputStream fileOutput = null;
-            try {
-                synchronized (mWriteLock) {
-                    fileOutput = mAtomicFile.startWrite();
-                    buffer.writeTo(fileOutput);
-                    mAtomicFile.finishWrite(fileOutput);
-                }
-            } catch (IOException e) {
-                Log.e(this, e, "Writing state to XML file");
-                mAtomicFile.failWrite(fileOutput);
+            synchronized (mWriteLock) {
+                writeStateFile(getStateFile(), args[0]);
             }
             return null;
         }
     }
 
+    /**
+     * Persists the state.  When writes are coalesced, the accounts are sorted immediately but the
+     * state is serialized and written on {@link #mWriteHandler} after {@link #WRITE_DELAY_MILLIS};
+     * further changes in the meantime are included in the same write.
+     */
     private void write() {
+        if (mWriteHandler != null) {
+            mNumWriteRequests.incrementAndGet();
+            // Enabling an account or changing the default doesn't affect the sort order.
+            if (mSortedAccountsGeneration != mAccountsGeneration.get()) {
+                sortPhoneAccounts();
+                mSortedAccountsGeneration = mAccountsGeneration.get();
+            }
+            if (!mWritePending.getAndSet(true)) {
+                mWriteHandler.postDelayed(mWriteRunnable, WRITE_DELAY_MILLIS);
+            }
+            return;
+        }
         try {
             sortPhoneAccounts();
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            new AsyncXmlWriter().execute(serializeState(mBinaryAtomicFile != null));
+        } catch (IOException e) {
+            Log.e(this, e, "Writing state to buffer");
+        }
+    }
+
+    /**
+     * @return the file the state is persisted to: {@link #mBinaryAtomicFile} while the binary
+     * format is in use, or else the XML file.
+     */
+    private AtomicFile getStateFile() {
+        return mBinaryAtomicFile != null ? mBinaryAtomicFile : mAtomicFile;
+    }
+
+    /**
+     * Serializes the state as XML, or in the binary format of {@link #mBinaryAtomicFile}.
+     */
+    private ByteArrayOutputStream serializeState(boolean binary) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        if (binary) {
+            PhoneAccountStateBinarySerializer.writeState(mState, EXPECTED_STATE_VERSION, os,
+                    mContext);
+        } else {
             XmlSerializer serializer = Xml.resolveSerializer(os);
             writeToXml(mState, serializer, mContext);
             serializer.flush();
-            new AsyncXmlWriter().execute(os);
+        }
+        return os;
+    }
+
+    /**
+     * Replaces the contents of a state file.  Must be called with {@link #mWriteLock} held.
+     *
+     * @return {@code true} if the file was written.
+     */
+    private boolean writeStateFile(AtomicFile stateFile, ByteArrayOutputStream buffer) {
+        FileOutputStream fileOutput = null;
+        try {
+            fileOutput = stateFile.startWrite();
+            buffer.writeTo(fileOutput);
+            stateFile.finishWrite(fileOutput);
+            return true;
         } catch (IOException e) {
-            Log.e(this, e, "Writing state to XML buffer");
+            Log.e(this, e, "Writing state to file");
+            if (fileOutput != null) {
+                stateFile.failWrite(fileOutput);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Serializes and writes the state if a write is pending.  The state is read without holding
+     * the telecom lock; any change made while it is serialized schedules another write.
+     */
+    private void writePendingState() {
+        synchronized (mWriteLock) {
+            if (!mWritePending.getAndSet(false)) {
+                return;
+            }
+            try {
+                if (writeStateFile(getStateFile(), serializeState(mBinaryAtomicFile != null))) {
+                    mNumStateWrites.incrementAndGet();
+                }
+            } catch (IOException e) {
+                Log.e(this, e, "Writing state to buffer");
+            }
+        }
+    }
+
+    /**
+     * Synchronously writes any state changes which have not yet been persisted.  Called before
+     * the device shuts down or the user switches.
+     */
+    public void flushPendingWrites() {
+        if (mWriteHandler == null) {
+            return;
         }
+        mWriteHandler.removeCallbacks(mWriteRunnable);
+        writePendingState();
     }
 
-    private void read() {
+    @VisibleForTesting
+    public Handler getWriteHandler() {
+        return mWriteHandler;
+    }
+
+    @VisibleForTesting
+    public long getNumStateWrites() {
+        return mNumStateWrites.get();
+    }
+
+    /**
+     * Reads the state.  The binary state is read in preference to the XML state; if the binary
+     * format is no longer in use, the binary state is migrated back to XML first.
+     *
+     * @param binaryAtomicFile The file the state is stored in using the binary format, whether
+     *                         or not the format is in use.
+     */
+    private void read(AtomicFile binaryAtomicFile) {
+        if (mBinaryAtomicFile != null && readBinary()) {
+            return;
+        }
+        if (mBinaryAtomicFile == null && binaryAtomicFile.exists()) {
+            // The XML state was not kept current while the binary format was in use.
+            if (migrateBinaryStateToXml(binaryAtomicFile)) {
+                return;
+            }
+        }
+
         final InputStream is;
         try {
             is = mAtomicFile.openRead();
@@ -1824,6 +2247,78 @@ public class PhoneAccountRegistrar {
             }
         }
 
+        boolean accountsRemoved = removeAccountsWithoutUser();
+
+        // If an upgrade occurred, write out the changed data.  When the state is stored in the
+        // binary format, this also migrates the XML state to it.
+        if (versionChanged || accountsRemoved || mBinaryAtomicFile != null) {
+            write();
+        }
+    }
+
+    /**
+     * Reads the state from {@link #mBinaryAtomicFile}.
+     *
+     * @return {@code true} if the state was read, {@code false} if the file does not exist or
+     * could not be read, in which case the state should be read from XML instead.
+     */
+    private boolean readBinary() {
+        if (!mBinaryAtomicFile.exists() || !readBinary(mBinaryAtomicFile)) {
+            return false;
+        }
+        if (removeAccountsWithoutUser()) {
+            write();
+        }
+        return true;
+    }
+
+    private boolean readBinary(AtomicFile binaryAtomicFile) {
+        try {
+            mState = PhoneAccountStateBinarySerializer.readState(binaryAtomicFile.readFully(),
+                    EXPECTED_STATE_VERSION, mContext);
+        } catch (IOException e) {
+            Log.e(this, e, "Reading state from binary file");
+            mState = new State();
+            return false;
+        }
+        migratePhoneAccountHandle(mState);
+        return true;
+    }
+
+    /**
+     * Reads the state from the binary file after the binary format was turned off, writes it as
+     * XML and deletes the binary file, so that it is migrated again from the XML state if the
+     * format is turned back on.
+     *
+     * @return {@code true} if the state was read and written as XML.
+     */
+    private boolean migrateBinaryStateToXml(AtomicFile binaryAtomicFile) {
+        if (!readBinary(binaryAtomicFile)) {
+            binaryAtomicFile.delete();
+            return false;
+        }
+        removeAccountsWithoutUser();
+        sortPhoneAccounts();
+        synchronized (mWriteLock) {
+            try {
+                if (!writeStateFile(mAtomicFile, serializeState(false /* binary */))) {
+                    return true;
+                }
+            } catch (IOException e) {
+                Log.e(this, e, "Writing state to buffer");
+                return true;
+            }
+        }
+        binaryAtomicFile.delete();
+        return true;
+    }
+
+    /**
+     * Removes accounts whose user is missing or no longer exists.
+     *
+     * @return {@code true} if any accounts were removed.
+     */
+    private boolean removeAccountsWithoutUser() {
         // Verify all of the UserHandles.
         List<PhoneAccount> badAccounts = new ArrayList<>();
         for (PhoneAccount phoneAccount : mState.accounts) {
@@ -1836,12 +2331,8 @@ public class PhoneAccountRegistrar {
                 badAccounts.add(phoneAccount);
             }
         }
-        mState.accounts.removeAll(badAccounts);
-
-        // If an upgrade occurred, write out the changed data.
-        if (versionChanged || !badAccounts.isEmpty()) {
-            write();
-        }
+        removeAccounts(badAccounts);
+        return !badAccounts.isEmpty();
     }
 
     private static void writeToXml(State state, XmlSerializer serializer, Context context)
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Icon;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.telecom.Log;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.telecom.PhoneAccountRegistrar.DefaultPhoneAccountHandle;
+import com.android.server.telecom.PhoneAccountRegistrar.State;
+import com.android.server.telecom.nano.PhoneAccountStateProto;
+
+import com.google.protobuf.nano.MessageNano;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes the {@link PhoneAccountRegistrar} {@link State} in a compact binary format,
+ * as an alternative to the XML format written by {@link PhoneAccountRegistrar#sStateXml}.
+ * <p>
+ * The file consists of a header, the {@link PhoneAccountStateProto.PhoneAccountRegistrarState}
+ * and a section of icon data:
+ * <pre>
+ *     int magic, int formatVersion, int stateLength, byte[stateLength] state, byte[] icons
+ * </pre>
+ * Icons are stored out-of-line in the icon section and referenced by offset, so identical icons
+ * are stored once.  Bitmap icons are stored as compressed image data and read back as
+ * {@link Icon}s of type {@link Icon#TYPE_DATA} which share the bytes of the file, so they are
+ * only decoded when something actually draws them rather than when the state is read.
+ */
+public class PhoneAccountStateBinarySerializer {
+    private static final String TAG = "PhoneAccountStateBinarySerializer";
+
+    @VisibleForTesting
+    public static final int MAGIC = 0x50415253; // "PARS"
+    @VisibleForTesting
+    public static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 3 * Integer.BYTES;
+
+    private static final int EXTRA_TYPE_STRING = 1;
+    private static final int EXTRA_TYPE_INTEGER = 2;
+    private static final int EXTRA_TYPE_BOOLEAN = 3;
+
+    private static final int ICON_KIND_DATA = 1;
+    private static final int ICON_KIND_RESOURCE = 2;
+    private static final int ICON_KIND_STREAM = 3;
+
+    private PhoneAccountStateBinarySerializer() {}
+
+    /**
+     * The icon section of a file being written.  Identical icons share a single entry.
+     */
+    private static class IconSection {
+        final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+        final Map<ByteBuffer, Integer> mOffsets = new HashMap<>();
+
+        PhoneAccountStateProto.IconRef add(int kind, byte[] bytes) {
+            Integer offset = mOffsets.get(ByteBuffer.wrap(bytes));
+            if (offset == null) {
+                offset = mData.size();
+                mData.write(bytes, 0, bytes.length);
+                mOffsets.put(ByteBuffer.wrap(bytes), offset);
+            }
+            return new PhoneAccountStateProto.IconRef()
+                    .setKind(kind)
+                    .setOffset(offset)
+                    .setLength(bytes.length);
+        }
+    }
+
+    /**
+     * Writes the state.
+     *
+     * @param state The state to write.
+     * @param stateVersion The version of the state data.
+     * @param out The stream to write to.
+     * @param context The context, used to look up user serial numbers.
+     */
+    public static void writeState(State state, int stateVersion, OutputStream out,
+            Context context) throws IOException {
+        UserManager userManager = UserManager.get(context);
+        IconSection icons = new IconSection();
+
+        PhoneAccountStateProto.PhoneAccountRegistrarState proto =
+                new PhoneAccountStateProto.PhoneAccountRegistrarState()
+                        .setStateVersion(stateVersion);
+
+        List<PhoneAccountStateProto.DefaultOutgoingAccount> defaults = new ArrayList<>();
+        for (DefaultPhoneAccountHandle defaultHandle :
+                state.defaultOutgoingAccountHandles.values()) {
+            long serialNumber = userManager.getSerialNumberForUser(defaultHandle.userHandle);
+            if (serialNumber == -1) {
+                continue;
+            }
+            PhoneAccountStateProto.DefaultOutgoingAccount defaultProto =
+                    new PhoneAccountStateProto.DefaultOutgoingAccount()
+                            .setUserSerialNumber(serialNumber)
+                            .setGroupId(defaultHandle.groupId == null ? ""
+                                    : defaultHandle.groupId);
+            defaultProto.accountHandle =
+                    toProto(defaultHandle.phoneAccountHandle, userManager);
+            defaults.add(defaultProto);
+        }
+        proto.defaultOutgoingAccounts =
+                defaults.toArray(new PhoneAccountStateProto.DefaultOutgoingAccount[0]);
+
+        List<PhoneAccountStateProto.Account> accounts = new ArrayList<>(state.accounts.size());
+        for (PhoneAccount account : state.accounts) {
+            accounts.add(toProto(account, userManager, icons));
+        }
+        proto.accounts = accounts.toArray(new PhoneAccountStateProto.Account[0]);
+
+        byte[] stateBytes = MessageNano.toByteArray(proto);
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(MAGIC);
+        dataOut.writeInt(FORMAT_VERSION);
+        dataOut.writeInt(stateBytes.length);
+        dataOut.write(stateBytes);
+        icons.mData.writeTo(dataOut);
+        dataOut.flush();
+    }
+
+    /**
+     * Reads a state written by {@link #writeState}.
+     *
+     * @param data The contents of the file.  Icons read from the file keep a reference to it.
+     * @param expectedStateVersion The version of the state data the caller understands.
+     * @param context The context, used to look up users from their serial numbers.
+     * @return the state.
+     * @throws IOException if the data is malformed, or was written in a format or at a state
+     *         version which is not understood.
+     */
+    public static State readState(byte[] data, int expectedStateVersion, Context context)
+            throws IOException {
+        if (data.length < HEADER_LENGTH) {
+            throw new IOException("Truncated header");
+        }
+        ByteBuffer header = ByteBuffer.wrap(data, 0, HEADER_LENGTH);
+        int magic = header.getInt();
+        int formatVersion = header.getInt();
+        int stateLength = header.getInt();
+        if (magic != MAGIC || formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported format " + Integer.toHexString(magic) + "/"
+                    + formatVersion);
+        }
+        if (stateLength < 0 || stateLength > data.length - HEADER_LENGTH) {
+            throw new IOException("Invalid state length " + stateLength);
+        }
+        PhoneAccountStateProto.PhoneAccountRegistrarState proto = MessageNano.mergeFrom(
+                new PhoneAccountStateProto.PhoneAccountRegistrarState(), data, HEADER_LENGTH,
+                stateLength);
+        if (proto.getStateVersion() != expectedStateVersion) {
+            throw new IOException("Unsupported state version " + proto.getStateVersion());
+        }
+        int iconSectionOffset = HEADER_LENGTH + stateLength;
+        UserManager userManager = UserManager.get(context);
+
+        State state = new State();
+        state.versionNumber = proto.getStateVersion();
+        for (PhoneAccountStateProto.DefaultOutgoingAccount defaultProto :
+                proto.defaultOutgoingAccounts) {
+            UserHandle userHandle =
+                    userManager.getUserForSerialNumber(defaultProto.getUserSerialNumber());
+            PhoneAccountHandle accountHandle = fromProto(defaultProto.accountHandle,
+                    userManager);
+            if (userHandle != null && accountHandle != null) {
+                state.defaultOutgoingAccountHandles.put(userHandle,
+                        new DefaultPhoneAccountHandle(userHandle, accountHandle,
+                                defaultProto.getGroupId()));
+            }
+        }
+
+        List<PhoneAccount> accounts = new ArrayList<>(proto.accounts.length);
+        for (PhoneAccountStateProto.Account accountProto : proto.accounts) {
+            PhoneAccount account = fromProto(accountProto, userManager, data, iconSectionOffset);
+            if (account != null) {
+                accounts.add(account);
+            }
+        }
+        state.accounts.addAll(accounts);
+        return state;
+    }
+
+    private static PhoneAccountStateProto.AccountHandle toProto(PhoneAccountHandle handle,
+            UserManager userManager) {
+        if (handle == null) {
+            return null;
+        }
+        PhoneAccountStateProto.AccountHandle proto = new PhoneAccountStateProto.AccountHandle();
+        if (handle.getComponentName() != null) {
+            proto.setComponentName(handle.getComponentName().flattenToString());
+        }
+        if (handle.getId() != null) {
+            proto.setId(handle.getId());
+        }
+        if (handle.getUserHandle() != null) {
+            proto.setUserSerialNumber(userManager.getSerialNumberForUser(handle.getUserHandle()));
+        }
+        return proto;
+    }
+
+    private static PhoneAccountHandle fromProto(PhoneAccountStateProto.AccountHandle proto,
+            UserManager userManager) {
+        if (proto == null || !proto.hasComponentName()) {
+            return null;
+        }
+        UserHandle userHandle = proto.hasUserSerialNumber()
+                ? userManager.getUserForSerialNumber(proto.getUserSerialNumber()) : null;
+        return new PhoneAccountHandle(
+                ComponentName.unflattenFromString(proto.getComponentName()),
+                proto.hasId() ? proto.getId() : null,
+                userHandle);
+    }
+
+    private static PhoneAccountStateProto.Account toProto(PhoneAccount account,
+            UserManager userManager, IconSection icons) {
+        PhoneAccountStateProto.Account proto = new PhoneAccountStateProto.Account()
+                .setCapabilities(account.getCapabilities())
+                .setHighlightColor(account.getHighlightColor())
+                .setEnabled(account.isEnabled())
+                .setSupportedAudioRoutes(account.getSupportedAudioRoutes());
+        proto.accountHandle = toProto(account.getAccountHandle(), userManager);
+        if (account.getAddress() != null) {
+            proto.setAddress(account.getAddress().toString());
+        }
+        if (account.getSubscriptionAddress() != null) {
+            proto.setSubscriptionAddress(account.getSubscriptionAddress().toString());
+        }
+        if (account.getLabel() != null) {
+            proto.setLabel(account.getLabel().toString());
+        }
+        if (account.getShortDescription() != null) {
+            proto.setShortDescription(account.getShortDescription().toString());
+        }
+        List<String> schemes = account.getSupportedUriSchemes();
+        proto.supportedUriSchemes = schemes == null ? new String[0]
+                : schemes.toArray(new String[0]);
+        proto.extras = toProto(account.getExtras());
+        if (account.getIcon() != null) {
+            proto.icon = toProto(account.getIcon(), icons);
+        }
+        return proto;
+    }
+
+    private static PhoneAccount fromProto(PhoneAccountStateProto.Account proto,
+            UserManager userManager, byte[] data, int iconSectionOffset) throws IOException {
+        PhoneAccountHandle accountHandle = fromProto(proto.accountHandle, userManager);
+        if (accountHandle == null) {
+            Log.w(TAG, "Skipping phone account without a handle");
+            return null;
+        }
+        PhoneAccount.Builder builder = PhoneAccount.builder(accountHandle,
+                        proto.hasLabel() ? proto.getLabel() : null)
+                .setAddress(proto.hasAddress() ? Uri.parse(proto.getAddress()) : null)
+                .setSubscriptionAddress(proto.hasSubscriptionAddress()
+                        ? Uri.parse(proto.getSubscriptionAddress()) : null)
+                .setCapabilities(proto.getCapabilities())
+                .setSupportedAudioRoutes(proto.getSupportedAudioRoutes())
+                .setShortDescription(proto.hasShortDescription()
+                        ? proto.getShortDescription() : null)
+                .setSupportedUriSchemes(Arrays.asList(proto.supportedUriSchemes))
+                .setHighlightColor(proto.getHighlightColor())
+                .setExtras(fromProto(proto.extras))
+                .setIsEnabled(proto.getEnabled());
+        if (proto.icon != null) {
+            Icon icon = fromProto(proto.icon, data, iconSectionOffset);
+            if (icon != null) {
+                builder.setIcon(icon);
+            }
+        }
+        return builder.build();
+    }
+
+    private static PhoneAccountStateProto.Extra[] toProto(Bundle extras) {
+        if (extras == null) {
+            return new PhoneAccountStateProto.Extra[0];
+        }
+        List<PhoneAccountStateProto.Extra> protos = new ArrayList<>();
+        for (String key : extras.keySet()) {
+            Object value = extras.get(key);
+            PhoneAccountStateProto.Extra extra = new PhoneAccountStateProto.Extra().setKey(key);
+            if (value instanceof String) {
+                extra.setType(EXTRA_TYPE_STRING).setStringValue((String) value);
+            } else if (value instanceof Integer) {
+                extra.setType(EXTRA_TYPE_INTEGER).setIntValue((Integer) value);
+            } else if (value instanceof Boolean) {
+                extra.setType(EXTRA_TYPE_BOOLEAN).setBoolValue((Boolean) value);
+            } else {
+                Log.w(TAG, "PhoneAccounts support only string, integer and boolean extras.");
+                continue;
+            }
+            protos.add(extra);
+        }
+        return protos.toArray(new PhoneAccountStateProto.Extra[0]);
+    }
+
+    private static Bundle fromProto(PhoneAccountStateProto.Extra[] extras) {
+        if (extras.length == 0) {
+            return null;
+        }
+        Bundle bundle = new Bundle();
+        for (PhoneAccountStateProto.Extra extra : extras) {
+            switch (extra.getType()) {
+                case EXTRA_TYPE_STRING:
+                    bundle.putString(extra.getKey(), extra.getStringValue());
+                    break;
+                case EXTRA_TYPE_INTEGER:
+                    bundle.putInt(extra.getKey(), extra.getIntValue());
+                    break;
+                case EXTRA_TYPE_BOOLEAN:
+                    bundle.putBoolean(extra.getKey(), extra.getBoolValue());
+                    break;
+                default:
+                    Log.w(TAG, "Unknown extra type %d", extra.getType());
+            }
+        }
+        return bundle;
+    }
+
+    private static PhoneAccountStateProto.IconRef toProto(Icon icon, IconSection icons) {
+        try {
+            switch (icon.getType()) {
+                case Icon.TYPE_RESOURCE:
+                    if (icon.getResPackage() != null) {
+                        return new PhoneAccountStateProto.IconRef()
+                                .setKind(ICON_KIND_RESOURCE)
+                                .setResPackage(icon.getResPackage())
+                                .setResId(icon.getResId());
+                    }
+                    break;
+                case Icon.TYPE_DATA:
+                    return icons.add(ICON_KIND_DATA, Arrays.copyOfRange(icon.getDataBytes(),
+                            icon.getDataOffset(), icon.getDataOffset() + icon.getDataLength()));
+                case Icon.TYPE_BITMAP: {
+                    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                    icon.getBitmap().compress(Bitmap.CompressFormat.PNG, 100, stream);
+                    return icons.add(ICON_KIND_DATA, stream.toByteArray());
+                }
+                default:
+                    break;
+            }
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            icon.writeToStream(stream);
+            return icons.add(ICON_KIND_STREAM, stream.toByteArray());
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, e, "Unable to write icon %s", icon);
+            return null;
+        }
+    }
+
+    private static Icon fromProto(PhoneAccountStateProto.IconRef proto, byte[] data,
+            int iconSectionOffset) throws IOException {
+        if (proto.getKind() == ICON_KIND_RESOURCE) {
+            return Icon.createWithResource(proto.getResPackage(), proto.getResId());
+        }
+        int offset = iconSectionOffset + proto.getOffset();
+        int length = proto.getLength();
+        if (proto.getOffset() < 0 || length <= 0 || offset > data.length - length) {
+            throw new IOException("Invalid icon " + proto.getOffset() + "/" + length);
+        }
+        switch (proto.getKind()) {
+            case ICON_KIND_DATA:
+                return Icon.createWithData(data, offset, length);
+            case ICON_KIND_STREAM:
+                try {
+                    return Icon.createFromStream(new ByteArrayInputStream(data, offset, length));
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, e, "Unable to read icon");
+                    return null;
+                }
+            default:
+                Log.w(TAG, "Unknown icon kind %d", proto.getKind());
+                return null;
+        }
+    }
+}
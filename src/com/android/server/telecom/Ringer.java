@@ -44,6 +44,7 @@ import android.os.vibrator.persistence.ParsedVibration;
 import android.os.vibrator.persistence.VibrationXmlParser;
 import android.telecom.Log;
 import android.telecom.TelecomManager;
+import android.util.LruCache;
 import android.view.accessibility.AccessibilityManager;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -105,6 +106,9 @@ public class Ringer {
      */
     private static int DEFAULT_RING_VIBRATION_LOOP_DELAY_MS = 1000;
 
+    /** The number of ringtone vibration effects kept when the ringing pipeline is kept warm. */
+    private static final int VIBRATION_EFFECT_CACHE_SIZE = 16;
+
     private static final long[] PULSE_PRIMING_PATTERN = {0,12,250,12,500}; // priming  + interval
 
     private static final int[] PULSE_PRIMING_AMPLITUDE = {0,255,0,255,0};  // priming  + interval
@@ -186,6 +190,11 @@ public class Ringer {
     private final VibrationEffectProxy mVibrationEffectProxy;
     private final boolean mIsHapticPlaybackSupportedByDevice;
     private final FeatureFlags mFlags;
+    /**
+     * Vibration effects of the ringtones played recently, keyed by ringtone URI, or {@code null}
+     * if they are not kept.  Cleared whenever the ringtone setting changes.
+     */
+    private final LruCache<Uri, VibrationEffect> mVibrationEffectCache;
     /**
      * For unit testing purposes only; when set, {@link #startRinging(Call, boolean)} will complete
      * the future provided by the test using {@link #setBlockOnRingingFuture(CompletableFuture)}.
@@ -257,6 +266,14 @@ public class Ringer {
 
         mAudioManager = mContext.getSystemService(AudioManager.class);
         mFlags = featureFlags;
+
+        if (featureFlags.warmRingerPipeline()) {
+            mVibrationEffectCache = new LruCache<>(VIBRATION_EFFECT_CACHE_SIZE);
+            mRingtoneFactory.enableCache(mVibrationEffectCache::evictAll);
+            mRingtonePlayer.setKeepThreadAlive(true);
+        } else {
+            mVibrationEffectCache = null;
+        }
     }
 
     @VisibleForTesting
@@ -269,6 +286,22 @@ public class Ringer {
         mNotificationManager = notificationManager;
     }
 
+    /**
+     * Resolves the default ringtone and its vibration effect for an incoming call while it is
+     * still being filtered, so that they are ready once the call starts ringing.
+     */
+    public void prepareForIncomingCall(Call incomingCall) {
+        if (mVibrationEffectCache == null) {
+            return;
+        }
+        getHandler().post(() -> {
+            Uri ringtoneUri = mRingtoneFactory.getDefaultRingtoneUri(incomingCall);
+            if (ringtoneUri != null) {
+                getVibrationEffectForUri(ringtoneUri);
+            }
+        });
+    }
+
     public boolean startRinging(Call foregroundCall, boolean isHfpDeviceAttached) {
         boolean deferBlockOnRingingFuture = false;
         // try-finally to ensure that the block on ringing future is always called.
@@ -547,11 +580,24 @@ public class Ringer {
         if (ringtoneUri == null) {
             return mDefaultVibrationEffect;
         }
+        return getVibrationEffectForUri(ringtoneUri);
+    }
+
+    private VibrationEffect getVibrationEffectForUri(@NonNull Uri ringtoneUri) {
+        if (mVibrationEffectCache != null) {
+            VibrationEffect cachedEffect = mVibrationEffectCache.get(ringtoneUri);
+            if (cachedEffect != null) {
+                return cachedEffect;
+            }
+        }
         try {
             VibrationEffect effect = mVibrationEffectProxy.get(ringtoneUri, mContext);
             if (effect == null) {
               Log.i(this, "did not find vibration effect, falling back to default vibration");
-              return mDefaultVibrationEffect;
+              effect = mDefaultVibrationEffect;
+            }
+            if (mVibrationEffectCache != null && effect != null) {
+                mVibrationEffectCache.put(ringtoneUri, effect);
             }
             return effect;
         } catch (IllegalArgumentException iae) {
@@ -20,6 +20,7 @@ import android.annotation.Nullable;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
+import android.database.ContentObserver;
 import android.media.AudioAttributes;
 import android.media.RingtoneManager;
 import android.media.Ringtone;
@@ -31,6 +32,7 @@ import android.provider.Settings;
 
 import android.telecom.Log;
 import android.text.TextUtils;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import android.telecom.CallerInfo;
@@ -41,18 +43,79 @@ import java.util.List;
  * Uses the incoming {@link Call}'s ringtone URI (obtained by the Contact Lookup) to obtain a
  * {@link Ringtone} from the {@link RingtoneManager} that can be played by the system during an
  * incoming call. If the ringtone URI is null, use the default Ringtone for the active user.
+ * <p>
+ * Once {@link #enableCache(Runnable)} has been called, the user contexts and the default ringtone
+ * chosen for each user are kept, and the default ringtones are resolved again only after the
+ * ringtone setting changes.  The {@link Ringtone}s themselves are created for every call, since
+ * a ringtone cannot be played again once it has been stopped.
  */
 @VisibleForTesting
 public class RingtoneFactory {
 
+    /** The default ringtone for a user, and the context it is played with. */
+    private static class DefaultRingtone {
+        final Context mContext;
+        final Uri mUri;
+
+        DefaultRingtone(Context context, Uri uri) {
+            mContext = context;
+            mUri = uri;
+        }
+    }
+
     private final Context mContext;
     private final CallsManager mCallsManager;
 
+    // The fields below are only used once the cache is enabled; guarded by this.
+    private boolean mIsCacheEnabled = false;
+    private Runnable mOnRingtoneSettingChanged;
+    private final SparseArray<Context> mUserContexts = new SparseArray<>();
+    // Keyed by the id of the user context the default ringtone was resolved for.
+    private final SparseArray<DefaultRingtone> mDefaultRingtones = new SparseArray<>();
+    // Changed whenever the ringtone setting changes, so that a default ringtone resolved before
+    // the change is not kept.
+    private int mDefaultRingtonesGeneration = 0;
+
+    private final ContentObserver mRingtoneSettingObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            Runnable onRingtoneSettingChanged;
+            synchronized (RingtoneFactory.this) {
+                mDefaultRingtones.clear();
+                mDefaultRingtonesGeneration++;
+                onRingtoneSettingChanged = mOnRingtoneSettingChanged;
+            }
+            Log.i(RingtoneFactory.this, "Ringtone setting changed; default ringtones cleared.");
+            if (onRingtoneSettingChanged != null) {
+                onRingtoneSettingChanged.run();
+            }
+        }
+    };
+
     public RingtoneFactory(CallsManager callsManager, Context context) {
         mContext = context;
         mCallsManager = callsManager;
     }
 
+    /**
+     * Starts keeping the user contexts and default ringtones resolved by this factory.
+     *
+     * @param onRingtoneSettingChanged Run, on a binder thread, whenever the ringtone setting of
+     *                                 any user changes.
+     */
+    public void enableCache(@Nullable Runnable onRingtoneSettingChanged) {
+        synchronized (this) {
+            if (mIsCacheEnabled) {
+                return;
+            }
+            mIsCacheEnabled = true;
+            mOnRingtoneSettingChanged = onRingtoneSettingChanged;
+        }
+        mContext.getContentResolver().registerContentObserver(
+                Settings.System.getUriFor(Settings.System.RINGTONE),
+                false /* notifyForDescendants */, mRingtoneSettingObserver, UserHandle.USER_ALL);
+    }
+
     /**
      * Determines if a ringtone has haptic channels.
      * @param ringtone The ringtone URI.
@@ -71,11 +134,7 @@ public class RingtoneFactory {
 
         AudioAttributes audioAttrs = getDefaultRingtoneAudioAttributes(hapticChannelsMuted);
 
-        // Use the default ringtone of the work profile if the contact is a work profile contact.
-        // or the default ringtone of the receiving user.
-        Context userContext = isWorkContact(incomingCall) ?
-                getWorkProfileContextForUser(mCallsManager.getCurrentUserHandle()) :
-                getContextForUserHandle(incomingCall.getAssociatedUser());
+        Context userContext = getUserContext(incomingCall);
         Uri ringtoneUri = incomingCall.getRingtone();
         Ringtone ringtone = null;
 
@@ -91,28 +150,14 @@ public class RingtoneFactory {
         if (ringtone == null) {
             // Contact didn't specify ringtone or custom Ringtone creation failed. Get default
             // ringtone for user or profile.
-            Context contextToUse = hasDefaultRingtoneForUser(userContext) ? userContext : mContext;
-            Uri defaultRingtoneUri;
-            if (UserManager.get(contextToUse).isUserUnlocked(contextToUse.getUserId())) {
-                defaultRingtoneUri = RingtoneManager.getActualDefaultRingtoneUri(contextToUse,
-                        RingtoneManager.TYPE_RINGTONE);
-                if (defaultRingtoneUri == null) {
-                    Log.i(this, "getRingtone: defaultRingtoneUri for user is null.");
-                }
-            } else {
-                defaultRingtoneUri = Settings.System.DEFAULT_RINGTONE_URI;
-                if (defaultRingtoneUri == null) {
-                    Log.i(this, "getRingtone: Settings.System.DEFAULT_RINGTONE_URI is null.");
-                }
-            }
-
-            if (defaultRingtoneUri == null) {
+            DefaultRingtone defaultRingtone = getDefaultRingtone(userContext);
+            if (defaultRingtone == null) {
                 return null;
             }
 
             try {
-                ringtone = RingtoneManager.getRingtone(
-                        contextToUse, defaultRingtoneUri, volumeShaperConfig, audioAttrs);
+                ringtone = RingtoneManager.getRingtone(defaultRingtone.mContext,
+                        defaultRingtone.mUri, volumeShaperConfig, audioAttrs);
             } catch (Exception e) {
                 Log.e(this, e, "getRingtone: exception while getting ringtone.");
             }
@@ -120,6 +165,70 @@ public class RingtoneFactory {
         return ringtone;
     }
 
+    /**
+     * Resolves, ahead of ringing, the default ringtone which would be played for a call.
+     *
+     * @return The URI of the default ringtone, or {@code null} if there is none.
+     */
+    @Nullable
+    public Uri getDefaultRingtoneUri(Call incomingCall) {
+        ThreadUtil.checkNotOnMainThread();
+        DefaultRingtone defaultRingtone = getDefaultRingtone(getUserContext(incomingCall));
+        return defaultRingtone == null ? null : defaultRingtone.mUri;
+    }
+
+    private Context getUserContext(Call incomingCall) {
+        // Use the default ringtone of the work profile if the contact is a work profile contact.
+        // or the default ringtone of the receiving user.
+        return isWorkContact(incomingCall) ?
+                getWorkProfileContextForUser(mCallsManager.getCurrentUserHandle()) :
+                getContextForUserHandle(incomingCall.getAssociatedUser());
+    }
+
+    @Nullable
+    private DefaultRingtone getDefaultRingtone(@Nullable Context userContext) {
+        int key = userContext == null ? UserHandle.USER_NULL : userContext.getUserId();
+        int generation;
+        synchronized (this) {
+            DefaultRingtone defaultRingtone = mDefaultRingtones.get(key);
+            if (defaultRingtone != null) {
+                return defaultRingtone;
+            }
+            generation = mDefaultRingtonesGeneration;
+        }
+
+        Context contextToUse = hasDefaultRingtoneForUser(userContext) ? userContext : mContext;
+        Uri defaultRingtoneUri;
+        boolean isUserUnlocked =
+                UserManager.get(contextToUse).isUserUnlocked(contextToUse.getUserId());
+        if (isUserUnlocked) {
+            defaultRingtoneUri = RingtoneManager.getActualDefaultRingtoneUri(contextToUse,
+                    RingtoneManager.TYPE_RINGTONE);
+            if (defaultRingtoneUri == null) {
+                Log.i(this, "getRingtone: defaultRingtoneUri for user is null.");
+            }
+        } else {
+            defaultRingtoneUri = Settings.System.DEFAULT_RINGTONE_URI;
+            if (defaultRingtoneUri == null) {
+                Log.i(this, "getRingtone: Settings.System.DEFAULT_RINGTONE_URI is null.");
+            }
+        }
+
+        if (defaultRingtoneUri == null) {
+            return null;
+        }
+        DefaultRingtone defaultRingtone = new DefaultRingtone(contextToUse, defaultRingtoneUri);
+        synchronized (this) {
+            // The ringtone of a locked user is only known once it has been unlocked, and one
+            // resolved while the setting changed may already be stale.
+            if (mIsCacheEnabled && isUserUnlocked
+                    && generation == mDefaultRingtonesGeneration) {
+                mDefaultRingtones.put(key, defaultRingtone);
+            }
+        }
+        return defaultRingtone;
+    }
+
     private AudioAttributes getDefaultRingtoneAudioAttributes(boolean hapticChannelsMuted) {
         return new AudioAttributes.Builder()
             .setUsage(AudioAttributes.USAGE_NOTIFICATION_RINGTONE)
@@ -173,8 +282,21 @@ public class RingtoneFactory {
         if(userHandle == null) {
             return null;
         }
+        synchronized (this) {
+            Context userContext = mUserContexts.get(userHandle.getIdentifier());
+            if (userContext != null) {
+                return userContext;
+            }
+        }
         try {
-            return mContext.createPackageContextAsUser(mContext.getPackageName(), 0, userHandle);
+            Context userContext = mContext.createPackageContextAsUser(
+                    mContext.getPackageName(), 0, userHandle);
+            synchronized (this) {
+                if (mIsCacheEnabled) {
+                    mUserContexts.put(userHandle.getIdentifier(), userContext);
+                }
+            }
+            return userContext;
         } catch (PackageManager.NameNotFoundException e) {
             Log.w("RingtoneFactory", "Package name not found: " + e.getMessage());
         }
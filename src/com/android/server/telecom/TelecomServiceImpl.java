@@ -95,6 +95,7 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 // TODO: Needed for move to system service: import com.android.internal.R;
 
@@ -281,7 +282,7 @@ public class TelecomServiceImpl {
                 String callingPackage, String callingFeatureId) {
             try {
                 Log.startSession("TSI.gDOPA", Log.getPackageAbbreviation(callingPackage));
-                synchronized (mLock) {
+                return callRegistrarRead("TSI.gDOPA", () -> {
                     PhoneAccountHandle phoneAccountHandle = null;
                     final UserHandle callingUserHandle = Binder.getCallingUserHandle();
                     long token = Binder.clearCallingIdentity();
@@ -302,7 +303,7 @@ public class TelecomServiceImpl {
                         return phoneAccountHandle;
                     }
                     return null;
-                }
+                });
             } finally {
                 Log.endSession();
             }
@@ -310,7 +311,7 @@ public class TelecomServiceImpl {
 
         @Override
         public PhoneAccountHandle getUserSelectedOutgoingPhoneAccount(String callingPackage) {
-            synchronized (mLock) {
+            return callRegistrarRead("TSI.gUSOPA", () -> {
                 try {
                     Log.startSession("TSI.gUSOPA", Log.getPackageAbbreviation(callingPackage));
                     if (!isDialerOrPrivileged(callingPackage, "getDefaultOutgoingPhoneAccount")) {
@@ -326,7 +327,7 @@ public class TelecomServiceImpl {
                 } finally {
                     Log.endSession();
                 }
-            }
+            });
         }
 
         @Override
@@ -368,7 +369,7 @@ public class TelecomServiceImpl {
                         "getCallCapablePhoneAccounts")) {
                     return ParceledListSlice.emptyList();
                 }
-                synchronized (mLock) {
+                return callRegistrarRead("TSI.gCCPA", () -> {
                     final UserHandle callingUserHandle = Binder.getCallingUserHandle();
                     boolean crossUserAccess = hasInAppCrossUserPermission();
                     long token = Binder.clearCallingIdentity();
@@ -385,7 +386,7 @@ public class TelecomServiceImpl {
                     } finally {
                         Binder.restoreCallingIdentity(token);
                     }
-                }
+                });
             } finally {
                 Log.endSession();
             }
@@ -400,7 +401,7 @@ public class TelecomServiceImpl {
                         "Requires READ_PHONE_STATE permission.")) {
                     throw new SecurityException("Requires READ_PHONE_STATE permission.");
                 }
-                synchronized (mLock) {
+                return callRegistrarRead("TSI.gSMPA", () -> {
                     final UserHandle callingUserHandle = Binder.getCallingUserHandle();
                     long token = Binder.clearCallingIdentity();
                     try {
@@ -412,7 +413,7 @@ public class TelecomServiceImpl {
                     } finally {
                         Binder.restoreCallingIdentity(token);
                     }
-                }
+                });
             } finally {
                 Log.endSession();
             }
@@ -433,7 +434,7 @@ public class TelecomServiceImpl {
                 if (!canReadMangeOwnCalls("Requires MANAGE_OWN_CALLS permission.")) {
                     throw new SecurityException("Requires MANAGE_OWN_CALLS permission.");
                 }
-                synchronized (mLock) {
+                return callRegistrarRead("TSI.gOSMPA", () -> {
                     final UserHandle callingUserHandle = Binder.getCallingUserHandle();
                     long token = Binder.clearCallingIdentity();
                     try {
@@ -447,7 +448,7 @@ public class TelecomServiceImpl {
                     } finally {
                         Binder.restoreCallingIdentity(token);
                     }
-                }
+                });
             } finally {
                 Log.endSession();
             }
@@ -467,7 +468,7 @@ public class TelecomServiceImpl {
                     return ParceledListSlice.emptyList();
                 }
 
-                synchronized (mLock) {
+                return callRegistrarRead("TSI.gPASS", () -> {
                     final UserHandle callingUserHandle = Binder.getCallingUserHandle();
                     long token = Binder.clearCallingIdentity();
                     try {
@@ -480,7 +481,7 @@ public class TelecomServiceImpl {
                     } finally {
                         Binder.restoreCallingIdentity(token);
                     }
-                }
+                });
             } finally {
                 Log.endSession();
             }
@@ -506,7 +507,7 @@ public class TelecomServiceImpl {
                 throw se2;
             }
 
-            synchronized (mLock) {
+            return callRegistrarRead("TSI.gPAFP", () -> {
                 final UserHandle callingUserHandle = Binder.getCallingUserHandle();
                 long token = Binder.clearCallingIdentity();
                 try {
@@ -520,7 +521,7 @@ public class TelecomServiceImpl {
                     Binder.restoreCallingIdentity(token);
                     Log.endSession();
                 }
-            }
+            });
         }
 
         @Override
@@ -535,7 +536,7 @@ public class TelecomServiceImpl {
                             "getPhoneAccount: invalid calling package");
                     throw se;
                 }
-                synchronized (mLock) {
+                return callRegistrarRead("TSI.gPA", () -> {
                     final UserHandle callingUserHandle = Binder.getCallingUserHandle();
                     if (CompatChanges.isChangeEnabled(
                             TelecomManager.ENABLE_GET_PHONE_ACCOUNT_PERMISSION_PROTECTION,
@@ -569,7 +570,7 @@ public class TelecomServiceImpl {
                     } finally {
                         Binder.restoreCallingIdentity(token);
                     }
-                }
+                });
             } finally {
                 Log.endSession();
             }
@@ -588,7 +589,7 @@ public class TelecomServiceImpl {
                     throw e;
                 }
 
-                synchronized (mLock) {
+                return callRegistrarRead("TSI.gAPAC", () -> {
                     try {
                         // This list is pre-filtered for the calling user.
                         return getAllPhoneAccounts().getList().size();
@@ -597,7 +598,7 @@ public class TelecomServiceImpl {
                         throw e;
 
                     }
-                }
+                });
             } finally {
                 Log.endSession();
             }
@@ -605,7 +606,7 @@ public class TelecomServiceImpl {
 
         @Override
         public ParceledListSlice<PhoneAccount> getAllPhoneAccounts() {
-            synchronized (mLock) {
+            return callRegistrarRead("TSI.gAPA", () -> {
                 try {
                     Log.startSession("TSI.gAPA");
                     try {
@@ -631,7 +632,7 @@ public class TelecomServiceImpl {
                 } finally {
                     Log.endSession();
                 }
-            }
+            });
         }
 
         @Override
@@ -647,7 +648,7 @@ public class TelecomServiceImpl {
                     throw e;
                 }
 
-                synchronized (mLock) {
+                return callRegistrarRead("TSI.gAPAH", () -> {
                     final UserHandle callingUserHandle = Binder.getCallingUserHandle();
                     boolean crossUserAccess = hasInAppCrossUserPermission();
                     long token = Binder.clearCallingIdentity();
@@ -661,7 +662,7 @@ public class TelecomServiceImpl {
                     } finally {
                         Binder.restoreCallingIdentity(token);
                     }
-                }
+                });
             } finally {
                 Log.endSession();
             }
@@ -669,7 +670,7 @@ public class TelecomServiceImpl {
 
         @Override
         public PhoneAccountHandle getSimCallManager(int subId, String callingPackage) {
-            synchronized (mLock) {
+            return callRegistrarRead("TSI.gSCM", () -> {
                 try {
                     Log.startSession("TSI.gSCM", Log.getPackageAbbreviation(callingPackage));
                     final int callingUid = Binder.getCallingUid();
@@ -691,12 +692,12 @@ public class TelecomServiceImpl {
                 } finally {
                     Log.endSession();
                 }
-            }
+            });
         }
 
         @Override
         public PhoneAccountHandle getSimCallManagerForUser(int user, String callingPackage) {
-            synchronized (mLock) {
+            return callRegistrarRead("TSI.gSCMFU", () -> {
                 try {
                     Log.startSession("TSI.gSCMFU", Log.getPackageAbbreviation(callingPackage));
                     final int callingUid = Binder.getCallingUid();
@@ -717,7 +718,7 @@ public class TelecomServiceImpl {
                 } finally {
                     Log.endSession();
                 }
-            }
+            });
         }
 
         @Override
@@ -1083,10 +1084,14 @@ public class TelecomServiceImpl {
                     return false;
                 }
 
-                synchronized (mLock) {
+                if (mFeatureFlags.lockFreeCallStateQueries()) {
+                    return mCallsManager.getCallStateSnapshot().hasOngoingCalls(
+                            Binder.getCallingUserHandle(), hasInAppCrossUserPermission());
+                }
+                return callWithLock("TSI.iIC", () -> {
                     return mCallsManager.hasOngoingCalls(Binder.getCallingUserHandle(),
                             hasInAppCrossUserPermission());
-                }
+                });
             } finally {
                 Log.endSession();
             }
@@ -1125,10 +1130,14 @@ public class TelecomServiceImpl {
                             "READ_PHONE_STATE permission can use this method.");
                 }
 
-                synchronized (mLock) {
+                if (mFeatureFlags.lockFreeCallStateQueries()) {
+                    return mCallsManager.getCallStateSnapshot().hasOngoingManagedCalls(
+                            Binder.getCallingUserHandle(), hasInAppCrossUserPermission());
+                }
+                return callWithLock("TSI.iIMC", () -> {
                     return mCallsManager.hasOngoingManagedCalls(Binder.getCallingUserHandle(),
                             hasInAppCrossUserPermission());
-                }
+                });
             } finally {
                 Log.endSession();
             }
@@ -1151,14 +1160,19 @@ public class TelecomServiceImpl {
                     }
                 }
 
-                synchronized (mLock) {
+                if (mFeatureFlags.lockFreeCallStateQueries()) {
+                    // The snapshot is built from the calls Telecom is tracking, so the note below
+                    // applies here too.
+                    return mCallsManager.getCallStateSnapshot().hasRingingOrSimulatedRingingCall();
+                }
+                return callWithLock("TSI.iR", () -> {
                     // Note: We are explicitly checking the calls telecom is tracking rather than
                     // relying on mCallsManager#getCallState(). Since getCallState() relies on the
                     // current state as tracked by PhoneStateBroadcaster, any failure to properly
                     // track the current call state there could result in the wrong ringing state
                     // being reported by this API.
                     return mCallsManager.hasRingingOrSimulatedRingingCall();
-                }
+                });
             } finally {
                 Log.endSession();
             }
@@ -1182,9 +1196,12 @@ public class TelecomServiceImpl {
                     throw new SecurityException("This method can only be used for applications "
                             + "targeting API version 30 or less.");
                 }
-                synchronized (mLock) {
-                    return mCallsManager.getCallState();
+                if (mFeatureFlags.lockFreeCallStateQueries()) {
+                    return mCallsManager.getCallStateSnapshot().getCallState();
                 }
+                return callWithLock("TSI.getCallState(DEPRECATED)", () -> {
+                    return mCallsManager.getCallState();
+                });
             } finally {
                 Log.endSession();
             }
@@ -1223,9 +1240,12 @@ public class TelecomServiceImpl {
                                 + " for API version 31+");
                     }
                 }
-                synchronized (mLock) {
-                    return mCallsManager.getCallState();
+                if (mFeatureFlags.lockFreeCallStateQueries()) {
+                    return mCallsManager.getCallStateSnapshot().getCallState();
                 }
+                return callWithLock("TSI.getCallStateUsingPackage", () -> {
+                    return mCallsManager.getCallState();
+                });
             } finally {
                 Log.endSession();
             }
@@ -1251,7 +1271,7 @@ public class TelecomServiceImpl {
         public boolean endCall(String callingPackage) {
             try {
                 Log.startSession("TSI.eC", Log.getPackageAbbreviation(callingPackage));
-                synchronized (mLock) {
+                return callWithLock("TSI.eC", () -> {
                     if (!enforceAnswerCallPermission(callingPackage, Binder.getCallingUid())) {
                         throw new SecurityException("requires ANSWER_PHONE_CALLS permission");
                     }
@@ -1262,7 +1282,7 @@ public class TelecomServiceImpl {
                     } finally {
                         Binder.restoreCallingIdentity(token);
                     }
-                }
+                });
             } finally {
                 Log.endSession();
             }
@@ -1275,7 +1295,7 @@ public class TelecomServiceImpl {
         public void acceptRingingCall(String packageName) {
             try {
                 Log.startSession("TSI.aRC", Log.getPackageAbbreviation(packageName));
-                synchronized (mLock) {
+                runWithLock("TSI.aRC", () -> {
                     if (!enforceAnswerCallPermission(packageName, Binder.getCallingUid())) return;
 
                     long token = Binder.clearCallingIdentity();
@@ -1284,7 +1304,7 @@ public class TelecomServiceImpl {
                     } finally {
                         Binder.restoreCallingIdentity(token);
                     }
-                }
+                });
             } finally {
                 Log.endSession();
             }
@@ -1987,6 +2007,11 @@ public class TelecomServiceImpl {
                 Analytics.dump(pw);
                 pw.decreaseIndent();
 
+                pw.println("LockContention:");
+                pw.increaseIndent();
+                mLockContentionTracker.dump(pw);
+                pw.decreaseIndent();
+
                 pw.println("Flag Configurations: ");
                 pw.increaseIndent();
                 reflectAndPrintFlagConfigs(pw);
@@ -2555,6 +2580,8 @@ public class TelecomServiceImpl {
     private final SubscriptionManagerAdapter mSubscriptionManagerAdapter;
     private final SettingsSecureAdapter mSettingsSecureAdapter;
     private final TelecomSystem.SyncRoot mLock;
+    /** Measures waits for {@link #mLock} at the busiest binder entry points. */
+    private final LockContentionTracker mLockContentionTracker;
     private TransactionManager mTransactionManager;
     private final TransactionalServiceRepository mTransactionalServiceRepository;
     private final FeatureFlags mFeatureFlags;
@@ -2578,6 +2605,7 @@ public class TelecomServiceImpl {
         mCallsManager = callsManager;
         mFeatureFlags = featureFlags;
         mLock = lock;
+        mLockContentionTracker = new LockContentionTracker(featureFlags.lockContentionTracking());
         mPhoneAccountRegistrar = phoneAccountRegistrar;
         mUserCallIntentProcessorFactory = userCallIntentProcessorFactory;
         mDefaultDialerCache = defaultDialerCache;
@@ -2614,6 +2642,44 @@ public class TelecomServiceImpl {
     // Supporting methods for the ITelecomService interface implementation.
     //
 
+    /**
+     * Runs {@code work} with {@link #mLock} held, measuring the wait for the lock at {@code site}.
+     * @return the result of {@code work}.
+     */
+    private <T> T callWithLock(String site, Supplier<T> work) {
+        try (LockContentionTracker.Section section = mLockContentionTracker.enter(site)) {
+            synchronized (mLock) {
+                section.acquired();
+                return work.get();
+            }
+        }
+    }
+
+    /**
+     * Runs {@code work} with {@link #mLock} held, measuring the wait for the lock at {@code site}.
+     */
+    private void runWithLock(String site, Runnable work) {
+        try (LockContentionTracker.Section section = mLockContentionTracker.enter(site)) {
+            synchronized (mLock) {
+                section.acquired();
+                work.run();
+            }
+        }
+    }
+
+    /**
+     * Runs {@code work}, which only reads the {@link PhoneAccountRegistrar}.  The registrar
+     * guards its accounts with its own lock, so {@link #mLock} is only taken when that lock is
+     * not in use.
+     * @return the result of {@code work}.
+     */
+    private <T> T callRegistrarRead(String site, Supplier<T> work) {
+        if (mFeatureFlags.phoneAccountRegistrarLock()) {
+            return work.get();
+        }
+        return callWithLock(site, work);
+    }
+
     private boolean isPhoneAccountHandleVisibleToCallingUser(
             PhoneAccountHandle phoneAccountUserHandle, UserHandle callingUser) {
         synchronized (mLock) {
@@ -46,6 +46,7 @@ import com.android.server.telecom.bluetooth.BluetoothRouteManager;
 import com.android.server.telecom.bluetooth.BluetoothStateReceiver;
 import com.android.server.telecom.callfiltering.BlockedNumbersAdapter;
 import com.android.server.telecom.callfiltering.CallFilterResultCallback;
+import com.android.server.telecom.callfiltering.CallFilteringScheduler;
 import com.android.server.telecom.callfiltering.IncomingCallFilterGraph;
 import com.android.server.telecom.callfiltering.IncomingCallFilterGraphProvider;
 import com.android.server.telecom.components.UserCallIntentProcessor;
@@ -58,6 +59,7 @@ import com.android.server.telecom.ui.IncomingCallNotifier;
 import com.android.server.telecom.ui.MissedCallNotifierImpl.MissedCallNotifierImplFactory;
 import com.android.server.telecom.ui.ToastFactory;
 import com.android.server.telecom.voip.TransactionManager;
+import com.android.server.telecom.voip.TransactionScheduler;
 
 import java.io.FileNotFoundException;
 import java.io.InputStream;
@@ -88,6 +90,15 @@ public class TelecomSystem {
     /**
      * Tagging interface for the object used for synchronizing multi-threaded operations in
      * the Telecom system.
+     * <p>
+     * Lock ordering: the Telecom lock is always taken first.  Some components guard their own
+     * state with a lock of their own, for example the default dialer cache in
+     * {@link DefaultDialerCache}, the callback queues in {@link ConnectionServiceAdapterMailbox}
+     * and the idle players in {@link TonePlaybackEngine}.  Those locks may be taken while the
+     * Telecom lock is held, but a thread holding one of them never takes the Telecom lock nor
+     * calls out of its component, so they cannot deadlock with it.  Time spent waiting for and
+     * holding the Telecom lock at the busiest binder entry points is reported in dumpsys under
+     * "LockContention" when lock contention tracking is enabled.
      */
     public interface SyncRoot {
     }
@@ -238,14 +249,19 @@ public class TelecomSystem {
                 new DefaultDialerCache.DefaultDialerManagerAdapterImpl();
 
         DefaultDialerCache defaultDialerCache = new DefaultDialerCache(mContext,
-                defaultDialerAdapter, roleManagerAdapter, mLock);
+                defaultDialerAdapter, roleManagerAdapter, mLock,
+                featureFlags.defaultDialerCacheLock());
 
         Log.startSession("TS.init");
         // Wrap this in a try block to ensure session cleanup occurs in the case of error.
         try {
+            if (featureFlags.cacheTimeouts()) {
+                Timeouts.enableCache(mContext);
+            }
+
             mPhoneAccountRegistrar = new PhoneAccountRegistrar(mContext, mLock, defaultDialerCache,
                     packageName -> AppLabelProxy.Util.getAppLabel(
-                            mContext.getPackageManager(), packageName));
+                            mContext.getPackageManager(), packageName), featureFlags);
 
             mContactsAsyncHelper = contactsAsyncHelperFactory.create(
                     new ContactsAsyncHelper.ContentResolverAdapter() {
@@ -282,7 +298,7 @@ public class TelecomSystem {
 
             CallerInfoLookupHelper callerInfoLookupHelper =
                     new CallerInfoLookupHelper(context, callerInfoAsyncQueryFactory,
-                            mContactsAsyncHelper, mLock);
+                            mContactsAsyncHelper, mLock, featureFlags);
 
             EmergencyCallHelper emergencyCallHelper = new EmergencyCallHelper(mContext,
                     defaultDialerCache, timeoutsAdapter);
@@ -369,6 +385,10 @@ public class TelecomSystem {
                     mLock, timeoutsAdapter, clockProxy, emergencyCallDiagnosticLogger);
 
             TransactionManager transactionManager = TransactionManager.getInstance();
+            if (featureFlags.pooledVoipTransactionScheduler()) {
+                transactionManager.setTransactionScheduler(TransactionScheduler.getInstance());
+            }
+            transactionManager.setPerCallQueuesEnabled(featureFlags.perCallVoipTransactionQueues());
 
             CallStreamingNotification callStreamingNotification =
                     new CallStreamingNotification(mContext,
@@ -416,7 +436,11 @@ public class TelecomSystem {
                     communicationDeviceTracker,
                     callStreamingNotification,
                     featureFlags,
-                    IncomingCallFilterGraph::new);
+                    (call, listener, graphContext, graphTimeoutsAdapter, graphLock) ->
+                            new IncomingCallFilterGraph(call, listener, graphContext,
+                                    graphTimeoutsAdapter, graphLock,
+                                    featureFlags.sharedCallFilteringScheduler()
+                                            ? CallFilteringScheduler.getInstance() : null));
 
             mIncomingCallNotifier = incomingCallNotifier;
             incomingCallNotifier.setCallsManagerProxy(new IncomingCallNotifier.CallsManagerProxy() {
@@ -17,6 +17,10 @@
 package com.android.server.telecom;
 
 import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.UserHandle;
 import android.provider.DeviceConfig;
 import android.provider.Settings;
 import android.telecom.CallDiagnosticService;
@@ -24,6 +28,11 @@ import android.telecom.CallDiagnostics;
 import android.telecom.CallRedirectionService;
 import android.telephony.ims.ImsReasonInfo;
 
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -45,6 +54,14 @@ public final class Timeouts {
             return Timeouts.getCallRemoveUnbindInCallServicesDelay(cr);
         }
 
+        public long getInCallServiceWarmWindowMillis(ContentResolver cr) {
+            return Timeouts.getInCallServiceWarmWindowMillis(cr);
+        }
+
+        public long getInCallServicePrebindTimeoutMillis(ContentResolver cr) {
+            return Timeouts.getInCallServicePrebindTimeoutMillis(cr);
+        }
+
         public long getRetryBluetoothConnectAudioBackoffMillis(ContentResolver cr) {
             return Timeouts.getRetryBluetoothConnectAudioBackoffMillis(cr);
         }
@@ -207,9 +224,88 @@ public final class Timeouts {
     private static final String INTERMEDIATE_STATE_NON_VOIP_EMERGENCY_TIMEOUT_MILLIS =
             "intermediate_state_non_voip_emergency_timeout_millis";
 
+    /**
+     * The timeout values which have been looked up, so that later lookups do not go to
+     * {@link Settings} or {@link DeviceConfig}.  The values of a user are discarded whenever one of
+     * their timeout settings changes, and the values of a {@link DeviceConfig} namespace whenever
+     * a property in it changes; they are looked up again on the next use.
+     */
+    private static final class Cache {
+        private final ConcurrentHashMap<Integer, Map<String, Long>> mSettingsByUser =
+                new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Map<String, Long>> mDeviceConfigByNamespace =
+                new ConcurrentHashMap<>();
+
+        private final ContentObserver mSettingsObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, Collection<Uri> uris, int flags,
+                    UserHandle user) {
+                for (Uri uri : uris) {
+                    String name = uri == null ? null : uri.getLastPathSegment();
+                    if (name == null || name.startsWith(PREFIX)) {
+                        // A lookup racing with this keeps its value in the discarded map only.
+                        mSettingsByUser.remove(user.getIdentifier());
+                        return;
+                    }
+                }
+            }
+        };
+
+        private final DeviceConfig.OnPropertiesChangedListener mDeviceConfigListener =
+                properties -> mDeviceConfigByNamespace.remove(properties.getNamespace());
+
+        void start(Context context) {
+            context.getContentResolver().registerContentObserver(Settings.Secure.CONTENT_URI,
+                    true /* notifyForDescendants */, mSettingsObserver, UserHandle.USER_ALL);
+            DeviceConfig.addOnPropertiesChangedListener(DeviceConfig.NAMESPACE_TELEPHONY,
+                    Runnable::run, mDeviceConfigListener);
+            DeviceConfig.addOnPropertiesChangedListener(DeviceConfig.NAMESPACE_PRIVACY,
+                    Runnable::run, mDeviceConfigListener);
+        }
+
+        void stop(Context context) {
+            context.getContentResolver().unregisterContentObserver(mSettingsObserver);
+            DeviceConfig.removeOnPropertiesChangedListener(mDeviceConfigListener);
+        }
+
+        Map<String, Long> getSettings(int userId) {
+            return mSettingsByUser.computeIfAbsent(userId, k -> new ConcurrentHashMap<>());
+        }
+
+        Map<String, Long> getDeviceConfig(String namespace) {
+            return mDeviceConfigByNamespace.computeIfAbsent(namespace,
+                    k -> new ConcurrentHashMap<>());
+        }
+    }
+
+    private static volatile Cache sCache;
+    private static Context sCacheContext;
+
     private Timeouts() {
     }
 
+    /**
+     * Starts caching the timeout values which are looked up, see {@link Cache}.
+     *
+     * @param context The context used to observe changes to the timeout settings.
+     */
+    public static synchronized void enableCache(Context context) {
+        disableCache();
+        Cache cache = new Cache();
+        cache.start(context);
+        sCacheContext = context;
+        sCache = cache;
+    }
+
+    @VisibleForTesting
+    public static synchronized void disableCache() {
+        if (sCache != null) {
+            sCache.stop(sCacheContext);
+            sCache = null;
+            sCacheContext = null;
+        }
+    }
+
     /**
      * Returns the timeout value from Settings or the default value if it hasn't been changed. This
      * method is safe to call from any thread, including the UI thread.
@@ -220,8 +316,37 @@ public final class Timeouts {
      * @return The timeout value from Settings or the default value if it hasn't been changed.
      */
     private static long get(ContentResolver contentResolver, String key, long defaultValue) {
-        return Settings.Secure.getLongForUser(contentResolver, PREFIX + key, defaultValue,
-                        contentResolver.getUserId());
+        Cache cache = sCache;
+        if (cache == null) {
+            return Settings.Secure.getLongForUser(contentResolver, PREFIX + key, defaultValue,
+                    contentResolver.getUserId());
+        }
+        // Keys are looked up without the prefix, so that a hit does not build a string.
+        Map<String, Long> values = cache.getSettings(contentResolver.getUserId());
+        Long value = values.get(key);
+        if (value == null) {
+            value = Settings.Secure.getLongForUser(contentResolver, PREFIX + key, defaultValue,
+                    contentResolver.getUserId());
+            values.put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value of a {@link DeviceConfig} property, or the default value if it is not set.
+     */
+    private static long getDeviceConfig(String namespace, String key, long defaultValue) {
+        Cache cache = sCache;
+        if (cache == null) {
+            return DeviceConfig.getLong(namespace, key, defaultValue);
+        }
+        Map<String, Long> values = cache.getDeviceConfig(namespace);
+        Long value = values.get(key);
+        if (value == null) {
+            value = DeviceConfig.getLong(namespace, key, defaultValue);
+            values.put(key, value);
+        }
+        return value;
     }
 
     /**
@@ -279,6 +404,25 @@ public final class Timeouts {
                 2000L /* 2 seconds */);
     }
 
+    /**
+     * Returns the amount of time for which the InCallServices are kept bound after the last call
+     * is removed, so that a call placed or received soon after does not have to bind to them
+     * again.
+     */
+    public static long getInCallServiceWarmWindowMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "in_call_service_warm_window_millis",
+                30000L /* 30 seconds */);
+    }
+
+    /**
+     * Returns the amount of time for which InCallServices which were bound ahead of a call are
+     * kept bound if the call is never added.
+     */
+    public static long getInCallServicePrebindTimeoutMillis(ContentResolver contentResolver) {
+        return get(contentResolver, "in_call_service_prebind_timeout_millis",
+                10000L /* 10 seconds */);
+    }
+
     /**
      * Returns the amount of time for which bluetooth is considered connected after requesting
      * connection. This compensates for the amount of time it takes for the audio route to
@@ -365,7 +509,7 @@ public final class Timeouts {
      * @return the state timeout in millis.
      */
     public static long getVoipCallTransitoryStateTimeoutMillis() {
-        return DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+        return getDeviceConfig(DeviceConfig.NAMESPACE_TELEPHONY,
                 TRANSITORY_STATE_VOIP_NORMAL_TIMEOUT_MILLIS, 5000L);
     }
 
@@ -376,7 +520,7 @@ public final class Timeouts {
      * @return the threshold in milliseconds
      */
     public static long getEmergencyCallTimeBeforeUserDisconnectThresholdMillis() {
-        return DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+        return getDeviceConfig(DeviceConfig.NAMESPACE_TELEPHONY,
                 EMERGENCY_CALL_TIME_BEFORE_USER_DISCONNECT_THRESHOLD_MILLIS, 20000L);
     }
 
@@ -386,7 +530,7 @@ public final class Timeouts {
      * @return the threshold in milliseconds
      */
     public static long getEmergencyCallActiveTimeThresholdMillis() {
-        return DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+        return getDeviceConfig(DeviceConfig.NAMESPACE_TELEPHONY,
                 EMERGENCY_CALL_ACTIVE_TIME_THRESHOLD_MILLIS, 15000L);
     }
 
@@ -395,7 +539,7 @@ public final class Timeouts {
      * data. Entries older than this are ignored
      */
     public static int getDaysBackToSearchEmergencyDiagnosticEntries() {
-        return DeviceConfig.getInt(DeviceConfig.NAMESPACE_TELEPHONY,
+        return (int) getDeviceConfig(DeviceConfig.NAMESPACE_TELEPHONY,
                 DAYS_BACK_TO_SEARCH_EMERGENCY_DROP_BOX_ENTRIES, 30);
     }
 
@@ -405,7 +549,7 @@ public final class Timeouts {
      * @return the state timeout in millis.
      */
     public static long getVoipEmergencyCallTransitoryStateTimeoutMillis() {
-        return DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+        return getDeviceConfig(DeviceConfig.NAMESPACE_TELEPHONY,
                 TRANSITORY_STATE_VOIP_EMERGENCY_TIMEOUT_MILLIS, 5000L);
     }
 
@@ -415,7 +559,7 @@ public final class Timeouts {
      * @return the state timeout in millis.
      */
     public static long getNonVoipCallTransitoryStateTimeoutMillis() {
-        return DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+        return getDeviceConfig(DeviceConfig.NAMESPACE_TELEPHONY,
                 TRANSITORY_STATE_NON_VOIP_NORMAL_TIMEOUT_MILLIS, 10000L);
     }
 
@@ -425,7 +569,7 @@ public final class Timeouts {
      * @return the state timeout in millis.
      */
     public static long getNonVoipEmergencyCallTransitoryStateTimeoutMillis() {
-        return DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+        return getDeviceConfig(DeviceConfig.NAMESPACE_TELEPHONY,
                 TRANSITORY_STATE_NON_VOIP_EMERGENCY_TIMEOUT_MILLIS, 10000L);
     }
 
@@ -435,7 +579,7 @@ public final class Timeouts {
      * @return the state timeout in millis.
      */
     public static long getVoipCallIntermediateStateTimeoutMillis() {
-        return DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+        return getDeviceConfig(DeviceConfig.NAMESPACE_TELEPHONY,
                 INTERMEDIATE_STATE_VOIP_NORMAL_TIMEOUT_MILLIS, 60000L);
     }
 
@@ -445,7 +589,7 @@ public final class Timeouts {
      * @return the state timeout in millis.
      */
     public static long getVoipEmergencyCallIntermediateStateTimeoutMillis() {
-        return DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+        return getDeviceConfig(DeviceConfig.NAMESPACE_TELEPHONY,
                 INTERMEDIATE_STATE_VOIP_EMERGENCY_TIMEOUT_MILLIS, 60000L);
     }
 
@@ -455,7 +599,7 @@ public final class Timeouts {
      * @return the state timeout in millis.
      */
     public static long getNonVoipCallIntermediateStateTimeoutMillis() {
-        return DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+        return getDeviceConfig(DeviceConfig.NAMESPACE_TELEPHONY,
                 INTERMEDIATE_STATE_NON_VOIP_NORMAL_TIMEOUT_MILLIS, 120000L);
     }
 
@@ -465,12 +609,12 @@ public final class Timeouts {
      * @return the state timeout in millis.
      */
     public static long getNonVoipEmergencyCallIntermediateStateTimeoutMillis() {
-        return DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+        return getDeviceConfig(DeviceConfig.NAMESPACE_TELEPHONY,
                 INTERMEDIATE_STATE_NON_VOIP_EMERGENCY_TIMEOUT_MILLIS, 60000L);
     }
 
     public static long getCallStartAppOpDebounceIntervalMillis() {
-        return DeviceConfig.getLong(DeviceConfig.NAMESPACE_PRIVACY, "app_op_debounce_time", 250L);
+        return getDeviceConfig(DeviceConfig.NAMESPACE_PRIVACY, "app_op_debounce_time", 250L);
     }
 
     /**
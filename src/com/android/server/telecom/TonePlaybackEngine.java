@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom;
+
+import android.annotation.Nullable;
+import android.media.AudioAttributes;
+import android.media.ToneGenerator;
+import android.os.Handler;
+import android.os.Looper;
+import android.telecom.Log;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived playback engine shared by the {@link InCallTonePlayer}s created by one
+ * {@link InCallTonePlayer.Factory}.
+ * <p>
+ * Tones are played on a pool of worker threads.  One worker is always kept, so that a tone does
+ * not have to wait for a thread to start; more are started when tones overlap (for example, a
+ * ringback tone still playing when a call waiting tone starts), and are stopped again once they
+ * have been idle for a while.
+ * <p>
+ * A {@link ToneGenerator} is kept for each stream and volume after its tone has stopped, so a
+ * tone played shortly after another one on the same stream does not have to create a new one.
+ * Unused generators are released after {@link #TONE_GENERATOR_IDLE_RELEASE_MILLIS}.  Media tones
+ * are prepared ahead of time: whenever a prepared media tone is used, a replacement is prepared
+ * in the background for the next time the same tone is played on the same stream, and released
+ * if it is not used within {@link #MEDIA_TONE_IDLE_RELEASE_MILLIS}.
+ */
+public class TonePlaybackEngine {
+    private static final String TAG = TonePlaybackEngine.class.getSimpleName();
+
+    /** How long a {@link ToneGenerator} is kept once its tone has stopped. */
+    @VisibleForTesting
+    public static final long TONE_GENERATOR_IDLE_RELEASE_MILLIS = 30000L;
+
+    /** How long a prepared media tone is kept when it is not used. */
+    @VisibleForTesting
+    public static final long MEDIA_TONE_IDLE_RELEASE_MILLIS = 30000L;
+
+    /** How long a worker thread beyond the first is kept once it is idle. */
+    private static final long EXTRA_WORKER_KEEP_ALIVE_SECONDS = 60L;
+
+    private final InCallTonePlayer.ToneGeneratorFactory mToneGeneratorFactory;
+    private final InCallTonePlayer.MediaPlayerFactory mMediaPlayerFactory;
+    private final ThreadPoolExecutor mExecutor;
+    /** Runs the background preparation of media tones. */
+    private final Executor mPrepareExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Idle tone generators, keyed by {@link #getToneGeneratorKey}; guarded by this. */
+    private final SparseArray<ToneGenerator> mIdleToneGenerators = new SparseArray<>();
+    /** Prepared media tones, keyed by {@link #getMediaToneKey}; guarded by this. */
+    private final LongSparseArray<InCallTonePlayer.MediaPlayerAdapter> mPreparedMediaTones =
+            new LongSparseArray<>();
+    /** Whether {@link #quit} was called; guarded by this. */
+    private boolean mIsQuit = false;
+
+    private final AtomicLong mNumTonesPlayed = new AtomicLong(0);
+    private final AtomicLong mNumToneGeneratorsCreated = new AtomicLong(0);
+    private final AtomicLong mNumToneGeneratorsReused = new AtomicLong(0);
+    private final AtomicLong mNumMediaTonesPrepared = new AtomicLong(0);
+    private final AtomicLong mNumMediaTonesReused = new AtomicLong(0);
+
+    public TonePlaybackEngine(InCallTonePlayer.ToneGeneratorFactory toneGeneratorFactory,
+            InCallTonePlayer.MediaPlayerFactory mediaPlayerFactory) {
+        this(toneGeneratorFactory, mediaPlayerFactory, null);
+    }
+
+    /**
+     * @param prepareExecutor Runs the background preparation of media tones, or {@code null} to
+     *                        run it on the workers.
+     */
+    @VisibleForTesting
+    public TonePlaybackEngine(InCallTonePlayer.ToneGeneratorFactory toneGeneratorFactory,
+            InCallTonePlayer.MediaPlayerFactory mediaPlayerFactory,
+            @Nullable Executor prepareExecutor) {
+        mToneGeneratorFactory = toneGeneratorFactory;
+        mMediaPlayerFactory = mediaPlayerFactory;
+        AtomicInteger threadCount = new AtomicInteger(0);
+        // Tones block their worker until they stop, so tasks are handed directly to a worker
+        // rather than queued behind a tone which may play for the rest of the call.
+        mExecutor = new ThreadPoolExecutor(1, Integer.MAX_VALUE,
+                EXTRA_WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                r -> new Thread(r, TAG + "-" + threadCount.incrementAndGet()));
+        mExecutor.prestartCoreThread();
+        mPrepareExecutor = prepareExecutor != null ? prepareExecutor : mExecutor;
+    }
+
+    /**
+     * Plays a tone on one of the workers.
+     *
+     * @param tonePlayer The tone to play; its {@link Runnable#run()} plays the tone until it
+     *                   stops.
+     */
+    public void play(Runnable tonePlayer) {
+        mNumTonesPlayed.incrementAndGet();
+        mExecutor.execute(tonePlayer);
+    }
+
+    /**
+     * Gets a {@link ToneGenerator} for a stream, reusing an idle one if there is one.  It must be
+     * handed back with {@link #releaseToneGenerator} once its tone has stopped.
+     *
+     * @throws RuntimeException if a new {@link ToneGenerator} cannot be created.
+     */
+    public ToneGenerator acquireToneGenerator(int stream, int volume) {
+        int key = getToneGeneratorKey(stream, volume);
+        synchronized (this) {
+            ToneGenerator toneGenerator = mIdleToneGenerators.get(key);
+            if (toneGenerator != null) {
+                mIdleToneGenerators.remove(key);
+                mHandler.removeCallbacksAndMessages(toneGenerator);
+                mNumToneGeneratorsReused.incrementAndGet();
+                return toneGenerator;
+            }
+        }
+        ToneGenerator toneGenerator = mToneGeneratorFactory.get(stream, volume);
+        mNumToneGeneratorsCreated.incrementAndGet();
+        return toneGenerator;
+    }
+
+    /**
+     * Stops the tone of a {@link ToneGenerator} obtained from {@link #acquireToneGenerator}, and
+     * keeps it for the next tone on the same stream.
+     */
+    public void releaseToneGenerator(int stream, int volume, ToneGenerator toneGenerator) {
+        toneGenerator.stopTone();
+        int key = getToneGeneratorKey(stream, volume);
+        synchronized (this) {
+            if (!mIsQuit && mIdleToneGenerators.get(key) == null) {
+                mIdleToneGenerators.put(key, toneGenerator);
+                mHandler.postDelayed(() -> releaseIdleToneGenerator(key, toneGenerator),
+                        toneGenerator, TONE_GENERATOR_IDLE_RELEASE_MILLIS);
+                return;
+            }
+        }
+        // A generator for this stream is already waiting; there is no need for two.
+        toneGenerator.release();
+    }
+
+    /**
+     * Gets a prepared media tone, and prepares another one in the background for the next time
+     * the same tone is played on the same stream.  The caller releases the returned player.
+     */
+    public InCallTonePlayer.MediaPlayerAdapter acquireMediaTone(int resourceId, int stream,
+            AudioAttributes attributes) {
+        long key = getMediaToneKey(resourceId, stream);
+        InCallTonePlayer.MediaPlayerAdapter mediaPlayer;
+        synchronized (this) {
+            mediaPlayer = mPreparedMediaTones.get(key);
+            mPreparedMediaTones.remove(key);
+        }
+        if (mediaPlayer != null) {
+            mHandler.removeCallbacksAndMessages(mediaPlayer);
+            mNumMediaTonesReused.incrementAndGet();
+        } else {
+            mediaPlayer = mMediaPlayerFactory.get(resourceId, attributes);
+        }
+        if (!mExecutor.isShutdown()) {
+            try {
+                mPrepareExecutor.execute(() -> prepareMediaTone(key, resourceId, attributes));
+            } catch (RejectedExecutionException e) {
+                // quit() was called since the check; there is no next time to prepare for.
+                Log.d(TAG, "Not preparing media tone %d after quit.", resourceId);
+            }
+        }
+        return mediaPlayer;
+    }
+
+    /**
+     * Lets the workers finish once their tones have stopped, and releases the idle tone
+     * generators and prepared media tones.  The engine must not be used to play tones afterwards.
+     */
+    public void quit() {
+        mExecutor.shutdown();
+        SparseArray<ToneGenerator> idleToneGenerators;
+        LongSparseArray<InCallTonePlayer.MediaPlayerAdapter> preparedMediaTones;
+        synchronized (this) {
+            mIsQuit = true;
+            idleToneGenerators = mIdleToneGenerators.clone();
+            mIdleToneGenerators.clear();
+            preparedMediaTones = mPreparedMediaTones.clone();
+            mPreparedMediaTones.clear();
+        }
+        for (int i = 0; i < idleToneGenerators.size(); i++) {
+            mHandler.removeCallbacksAndMessages(idleToneGenerators.valueAt(i));
+            idleToneGenerators.valueAt(i).release();
+        }
+        for (int i = 0; i < preparedMediaTones.size(); i++) {
+            mHandler.removeCallbacksAndMessages(preparedMediaTones.valueAt(i));
+            preparedMediaTones.valueAt(i).release();
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        int idleToneGenerators;
+        int preparedMediaTones;
+        synchronized (this) {
+            idleToneGenerators = mIdleToneGenerators.size();
+            preparedMediaTones = mPreparedMediaTones.size();
+        }
+        pw.println("workers: " + mExecutor.getPoolSize() + ", active: "
+                + mExecutor.getActiveCount() + ", largest: " + mExecutor.getLargestPoolSize()
+                + ", tonesPlayed: " + mNumTonesPlayed.get());
+        pw.println("toneGenerators created: " + mNumToneGeneratorsCreated.get() + ", reused: "
+                + mNumToneGeneratorsReused.get() + ", idle: " + idleToneGenerators);
+        pw.println("mediaTones prepared: " + mNumMediaTonesPrepared.get() + ", reused: "
+                + mNumMediaTonesReused.get() + ", ready: " + preparedMediaTones);
+    }
+
+    private void releaseIdleToneGenerator(int key, ToneGenerator toneGenerator) {
+        synchronized (this) {
+            if (mIdleToneGenerators.get(key) != toneGenerator) {
+                return;
+            }
+            mIdleToneGenerators.remove(key);
+        }
+        Log.d(TAG, "Releasing idle ToneGenerator for stream %d.", key >> 8);
+        toneGenerator.release();
+    }
+
+    private void releaseIdleMediaTone(long key, InCallTonePlayer.MediaPlayerAdapter mediaPlayer) {
+        synchronized (this) {
+            if (mPreparedMediaTones.get(key) != mediaPlayer) {
+                return;
+            }
+            mPreparedMediaTones.remove(key);
+        }
+        Log.d(TAG, "Releasing unused media tone %d.", key >> 32);
+        mediaPlayer.release();
+    }
+
+    private void prepareMediaTone(long key, int resourceId, AudioAttributes attributes) {
+        InCallTonePlayer.MediaPlayerAdapter mediaPlayer;
+        try {
+            mediaPlayer = mMediaPlayerFactory.get(resourceId, attributes);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to prepare media tone %d: %s", resourceId, e);
+            return;
+        }
+        if (mediaPlayer == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!mIsQuit && mPreparedMediaTones.get(key) == null) {
+                mPreparedMediaTones.put(key, mediaPlayer);
+                mNumMediaTonesPrepared.incrementAndGet();
+                mHandler.postDelayed(() -> releaseIdleMediaTone(key, mediaPlayer), mediaPlayer,
+                        MEDIA_TONE_IDLE_RELEASE_MILLIS);
+                return;
+            }
+        }
+        mediaPlayer.release();
+    }
+
+    private static int getToneGeneratorKey(int stream, int volume) {
+        // Volumes are percentages, so they fit in the low byte.
+        return (stream << 8) | (volume & 0xFF);
+    }
+
+    private static long getMediaToneKey(int resourceId, int stream) {
+        return ((long) resourceId << 32) | (stream & 0xFFFFFFFFL);
+    }
+}
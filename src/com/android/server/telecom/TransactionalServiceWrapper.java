@@ -251,11 +251,12 @@ public class TransactionalServiceWrapper implements
                         break;
                     case DISCONNECT:
                         addTransactionsToManager(new EndCallTransaction(mCallsManager,
-                                (DisconnectCause) objects[0], call), callback);
+                                (DisconnectCause) objects[0], call), call.getId(), callback);
                         break;
                     case SET_INACTIVE:
                         addTransactionsToManager(
-                                new HoldCallTransaction(mCallsManager, call), callback);
+                                new HoldCallTransaction(mCallsManager, call), call.getId(),
+                                callback);
                         break;
                     case START_STREAMING:
                         addTransactionsToManager(mStreamingController.getStartStreamingTransaction(mCallsManager,
@@ -335,9 +336,18 @@ public class TransactionalServiceWrapper implements
 
     public void addTransactionsToManager(VoipCallTransaction transaction,
             ResultReceiver callback) {
+        addTransactionsToManager(transaction, null /* queueKey */, callback);
+    }
+
+    /**
+     * Adds a transaction which only affects a single call to that call's transaction queue.
+     * @param queueKey The ID of the call, or {@code null} if the transaction affects other calls.
+     */
+    public void addTransactionsToManager(VoipCallTransaction transaction, String queueKey,
+            ResultReceiver callback) {
         Log.d(TAG, "addTransactionsToManager");
 
-        mTransactionManager.addTransaction(transaction, new OutcomeReceiver<>() {
+        mTransactionManager.addTransaction(transaction, queueKey, new OutcomeReceiver<>() {
             @Override
             public void onResult(VoipCallTransactionResult result) {
                 Log.d(TAG, "addTransactionsToManager: onResult:");
@@ -443,7 +453,8 @@ public class TransactionalServiceWrapper implements
             Log.i(TAG, String.format(Locale.US, "onSetInactive: callId=[%s]", call.getId()));
             mTransactionManager.addTransaction(
                     new CallEventCallbackAckTransaction(mICallEventCallback,
-                            ON_SET_INACTIVE, call.getId(), mLock), new OutcomeReceiver<>() {
+                            ON_SET_INACTIVE, call.getId(), mLock), call.getId(),
+                    new OutcomeReceiver<>() {
                         @Override
                         public void onResult(VoipCallTransactionResult result) {
                             mCallsManager.markCallAsOnHold(call);
@@ -467,7 +478,7 @@ public class TransactionalServiceWrapper implements
 
             mTransactionManager.addTransaction(
                     new CallEventCallbackAckTransaction(mICallEventCallback, ON_DISCONNECT,
-                            call.getId(), cause, mLock), new OutcomeReceiver<>() {
+                            call.getId(), cause, mLock), call.getId(), new OutcomeReceiver<>() {
                         @Override
                         public void onResult(VoipCallTransactionResult result) {
                             removeCallFromCallsManager(call, cause);
@@ -492,7 +503,7 @@ public class TransactionalServiceWrapper implements
 
             mTransactionManager.addTransaction(
                     new CallEventCallbackAckTransaction(mICallEventCallback, ON_STREAMING_STARTED,
-                            call.getId(), mLock), new OutcomeReceiver<>() {
+                            call.getId(), mLock), call.getId(), new OutcomeReceiver<>() {
                         @Override
                         public void onResult(VoipCallTransactionResult result) {
                         }
@@ -24,7 +24,19 @@ import android.telecom.Log;
 public class BlockCheckerAdapter {
     private static final String TAG = BlockCheckerAdapter.class.getSimpleName();
 
-    public BlockCheckerAdapter() { }
+    private final BlockedNumberIndex mBlockedNumberIndex;
+
+    public BlockCheckerAdapter() {
+        this(null /* blockedNumberIndex */);
+    }
+
+    /**
+     * @param blockedNumberIndex Index used to avoid querying the provider for numbers which are
+     *                           not blocked; {@code null} to always query the provider.
+     */
+    public BlockCheckerAdapter(BlockedNumberIndex blockedNumberIndex) {
+        mBlockedNumberIndex = blockedNumberIndex;
+    }
 
     /**
      * Returns the call blocking status for the {@code phoneNumber}.
@@ -47,6 +59,15 @@ public class BlockCheckerAdapter {
         int blockStatus = BlockedNumberContract.STATUS_NOT_BLOCKED;
         long startTimeNano = System.nanoTime();
 
+        // Enhanced call blocking (indicated by non-empty extras) can block numbers which are not
+        // in the block list, so only the provider can decide.
+        if (mBlockedNumberIndex != null && (extras == null || extras.isEmpty())) {
+            int indexedStatus = mBlockedNumberIndex.getBlockStatus(phoneNumber);
+            if (indexedStatus != BlockedNumberIndex.STATUS_UNKNOWN) {
+                return indexedStatus;
+            }
+        }
+
         try {
             blockStatus = BlockedNumberContract.SystemContract.shouldSystemBlockNumber(
                     context, phoneNumber, extras);
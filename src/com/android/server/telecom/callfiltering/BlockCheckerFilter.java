@@ -35,6 +35,7 @@ import com.android.server.telecom.settings.BlockedNumbersUtil;
 
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
 public class BlockCheckerFilter extends CallFilter {
     private final Call mCall;
@@ -45,20 +46,35 @@ public class BlockCheckerFilter extends CallFilter {
     private boolean mContactExists;
     private HandlerThread mHandlerThread;
     private Handler mHandler;
+    private final CallFilteringScheduler mScheduler;
 
     public static final long CALLER_INFO_QUERY_TIMEOUT = 5000;
 
     public BlockCheckerFilter(Context context, Call call,
             CallerInfoLookupHelper callerInfoLookupHelper,
             BlockCheckerAdapter blockCheckerAdapter) {
+        this(context, call, callerInfoLookupHelper, blockCheckerAdapter, null /* scheduler */);
+    }
+
+    /**
+     * Creates a block checker filter.
+     * @param scheduler The shared scheduler whose blocking lane is used for the block status
+     *                  query; where {@code null}, a dedicated {@link HandlerThread} is used.
+     */
+    public BlockCheckerFilter(Context context, Call call,
+            CallerInfoLookupHelper callerInfoLookupHelper,
+            BlockCheckerAdapter blockCheckerAdapter, CallFilteringScheduler scheduler) {
         mCall = call;
         mContext = context;
         mCallerInfoLookupHelper = callerInfoLookupHelper;
         mBlockCheckerAdapter = blockCheckerAdapter;
         mContactExists = false;
-        mHandlerThread = new HandlerThread(TAG);
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
+        mScheduler = scheduler;
+        if (mScheduler == null) {
+            mHandlerThread = new HandlerThread(TAG);
+            mHandlerThread.start();
+            mHandler = new Handler(mHandlerThread.getLooper());
+        }
     }
 
     @Override
@@ -112,9 +128,16 @@ public class BlockCheckerFilter extends CallFilter {
 
         CompletableFuture.supplyAsync(
                 () -> mBlockCheckerAdapter.getBlockStatus(mContext, number, extras),
-                new LoggedHandlerExecutor(mHandler, "BCF.gBS", null))
+                createExecutor("BCF.gBS"))
                 .thenApplyAsync((x) -> completeResult(resultFuture, x),
-                        new LoggedHandlerExecutor(mHandler, "BCF.gBS", null));
+                        createExecutor("BCF.gBS"));
+    }
+
+    private Executor createExecutor(String sessionName) {
+        if (mScheduler != null) {
+            return mScheduler.getBlockingExecutor(sessionName);
+        }
+        return new LoggedHandlerExecutor(mHandler, sessionName, null);
     }
 
     private int completeResult(CompletableFuture<CallFilteringResult> resultFuture,
@@ -146,7 +169,9 @@ public class BlockCheckerFilter extends CallFilter {
                 BlockedNumberContract.SystemContract.blockStatusToString(blockStatus) + " "
                         + result);
         resultFuture.complete(result);
-        mHandlerThread.quitSafely();
+        if (mHandlerThread != null) {
+            mHandlerThread.quitSafely();
+        }
         return blockStatus;
     }
 
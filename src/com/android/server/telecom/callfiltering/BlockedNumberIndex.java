@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.callfiltering;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.location.Country;
+import android.location.CountryDetector;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.BlockedNumberContract;
+import android.provider.BlockedNumberContract.BlockedNumbers;
+import android.telecom.Log;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process copy of the numbers in the {@link BlockedNumberContract} provider, used by
+ * {@link BlockCheckerAdapter} to rule out that a number is blocked without a provider round-trip.
+ * <p>
+ * The provider considers a number to be in the block list if it equals the original form of a
+ * blocked number, or if its E.164 form in the current country equals the E.164 form of a blocked
+ * number.  The index applies the same rules, and only ever answers
+ * {@link BlockedNumberContract#STATUS_NOT_BLOCKED} for numbers which match neither; the decision
+ * for a number which is in the list also depends on emergency call suppression, so it is always
+ * left to the provider.
+ * <p>
+ * The index is loaded on a background thread and is discarded whenever the provider notifies a
+ * change, then reloaded.  Until it has been (re)loaded, every lookup is left to the provider.
+ */
+public class BlockedNumberIndex {
+    private static final String TAG = "BlockedNumberIndex";
+
+    /**
+     * Returned by {@link #getBlockStatus(String)} when the index cannot decide whether a number
+     * is blocked, and the provider must be queried.
+     */
+    public static final int STATUS_UNKNOWN = -1;
+
+    private static final String[] PROJECTION = new String[] {
+            BlockedNumbers.COLUMN_ORIGINAL_NUMBER, BlockedNumbers.COLUMN_E164_NUMBER };
+
+    private static BlockedNumberIndex sInstance;
+
+    /** A snapshot of the block list. */
+    private static class BlockedNumberSet {
+        final Set<String> mOriginalNumbers;
+        final Set<String> mE164Numbers;
+
+        BlockedNumberSet(Set<String> originalNumbers, Set<String> e164Numbers) {
+            mOriginalNumbers = originalNumbers;
+            mE164Numbers = e164Numbers;
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    // Incremented whenever the provider reports a change; guarded by this.
+    private long mGeneration = 0;
+    // The current block list, or null if it is not loaded or is out of date; guarded by this.
+    private BlockedNumberSet mBlockedNumbers;
+    private volatile String mCountryIso;
+    private final AtomicLong mNumIndexedLookups = new AtomicLong(0);
+    private final AtomicLong mNumProviderLookups = new AtomicLong(0);
+    private final AtomicLong mNumLoads = new AtomicLong(0);
+    private volatile long mLastLoadMillis = 0;
+
+    /**
+     * Discards the index as soon as the provider reports a change.  The observer is called on
+     * the binder thread, so that lookups stop using the old block list as early as possible.
+     */
+    private final ContentObserver mBlockedNumbersObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    /**
+     * @return the process-wide {@link BlockedNumberIndex}, creating and starting it if needed.
+     */
+    public static synchronized BlockedNumberIndex getInstance(Context context) {
+        if (sInstance == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            sInstance = new BlockedNumberIndex(context, thread.getLooper());
+            sInstance.start();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public BlockedNumberIndex(Context context, Looper looper) {
+        mContext = context;
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Starts observing the provider and loads the index in the background.
+     */
+    @VisibleForTesting
+    public void start() {
+        mContext.getContentResolver().registerContentObserver(BlockedNumbers.CONTENT_URI,
+                true /* notifyForDescendants */, mBlockedNumbersObserver);
+        mHandler.post(() -> {
+            CountryDetector countryDetector =
+                    (CountryDetector) mContext.getSystemService(Context.COUNTRY_DETECTOR);
+            if (countryDetector != null) {
+                mCountryIso = getCountryIso(countryDetector.detectCountry());
+                countryDetector.addCountryListener(
+                        (country) -> mCountryIso = getCountryIso(country),
+                        mHandler.getLooper());
+            } else {
+                mCountryIso = Locale.getDefault().getCountry();
+            }
+            load();
+        });
+    }
+
+    /**
+     * Determines whether a number is blocked, without querying the provider.
+     *
+     * @param phoneNumber The number to check.
+     * @return {@link BlockedNumberContract#STATUS_NOT_BLOCKED} if the number is not in the block
+     *         list, or {@link #STATUS_UNKNOWN} if the provider must be queried.
+     */
+    public int getBlockStatus(String phoneNumber) {
+        BlockedNumberSet blockedNumbers;
+        synchronized (this) {
+            blockedNumbers = mBlockedNumbers;
+        }
+        String countryIso = mCountryIso;
+        if (blockedNumbers == null || countryIso == null || TextUtils.isEmpty(phoneNumber)
+                || blockedNumbers.mOriginalNumbers.contains(phoneNumber)) {
+            mNumProviderLookups.incrementAndGet();
+            return STATUS_UNKNOWN;
+        }
+        String e164Number = PhoneNumberUtils.formatNumberToE164(phoneNumber, countryIso);
+        if (e164Number != null && blockedNumbers.mE164Numbers.contains(e164Number)) {
+            mNumProviderLookups.incrementAndGet();
+            return STATUS_UNKNOWN;
+        }
+        mNumIndexedLookups.incrementAndGet();
+        return BlockedNumberContract.STATUS_NOT_BLOCKED;
+    }
+
+    /**
+     * @return {@code true} if the index is loaded and up to date.
+     */
+    public boolean isLoaded() {
+        synchronized (this) {
+            return mBlockedNumbers != null;
+        }
+    }
+
+    @VisibleForTesting
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        int size;
+        synchronized (this) {
+            size = mBlockedNumbers == null ? -1 : mBlockedNumbers.mOriginalNumbers.size();
+        }
+        pw.println("loaded: " + (size >= 0) + ", blockedNumbers: " + Math.max(size, 0)
+                + ", loads: " + mNumLoads.get() + ", lastLoadMillis: " + mLastLoadMillis);
+        pw.println("indexedLookups: " + mNumIndexedLookups.get()
+                + ", providerLookups: " + mNumProviderLookups.get());
+    }
+
+    private void invalidate() {
+        synchronized (this) {
+            mGeneration++;
+            mBlockedNumbers = null;
+        }
+        // Any load already queued or running will see the new generation and discard its result.
+        mHandler.post(this::load);
+    }
+
+    private void load() {
+        long generation;
+        synchronized (this) {
+            if (mBlockedNumbers != null) {
+                return;
+            }
+            generation = mGeneration;
+        }
+
+        long startMillis = SystemClock.elapsedRealtime();
+        Set<String> originalNumbers = new HashSet<>();
+        Set<String> e164Numbers = new HashSet<>();
+        try (Cursor cursor = mContext.getContentResolver().query(BlockedNumbers.CONTENT_URI,
+                PROJECTION, null, null, null)) {
+            if (cursor == null) {
+                Log.w(TAG, "Unable to load blocked numbers; provider unavailable.");
+                return;
+            }
+            while (cursor.moveToNext()) {
+                String originalNumber = cursor.getString(0);
+                String e164Number = cursor.getString(1);
+                if (!TextUtils.isEmpty(originalNumber)) {
+                    originalNumbers.add(originalNumber);
+                }
+                if (!TextUtils.isEmpty(e164Number)) {
+                    e164Numbers.add(e164Number);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, e, "Unable to load blocked numbers.");
+            return;
+        }
+
+        synchronized (this) {
+            if (generation != mGeneration) {
+                // The provider changed while loading; the load queued by the change will retry.
+                return;
+            }
+            mBlockedNumbers = new BlockedNumberSet(Collections.unmodifiableSet(originalNumbers),
+                    Collections.unmodifiableSet(e164Numbers));
+        }
+        mNumLoads.incrementAndGet();
+        mLastLoadMillis = SystemClock.elapsedRealtime() - startMillis;
+        Log.i(TAG, "Loaded %d blocked numbers in %d ms.", originalNumbers.size(),
+                mLastLoadMillis);
+    }
+
+    private static String getCountryIso(Country country) {
+        if (country == null) {
+            return Locale.getDefault().getCountry();
+        }
+        return country.getCountryIso();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.callfiltering;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.telecom.Logging.Runnable;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.server.telecom.Call;
+import com.android.server.telecom.TelecomSystem;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared, bounded set of threads used to run the {@link IncomingCallFilterGraph} and its
+ * {@link CallFilter}s, replacing the {@link HandlerThread}s which were previously started for
+ * every incoming call.
+ * <p>
+ * Each call is pinned to one of a fixed number of filtering lanes, so the work for a single call
+ * (including its filtering timeout) is always executed in order on the same thread.  Filters
+ * which must make blocking calls (e.g. {@link BlockCheckerFilter}) use a separate small pool of
+ * blocking threads so that they do not hold up the timeouts of other calls, and so that a slow
+ * query for one call does not delay the queries of other calls.
+ * <p>
+ * The scheduler tracks the queue depth of the lanes and the latency of each filter type, which
+ * are reported in dumpsys.
+ */
+public class CallFilteringScheduler {
+    private static final String TAG = "CallFilteringScheduler";
+    private static final int NUM_FILTERING_LANES = 2;
+    private static final int MAX_BLOCKING_THREADS = 4;
+    private static final long BLOCKING_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private static CallFilteringScheduler sInstance;
+
+    private final Handler[] mLaneHandlers;
+    private final ThreadPoolExecutor mBlockingExecutor;
+    private final AtomicInteger mQueueDepth = new AtomicInteger(0);
+    private int mMaxQueueDepth = 0;
+    // Guarded by this.
+    private final Map<String, FilterLatency> mFilterLatencies = new HashMap<>();
+
+    private static class FilterLatency {
+        long count;
+        long totalMillis;
+        long maxMillis;
+    }
+
+    /**
+     * @return the process-wide {@link CallFilteringScheduler}, creating it if needed.
+     */
+    public static synchronized CallFilteringScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new CallFilteringScheduler(NUM_FILTERING_LANES);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public CallFilteringScheduler(int numLanes) {
+        mLaneHandlers = new Handler[numLanes];
+        for (int i = 0; i < numLanes; i++) {
+            HandlerThread thread = new HandlerThread(TAG + "-" + i);
+            thread.start();
+            mLaneHandlers[i] = new Handler(thread.getLooper());
+        }
+        AtomicInteger blockingThreadCount = new AtomicInteger(0);
+        // Blocking threads are only started while there is work queued, and exit once idle.
+        mBlockingExecutor = new ThreadPoolExecutor(MAX_BLOCKING_THREADS, MAX_BLOCKING_THREADS,
+                BLOCKING_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, TAG + "-blocking-" + blockingThreadCount.incrementAndGet()));
+        mBlockingExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the handler of the lane the specified call is pinned to.  All filtering work for a
+     * call, including its timeout, must be posted to this handler to preserve ordering.
+     * @param call The call being filtered.
+     * @return the lane handler.
+     */
+    public Handler getHandler(Call call) {
+        String id = call == null ? null : call.getId();
+        int lane = id == null ? 0 : Math.floorMod(id.hashCode(), mLaneHandlers.length);
+        return mLaneHandlers[lane];
+    }
+
+    /**
+     * Creates an executor which posts to the lane of the specified call and records the queue
+     * depth of the scheduler.
+     * @param call The call being filtered.
+     * @param sessionName The log session name to use when running tasks.
+     * @param lock The telecom lock to hold while running tasks, or {@code null}.
+     * @return the executor.
+     */
+    public Executor getExecutor(Call call, String sessionName, TelecomSystem.SyncRoot lock) {
+        return getExecutor(getHandler(call), sessionName, lock);
+    }
+
+    /**
+     * Creates an executor which runs tasks on the shared pool of blocking threads and records the
+     * queue depth of the scheduler.  Tasks for different calls may run concurrently, so callers
+     * must not rely on their ordering.
+     * @param sessionName The log session name to use when running tasks.
+     * @return the executor.
+     */
+    public Executor getBlockingExecutor(String sessionName) {
+        return getExecutor(mBlockingExecutor, sessionName, null);
+    }
+
+    private Executor getExecutor(Handler handler, String sessionName,
+            TelecomSystem.SyncRoot lock) {
+        return getExecutor((Executor) handler::post, sessionName, lock);
+    }
+
+    private Executor getExecutor(Executor executor, String sessionName,
+            TelecomSystem.SyncRoot lock) {
+        return command -> {
+            onTaskQueued();
+            executor.execute(new Runnable(sessionName, lock) {
+                @Override
+                public void loggedRun() {
+                    mQueueDepth.decrementAndGet();
+                    command.run();
+                }
+            }.prepare());
+        };
+    }
+
+    @VisibleForTesting
+    public int getMaxBlockingThreads() {
+        return mBlockingExecutor.getMaximumPoolSize();
+    }
+
+    private void onTaskQueued() {
+        int depth = mQueueDepth.incrementAndGet();
+        synchronized (this) {
+            if (depth > mMaxQueueDepth) {
+                mMaxQueueDepth = depth;
+            }
+        }
+    }
+
+    /**
+     * Records how long a filter took from being started until its result was available.
+     * @param filter The filter which completed.
+     * @param startTimeMillis The {@link SystemClock#elapsedRealtime()} the filter started at.
+     */
+    public void recordFilterLatency(CallFilter filter, long startTimeMillis) {
+        long latencyMillis = SystemClock.elapsedRealtime() - startTimeMillis;
+        String name = filter.getClass().getSimpleName();
+        synchronized (this) {
+            FilterLatency latency = mFilterLatencies.get(name);
+            if (latency == null) {
+                latency = new FilterLatency();
+                mFilterLatencies.put(name, latency);
+            }
+            latency.count++;
+            latency.totalMillis += latencyMillis;
+            latency.maxMillis = Math.max(latency.maxMillis, latencyMillis);
+        }
+    }
+
+    @VisibleForTesting
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    @VisibleForTesting
+    public synchronized long getFilterCount(Class<? extends CallFilter> filterClass) {
+        FilterLatency latency = mFilterLatencies.get(filterClass.getSimpleName());
+        return latency == null ? 0 : latency.count;
+    }
+
+    public synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("numLanes: " + mLaneHandlers.length + ", blockingThreads: "
+                + mBlockingExecutor.getPoolSize() + "/" + mBlockingExecutor.getMaximumPoolSize());
+        pw.println("queueDepth: " + mQueueDepth.get() + ", maxQueueDepth: " + mMaxQueueDepth);
+        pw.println("filterLatencies:");
+        pw.increaseIndent();
+        for (Map.Entry<String, FilterLatency> entry : mFilterLatencies.entrySet()) {
+            FilterLatency latency = entry.getValue();
+            pw.println(entry.getKey() + ": count=" + latency.count
+                    + ", avgMillis=" + (latency.totalMillis / latency.count)
+                    + ", maxMillis=" + latency.maxMillis);
+        }
+        pw.decreaseIndent();
+    }
+}
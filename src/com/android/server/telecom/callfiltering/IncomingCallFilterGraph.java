@@ -19,6 +19,7 @@ package com.android.server.telecom.callfiltering;
 import android.content.Context;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.telecom.Log;
 import android.telecom.Logging.Runnable;
 
@@ -31,6 +32,8 @@ import com.android.server.telecom.Timeouts;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
 public class IncomingCallFilterGraph {
     //TODO: Add logging for control flow.
@@ -48,6 +51,7 @@ public class IncomingCallFilterGraph {
     private final Call mCall;
     private final Handler mHandler;
     private final HandlerThread mHandlerThread;
+    private final CallFilteringScheduler mScheduler;
     private final TelecomSystem.SyncRoot mLock;
     private List<CallFilter> mFiltersList;
     private CallFilter mCompletionSentinel;
@@ -58,13 +62,22 @@ public class IncomingCallFilterGraph {
 
     private class PostFilterTask {
         private final CallFilter mFilter;
+        private long mStartTimeMillis;
 
         public PostFilterTask(final CallFilter filter) {
             mFilter = filter;
         }
 
+        public CompletionStage<CallFilteringResult> start(CallFilteringResult input) {
+            mStartTimeMillis = SystemClock.elapsedRealtime();
+            return mFilter.startFilterLookup(input);
+        }
+
         public CallFilteringResult whenDone(CallFilteringResult result) {
             Log.i(TAG, "Filter %s done, result: %s.", mFilter, result);
+            if (mScheduler != null) {
+                mScheduler.recordFilterLatency(mFilter, mStartTimeMillis);
+            }
             mFilter.result = result;
             for (CallFilter filter : mFilter.getFollowings()) {
                 if (filter.decrementAndGetIndegree() == 0) {
@@ -77,7 +90,7 @@ public class IncomingCallFilterGraph {
                     mListener.onCallFilteringComplete(mCall, result, false);
                     Log.addEvent(mCall, LogUtils.Events.FILTERING_COMPLETED, result);
                 }
-                mHandlerThread.quit();
+                quitHandlerThread();
             }
             return result;
         }
@@ -85,13 +98,30 @@ public class IncomingCallFilterGraph {
 
     public IncomingCallFilterGraph(Call call, CallFilterResultCallback listener, Context context,
             Timeouts.Adapter timeoutsAdapter, TelecomSystem.SyncRoot lock) {
+        this(call, listener, context, timeoutsAdapter, lock, null /* scheduler */);
+    }
+
+    /**
+     * Creates a filter graph.
+     * @param scheduler The shared scheduler to run the graph on; where {@code null}, a dedicated
+     *                  {@link HandlerThread} is started for this graph instead.
+     */
+    public IncomingCallFilterGraph(Call call, CallFilterResultCallback listener, Context context,
+            Timeouts.Adapter timeoutsAdapter, TelecomSystem.SyncRoot lock,
+            CallFilteringScheduler scheduler) {
         mListener = listener;
         mCall = call;
         mFiltersList = new ArrayList<>();
 
-        mHandlerThread = new HandlerThread(TAG);
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
+        mScheduler = scheduler;
+        if (mScheduler != null) {
+            mHandlerThread = null;
+            mHandler = mScheduler.getHandler(call);
+        } else {
+            mHandlerThread = new HandlerThread(TAG);
+            mHandlerThread.start();
+            mHandler = new Handler(mHandlerThread.getLooper());
+        }
         mLock = lock;
         mFinished = false;
         mContext = context;
@@ -125,7 +155,7 @@ public class IncomingCallFilterGraph {
                     Log.addEvent(mCall, LogUtils.Events.FILTERING_TIMED_OUT);
                     mListener.onCallFilteringComplete(mCall, mCurrentResult, true);
                     mFinished = true;
-                    mHandlerThread.quit();
+                    quitHandlerThread();
                 }
                 for (CallFilter filter : mFiltersList) {
                     // unbind timed out call screening service
@@ -134,7 +164,8 @@ public class IncomingCallFilterGraph {
                     }
                 }
             }
-        }.prepare(), mTimeoutsAdapter.getCallScreeningTimeoutMillis(mContext.getContentResolver()));
+        }.prepare(), this /* token */,
+                mTimeoutsAdapter.getCallScreeningTimeoutMillis(mContext.getContentResolver()));
     }
 
     private void scheduleFilter(CallFilter filter) {
@@ -158,10 +189,8 @@ public class IncomingCallFilterGraph {
 
         // TODO: improve these filter logging names to be more reflective of the filters that are
         // executing
-        startFuture.thenComposeAsync(filter::startFilterLookup,
-                new LoggedHandlerExecutor(mHandler, "ICFG.sF", null))
-                .thenApplyAsync(postFilterTask::whenDone,
-                        new LoggedHandlerExecutor(mHandler, "ICFG.sF", null))
+        startFuture.thenComposeAsync(postFilterTask::start, createExecutor("ICFG.sF"))
+                .thenApplyAsync(postFilterTask::whenDone, createExecutor("ICFG.sF"))
                 .exceptionally((t) -> {
                     Log.e(filter, t, "Encountered exception running filter");
                     return null;
@@ -174,6 +203,26 @@ public class IncomingCallFilterGraph {
         after.addDependency(before);
     }
 
+    private Executor createExecutor(String sessionName) {
+        if (mScheduler != null) {
+            return mScheduler.getExecutor(mCall, sessionName, null);
+        }
+        return new LoggedHandlerExecutor(mHandler, sessionName, null);
+    }
+
+    private void quitHandlerThread() {
+        if (mHandlerThread != null) {
+            mHandlerThread.quit();
+        } else {
+            // The shared scheduler's threads outlive the graph, so cancel the pending timeout.
+            mHandler.removeCallbacksAndMessages(this);
+        }
+    }
+
+    /**
+     * @return the dedicated thread of this graph, or {@code null} if it runs on a shared
+     * {@link CallFilteringScheduler}.
+     */
     public HandlerThread getHandlerThread() {
         return mHandlerThread;
     }
@@ -73,6 +73,7 @@ import com.android.server.telecom.TelecomSystem;
 import com.android.server.telecom.Timeouts;
 import com.android.server.telecom.components.TelecomBroadcastReceiver;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -637,69 +638,18 @@ public class MissedCallNotifierImpl extends CallsManagerListenerBase implements
                         synchronized(mMissedCallCountsLock) {
                             mMissedCallCounts.remove(userHandle);
                         }
-                        while (cursor.moveToNext()) {
-                            // Get data about the missed call from the cursor
-                            final String handleString = cursor.getString(CALL_LOG_COLUMN_NUMBER);
-                            final Uri uri;
-                            if (mFeatureFlags.addCallUriForMissedCalls()){
-                                uri = Calls.CONTENT_URI.buildUpon().appendPath(
-                                        Long.toString(cursor.getInt(CALL_LOG_COLUMN_ID))).build();
-                            }else{
-                                uri = null;
+                        if (mFeatureFlags.batchMissedCallReload()) {
+                            List<ReloadedMissedCall> missedCalls = new ArrayList<>();
+                            while (cursor.moveToNext()) {
+                                missedCalls.add(readMissedCall(cursor));
                             }
-                            final int presentation =
-                                    cursor.getInt(CALL_LOG_COLUMN_NUMBER_PRESENTATION);
-                            final long date = cursor.getLong(CALL_LOG_COLUMN_DATE);
-
-                            final Uri handle;
-                            if (presentation != Calls.PRESENTATION_ALLOWED
-                                    || TextUtils.isEmpty(handleString)) {
-                                handle = null;
-                            } else {
-                                // TODO: Remove the assumption that numbers are SIP or TEL only.
-                                handle = Uri.fromParts(PhoneNumberUtils.isUriNumber(handleString) ?
-                                        PhoneAccount.SCHEME_SIP : PhoneAccount.SCHEME_TEL,
-                                                handleString, null);
+                            showReloadedMissedCalls(callerInfoLookupHelper, callInfoFactory,
+                                    userHandle, missedCalls);
+                        } else {
+                            while (cursor.moveToNext()) {
+                                lookUpAndShowMissedCall(callerInfoLookupHelper, callInfoFactory,
+                                        userHandle, readMissedCall(cursor));
                             }
-
-                            callerInfoLookupHelper.startLookup(handle,
-                                    new CallerInfoLookupHelper.OnQueryCompleteListener() {
-                                        @Override
-                                        public void onCallerInfoQueryComplete(Uri queryHandle,
-                                                CallerInfo info) {
-                                            if (!Objects.equals(queryHandle, handle)) {
-                                                Log.w(MissedCallNotifierImpl.this,
-                                                        "CallerInfo query returned with " +
-                                                                "different handle.");
-                                                return;
-                                            }
-                                            if (info == null ||
-                                                    info.getContactDisplayPhotoUri() == null) {
-                                                // If there is no photo or if the caller info is
-                                                // null, just show the notification.
-                                                CallInfo callInfo = callInfoFactory.makeCallInfo(
-                                                        info, null, handle, date);
-                                                showMissedCallNotification(callInfo, userHandle,
-                                                        /* uri= */ uri);
-                                            }
-                                        }
-
-                                        @Override
-                                        public void onContactPhotoQueryComplete(Uri queryHandle,
-                                                CallerInfo info) {
-                                            if (!Objects.equals(queryHandle, handle)) {
-                                                Log.w(MissedCallNotifierImpl.this,
-                                                        "CallerInfo query for photo returned " +
-                                                                "with different handle.");
-                                                return;
-                                            }
-                                            CallInfo callInfo = callInfoFactory.makeCallInfo(
-                                                    info, null, handle, date);
-                                            showMissedCallNotification(callInfo, userHandle,
-                                                    /* uri= */ uri);
-                                        }
-                                    }
-                            );
                         }
                     } finally {
                         cursor.close();
@@ -716,6 +666,118 @@ public class MissedCallNotifierImpl extends CallsManagerListenerBase implements
                 CALL_LOG_WHERE_CLAUSE, null, Calls.DEFAULT_SORT_ORDER);
     }
 
+    /** A missed call read from the call log by {@link #reloadFromDatabase}. */
+    private static final class ReloadedMissedCall {
+        final Uri mHandle;
+        final long mDate;
+        final Uri mUri;
+
+        ReloadedMissedCall(Uri handle, long date, Uri uri) {
+            mHandle = handle;
+            mDate = date;
+            mUri = uri;
+        }
+    }
+
+    private ReloadedMissedCall readMissedCall(Cursor cursor) {
+        // Get data about the missed call from the cursor
+        final String handleString = cursor.getString(CALL_LOG_COLUMN_NUMBER);
+        final Uri uri;
+        if (mFeatureFlags.addCallUriForMissedCalls()) {
+            uri = Calls.CONTENT_URI.buildUpon().appendPath(
+                    Long.toString(cursor.getInt(CALL_LOG_COLUMN_ID))).build();
+        } else {
+            uri = null;
+        }
+        final int presentation = cursor.getInt(CALL_LOG_COLUMN_NUMBER_PRESENTATION);
+        final long date = cursor.getLong(CALL_LOG_COLUMN_DATE);
+
+        final Uri handle;
+        if (presentation != Calls.PRESENTATION_ALLOWED || TextUtils.isEmpty(handleString)) {
+            handle = null;
+        } else {
+            // TODO: Remove the assumption that numbers are SIP or TEL only.
+            handle = Uri.fromParts(PhoneNumberUtils.isUriNumber(handleString) ?
+                    PhoneAccount.SCHEME_SIP : PhoneAccount.SCHEME_TEL, handleString, null);
+        }
+        return new ReloadedMissedCall(handle, date, uri);
+    }
+
+    private void lookUpAndShowMissedCall(CallerInfoLookupHelper callerInfoLookupHelper,
+            CallInfoFactory callInfoFactory, UserHandle userHandle,
+            ReloadedMissedCall missedCall) {
+        final Uri handle = missedCall.mHandle;
+        callerInfoLookupHelper.startLookup(handle,
+                new CallerInfoLookupHelper.OnQueryCompleteListener() {
+                    @Override
+                    public void onCallerInfoQueryComplete(Uri queryHandle, CallerInfo info) {
+                        if (!Objects.equals(queryHandle, handle)) {
+                            Log.w(MissedCallNotifierImpl.this,
+                                    "CallerInfo query returned with different handle.");
+                            return;
+                        }
+                        if (info == null || info.getContactDisplayPhotoUri() == null) {
+                            // If there is no photo or if the caller info is null, just show the
+                            // notification.
+                            CallInfo callInfo = callInfoFactory.makeCallInfo(
+                                    info, null, handle, missedCall.mDate);
+                            showMissedCallNotification(callInfo, userHandle, missedCall.mUri);
+                        }
+                    }
+
+                    @Override
+                    public void onContactPhotoQueryComplete(Uri queryHandle, CallerInfo info) {
+                        if (!Objects.equals(queryHandle, handle)) {
+                            Log.w(MissedCallNotifierImpl.this,
+                                    "CallerInfo query for photo returned with different handle.");
+                            return;
+                        }
+                        CallInfo callInfo = callInfoFactory.makeCallInfo(
+                                info, null, handle, missedCall.mDate);
+                        showMissedCallNotification(callInfo, userHandle, missedCall.mUri);
+                    }
+                }
+        );
+    }
+
+    /**
+     * Shows the missed calls reloaded from the call log with a single notification update.
+     * <p>
+     * Only the notification for a single missed call shows who called; with more than one, the
+     * notification only counts the calls.  So the caller info is only looked up when there is a
+     * single missed call, and otherwise the notification is posted once, for the newest call
+     * and with the final count, instead of once per call after a contacts query for each.
+     */
+    private void showReloadedMissedCalls(CallerInfoLookupHelper callerInfoLookupHelper,
+            CallInfoFactory callInfoFactory, UserHandle userHandle,
+            List<ReloadedMissedCall> missedCalls) {
+        if (missedCalls.isEmpty()) {
+            return;
+        }
+        if (missedCalls.size() == 1) {
+            lookUpAndShowMissedCall(callerInfoLookupHelper, callInfoFactory, userHandle,
+                    missedCalls.get(0));
+            return;
+        }
+        ReloadedMissedCall newest = missedCalls.get(0);
+        for (ReloadedMissedCall missedCall : missedCalls) {
+            if (missedCall.mDate > newest.mDate) {
+                newest = missedCall;
+            }
+        }
+        Log.i(this, "showReloadedMissedCalls: %d missed calls for user %d",
+                missedCalls.size(), userHandle.getIdentifier());
+        synchronized (mMissedCallCountsLock) {
+            // showMissedCallNotification counts the newest call itself.
+            Integer currentCount = mMissedCallCounts.get(userHandle);
+            mMissedCallCounts.put(userHandle,
+                    (currentCount == null ? 0 : currentCount) + missedCalls.size() - 1);
+        }
+        CallInfo callInfo = callInfoFactory.makeCallInfo(null, null, newest.mHandle,
+                newest.mDate);
+        showMissedCallNotification(callInfo, userHandle, newest.mUri);
+    }
+
     @Override
     public void setCurrentUserHandle(UserHandle currentUserHandle) {
         mCurrentUserHandle = currentUserHandle;
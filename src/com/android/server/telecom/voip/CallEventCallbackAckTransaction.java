@@ -32,8 +32,6 @@ import com.android.server.telecom.TransactionalServiceWrapper;
 
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
 
 /**
  * SRP: using the ICallEventCallback binder, reach out to the client for the pending call event and
@@ -52,17 +50,18 @@ public class CallEventCallbackAckTransaction extends VoipCallTransaction {
             CODE_OPERATION_TIMED_OUT, "failed to complete the operation before timeout");
 
     private static class AckResultReceiver extends ResultReceiver {
-        CountDownLatch mCountDownLatch;
+        CompletableFuture<VoipCallTransactionResult> mAckFuture;
 
-        public AckResultReceiver(CountDownLatch latch) {
+        public AckResultReceiver(CompletableFuture<VoipCallTransactionResult> ackFuture) {
             super(null);
-            mCountDownLatch = latch;
+            mAckFuture = ackFuture;
         }
 
         @Override
         protected void onReceiveResult(int resultCode, Bundle resultData) {
             if (resultCode == TELECOM_TRANSACTION_SUCCESS) {
-                mCountDownLatch.countDown();
+                mAckFuture.complete(new VoipCallTransactionResult(
+                        VoipCallTransactionResult.RESULT_SUCCEED, "success"));
             }
         }
     }
@@ -95,11 +94,16 @@ public class CallEventCallbackAckTransaction extends VoipCallTransaction {
     }
 
 
+    /**
+     * Completes once the client acks the call event, or with a failure after
+     * {@link VoipCallTransaction#TIMEOUT_LIMIT}.  The wait does not block the thread this
+     * transaction runs on, which may be shared with other transactions.
+     */
     @Override
     public CompletionStage<VoipCallTransactionResult> processTransaction(Void v) {
         Log.d(TAG, "processTransaction");
-        CountDownLatch latch = new CountDownLatch(1);
-        ResultReceiver receiver = new AckResultReceiver(latch);
+        CompletableFuture<VoipCallTransactionResult> ackFuture = new CompletableFuture<>();
+        ResultReceiver receiver = new AckResultReceiver(ackFuture);
 
         try {
             switch (mAction) {
@@ -123,22 +127,14 @@ public class CallEventCallbackAckTransaction extends VoipCallTransaction {
             return CompletableFuture.completedFuture(TRANSACTION_FAILED);
         }
 
-        try {
-            // wait for the client to ack that CallEventCallback
-            boolean success = latch.await(VoipCallTransaction.TIMEOUT_LIMIT, TimeUnit.MILLISECONDS);
-            if (!success) {
+        // wait for the client to ack that CallEventCallback
+        postTimeout(() -> {
+            if (ackFuture.complete(TRANSACTION_FAILED)) {
                 // client send onError and failed to complete transaction
                 Log.i(TAG, String.format("CallEventCallbackAckTransaction:"
                         + " client failed to complete the [%s] transaction", mAction));
-                return CompletableFuture.completedFuture(TRANSACTION_FAILED);
-            } else {
-                // success
-                return CompletableFuture.completedFuture(
-                        new VoipCallTransactionResult(VoipCallTransactionResult.RESULT_SUCCEED,
-                                "success"));
             }
-        } catch (InterruptedException ie) {
-            return CompletableFuture.completedFuture(TRANSACTION_FAILED);
-        }
+        });
+        return ackFuture;
     }
 }
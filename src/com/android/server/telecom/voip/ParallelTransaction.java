@@ -34,9 +34,10 @@ public class ParallelTransaction extends VoipCallTransaction {
 
     @Override
     public void start() {
+        setUpHandler();
         // post timeout work
         CompletableFuture<Void> future = new CompletableFuture<>();
-        mHandler.postDelayed(() -> future.complete(null), TIMEOUT_LIMIT);
+        postTimeout(() -> future.complete(null));
         future.thenApplyAsync((x) -> {
             if (mCompleted.getAndSet(true)) {
                 return null;
@@ -60,6 +61,9 @@ public class ParallelTransaction extends VoipCallTransaction {
                             if (result.getResult() != VoipCallTransactionResult.RESULT_SUCCEED) {
                                 CompletableFuture.completedFuture(null).thenApplyAsync(
                                         (x) -> {
+                                            if (mCompleted.getAndSet(true)) {
+                                                return null;
+                                            }
                                             VoipCallTransactionResult mainResult =
                                                     new VoipCallTransactionResult(
                                                             VoipCallTransactionResult.RESULT_FAILED,
@@ -84,6 +88,9 @@ public class ParallelTransaction extends VoipCallTransaction {
                         public void onTransactionTimeout(String transactionName) {
                             CompletableFuture.completedFuture(null).thenApplyAsync(
                                     (x) -> {
+                                        if (mCompleted.getAndSet(true)) {
+                                            return null;
+                                        }
                                         VoipCallTransactionResult mainResult =
                                                 new VoipCallTransactionResult(
                                                 VoipCallTransactionResult.RESULT_FAILED,
@@ -99,8 +106,7 @@ public class ParallelTransaction extends VoipCallTransaction {
                         }
                     };
             for (VoipCallTransaction transaction : mSubTransactions) {
-                transaction.setCompleteListener(subTransactionListener);
-                transaction.start();
+                startSubTransaction(transaction, subTransactionListener);
             }
         } else {
             scheduleTransaction();
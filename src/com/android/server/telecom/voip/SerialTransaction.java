@@ -37,9 +37,10 @@ public class SerialTransaction extends VoipCallTransaction {
 
     @Override
     public void start() {
+        setUpHandler();
         // post timeout work
         CompletableFuture<Void> future = new CompletableFuture<>();
-        mHandler.postDelayed(() -> future.complete(null), TIMEOUT_LIMIT);
+        postTimeout(() -> future.complete(null));
         future.thenApplyAsync((x) -> {
             if (mCompleted.getAndSet(true)) {
                 return null;
@@ -63,6 +64,9 @@ public class SerialTransaction extends VoipCallTransaction {
                                 handleTransactionFailure();
                                 CompletableFuture.completedFuture(null).thenApplyAsync(
                                         (x) -> {
+                                            if (mCompleted.getAndSet(true)) {
+                                                return null;
+                                            }
                                             VoipCallTransactionResult mainResult =
                                                     new VoipCallTransactionResult(
                                                             VoipCallTransactionResult.RESULT_FAILED,
@@ -79,8 +83,7 @@ public class SerialTransaction extends VoipCallTransaction {
                             } else {
                                 if (mSubTransactions.size() > 0) {
                                     VoipCallTransaction transaction = mSubTransactions.remove(0);
-                                    transaction.setCompleteListener(this);
-                                    transaction.start();
+                                    startSubTransaction(transaction, this);
                                 } else {
                                     scheduleTransaction();
                                 }
@@ -92,6 +95,9 @@ public class SerialTransaction extends VoipCallTransaction {
                             handleTransactionFailure();
                             CompletableFuture.completedFuture(null).thenApplyAsync(
                                     (x) -> {
+                                        if (mCompleted.getAndSet(true)) {
+                                            return null;
+                                        }
                                         VoipCallTransactionResult mainResult =
                                                 new VoipCallTransactionResult(
                                                 VoipCallTransactionResult.RESULT_FAILED,
@@ -107,8 +113,7 @@ public class SerialTransaction extends VoipCallTransaction {
                         }
                     };
             VoipCallTransaction transaction = mSubTransactions.remove(0);
-            transaction.setCompleteListener(subTransactionListener);
-            transaction.start();
+            startSubTransaction(transaction, subTransactionListener);
         } else {
             scheduleTransaction();
         }
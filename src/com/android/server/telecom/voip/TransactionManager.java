@@ -19,32 +19,80 @@ package com.android.server.telecom.voip;
 import static android.telecom.CallException.CODE_OPERATION_TIMED_OUT;
 
 import android.os.OutcomeReceiver;
+import android.os.SystemClock;
 import android.telecom.TelecomManager;
 import android.telecom.CallException;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.Set;
 
 public class TransactionManager {
     private static final String TAG = "VoipCallTransactionManager";
+    /** Name used in dumpsys for transactions which are not scoped to a single queue. */
+    private static final String GLOBAL_QUEUE_NAME = "global";
+    /** Number of per-queue latency entries kept for dumpsys. */
+    private static final int MAX_QUEUE_STATS = 10;
     private static TransactionManager INSTANCE = null;
     private static final Object sLock = new Object();
-    private Queue<VoipCallTransaction> mTransactions;
-    private VoipCallTransaction mCurrentTransaction;
+    private List<QueuedTransaction> mTransactions;
+    private List<QueuedTransaction> mRunningTransactions;
+    private TransactionScheduler mScheduler;
+    private boolean mPerCallQueuesEnabled;
+    private final Map<String, QueueStats> mQueueStats =
+            new LinkedHashMap<>(MAX_QUEUE_STATS, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, QueueStats> eldest) {
+                    return size() > MAX_QUEUE_STATS;
+                }
+            };
 
     public interface TransactionCompleteListener {
         void onTransactionCompleted(VoipCallTransactionResult result, String transactionName);
         void onTransactionTimeout(String transactionName);
     }
 
+    /**
+     * A transaction waiting in, or running from, a queue.  Transactions with a {@code null}
+     * queue key are global: they run alone, after every transaction queued before them.
+     */
+    private static class QueuedTransaction {
+        final VoipCallTransaction mTransaction;
+        final String mQueueKey;
+        final long mQueuedTimeMillis;
+        long mStartTimeMillis;
+
+        QueuedTransaction(VoipCallTransaction transaction, String queueKey) {
+            mTransaction = transaction;
+            mQueueKey = queueKey;
+            mQueuedTimeMillis = SystemClock.elapsedRealtime();
+        }
+
+        String getQueueName() {
+            return mQueueKey == null ? GLOBAL_QUEUE_NAME : mQueueKey;
+        }
+    }
+
+    private static class QueueStats {
+        long mCount;
+        long mTotalWaitMillis;
+        long mMaxWaitMillis;
+        long mTotalRunMillis;
+        long mMaxRunMillis;
+    }
+
     private TransactionManager() {
-        mTransactions = new ArrayDeque<>();
-        mCurrentTransaction = null;
+        mTransactions = new LinkedList<>();
+        mRunningTransactions = new ArrayList<>();
     }
 
     public static TransactionManager getInstance() {
@@ -61,10 +109,50 @@ public class TransactionManager {
         return new TransactionManager();
     }
 
+    /**
+     * Sets the shared scheduler which transactions added to this manager run on.  Where
+     * {@code null}, each transaction starts its own thread.
+     * @param scheduler The scheduler, or {@code null}.
+     */
+    public void setTransactionScheduler(TransactionScheduler scheduler) {
+        synchronized (sLock) {
+            mScheduler = scheduler;
+        }
+    }
+
+    /**
+     * Sets whether transactions added with a queue key are only serialized against other
+     * transactions with the same key, rather than against every transaction.
+     * @param enabled {@code true} to run independent queues concurrently.
+     */
+    public void setPerCallQueuesEnabled(boolean enabled) {
+        synchronized (sLock) {
+            mPerCallQueuesEnabled = enabled;
+        }
+    }
+
     public void addTransaction(VoipCallTransaction transaction,
             OutcomeReceiver<VoipCallTransactionResult, CallException> receiver) {
+        addTransaction(transaction, null /* queueKey */, receiver);
+    }
+
+    /**
+     * Adds a transaction to the queue identified by {@code queueKey}.  When per-call queues are
+     * enabled, transactions in different queues may run concurrently; otherwise, or when
+     * {@code queueKey} is {@code null}, the transaction is ordered against all other transactions.
+     * Transactions which affect more than one call (e.g. holding the active call for a new call)
+     * must not specify a queue key.
+     * @param transaction The transaction.
+     * @param queueKey The key of the queue, typically a call ID; {@code null} for global.
+     * @param receiver Receives the outcome of the transaction.
+     */
+    public void addTransaction(VoipCallTransaction transaction, String queueKey,
+            OutcomeReceiver<VoipCallTransactionResult, CallException> receiver) {
+        QueuedTransaction queuedTransaction;
         synchronized (sLock) {
-            mTransactions.add(transaction);
+            queuedTransaction = new QueuedTransaction(transaction,
+                    mPerCallQueuesEnabled ? queueKey : null);
+            transaction.setScheduler(mScheduler);
         }
         transaction.setCompleteListener(new TransactionCompleteListener() {
             @Override
@@ -79,7 +167,7 @@ public class TransactionManager {
                             new CallException(result.getMessage(),
                                     result.getResult()));
                 }
-                finishTransaction();
+                finishTransaction(queuedTransaction);
             }
 
             @Override
@@ -87,44 +175,124 @@ public class TransactionManager {
                 Log.i(TAG, String.format("transaction %s timeout", transactionName));
                 receiver.onError(new CallException(transactionName + " timeout",
                         CODE_OPERATION_TIMED_OUT));
-                finishTransaction();
+                finishTransaction(queuedTransaction);
             }
         });
 
+        synchronized (sLock) {
+            mTransactions.add(queuedTransaction);
+        }
         startTransactions();
     }
 
     private void startTransactions() {
+        List<QueuedTransaction> transactionsToStart = new ArrayList<>();
         synchronized (sLock) {
             if (mTransactions.isEmpty()) {
                 // No transaction waiting for process
                 return;
             }
+            long now = SystemClock.elapsedRealtime();
 
-            if (mCurrentTransaction != null) {
-                // Ongoing transaction
-                return;
+            Set<String> busyQueues = new HashSet<>();
+            for (QueuedTransaction running : mRunningTransactions) {
+                if (running.mQueueKey == null) {
+                    // Ongoing global transaction
+                    return;
+                }
+                busyQueues.add(running.mQueueKey);
+            }
+
+            boolean hasEarlierPending = false;
+            Iterator<QueuedTransaction> iterator = mTransactions.iterator();
+            while (iterator.hasNext()) {
+                QueuedTransaction queued = iterator.next();
+                if (queued.mQueueKey == null) {
+                    // A global transaction waits for everything ahead of it and blocks
+                    // everything behind it.
+                    if (!hasEarlierPending && mRunningTransactions.isEmpty()) {
+                        iterator.remove();
+                        queued.mStartTimeMillis = now;
+                        mRunningTransactions.add(queued);
+                        transactionsToStart.add(queued);
+                    }
+                    break;
+                }
+                if (busyQueues.add(queued.mQueueKey)) {
+                    iterator.remove();
+                    queued.mStartTimeMillis = now;
+                    mRunningTransactions.add(queued);
+                    transactionsToStart.add(queued);
+                } else {
+                    hasEarlierPending = true;
+                }
             }
-            mCurrentTransaction = mTransactions.poll();
         }
-        mCurrentTransaction.start();
+        for (QueuedTransaction queued : transactionsToStart) {
+            queued.mTransaction.start();
+        }
     }
 
-    private void finishTransaction() {
+    private void finishTransaction(QueuedTransaction queuedTransaction) {
         synchronized (sLock) {
-            mCurrentTransaction = null;
+            if (!mRunningTransactions.remove(queuedTransaction)) {
+                return;
+            }
+            recordQueueStats(queuedTransaction);
         }
         startTransactions();
     }
 
+    private void recordQueueStats(QueuedTransaction queuedTransaction) {
+        long now = SystemClock.elapsedRealtime();
+        long waitMillis = queuedTransaction.mStartTimeMillis - queuedTransaction.mQueuedTimeMillis;
+        long runMillis = now - queuedTransaction.mStartTimeMillis;
+        String queueName = queuedTransaction.getQueueName();
+        QueueStats stats = mQueueStats.get(queueName);
+        if (stats == null) {
+            stats = new QueueStats();
+            mQueueStats.put(queueName, stats);
+        }
+        stats.mCount++;
+        stats.mTotalWaitMillis += waitMillis;
+        stats.mMaxWaitMillis = Math.max(stats.mMaxWaitMillis, waitMillis);
+        stats.mTotalRunMillis += runMillis;
+        stats.mMaxRunMillis = Math.max(stats.mMaxRunMillis, runMillis);
+    }
+
     @VisibleForTesting
     public void clear() {
-        List<VoipCallTransaction> pendingTransactions;
+        List<QueuedTransaction> pendingTransactions;
         synchronized (sLock) {
             pendingTransactions = new ArrayList<>(mTransactions);
         }
-        for (VoipCallTransaction transaction : pendingTransactions) {
-            transaction.finish();
+        for (QueuedTransaction transaction : pendingTransactions) {
+            transaction.mTransaction.finish();
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (sLock) {
+            pw.println("perCallQueuesEnabled: " + mPerCallQueuesEnabled);
+            pw.println("pendingTransactions: " + mTransactions.size()
+                    + ", runningTransactions: " + mRunningTransactions.size());
+            if (mScheduler != null) {
+                pw.println("scheduler:");
+                pw.increaseIndent();
+                mScheduler.dump(pw);
+                pw.decreaseIndent();
+            }
+            pw.println("queueLatencies:");
+            pw.increaseIndent();
+            for (Map.Entry<String, QueueStats> entry : mQueueStats.entrySet()) {
+                QueueStats stats = entry.getValue();
+                pw.println(entry.getKey() + ": count=" + stats.mCount
+                        + ", avgWaitMillis=" + (stats.mTotalWaitMillis / stats.mCount)
+                        + ", maxWaitMillis=" + stats.mMaxWaitMillis
+                        + ", avgRunMillis=" + (stats.mTotalRunMillis / stats.mCount)
+                        + ", maxRunMillis=" + stats.mMaxRunMillis);
+            }
+            pw.decreaseIndent();
         }
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.voip;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size pool of {@link HandlerThread}s shared by all {@link VoipCallTransaction}s, used
+ * instead of starting and quitting a thread for every transaction.
+ * <p>
+ * Each transaction is assigned a single thread from the pool when it starts and runs all of its
+ * work (including its {@link VoipCallTransaction#TIMEOUT_LIMIT} timeout) on that thread, so the
+ * execution order within a transaction is unchanged.  Threads are assigned round-robin, so
+ * transactions must not block their thread while they wait for a client; see
+ * {@link CallEventCallbackAckTransaction}.
+ */
+public class TransactionScheduler {
+    private static final String TAG = "VoipTransactionScheduler";
+    private static final int DEFAULT_NUM_THREADS = 2;
+
+    private static TransactionScheduler sInstance;
+
+    private final Handler[] mHandlers;
+    private final AtomicInteger mNextHandler = new AtomicInteger(0);
+    private final AtomicLong mNumTransactionsScheduled = new AtomicLong(0);
+
+    /**
+     * @return the process-wide {@link TransactionScheduler}, creating it if needed.
+     */
+    public static synchronized TransactionScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new TransactionScheduler(DEFAULT_NUM_THREADS);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public TransactionScheduler(int numThreads) {
+        mHandlers = new Handler[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            HandlerThread thread = new HandlerThread(TAG + "-" + i);
+            thread.start();
+            mHandlers[i] = new Handler(thread.getLooper());
+        }
+    }
+
+    /**
+     * Assigns a thread from the pool to a transaction which is about to start.
+     * @return the handler the transaction must run on.
+     */
+    public Handler obtainHandler() {
+        mNumTransactionsScheduled.incrementAndGet();
+        int index = Math.floorMod(mNextHandler.getAndIncrement(), mHandlers.length);
+        return mHandlers[index];
+    }
+
+    /**
+     * @return the number of threads in the pool.
+     */
+    public int getNumThreads() {
+        return mHandlers.length;
+    }
+
+    /**
+     * @return the number of transactions which have been assigned a thread from the pool.
+     */
+    public long getNumTransactionsScheduled() {
+        return mNumTransactionsScheduled.get();
+    }
+
+    @VisibleForTesting
+    public void quit() {
+        for (Handler handler : mHandlers) {
+            handler.getLooper().quitSafely();
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("numThreads: " + mHandlers.length);
+        pw.println("numTransactionsScheduled: " + mNumTransactionsScheduled.get());
+    }
+}
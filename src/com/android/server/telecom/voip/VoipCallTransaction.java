@@ -35,6 +35,7 @@ public class VoipCallTransaction {
     protected final AtomicBoolean mCompleted = new AtomicBoolean(false);
     protected String mTransactionName = this.getClass().getSimpleName();
     private HandlerThread mHandlerThread;
+    private TransactionScheduler mScheduler;
     protected Handler mHandler;
     protected TransactionManager.TransactionCompleteListener mCompleteListener;
     protected List<VoipCallTransaction> mSubTransactions;
@@ -43,9 +44,6 @@ public class VoipCallTransaction {
     public VoipCallTransaction(
             List<VoipCallTransaction> subTransactions, TelecomSystem.SyncRoot lock) {
         mSubTransactions = subTransactions;
-        mHandlerThread = new HandlerThread(this.toString());
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
         mLock = lock;
     }
 
@@ -53,10 +51,55 @@ public class VoipCallTransaction {
         this(null /** mSubTransactions */, lock);
     }
 
+    /**
+     * Sets the shared scheduler this transaction should run on.  Where no scheduler is set, a
+     * dedicated {@link HandlerThread} is started for the transaction instead.
+     * @param scheduler The scheduler, or {@code null}.
+     */
+    public void setScheduler(TransactionScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Assigns the handler this transaction runs on; must be called at the beginning of
+     * {@link #start()}.
+     */
+    protected void setUpHandler() {
+        if (mHandler != null) {
+            return;
+        }
+        if (mScheduler != null) {
+            mHandler = mScheduler.obtainHandler();
+        } else {
+            mHandlerThread = new HandlerThread(this.toString());
+            mHandlerThread.start();
+            mHandler = new Handler(mHandlerThread.getLooper());
+        }
+    }
+
+    /**
+     * Posts the {@link #TIMEOUT_LIMIT} timeout of this transaction.  The timeout is cancelled
+     * when the transaction finishes.
+     */
+    protected void postTimeout(Runnable timeout) {
+        mHandler.postDelayed(timeout, this /* token */, TIMEOUT_LIMIT);
+    }
+
+    /**
+     * Starts a sub transaction of this transaction on the same scheduler.
+     */
+    protected void startSubTransaction(VoipCallTransaction transaction,
+            TransactionManager.TransactionCompleteListener listener) {
+        transaction.setScheduler(mScheduler);
+        transaction.setCompleteListener(listener);
+        transaction.start();
+    }
+
     public void start() {
+        setUpHandler();
         // post timeout work
         CompletableFuture<Void> future = new CompletableFuture<>();
-        mHandler.postDelayed(() -> future.complete(null), TIMEOUT_LIMIT);
+        postTimeout(() -> future.complete(null));
         future.thenApplyAsync((x) -> {
             if (mCompleted.getAndSet(true)) {
                 return null;
@@ -78,7 +121,10 @@ public class VoipCallTransaction {
         CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
         future.thenComposeAsync(this::processTransaction, executor)
                 .thenApplyAsync((Function<VoipCallTransactionResult, Void>) result -> {
-                    mCompleted.set(true);
+                    if (mCompleted.getAndSet(true)) {
+                        // Already timed out or finished.
+                        return null;
+                    }
                     if (mCompleteListener != null) {
                         mCompleteListener.onTransactionCompleted(result, mTransactionName);
                     }
@@ -105,6 +151,13 @@ public class VoipCallTransaction {
         if (mSubTransactions != null && mSubTransactions.size() > 0) {
             mSubTransactions.forEach(VoipCallTransaction::finish);
         }
-        mHandlerThread.quit();
+        // Work posted after this point, such as a late result, must be ignored.
+        mCompleted.set(true);
+        if (mHandlerThread != null) {
+            mHandlerThread.quit();
+        } else if (mHandler != null) {
+            // The shared scheduler outlives this transaction, so cancel the pending timeout.
+            mHandler.removeCallbacksAndMessages(this);
+        }
     }
 }
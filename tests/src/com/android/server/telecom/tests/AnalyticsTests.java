@@ -467,6 +467,34 @@ public class AnalyticsTests extends TelecomSystemTest {
                 .count(), 0);
     }
 
+    @SmallTest
+    @Test
+    public void testSessionTimingsBounded() throws Exception {
+        Analytics.dumpToParcelableAnalytics();
+        int numTimings = Analytics.MAX_NUM_SESSION_TIMINGS_TO_STORE + 10;
+        for (int i = 0; i < numTimings; i++) {
+            Analytics.addSessionTiming(LogUtils.Sessions.CSW_SET_IS_CONFERENCED, i);
+        }
+        // Sessions which are not tracked by analytics are ignored.
+        Analytics.addSessionTiming("not.a.session", 1);
+
+        StringWriter sw = new StringWriter();
+        Analytics.dump(new IndentingPrintWriter(sw, "    "));
+        // The average covers every timing since the last dump, not only the ones retained.
+        assertTrue(sw.toString().contains(String.format("%s: %.2f",
+                LogUtils.Sessions.CSW_SET_IS_CONFERENCED, (numTimings - 1) / 2.0)));
+
+        List<TelecomAnalytics.SessionTiming> sessions =
+                Analytics.dumpToParcelableAnalytics().getSessionTimings();
+        assertEquals(Analytics.MAX_NUM_SESSION_TIMINGS_TO_STORE, sessions.size());
+        for (int i = 0; i < sessions.size(); i++) {
+            assertEquals(LogUtils.Sessions.CSW_SET_IS_CONFERENCED,
+                    Analytics.sSessionIdToLogSession.get(sessions.get(i).getKey()));
+            assertEquals(numTimings - sessions.size() + i, (long) sessions.get(i).getTime());
+        }
+        assertTrue(Analytics.dumpToParcelableAnalytics().getSessionTimings().isEmpty());
+    }
+
     private void assertIsRoundedToOneSigFig(long x) {
         assertEquals(x, Analytics.roundToOneSigFig(x));
     }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import static android.provider.BlockedNumberContract.STATUS_NOT_BLOCKED;
+
+import static com.android.server.telecom.callfiltering.BlockedNumberIndex.STATUS_UNKNOWN;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.MatrixCursor;
+import android.location.Country;
+import android.location.CountryDetector;
+import android.os.HandlerThread;
+import android.provider.BlockedNumberContract.BlockedNumbers;
+import android.telecom.Log;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.server.telecom.callfiltering.BlockedNumberIndex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class BlockedNumberIndexTest extends TelecomTestCase {
+    private static final long TEST_TIMEOUT = 5000;
+    private static final String[] COLUMNS = new String[] {
+            BlockedNumbers.COLUMN_ORIGINAL_NUMBER, BlockedNumbers.COLUMN_E164_NUMBER };
+
+    @Mock private Context mMockContext;
+    @Mock private ContentResolver mContentResolver;
+    @Mock private CountryDetector mCountryDetector;
+
+    private HandlerThread mHandlerThread;
+    private BlockedNumberIndex mIndex;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        when(mMockContext.getContentResolver()).thenReturn(mContentResolver);
+        when(mMockContext.getSystemService(Context.COUNTRY_DETECTOR))
+                .thenReturn(mCountryDetector);
+        when(mCountryDetector.detectCountry())
+                .thenReturn(new Country("US", Country.COUNTRY_SOURCE_NETWORK));
+        mHandlerThread = new HandlerThread("BlockedNumberIndexTest");
+        mHandlerThread.start();
+        mIndex = new BlockedNumberIndex(mMockContext, mHandlerThread.getLooper());
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quitSafely();
+        super.tearDown();
+    }
+
+    @SmallTest
+    @Test
+    public void testColdIndexFallsBackToProvider() {
+        assertFalse(mIndex.isLoaded());
+        assertEquals(STATUS_UNKNOWN, mIndex.getBlockStatus("6505551212"));
+    }
+
+    @SmallTest
+    @Test
+    public void testLookup() {
+        setBlockedNumbers(new String[][] {
+                {"650-555-1212", "+16505551212"},
+                {"sip:robo@example.com", null}});
+        startIndex();
+
+        assertTrue(mIndex.isLoaded());
+        // Numbers in the list are left to the provider, whatever their format.
+        assertEquals(STATUS_UNKNOWN, mIndex.getBlockStatus("650-555-1212"));
+        assertEquals(STATUS_UNKNOWN, mIndex.getBlockStatus("6505551212"));
+        assertEquals(STATUS_UNKNOWN, mIndex.getBlockStatus("+1 (650) 555-1212"));
+        assertEquals(STATUS_UNKNOWN, mIndex.getBlockStatus("sip:robo@example.com"));
+        assertEquals(STATUS_UNKNOWN, mIndex.getBlockStatus(""));
+        // Other numbers are not blocked.
+        assertEquals(STATUS_NOT_BLOCKED, mIndex.getBlockStatus("6505551213"));
+        assertEquals(STATUS_NOT_BLOCKED, mIndex.getBlockStatus("sip:friend@example.com"));
+    }
+
+    @SmallTest
+    @Test
+    public void testIndexReloadedOnProviderChange() {
+        setBlockedNumbers(new String[][] {{"6505551212", "+16505551212"}});
+        startIndex();
+        ArgumentCaptor<ContentObserver> observerCaptor =
+                ArgumentCaptor.forClass(ContentObserver.class);
+        verify(mContentResolver).registerContentObserver(eq(BlockedNumbers.CONTENT_URI),
+                eq(true), observerCaptor.capture());
+        assertEquals(STATUS_NOT_BLOCKED, mIndex.getBlockStatus("6505550000"));
+
+        setBlockedNumbers(new String[][] {
+                {"6505551212", "+16505551212"},
+                {"6505550000", "+16505550000"}});
+        // Hold the reload back until the stale state has been checked.
+        CountDownLatch reloadLatch = new CountDownLatch(1);
+        mIndex.getHandler().post(() -> {
+            try {
+                reloadLatch.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // do nothing
+            }
+        });
+        observerCaptor.getValue().onChange(false);
+        // The old block list is no longer used once the provider reports a change.
+        assertEquals(STATUS_UNKNOWN, mIndex.getBlockStatus("6505550001"));
+
+        reloadLatch.countDown();
+        waitForHandlerAction(mIndex.getHandler(), TEST_TIMEOUT);
+        assertEquals(STATUS_UNKNOWN, mIndex.getBlockStatus("6505550000"));
+        assertEquals(STATUS_NOT_BLOCKED, mIndex.getBlockStatus("6505550001"));
+    }
+
+    /**
+     * Measures the cost of a lookup which is answered by the index, the path taken by almost
+     * every incoming call.  The provider query it replaces typically takes milliseconds.
+     */
+    @LargeTest
+    @Test
+    public void testLookupBenchmark() {
+        final int numBlockedNumbers = 1000;
+        final int warmupIterations = 10000;
+        final int measuredIterations = 100000;
+        String[][] blockedNumbers = new String[numBlockedNumbers][];
+        for (int i = 0; i < numBlockedNumbers; i++) {
+            String number = String.format("650555%04d", i);
+            blockedNumbers[i] = new String[] {number, "+1" + number};
+        }
+        setBlockedNumbers(blockedNumbers);
+        startIndex();
+
+        String[] callers = new String[256];
+        for (int i = 0; i < callers.length; i++) {
+            callers[i] = String.format("408555%04d", i);
+        }
+        for (int i = 0; i < warmupIterations; i++) {
+            assertEquals(STATUS_NOT_BLOCKED,
+                    mIndex.getBlockStatus(callers[i % callers.length]));
+        }
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < measuredIterations; i++) {
+            mIndex.getBlockStatus(callers[i % callers.length]);
+        }
+        long nanosPerLookup = (System.nanoTime() - startNanos) / measuredIterations;
+        Log.i(this, "testLookupBenchmark: %d blocked numbers, %d ns per lookup",
+                numBlockedNumbers, nanosPerLookup);
+    }
+
+    private void startIndex() {
+        mIndex.start();
+        waitForHandlerAction(mIndex.getHandler(), TEST_TIMEOUT);
+    }
+
+    private void setBlockedNumbers(String[][] rows) {
+        when(mContentResolver.query(eq(BlockedNumbers.CONTENT_URI), any(String[].class),
+                isNull(), isNull(), isNull())).thenAnswer(invocation -> {
+                    MatrixCursor cursor = new MatrixCursor(COLUMNS);
+                    for (String[] row : rows) {
+                        cursor.addRow(row);
+                    }
+                    return cursor;
+                });
+    }
+}
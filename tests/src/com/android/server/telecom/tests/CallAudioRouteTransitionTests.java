@@ -35,14 +35,19 @@ import android.content.Context;
 import android.media.AudioDeviceInfo;
 import android.media.AudioManager;
 import android.media.IAudioService;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.telecom.CallAudioState;
+import android.telecom.Log;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.server.telecom.Call;
 import com.android.server.telecom.CallAudioCommunicationDeviceTracker;
 import com.android.server.telecom.CallAudioManager;
+import com.android.server.telecom.CallAudioRouteAdapter;
+import com.android.server.telecom.CallAudioRouteController;
 import com.android.server.telecom.CallAudioRouteStateMachine;
 import com.android.server.telecom.CallsManager;
 import com.android.server.telecom.ConnectionServiceWrapper;
@@ -67,6 +72,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Supplier;
 
 @RunWith(Parameterized.class)
 public class CallAudioRouteTransitionTests extends TelecomTestCase {
@@ -207,7 +213,7 @@ public class CallAudioRouteTransitionTests extends TelecomTestCase {
         super.tearDown();
     }
 
-    private void setupMocksForParams(final CallAudioRouteStateMachine sm,
+    private void setupMocksForParams(final CallAudioRouteAdapter sm,
             RoutingTestParameters params) {
         // Set up bluetooth and speakerphone state
         doReturn(params.initialRoute == CallAudioState.ROUTE_BLUETOOTH)
@@ -243,7 +249,7 @@ public class CallAudioRouteTransitionTests extends TelecomTestCase {
         when(fakeCall.getSupportedAudioRoutes()).thenReturn(params.callSupportedRoutes);
     }
 
-    private void sendActionToStateMachine(CallAudioRouteStateMachine sm) {
+    private void sendActionToStateMachine(CallAudioRouteAdapter sm) {
         switch (mParams.action) {
             case SPECIAL_CONNECT_BT_ACTION:
                 sm.sendMessageWithSessionInfo(
@@ -266,6 +272,46 @@ public class CallAudioRouteTransitionTests extends TelecomTestCase {
     @Test
     @SmallTest
     public void testActiveTransition() {
+        runActiveTransition(createStateMachine());
+    }
+
+    @Test
+    @SmallTest
+    public void testActiveTransitionController() {
+        runActiveTransition(createController());
+    }
+
+    @Test
+    @SmallTest
+    public void testQuiescentTransition() {
+        runQuiescentTransition(createStateMachine());
+    }
+
+    @Test
+    @SmallTest
+    public void testQuiescentTransitionController() {
+        runQuiescentTransition(createController());
+    }
+
+    /**
+     * Compares the cost of replaying this scenario's action on the state machine and on the
+     * controller.  The time includes waiting for the handler to go idle, which is the same for
+     * both, so only the difference between the two is meaningful.  The bytes allocated are
+     * counted by ART for the whole process, so they include the allocations of the mocks.
+     */
+    @Test
+    @LargeTest
+    public void testDispatchBenchmark() {
+        final int iterations = 50;
+        long[] stateMachineResult = measureDispatch(this::createStateMachine, iterations);
+        long[] controllerResult = measureDispatch(this::createController, iterations);
+        Log.i(this, "testDispatchBenchmark: %s: state machine %d ns, %d bytes allocated per"
+                + " action; controller %d ns, %d bytes allocated per action", mParams.name,
+                stateMachineResult[0], stateMachineResult[1], controllerResult[0],
+                controllerResult[1]);
+    }
+
+    private CallAudioRouteStateMachine createStateMachine() {
         final CallAudioRouteStateMachine stateMachine = new CallAudioRouteStateMachine(
                 mContext,
                 mockCallsManager,
@@ -279,6 +325,83 @@ public class CallAudioRouteTransitionTests extends TelecomTestCase {
                 mCommunicationDeviceTracker,
                 mFeatureFlags);
         stateMachine.setCallAudioManager(mockCallAudioManager);
+        return stateMachine;
+    }
+
+    private CallAudioRouteController createController() {
+        final CallAudioRouteController controller = new CallAudioRouteController(
+                mContext,
+                mockCallsManager,
+                mockBluetoothRouteManager,
+                mockWiredHeadsetManager,
+                mockStatusBarNotifier,
+                mAudioServiceFactory,
+                mParams.earpieceControl,
+                mHandlerThread.getLooper(),
+                mCommunicationDeviceTracker,
+                mFeatureFlags);
+        controller.setCallAudioManager(mockCallAudioManager);
+        return controller;
+    }
+
+    private static void initialize(CallAudioRouteAdapter adapter, CallAudioState initState) {
+        if (adapter instanceof CallAudioRouteStateMachine) {
+            ((CallAudioRouteStateMachine) adapter).initialize(initState);
+        } else {
+            ((CallAudioRouteController) adapter).initialize(initState);
+        }
+    }
+
+    private static void quit(CallAudioRouteAdapter adapter) {
+        if (adapter instanceof CallAudioRouteStateMachine) {
+            ((CallAudioRouteStateMachine) adapter).quitStateMachine();
+        } else {
+            ((CallAudioRouteController) adapter).quit();
+        }
+    }
+
+    /**
+     * @return the mean time in ns and the mean number of bytes allocated to handle this
+     *         scenario's action, once the adapter has audio focus.
+     */
+    private long[] measureDispatch(Supplier<CallAudioRouteAdapter> adapterSupplier,
+            int iterations) {
+        long totalNanos = 0;
+        long totalBytesAllocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            CallAudioRouteAdapter adapter = adapterSupplier.get();
+            setupMocksForParams(adapter, mParams);
+            initialize(adapter, new CallAudioState(false, mParams.initialRoute,
+                    (mParams.availableRoutes | CallAudioState.ROUTE_SPEAKER),
+                    mParams.initialBluetoothDevice, mParams.availableBluetoothDevices));
+            adapter.sendMessageWithSessionInfo(CallAudioRouteStateMachine.SWITCH_FOCUS,
+                    CallAudioRouteStateMachine.ACTIVE_FOCUS);
+            if (mParams.initialRoute == CallAudioState.ROUTE_BLUETOOTH) {
+                adapter.sendMessageWithSessionInfo(CallAudioRouteStateMachine.BT_AUDIO_CONNECTED);
+            }
+            waitForHandlerAction(adapter.getAdapterHandler(), TEST_TIMEOUT);
+            clearInvocations();
+
+            long startBytesAllocated = getBytesAllocated();
+            long startNanos = System.nanoTime();
+            sendActionToStateMachine(adapter);
+            waitForHandlerAction(adapter.getAdapterHandler(), TEST_TIMEOUT);
+            totalNanos += System.nanoTime() - startNanos;
+            totalBytesAllocated += getBytesAllocated() - startBytesAllocated;
+            quit(adapter);
+        }
+        return new long[] {totalNanos / iterations, totalBytesAllocated / iterations};
+    }
+
+    /**
+     * @return the total number of bytes ART has allocated in this process.
+     */
+    private static long getBytesAllocated() {
+        String bytesAllocated = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        return bytesAllocated == null ? 0 : Long.parseLong(bytesAllocated);
+    }
+
+    private void runActiveTransition(CallAudioRouteAdapter stateMachine) {
 
         setupMocksForParams(stateMachine, mParams);
 
@@ -286,7 +409,7 @@ public class CallAudioRouteTransitionTests extends TelecomTestCase {
         final CallAudioState initState = new CallAudioState(false,
                 mParams.initialRoute, (mParams.availableRoutes | CallAudioState.ROUTE_SPEAKER),
                 mParams.initialBluetoothDevice, mParams.availableBluetoothDevices);
-        stateMachine.initialize(initState);
+        initialize(stateMachine, initState);
 
         // Make the state machine have focus so that we actually do something
         stateMachine.sendMessageWithSessionInfo(CallAudioRouteStateMachine.SWITCH_FOCUS,
@@ -307,7 +430,7 @@ public class CallAudioRouteTransitionTests extends TelecomTestCase {
 
         Handler h = stateMachine.getAdapterHandler();
         waitForHandlerAction(h, TEST_TIMEOUT);
-        stateMachine.quitStateMachine();
+        quit(stateMachine);
 
         // Verify interactions with the speakerphone and bluetooth systems
         switch (mParams.bluetoothInteraction) {
@@ -362,22 +485,7 @@ public class CallAudioRouteTransitionTests extends TelecomTestCase {
         verifyNewSystemCallAudioState(initState, expectedState);
     }
 
-    @Test
-    @SmallTest
-    public void testQuiescentTransition() {
-        final CallAudioRouteStateMachine stateMachine = new CallAudioRouteStateMachine(
-                mContext,
-                mockCallsManager,
-                mockBluetoothRouteManager,
-                mockWiredHeadsetManager,
-                mockStatusBarNotifier,
-                mAudioServiceFactory,
-                mParams.earpieceControl,
-                mHandlerThread.getLooper(),
-                Runnable::run /** do async stuff sync for test purposes */,
-                mCommunicationDeviceTracker,
-                mFeatureFlags);
-        stateMachine.setCallAudioManager(mockCallAudioManager);
+    private void runQuiescentTransition(CallAudioRouteAdapter stateMachine) {
 
         // Set up bluetooth and speakerphone state
         doReturn((mParams.availableRoutes & CallAudioState.ROUTE_BLUETOOTH) != 0 ||
@@ -393,14 +501,14 @@ public class CallAudioRouteTransitionTests extends TelecomTestCase {
         CallAudioState initState = new CallAudioState(false,
                 mParams.initialRoute, (mParams.availableRoutes | CallAudioState.ROUTE_SPEAKER),
                 mParams.initialBluetoothDevice, mParams.availableBluetoothDevices);
-        stateMachine.initialize(initState);
+        initialize(stateMachine, initState);
         // Omit the focus-getting statement
         sendActionToStateMachine(stateMachine);
 
         waitForHandlerAction(stateMachine.getAdapterHandler(), TEST_TIMEOUT);
         waitForHandlerAction(stateMachine.getAdapterHandler(), TEST_TIMEOUT);
 
-        stateMachine.quitStateMachine();
+        quit(stateMachine);
 
         // Verify that no substantive interactions have taken place with the
         // rest of the system
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.telecom.Log;
+import android.telecom.Logging.EventManager;
+import android.telecom.ParcelableCallAnalytics;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.server.telecom.Analytics;
+import com.android.server.telecom.CallEventLog;
+import com.android.server.telecom.LogUtils;
+import com.android.server.telecom.nano.TelecomLogClass;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringWriter;
+
+@RunWith(JUnit4.class)
+public class CallEventLogTest extends TelecomTestCase {
+    private static final String TEST_CALL_ID = "TC@1";
+    private static final int NUM_EVENTS_PER_CALL = 60;
+
+    private EventManager mTestEventManager;
+    private EventManager.EventRecord mAddedEventRecord;
+
+    private static class TestRecord implements EventManager.Loggable {
+        private final String mId;
+
+        TestRecord(String id) {
+            mId = id;
+        }
+
+        @Override
+        public String getId() {
+            return mId;
+        }
+
+        @Override
+        public String getDescription() {
+            return mId;
+        }
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Analytics.reset();
+        mTestEventManager = new EventManager(() -> "");
+        mTestEventManager.registerEventListener((e) -> mAddedEventRecord = e);
+        mTestEventManager.addRequestResponsePair(new EventManager.TimedEventPair(
+                LogUtils.Events.FILTERING_INITIATED, LogUtils.Events.FILTERING_COMPLETED,
+                LogUtils.Events.Timings.FILTERING_COMPLETED_TIMING));
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        Analytics.reset();
+        mTestEventManager = null;
+        mAddedEventRecord = null;
+        super.tearDown();
+    }
+
+    @SmallTest
+    @Test
+    public void testOldestEventsAreOverwritten() {
+        CallEventLog log = new CallEventLog(3);
+        log.add(LogUtils.Events.CREATED, 1, null);
+        log.add(LogUtils.Events.SET_DIALING, 2, "not kept");
+        log.add(LogUtils.Events.SET_ACTIVE, 3, 7);
+        log.add(LogUtils.Events.SET_DISCONNECTED, 4, true);
+
+        assertEquals(3, log.size());
+        assertEquals(1, log.getNumDropped());
+        assertEquals(LogUtils.Events.SET_DIALING, log.getEventName(0));
+        assertEquals(LogUtils.Events.SET_DISCONNECTED, log.getEventName(2));
+        assertEquals(2, log.getTime(0));
+        assertEquals(4, log.getTime(2));
+
+        StringWriter output = new StringWriter();
+        log.dump(new IndentingPrintWriter(output, "  "));
+        String dump = output.toString();
+        assertTrue(dump.contains("1 older events dropped"));
+        assertTrue(dump.contains(LogUtils.Events.SET_ACTIVE + " (7)"));
+        assertTrue(dump.contains(LogUtils.Events.SET_DISCONNECTED + " (1)"));
+        assertTrue(dump.contains(LogUtils.Events.SET_DIALING + "\n"));
+    }
+
+    @SmallTest
+    @Test
+    public void testCompactedEventsGiveSameAnalytics() throws Exception {
+        EventManager.EventRecord record = createCallEventRecord(TEST_CALL_ID);
+        Analytics.CallInfoImpl callInfo = (Analytics.CallInfoImpl)
+                Analytics.initiateCallAnalytics(TEST_CALL_ID, Analytics.INCOMING_DIRECTION);
+        callInfo.setCallEvents(record);
+        TelecomLogClass.CallLog expected = callInfo.toProto();
+
+        callInfo.compactCallEvents();
+        assertNull(callInfo.callEvents);
+        assertNotNull(callInfo.callEventLog);
+        assertEquals(record.getEvents().size(), callInfo.callEventLog.size());
+        TelecomLogClass.CallLog actual = callInfo.toProto();
+
+        assertEquals(expected.callEvents.length, actual.callEvents.length);
+        for (int i = 0; i < expected.callEvents.length; i++) {
+            assertEquals(expected.callEvents[i].getEventName(),
+                    actual.callEvents[i].getEventName());
+            assertEquals(expected.callEvents[i].getTimeSinceLastEventMillis(),
+                    actual.callEvents[i].getTimeSinceLastEventMillis());
+        }
+        assertEquals(1, actual.callTimings.length);
+        assertEquals(ParcelableCallAnalytics.EventTiming.FILTERING_COMPLETED_TIMING,
+                actual.callTimings[0].getTimingName());
+        assertEquals(expected.callTimings[0].getTimeMillis(),
+                actual.callTimings[0].getTimeMillis());
+    }
+
+    /**
+     * Only the last {@link CallEventLog#MAX_EVENTS} events of a call are kept once it is
+     * compacted, so its analytics lose the oldest events; its event timings are kept in full.
+     */
+    @SmallTest
+    @Test
+    public void testCompactedEventsTruncatedToMaxEvents() throws Exception {
+        // Enough events to drop the four before the route events.
+        int numEvents = CallEventLog.MAX_EVENTS + 4;
+        EventManager.EventRecord record = createCallEventRecord(TEST_CALL_ID, numEvents,
+                LogUtils.Events.AUDIO_ROUTE_SPEAKER);
+        Analytics.CallInfoImpl callInfo = (Analytics.CallInfoImpl)
+                Analytics.initiateCallAnalytics(TEST_CALL_ID, Analytics.INCOMING_DIRECTION);
+        callInfo.setCallEvents(record);
+        TelecomLogClass.CallLog expected = callInfo.toProto();
+
+        callInfo.compactCallEvents();
+        assertEquals(CallEventLog.MAX_EVENTS, callInfo.callEventLog.size());
+        assertEquals(numEvents - CallEventLog.MAX_EVENTS,
+                callInfo.callEventLog.getNumDropped());
+        TelecomLogClass.CallLog actual = callInfo.toProto();
+
+        // The events up to SET_ACTIVE are dropped; the first kept one has no previous event.
+        int numDropped = expected.callEvents.length - actual.callEvents.length;
+        assertTrue(numDropped > 0);
+        assertEquals(ParcelableCallAnalytics.AnalyticsEvent.SET_ACTIVE,
+                expected.callEvents[numDropped - 1].getEventName());
+        assertEquals(-1, actual.callEvents[0].getTimeSinceLastEventMillis());
+        for (int i = 0; i < actual.callEvents.length; i++) {
+            TelecomLogClass.Event expectedEvent = expected.callEvents[numDropped + i];
+            assertEquals(expectedEvent.getEventName(), actual.callEvents[i].getEventName());
+            if (i > 0) {
+                assertEquals(expectedEvent.getTimeSinceLastEventMillis(),
+                        actual.callEvents[i].getTimeSinceLastEventMillis());
+            }
+        }
+        assertEquals(1, actual.callTimings.length);
+        assertEquals(expected.callTimings[0].getTimeMillis(),
+                actual.callTimings[0].getTimeMillis());
+    }
+
+    /**
+     * Checks that the heap kept for the events of the last
+     * {@link Analytics#MAX_NUM_CALLS_TO_STORE} calls is well below what their event records
+     * kept, and that the estimate reported in the dump is in line with the measured heap.
+     */
+    @LargeTest
+    @Test
+    public void testRetainedSizeOfStoredCalls() throws Exception {
+        int numCalls = Analytics.MAX_NUM_CALLS_TO_STORE;
+        EventManager.EventRecord[] records = new EventManager.EventRecord[numCalls];
+        for (int i = 0; i < numCalls; i++) {
+            records[i] = createCallEventRecord("TC@" + i);
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        long before = usedMemory(runtime);
+        CallEventLog[] logs = new CallEventLog[numCalls];
+        long estimatedBytes = 0;
+        for (int i = 0; i < numCalls; i++) {
+            logs[i] = CallEventLog.fromEventRecord(records[i]);
+            estimatedBytes += logs[i].getRetainedSizeBytes();
+        }
+        long withLogs = usedMemory(runtime);
+        // Drop the records, as Analytics does once a call's events are compacted.
+        records = null;
+        mAddedEventRecord = null;
+        mTestEventManager = null;
+        long withoutRecords = usedMemory(runtime);
+        long logBytes = withLogs - before;
+        long recordBytes = withLogs - withoutRecords;
+        Log.i(this, "testRetainedSizeOfStoredCalls: %d calls; logs ~%d bytes (estimated %d); "
+                + "freed %d bytes of event records", numCalls, logBytes, estimatedBytes,
+                recordBytes);
+        // Measured with a whole GC either side, so allow for some noise; the event records
+        // take roughly three times the heap of the logs.
+        assertTrue("logs: " + logBytes + " bytes, records: " + recordBytes + " bytes",
+                logBytes * 2 < recordBytes);
+        assertTrue("logs: " + logBytes + " bytes, estimated: " + estimatedBytes + " bytes",
+                logBytes < estimatedBytes * 2);
+
+        for (CallEventLog log : logs) {
+            assertEquals(NUM_EVENTS_PER_CALL, log.size());
+            // An int, a time and a payload per event, and a small fixed overhead.
+            assertTrue(log.getRetainedSizeBytes()
+                    <= 256 + NUM_EVENTS_PER_CALL * (Integer.BYTES + 2 * Long.BYTES)
+                            + 2 * (Integer.BYTES + Long.BYTES));
+        }
+    }
+
+    /**
+     * Creates the event record of a call with a typical mix of events, including one which is
+     * timed and ones with payloads which are and are not kept.
+     */
+    private EventManager.EventRecord createCallEventRecord(String callId) {
+        return createCallEventRecord(callId, NUM_EVENTS_PER_CALL, LogUtils.Events.AUDIO_ROUTE);
+    }
+
+    /**
+     * @param numEvents The total number of events of the call.
+     * @param routeEvent The event repeated between the call becoming active and disconnecting.
+     */
+    private EventManager.EventRecord createCallEventRecord(String callId, int numEvents,
+            String routeEvent) {
+        TestRecord call = new TestRecord(callId);
+        mTestEventManager.event(call, LogUtils.Events.CREATED, null);
+        mTestEventManager.event(call, LogUtils.Events.FILTERING_INITIATED, null);
+        mTestEventManager.event(call, LogUtils.Events.FILTERING_COMPLETED, "filter result");
+        mTestEventManager.event(call, LogUtils.Events.SET_ACTIVE, null);
+        for (int i = 0; i < numEvents - 6; i++) {
+            mTestEventManager.event(call, routeEvent, i);
+        }
+        mTestEventManager.event(call, LogUtils.Events.SET_DISCONNECTED, "LOCAL");
+        mTestEventManager.event(call, LogUtils.Events.DESTROYED, null);
+        return mAddedEventRecord;
+    }
+
+    private static long usedMemory(Runtime runtime) {
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -89,6 +89,8 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(JUnit4.class)
 public class CallLogManagerTest extends TelecomTestCase {
@@ -408,6 +410,63 @@ public class CallLogManagerTest extends TelecomTestCase {
                         /* uri= */ eq(null));
     }
 
+    @MediumTest
+    @Test
+    public void testBatchedCallLogWritesPreserveOrder() {
+        final int numCalls = 20;
+        when(mFeatureFlags.batchCallLogWrites()).thenReturn(true);
+        when(mFeatureFlags.addCallUriForMissedCalls()).thenReturn(true);
+        when(mMockPhoneAccountRegistrar.getPhoneAccountUnchecked(any(PhoneAccountHandle.class)))
+                .thenReturn(makeFakePhoneAccount(mDefaultAccountHandle, CURRENT_USER_ID));
+        // Hold the writer back so that the calls are queued and written together.
+        CountDownLatch writerLatch = new CountDownLatch(1);
+        mCallLogManager.getCallLogWriterHandler().post(() -> {
+            try {
+                writerLatch.await(TEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // do nothing
+            }
+        });
+
+        Uri[] handles = new Uri[numCalls];
+        for (int i = 0; i < numCalls; i++) {
+            handles[i] = Uri.parse(String.format("tel:55555510%02d", i));
+            Call fakeMissedCall = makeFakeCall(
+                    DisconnectCause.MISSED, // disconnectCauseCode
+                    false, // isConference
+                    true, // isIncoming
+                    1L, // creationTimeMillis
+                    1000L, // ageMillis
+                    handles[i], // callHandle
+                    mDefaultAccountHandle, // phoneAccountHandle
+                    NO_VIDEO_STATE, // callVideoState
+                    POST_DIAL_STRING, // postDialDigits
+                    VIA_NUMBER_STRING, // viaNumber
+                    UserHandle.of(CURRENT_USER_ID)
+            );
+            when(fakeMissedCall.getHandle()).thenReturn(handles[i]);
+            mCallLogManager.onCallStateChanged(fakeMissedCall, CallState.ACTIVE,
+                    CallState.DISCONNECTED);
+        }
+        assertEquals(numCalls, mCallLogManager.getCallLogQueueDepth());
+        writerLatch.countDown();
+
+        Uri uri = ContentProvider.maybeAddUserId(CallLog.Calls.CONTENT_URI, CURRENT_USER_ID);
+        ArgumentCaptor<ContentValues> valuesCaptor = ArgumentCaptor.forClass(ContentValues.class);
+        verify(mContentProvider, timeout(TEST_TIMEOUT_MILLIS).times(numCalls)).insert(
+                eq(uri), valuesCaptor.capture());
+        ArgumentCaptor<MissedCallNotifier.CallInfo> callInfoCaptor =
+                ArgumentCaptor.forClass(MissedCallNotifier.CallInfo.class);
+        verify(mMissedCallNotifier, timeout(TEST_TIMEOUT_MILLIS).times(numCalls))
+                .showMissedCallNotification(callInfoCaptor.capture(), any(Uri.class));
+        for (int i = 0; i < numCalls; i++) {
+            assertEquals(handles[i].getSchemeSpecificPart(),
+                    valuesCaptor.getAllValues().get(i).getAsString(CallLog.Calls.NUMBER));
+            assertEquals(handles[i], callInfoCaptor.getAllValues().get(i).getHandle());
+        }
+        assertEquals(0, mCallLogManager.getCallLogQueueDepth());
+    }
+
     @MediumTest
     @Test
     public void testLogCallDirectionMissedAddCallUriForMissedCallsFlagOn() {
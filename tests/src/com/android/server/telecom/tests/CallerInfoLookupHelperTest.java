@@ -23,15 +23,20 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.content.ContentResolver;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.UserHandle;
+import android.provider.ContactsContract;
 import android.telecom.Logging.Session;
 import android.test.suitebuilder.annotation.SmallTest;
 
@@ -82,7 +87,7 @@ public class CallerInfoLookupHelperTest extends TelecomTestCase {
     public void setUp() throws Exception {
         super.setUp();
         mCallerInfoLookupHelper = new CallerInfoLookupHelper(mContext,
-                mFactory, mContactsAsyncHelper, new TelecomSystem.SyncRoot() { });
+                mFactory, mContactsAsyncHelper, new TelecomSystem.SyncRoot() { }, mFeatureFlags);
         when(mFactory.startQuery(anyInt(), eq(mContext), anyString(),
                 any(CallerInfoAsyncQuery.OnQueryCompleteListener.class), any()))
                 .thenReturn(mock(CallerInfoAsyncQuery.class));
@@ -239,6 +244,105 @@ public class CallerInfoLookupHelperTest extends TelecomTestCase {
         verifyProperCleanup();
     }
 
+    @SmallTest
+    @Test
+    public void testCachedLookup() {
+        ContentResolver contentResolver = mock(ContentResolver.class);
+        when(mContext.getContentResolver()).thenReturn(contentResolver);
+        when(mFeatureFlags.cacheCallerInfoLookups()).thenReturn(true);
+        mCallerInfoLookupHelper = new CallerInfoLookupHelper(mContext,
+                mFactory, mContactsAsyncHelper, new TelecomSystem.SyncRoot() { }, mFeatureFlags);
+        ArgumentCaptor<ContentObserver> observerCaptor =
+                ArgumentCaptor.forClass(ContentObserver.class);
+        verify(contentResolver).registerContentObserver(eq(ContactsContract.AUTHORITY_URI),
+                eq(true), observerCaptor.capture(), eq(UserHandle.USER_ALL));
+        mCallerInfo1.SetContactDisplayPhotoUri(CONTACTS_PHOTO_URI);
+
+        // Complete a lookup, including its photo.
+        mCallerInfoLookupHelper.startLookup(URI1, mock(
+                CallerInfoLookupHelper.OnQueryCompleteListener.class));
+        waitForActionCompletion();
+        ArgumentCaptor<CallerInfoAsyncQuery.OnQueryCompleteListener> queryListenerCaptor =
+                ArgumentCaptor.forClass(CallerInfoAsyncQuery.OnQueryCompleteListener.class);
+        ArgumentCaptor<Session> logSessionCaptor = ArgumentCaptor.forClass(Session.class);
+        verify(mFactory).startQuery(anyInt(), eq(mContext), eq(URI1.getSchemeSpecificPart()),
+                queryListenerCaptor.capture(), logSessionCaptor.capture());
+        queryListenerCaptor.getValue().onQueryComplete(
+                0, logSessionCaptor.getValue(), mCallerInfo1);
+        waitForActionCompletion();
+        ArgumentCaptor<ContactsAsyncHelper.OnImageLoadCompleteListener> imageListenerCaptor =
+                ArgumentCaptor.forClass(ContactsAsyncHelper.OnImageLoadCompleteListener.class);
+        verify(mContactsAsyncHelper).startObtainPhotoAsync(anyInt(), eq(mContext),
+                eq(CONTACTS_PHOTO_URI), imageListenerCaptor.capture(), logSessionCaptor.capture());
+        imageListenerCaptor.getValue().onImageLoadComplete(0, mDrawable1, mBitmap,
+                logSessionCaptor.getValue());
+        verifyProperCleanup();
+
+        // A second lookup of the same number is answered from the cache.
+        CallerInfoLookupHelper.OnQueryCompleteListener listener = mock(
+                CallerInfoLookupHelper.OnQueryCompleteListener.class);
+        mCallerInfoLookupHelper.startLookup(URI1, listener);
+        verify(listener).onCallerInfoQueryComplete(URI1, mCallerInfo1);
+        verify(listener).onContactPhotoQueryComplete(URI1, mCallerInfo1);
+        waitForActionCompletion();
+        verify(mFactory, times(1)).startQuery(anyInt(), eq(mContext), anyString(), any(), any());
+        verify(mContactsAsyncHelper, times(1)).startObtainPhotoAsync(anyInt(), eq(mContext),
+                any(), any(), any());
+        assertEquals(1, mCallerInfoLookupHelper.getNumCacheHits());
+
+        // Once the contacts change, the number is looked up again.
+        observerCaptor.getValue().onChange(false);
+        CallerInfoLookupHelper.OnQueryCompleteListener otherListener = mock(
+                CallerInfoLookupHelper.OnQueryCompleteListener.class);
+        mCallerInfoLookupHelper.startLookup(URI1, otherListener);
+        verify(otherListener, never()).onCallerInfoQueryComplete(any(), any());
+        waitForActionCompletion();
+        verify(mFactory, times(2)).startQuery(anyInt(), eq(mContext), anyString(), any(), any());
+    }
+
+    @SmallTest
+    @Test
+    public void testCachedLookupNotUsedForOtherUser() {
+        ContentResolver contentResolver = mock(ContentResolver.class);
+        when(mContext.getContentResolver()).thenReturn(contentResolver);
+        when(mFeatureFlags.cacheCallerInfoLookups()).thenReturn(true);
+        mCallerInfoLookupHelper = new CallerInfoLookupHelper(mContext,
+                mFactory, mContactsAsyncHelper, new TelecomSystem.SyncRoot() { }, mFeatureFlags);
+        mCallerInfoLookupHelper.onUserSwitch(UserHandle.of(0));
+
+        // Complete a lookup of a contact without a photo.
+        mCallerInfoLookupHelper.startLookup(URI1, mock(
+                CallerInfoLookupHelper.OnQueryCompleteListener.class));
+        waitForActionCompletion();
+        ArgumentCaptor<CallerInfoAsyncQuery.OnQueryCompleteListener> queryListenerCaptor =
+                ArgumentCaptor.forClass(CallerInfoAsyncQuery.OnQueryCompleteListener.class);
+        ArgumentCaptor<Session> logSessionCaptor = ArgumentCaptor.forClass(Session.class);
+        verify(mFactory).startQuery(anyInt(), eq(mContext), eq(URI1.getSchemeSpecificPart()),
+                queryListenerCaptor.capture(), logSessionCaptor.capture());
+        queryListenerCaptor.getValue().onQueryComplete(
+                0, logSessionCaptor.getValue(), mCallerInfo1);
+        waitForActionCompletion();
+        verifyProperCleanup();
+
+        // After a user switch, the number is looked up in the contacts of the new user.
+        mCallerInfoLookupHelper.onUserSwitch(UserHandle.of(10));
+        CallerInfoLookupHelper.OnQueryCompleteListener listener = mock(
+                CallerInfoLookupHelper.OnQueryCompleteListener.class);
+        mCallerInfoLookupHelper.startLookup(URI1, listener);
+        verify(listener, never()).onCallerInfoQueryComplete(any(), any());
+        waitForActionCompletion();
+        verify(mFactory, times(2)).startQuery(anyInt(), eq(mContext), anyString(), any(), any());
+        assertEquals(0, mCallerInfoLookupHelper.getNumCacheHits());
+
+        // Switching back uses the entry cached for the first user.
+        mCallerInfoLookupHelper.onUserSwitch(UserHandle.of(0));
+        CallerInfoLookupHelper.OnQueryCompleteListener otherListener = mock(
+                CallerInfoLookupHelper.OnQueryCompleteListener.class);
+        mCallerInfoLookupHelper.startLookup(URI1, otherListener);
+        verify(otherListener).onCallerInfoQueryComplete(URI1, mCallerInfo1);
+        assertEquals(1, mCallerInfoLookupHelper.getNumCacheHits());
+    }
+
     private void verifyProperCleanup() {
         assertEquals(0, mCallerInfoLookupHelper.getCallerInfoEntries().size());
     }
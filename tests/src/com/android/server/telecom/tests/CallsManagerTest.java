@@ -69,6 +69,7 @@ import android.telecom.CallerInfo;
 import android.telecom.Connection;
 import android.telecom.DisconnectCause;
 import android.telecom.GatewayInfo;
+import android.telecom.Log;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
@@ -76,6 +77,7 @@ import android.telecom.VideoProfile;
 import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneCapability;
 import android.telephony.TelephonyManager;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.util.Pair;
@@ -94,6 +96,7 @@ import com.android.server.telecom.CallDiagnosticServiceController;
 import com.android.server.telecom.CallEndpointController;
 import com.android.server.telecom.CallEndpointControllerFactory;
 import com.android.server.telecom.CallState;
+import com.android.server.telecom.CallStateSnapshot;
 import com.android.server.telecom.CallerInfoLookupHelper;
 import com.android.server.telecom.CallsManager;
 import com.android.server.telecom.ClockProxy;
@@ -157,10 +160,17 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @RunWith(JUnit4.class)
 public class CallsManagerTest extends TelecomTestCase {
     private static final int TEST_TIMEOUT = 5000;  // milliseconds
+    private static final int[] ANY_CALL_STATE = {CallState.NEW, CallState.CONNECTING,
+            CallState.SELECT_PHONE_ACCOUNT, CallState.DIALING, CallState.RINGING,
+            CallState.SIMULATED_RINGING, CallState.ACTIVE, CallState.ON_HOLD,
+            CallState.DISCONNECTED, CallState.ABORTED, CallState.DISCONNECTING,
+            CallState.PULLING, CallState.ANSWERED, CallState.AUDIO_PROCESSING};
     private static final long STATE_TIMEOUT = 5000L;
     private static final int SECONDARY_USER_ID = 12;
     private static final UserHandle TEST_USER_HANDLE = UserHandle.of(123);
@@ -3360,6 +3370,275 @@ public class CallsManagerTest extends TelecomTestCase {
         assertTrue(mCallsManager.isInSelfManagedCall(TEST_PACKAGE_NAME, TEST_USER_HANDLE));
     }
 
+    /**
+     * Verifies the lock-free call state snapshot tracks call additions, state changes and
+     * removals.
+     */
+    @SmallTest
+    @Test
+    public void testCallStateSnapshotPublishedOnCallChanges() {
+        when(mFeatureFlags.lockFreeCallStateQueries()).thenReturn(true);
+        assertEquals(0, mCallsManager.getCallStateSnapshot().getNumCalls());
+
+        Call call = addSpyCall(CallState.RINGING);
+        CallStateSnapshot snapshot = mCallsManager.getCallStateSnapshot();
+        assertEquals(1, snapshot.getNumCalls());
+        assertTrue(snapshot.hasRingingOrSimulatedRingingCall());
+        assertTrue(snapshot.hasOngoingManagedCalls(TEST_USER_HANDLE, true));
+
+        mCallsManager.markCallAsActive(call);
+        snapshot = mCallsManager.getCallStateSnapshot();
+        assertFalse(snapshot.hasRingingOrSimulatedRingingCall());
+        assertTrue(snapshot.hasOngoingCalls(TEST_USER_HANDLE, true));
+        assertEquals(TelephonyManager.CALL_STATE_OFFHOOK, snapshot.getCallState());
+
+        mCallsManager.removeCall(call);
+        snapshot = mCallsManager.getCallStateSnapshot();
+        assertEquals(0, snapshot.getNumCalls());
+        assertFalse(snapshot.hasOngoingCalls(TEST_USER_HANDLE, true));
+        assertEquals(TelephonyManager.CALL_STATE_IDLE, snapshot.getCallState());
+    }
+
+    /**
+     * Verifies the call state snapshot follows changes made directly on a call, and that it only
+     * counts top-level calls as ringing.
+     */
+    @SmallTest
+    @Test
+    public void testCallStateSnapshotFollowsCallPropertyChanges() {
+        when(mFeatureFlags.lockFreeCallStateQueries()).thenReturn(true);
+        Call call = addSpyCall(CallState.RINGING);
+        assertTrue(mCallsManager.getCallStateSnapshot().hasRingingOrSimulatedRingingCall());
+
+        // Not set through CallsManager, so published by the call itself.
+        call.setState(CallState.ACTIVE, "test");
+        CallStateSnapshot snapshot = mCallsManager.getCallStateSnapshot();
+        assertFalse(snapshot.hasRingingOrSimulatedRingingCall());
+        assertTrue(snapshot.hasOngoingCalls(TEST_USER_HANDLE, true));
+
+        CallStateSnapshot.Entry externalRinging = new CallStateSnapshot.Entry(CallState.RINGING,
+                false /* isSelfManaged */, true /* isExternal */, false /* hasParent */,
+                false /* isMultiUser */, TEST_USER_HANDLE);
+        CallStateSnapshot.Entry childRinging = new CallStateSnapshot.Entry(CallState.RINGING,
+                false /* isSelfManaged */, false /* isExternal */, true /* hasParent */,
+                false /* isMultiUser */, TEST_USER_HANDLE);
+        assertFalse(new CallStateSnapshot(
+                new CallStateSnapshot.Entry[] {externalRinging, childRinging},
+                TelephonyManager.CALL_STATE_IDLE).hasRingingOrSimulatedRingingCall());
+    }
+
+    /**
+     * Contention benchmark comparing binder-style call state query throughput when queries take
+     * the Telecom lock versus when they read the published {@link CallStateSnapshot}, while
+     * another thread repeatedly moves calls between active and held under the lock, as
+     * {@code ConnectionServiceWrapper.Adapter} does.
+     */
+    @LargeTest
+    @Test
+    public void testCallStateQueryThroughputUnderContention() throws Exception {
+        when(mFeatureFlags.lockFreeCallStateQueries()).thenReturn(true);
+        Call call1 = addSpyCall(CallState.ACTIVE);
+        Call call2 = addSpyCall(CallState.ON_HOLD);
+
+        long lockedQueries = runCallStateQueryContention(call1, call2, true /* useLock */);
+        long lockFreeQueries = runCallStateQueryContention(call1, call2, false /* useLock */);
+        Log.i(this, "testCallStateQueryThroughputUnderContention: locked=%d, lockFree=%d",
+                lockedQueries, lockFreeQueries);
+        assertTrue(lockedQueries > 0);
+        assertTrue(lockFreeQueries > 0);
+    }
+
+    private long runCallStateQueryContention(Call call1, Call call2, boolean useLock)
+            throws Exception {
+        final int numReaders = 4;
+        final long durationMillis = 500;
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong numQueries = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(numReaders + 1);
+
+        Thread writer = new Thread(() -> {
+            boolean swap = false;
+            while (running.get()) {
+                synchronized (mLock) {
+                    mCallsManager.markCallAsOnHold(swap ? call1 : call2);
+                    mCallsManager.markCallAsActive(swap ? call2 : call1);
+                }
+                swap = !swap;
+            }
+            done.countDown();
+        });
+        writer.start();
+        for (int i = 0; i < numReaders; i++) {
+            new Thread(() -> {
+                while (running.get()) {
+                    if (useLock) {
+                        synchronized (mLock) {
+                            mCallsManager.hasOngoingCalls(TEST_USER_HANDLE, true);
+                            mCallsManager.hasOngoingManagedCalls(TEST_USER_HANDLE, true);
+                        }
+                    } else {
+                        CallStateSnapshot snapshot = mCallsManager.getCallStateSnapshot();
+                        snapshot.hasOngoingCalls(TEST_USER_HANDLE, true);
+                        snapshot.hasOngoingManagedCalls(TEST_USER_HANDLE, true);
+                    }
+                    numQueries.incrementAndGet();
+                }
+                done.countDown();
+            }).start();
+        }
+
+        sleep(durationMillis);
+        running.set(false);
+        assertTrue(done.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+        return numQueries.get();
+    }
+
+    /**
+     * Verifies the call state index gives the same counts as walking the calls as calls change
+     * state, become external, move to another phone account, and are removed.
+     */
+    @SmallTest
+    @Test
+    public void testCallStateIndexMatchesCallScan() {
+        Call managedCall = addSpyCall(SIM_1_HANDLE, CallState.RINGING);
+        Call selfManagedCall = addSpyCall(SELF_MANAGED_HANDLE, CallState.DIALING);
+        Call externalCall = addSpyCall(SIM_2_HANDLE, CallState.ACTIVE);
+        assertCallStateIndexMatchesCallScan(managedCall, selfManagedCall);
+
+        mCallsManager.markCallAsActive(managedCall);
+        selfManagedCall.setState(CallState.ON_HOLD, "test");
+        assertCallStateIndexMatchesCallScan(managedCall, selfManagedCall);
+
+        externalCall.setConnectionProperties(Connection.PROPERTY_IS_EXTERNAL_CALL);
+        assertCallStateIndexMatchesCallScan(managedCall, selfManagedCall);
+
+        externalCall.setConnectionProperties(0);
+        externalCall.setTargetPhoneAccount(SIM_1_HANDLE);
+        assertCallStateIndexMatchesCallScan(managedCall, selfManagedCall);
+
+        mCallsManager.removeCall(externalCall);
+        mCallsManager.removeCall(selfManagedCall);
+        assertCallStateIndexMatchesCallScan(managedCall, selfManagedCall);
+    }
+
+    /**
+     * Stress test of the call state index with many self-managed calls changing state on several
+     * threads, as when several VoIP apps are in use at once.  Checks the counts against a walk of
+     * the calls and logs how long each takes to answer the self-managed call limit query.
+     */
+    @LargeTest
+    @Test
+    public void testCallStateIndexWithManyConcurrentSelfManagedCalls() throws Exception {
+        final int numThreads = 4;
+        final int callsPerThread = 50;
+        final int iterations = 200;
+        final int[] states = {CallState.RINGING, CallState.ACTIVE, CallState.ON_HOLD,
+                CallState.DIALING};
+        final int numCalls = numThreads * callsPerThread;
+        List<List<Call>> callsByThread = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            List<Call> calls = new ArrayList<>();
+            for (int i = 0; i < callsPerThread; i++) {
+                calls.add(addSpyCall(i % 2 == 0 ? SELF_MANAGED_HANDLE : SELF_MANAGED_2_HANDLE,
+                        CallState.NEW));
+            }
+            callsByThread.add(calls);
+        }
+
+        when(mFeatureFlags.callStateIndex()).thenReturn(true);
+        AtomicBoolean mismatch = new AtomicBoolean(false);
+        CountDownLatch statesChanged = new CountDownLatch(numThreads);
+        CountDownLatch done = new CountDownLatch(numThreads);
+        for (int t = 0; t < numThreads; t++) {
+            final List<Call> calls = callsByThread.get(t);
+            final int thread = t;
+            new Thread(() -> {
+                for (int i = 0; i < iterations; i++) {
+                    synchronized (mLock) {
+                        Call call = calls.get(i % calls.size());
+                        call.setState(states[(i + thread) % states.length], "stress");
+                        // Calls only move between states, so every call is still counted once.
+                        if (mCallsManager.getNumCallsWithState(true /* isSelfManaged */, null,
+                                null, ANY_CALL_STATE) != numCalls
+                                || mCallsManager.getNumCallsWithState(true /* isSelfManaged */,
+                                call, null, ANY_CALL_STATE) != numCalls - 1) {
+                            mismatch.set(true);
+                        }
+                    }
+                }
+                statesChanged.countDown();
+                try {
+                    statesChanged.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // do nothing
+                }
+                // Remove half of the calls, leaving the rest in whatever state they ended in.
+                synchronized (mLock) {
+                    for (int i = 0; i < calls.size(); i += 2) {
+                        mCallsManager.removeCall(calls.get(i));
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        assertTrue(done.await(TEST_TIMEOUT * 4, TimeUnit.MILLISECONDS));
+        assertFalse(mismatch.get());
+        assertCallStateIndexMatchesCallScan(null, callsByThread.get(0).get(1));
+        assertEquals(numCalls / 2, mCallsManager.getNumCallsWithState(
+                true /* isSelfManaged */, null, null, CallState.RINGING, CallState.ACTIVE,
+                CallState.ON_HOLD, CallState.DIALING));
+
+        final int numQueries = 10000;
+        long scanNanos = timeSelfManagedCallLimitQueries(false /* useIndex */, numQueries);
+        long indexNanos = timeSelfManagedCallLimitQueries(true /* useIndex */, numQueries);
+        Log.i(this, "testCallStateIndexWithManyConcurrentSelfManagedCalls: %d queries over %d "
+                + "calls; scan=%d us, index=%d us", numQueries, numCalls / 2,
+                TimeUnit.NANOSECONDS.toMicros(scanNanos),
+                TimeUnit.NANOSECONDS.toMicros(indexNanos));
+    }
+
+    private long timeSelfManagedCallLimitQueries(boolean useIndex, int numQueries) {
+        when(mFeatureFlags.callStateIndex()).thenReturn(useIndex);
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < numQueries; i++) {
+            mCallsManager.getNumCallsWithState(true /* isSelfManaged */, null,
+                    SELF_MANAGED_HANDLE, ANY_CALL_STATE);
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+    private void assertCallStateIndexMatchesCallScan(Call excludeCall1, Call excludeCall2) {
+        assertTrue(isCallStateIndexMatchingCallScan(null));
+        assertTrue(isCallStateIndexMatchingCallScan(excludeCall1));
+        assertTrue(isCallStateIndexMatchingCallScan(excludeCall2));
+    }
+
+    private boolean isCallStateIndexMatchingCallScan(Call excludeCall) {
+        int[][] stateSets = {
+                ANY_CALL_STATE,
+                {CallState.CONNECTING, CallState.DIALING, CallState.ACTIVE},
+                {CallState.RINGING, CallState.ANSWERED},
+                {CallState.ON_HOLD, CallState.ON_HOLD}};
+        PhoneAccountHandle[] handles = {null, SIM_1_HANDLE, SIM_2_HANDLE, SELF_MANAGED_HANDLE};
+        for (int callFilter = 1; callFilter <= 3; callFilter++) {
+            for (PhoneAccountHandle handle : handles) {
+                for (int[] states : stateSets) {
+                    when(mFeatureFlags.callStateIndex()).thenReturn(false);
+                    int scanned = mCallsManager.getNumCallsWithState(callFilter, excludeCall,
+                            handle, states);
+                    when(mFeatureFlags.callStateIndex()).thenReturn(true);
+                    int indexed = mCallsManager.getNumCallsWithState(callFilter, excludeCall,
+                            handle, states);
+                    if (scanned != indexed) {
+                        Log.w(this, "index mismatch: filter=%d, handle=%s, states=%s: %d != %d",
+                                callFilter, handle, Arrays.toString(states), scanned, indexed);
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
 
     private Call addSpyCall() {
         return addSpyCall(SIM_2_HANDLE, CallState.ACTIVE);
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.RemoteException;
+import android.telecom.Log;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.server.telecom.ConnectionServiceAdapterMailbox;
+import com.android.server.telecom.TelecomSystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+@RunWith(JUnit4.class)
+public class ConnectionServiceAdapterMailboxTest extends TelecomTestCase {
+    private static final long TEST_TIMEOUT = 5000;
+
+    private final TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() { };
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private ConnectionServiceAdapterMailbox mMailbox;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread("ConnectionServiceAdapterMailboxTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mMailbox = new ConnectionServiceAdapterMailbox("test", mLock,
+                mHandlerThread.getLooper());
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quitSafely();
+        super.tearDown();
+    }
+
+    @SmallTest
+    @Test
+    public void testCallbacksRunInOrderOnLooperWithLock() {
+        List<Integer> order = new ArrayList<>();
+        AtomicBoolean ranOffLooperOrUnlocked = new AtomicBoolean(false);
+        for (int i = 0; i < ConnectionServiceAdapterMailbox.MAX_BATCH_SIZE * 3; i++) {
+            final int index = i;
+            mMailbox.post(() -> {
+                if (!mHandler.getLooper().isCurrentThread() || !Thread.holdsLock(mLock)) {
+                    ranOffLooperOrUnlocked.set(true);
+                }
+                order.add(index);
+            });
+        }
+        waitForHandlerAction(mHandler, TEST_TIMEOUT);
+        waitForHandlerAction(mHandler, TEST_TIMEOUT);
+        waitForHandlerAction(mHandler, TEST_TIMEOUT);
+
+        assertFalse(ranOffLooperOrUnlocked.get());
+        assertEquals(ConnectionServiceAdapterMailbox.MAX_BATCH_SIZE * 3, order.size());
+        for (int i = 0; i < order.size(); i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @SmallTest
+    @Test
+    public void testFlushRunsPendingCallbacksOnCaller() {
+        List<Integer> order = new ArrayList<>();
+        synchronized (mLock) {
+            // The looper cannot run anything while the lock is held here.
+            mMailbox.post(() -> order.add(1));
+            mMailbox.post(() -> order.add(2));
+            mMailbox.flush();
+            order.add(3);
+        }
+        waitForHandlerAction(mHandler, TEST_TIMEOUT);
+        assertEquals(List.of(1, 2, 3), order);
+    }
+
+    @SmallTest
+    @Test
+    public void testFailingCallbackDoesNotStopQueue() {
+        List<Integer> order = new ArrayList<>();
+        mMailbox.post(() -> {
+            throw new RemoteException();
+        });
+        mMailbox.post(() -> {
+            throw new IllegalStateException();
+        });
+        mMailbox.post(() -> order.add(1));
+        waitForHandlerAction(mHandler, TEST_TIMEOUT);
+        assertEquals(List.of(1), order);
+    }
+
+    /**
+     * A ConnectionService floods putExtras while Telecom is busy: the binder threads are not held
+     * up until the queue is full, and the extras are applied in the order they were sent.
+     */
+    @SmallTest
+    @Test
+    public void testPutExtrasFloodDoesNotBlockBinderThread() throws Exception {
+        Bundle callExtras = new Bundle();
+        CountDownLatch queued = new CountDownLatch(1);
+        Thread binderThread;
+        synchronized (mLock) {
+            binderThread = new Thread(() -> {
+                for (int i = 0; i < ConnectionServiceAdapterMailbox.MAX_PENDING_CALLBACKS; i++) {
+                    Bundle extras = new Bundle();
+                    extras.putInt("count", i);
+                    mMailbox.post(() -> {
+                        int previous = callExtras.getInt("count", -1);
+                        if (extras.getInt("count") == previous + 1) {
+                            callExtras.putAll(extras);
+                        }
+                    });
+                }
+                queued.countDown();
+            });
+            binderThread.start();
+            // Telecom still holds the lock, but every callback has been queued.
+            assertTrue(queued.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+        binderThread.join(TEST_TIMEOUT);
+
+        mMailbox.flush();
+        assertEquals(ConnectionServiceAdapterMailbox.MAX_PENDING_CALLBACKS - 1,
+                callExtras.getInt("count"));
+    }
+
+    /**
+     * Several binder threads of a misbehaving ConnectionService flood putExtras.  Measures how
+     * long other work on the looper waits while the flood is applied, and checks that each
+     * thread's extras are applied in order.
+     */
+    @LargeTest
+    @Test
+    public void testPutExtrasFloodStress() throws Exception {
+        final int numBinderThreads = 4;
+        final int callbacksPerThread = 20000;
+        final int[] lastApplied = new int[numBinderThreads];
+        AtomicBoolean outOfOrder = new AtomicBoolean(false);
+        AtomicLong maxLooperDelayNanos = new AtomicLong(0);
+        AtomicBoolean flooding = new AtomicBoolean(true);
+        Arrays.fill(lastApplied, -1);
+
+        // Other Telecom work on the looper, which should keep getting a turn.
+        Runnable probe = new Runnable() {
+            long mPostedNanos = System.nanoTime();
+
+            @Override
+            public void run() {
+                long delay = System.nanoTime() - mPostedNanos;
+                maxLooperDelayNanos.accumulateAndGet(delay, Math::max);
+                if (flooding.get()) {
+                    mPostedNanos = System.nanoTime();
+                    mHandler.postDelayed(this, 1);
+                }
+            }
+        };
+        mHandler.post(probe);
+
+        List<Thread> binderThreads = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        for (int t = 0; t < numBinderThreads; t++) {
+            final int thread = t;
+            Thread binderThread = new Thread(() -> {
+                for (int i = 0; i < callbacksPerThread; i++) {
+                    final int count = i;
+                    Bundle extras = new Bundle();
+                    extras.putInt("count", count);
+                    mMailbox.post(() -> {
+                        if (lastApplied[thread] != count - 1) {
+                            outOfOrder.set(true);
+                        }
+                        lastApplied[thread] = extras.getInt("count");
+                    });
+                }
+            });
+            binderThreads.add(binderThread);
+            binderThread.start();
+        }
+        for (Thread binderThread : binderThreads) {
+            binderThread.join(TEST_TIMEOUT * 4);
+        }
+        mMailbox.flush();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        flooding.set(false);
+        waitForHandlerAction(mHandler, TEST_TIMEOUT);
+
+        assertFalse(outOfOrder.get());
+        for (int t = 0; t < numBinderThreads; t++) {
+            assertEquals(callbacksPerThread - 1, lastApplied[t]);
+        }
+        Log.i(this, "testPutExtrasFloodStress: %d callbacks in %d ms, max looper delay %d ms",
+                numBinderThreads * callbacksPerThread, elapsedMillis,
+                TimeUnit.NANOSECONDS.toMillis(maxLooperDelayNanos.get()));
+    }
+}
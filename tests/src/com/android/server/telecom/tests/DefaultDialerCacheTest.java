@@ -39,9 +39,12 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -56,6 +59,7 @@ public class DefaultDialerCacheTest extends TelecomTestCase {
     private static final int USER1 = 1;
     private static final int USER2 = 2;
 
+    private final TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() { };
     private DefaultDialerCache mDefaultDialerCache;
     private ContentObserver mDefaultDialerSettingObserver;
     private BroadcastReceiver mPackageChangeReceiver;
@@ -74,8 +78,7 @@ public class DefaultDialerCacheTest extends TelecomTestCase {
                 ArgumentCaptor.forClass(BroadcastReceiver.class);
 
         mDefaultDialerCache = new DefaultDialerCache(
-                mContext, mMockDefaultDialerManager, mRoleManagerAdapter,
-                new TelecomSystem.SyncRoot() { });
+                mContext, mMockDefaultDialerManager, mRoleManagerAdapter, mLock);
 
         verify(mContext, times(2)).registerReceiverAsUser(
             packageReceiverCaptor.capture(), eq(UserHandle.ALL), any(IntentFilter.class),
@@ -128,6 +131,40 @@ public class DefaultDialerCacheTest extends TelecomTestCase {
                 .getDefaultDialerApp(eq(USER2));
     }
 
+    /**
+     * Verifies that package changes refresh the cache with the Telecom lock held, unless the
+     * cache has its own lock, in which case the role holder is looked up without any lock.
+     */
+    @SmallTest
+    @Test
+    public void testPackageChangedLockScope() {
+        Intent packageChangeIntent = new Intent(Intent.ACTION_PACKAGE_CHANGED,
+                Uri.fromParts("package", DIALER1, null));
+        assertEquals(DIALER1, mDefaultDialerCache.getDefaultDialerApplication(USER0));
+        doAnswer(invocation -> {
+            assertTrue(Thread.holdsLock(mLock));
+            return DIALER1;
+        }).when(mRoleManagerAdapter).getDefaultDialerApp(eq(USER0));
+        mPackageChangeReceiver.onReceive(mContext, packageChangeIntent);
+
+        DefaultDialerCache ownLockCache = new DefaultDialerCache(mContext,
+                mMockDefaultDialerManager, mRoleManagerAdapter, mLock, true /* useOwnLock */);
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext, times(4)).registerReceiverAsUser(receiverCaptor.capture(),
+                eq(UserHandle.ALL), any(IntentFilter.class), isNull(String.class),
+                isNull(Handler.class));
+        BroadcastReceiver ownLockReceiver = receiverCaptor.getAllValues().get(2);
+        doAnswer(invocation -> DIALER1).when(mRoleManagerAdapter).getDefaultDialerApp(eq(USER0));
+        assertEquals(DIALER1, ownLockCache.getDefaultDialerApplication(USER0));
+        doAnswer(invocation -> {
+            assertFalse(Thread.holdsLock(mLock));
+            return DIALER1;
+        }).when(mRoleManagerAdapter).getDefaultDialerApp(eq(USER0));
+        ownLockReceiver.onReceive(mContext, packageChangeIntent);
+        verify(mRoleManagerAdapter, times(4)).getDefaultDialerApp(eq(USER0));
+    }
+
     @SmallTest
     @Test
     public void testDialer1PackageChanged() {
@@ -35,11 +35,14 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -81,13 +84,16 @@ import android.os.UserManager;
 import android.permission.PermissionCheckerManager;
 import android.telecom.CallAudioState;
 import android.telecom.InCallService;
+import android.telecom.Log;
 import android.telecom.ParcelableCall;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.test.mock.MockContext;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 
 import com.android.dx.mockito.inline.extended.ExtendedMockito;
 import com.android.internal.telecom.IInCallAdapter;
@@ -95,6 +101,7 @@ import com.android.internal.telecom.IInCallService;
 import com.android.server.telecom.Analytics;
 import com.android.server.telecom.AnomalyReporterAdapter;
 import com.android.server.telecom.Call;
+import com.android.server.telecom.CallState;
 import com.android.server.telecom.CallsManager;
 import com.android.server.telecom.CarModeTracker;
 import com.android.server.telecom.ClockProxy;
@@ -130,6 +137,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 
@@ -505,6 +513,61 @@ public class InCallControllerTests extends TelecomTestCase {
                 TelecomManager.EXTRA_OUTGOING_CALL_EXTRAS));
     }
 
+    /**
+     * Verifies that the InCallServices found for the first call are reused for the next one, that
+     * their permissions are checked again on each bind, and that they are looked up again once a
+     * package changes.
+     */
+    @MediumTest
+    @Test
+    public void testBindToService_ReusesResolvedInCallServices() throws Exception {
+        when(mFeatureFlags.cacheInCallServiceResolution()).thenReturn(true);
+        InCallController inCallController = new InCallController(mMockContext, mLock,
+                mMockCallsManager, mMockSystemStateHelper, mDefaultDialerCache, mTimeoutsAdapter,
+                mEmergencyCallHelper, mCarModeTracker, mClockProxy, mFeatureFlags);
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mMockContext, atLeastOnce()).registerReceiverAsUser(receiverCaptor.capture(),
+                eq(UserHandle.ALL), any(IntentFilter.class), any(), any());
+        BroadcastReceiver invalidator = receiverCaptor.getValue();
+
+        when(mMockCallsManager.getCurrentUserHandle()).thenReturn(mUserHandle);
+        when(mMockContext.getPackageManager()).thenReturn(mMockPackageManager);
+        when(mMockCallsManager.isInEmergencyCall()).thenReturn(false);
+        when(mMockCall.isIncoming()).thenReturn(false);
+        when(mMockCall.getAssociatedUser()).thenReturn(mUserHandle);
+        when(mMockCall.getTargetPhoneAccount()).thenReturn(PA_HANDLE);
+        when(mMockCall.getIntentExtras()).thenReturn(new Bundle());
+        when(mMockCall.isExternalCall()).thenReturn(false);
+        when(mDefaultDialerCache.getDefaultDialerApplication(CURRENT_USER_ID))
+                .thenReturn(DEF_PKG);
+        when(mMockContext.bindServiceAsUser(any(Intent.class), any(ServiceConnection.class),
+                anyInt(), eq(mUserHandle))).thenReturn(true);
+        setupMockPackageManager(true /* default */, true /* system */, false /* external calls */);
+
+        inCallController.bindToServices(mMockCall);
+        verify(mMockPackageManager, times(4)).queryIntentServicesAsUser(any(Intent.class),
+                anyInt(), eq(CURRENT_USER_ID));
+
+        // The next call binds to the same InCallServices without querying again, but the
+        // permissions of each InCallService are still checked.
+        clearInvocations(mMockPackageManager);
+        inCallController.unbindFromServices(mUserHandle);
+        inCallController.bindToServices(mMockCall);
+        verify(mMockPackageManager, never()).queryIntentServicesAsUser(any(Intent.class),
+                anyInt(), eq(CURRENT_USER_ID));
+        verify(mMockPackageManager, atLeastOnce()).getPackagesForUid(anyInt());
+        verify(mMockContext, times(2)).bindServiceAsUser(any(Intent.class),
+                any(ServiceConnection.class), eq(serviceBindingFlags), eq(mUserHandle));
+
+        // Once a package changes, the InCallServices are looked up again.
+        invalidator.onReceive(mMockContext, new Intent(Intent.ACTION_PACKAGE_REPLACED));
+        inCallController.unbindFromServices(mUserHandle);
+        inCallController.bindToServices(mMockCall);
+        verify(mMockPackageManager, times(4)).queryIntentServicesAsUser(any(Intent.class),
+                anyInt(), eq(CURRENT_USER_ID));
+    }
+
     @MediumTest
     @Test
     public void testBindToService_SystemDialer_Emergency() throws Exception {
@@ -1279,6 +1342,74 @@ public class InCallControllerTests extends TelecomTestCase {
         verify(mockInCallService).addCall(any(ParcelableCall.class));
     }
 
+    /**
+     * Ensures that the InCallServices bound ahead of a call receive the call once it is added,
+     * and stay bound between calls until the warm window passes.
+     */
+    @MediumTest
+    @Test
+    public void testPrebindToServices_KeepsServicesWarmBetweenCalls() throws Exception {
+        when(mFeatureFlags.prebindInCallServices()).thenReturn(true);
+        when(mMockCallsManager.getCurrentUserHandle()).thenReturn(mUserHandle);
+        when(mMockContext.getPackageManager()).thenReturn(mMockPackageManager);
+        when(mMockCallsManager.isInEmergencyCall()).thenReturn(false);
+        when(mMockCall.isIncoming()).thenReturn(true);
+        when(mMockCall.isExternalCall()).thenReturn(false);
+        when(mMockCall.getAssociatedUser()).thenReturn(mUserHandle);
+        when(mMockCall.getTargetPhoneAccount()).thenReturn(PA_HANDLE);
+        when(mDefaultDialerCache.getDefaultDialerApplication(CURRENT_USER_ID)).thenReturn(DEF_PKG);
+        when(mMockContext.bindServiceAsUser(nullable(Intent.class),
+                nullable(ServiceConnection.class), anyInt(), nullable(UserHandle.class)))
+                .thenReturn(true);
+        when(mTimeoutsAdapter.getCallRemoveUnbindInCallServicesDelay(
+                nullable(ContentResolver.class))).thenReturn(0L);
+        when(mTimeoutsAdapter.getInCallServicePrebindTimeoutMillis(
+                nullable(ContentResolver.class))).thenReturn(TEST_TIMEOUT);
+        when(mTimeoutsAdapter.getInCallServiceWarmWindowMillis(
+                nullable(ContentResolver.class))).thenReturn(TEST_TIMEOUT);
+        when(mMockCallsManager.getCalls()).thenReturn(Collections.emptyList());
+        setupMockPackageManager(true /* default */, true /* system */, false /* external calls */);
+
+        // Binding starts before the call exists.
+        mInCallController.prebindToServices("test");
+        assertEquals(1, mInCallController.getNumPrebinds());
+        ArgumentCaptor<ServiceConnection> serviceConnectionCaptor =
+                ArgumentCaptor.forClass(ServiceConnection.class);
+        verify(mMockContext, times(1)).bindServiceAsUser(any(Intent.class),
+                serviceConnectionCaptor.capture(), eq(serviceBindingFlags), eq(mUserHandle));
+        ServiceConnection serviceConnection = serviceConnectionCaptor.getValue();
+        IBinder mockBinder = mock(IBinder.class);
+        IInCallService mockInCallService = mock(IInCallService.class);
+        when(mockBinder.queryLocalInterface(anyString())).thenReturn(mockInCallService);
+        serviceConnection.onServiceConnected(new ComponentName(DEF_PKG, DEF_CLASS), mockBinder);
+
+        // The call goes straight to the service which is already bound.
+        when(mMockCallsManager.getCalls()).thenReturn(Collections.singletonList(mMockCall));
+        mInCallController.onCallAdded(mMockCall);
+        verify(mockInCallService).addCall(any(ParcelableCall.class));
+        // A call sent to pre-bound services is not one sent during the warm window.
+        assertEquals(0, mInCallController.getNumCallsAddedToWarmServices());
+
+        // The service stays bound after the call is removed, and gets the next call.
+        when(mMockCallsManager.getCalls()).thenReturn(Collections.emptyList());
+        mInCallController.onCallRemoved(mMockCall);
+        waitForHandlerAction(mInCallController.getHandler(), TEST_TIMEOUT);
+        verify(mMockContext, never()).unbindService(serviceConnection);
+        when(mMockCallsManager.getCalls()).thenReturn(Collections.singletonList(mMockCall));
+        mInCallController.onCallAdded(mMockCall);
+        verify(mockInCallService, times(2)).addCall(any(ParcelableCall.class));
+        assertEquals(1, mInCallController.getNumCallsAddedToWarmServices());
+        verify(mMockContext, times(1)).bindServiceAsUser(any(Intent.class),
+                any(ServiceConnection.class), eq(serviceBindingFlags), eq(mUserHandle));
+
+        // Once the warm window passes without a call, the service is unbound.
+        when(mTimeoutsAdapter.getInCallServiceWarmWindowMillis(
+                nullable(ContentResolver.class))).thenReturn(100L);
+        when(mMockCallsManager.getCalls()).thenReturn(Collections.emptyList());
+        mInCallController.onCallRemoved(mMockCall);
+        verify(mMockContext, timeout(TEST_TIMEOUT)).unbindService(serviceConnection);
+    }
+
     /**
      * Ensures that the {@link InCallController} will bind to an {@link InCallService} which
      * supports third party car mode ui calls
@@ -1965,6 +2096,145 @@ public class InCallControllerTests extends TelecomTestCase {
                 userIds.contains(mParentUserHandle.getIdentifier()));
     }
 
+    /**
+     * Ensures that InCallServices which need the same {@link ParcelableCall} for a call update
+     * share a single instance.
+     */
+    @SmallTest
+    @Test
+    public void testParcelableCallSharedBetweenServices() throws Exception {
+        when(mFeatureFlags.shareParcelableCallAcrossServices()).thenReturn(true);
+        Map<InCallController.InCallServiceInfo, IInCallService> services =
+                setupBoundServicesForUpdates(5 /* numNonUiServices */);
+
+        mInCallController.onCallStateChanged(mMockCall, CallState.DIALING, CallState.ACTIVE);
+
+        for (IInCallService service : services.values()) {
+            verify(service).updateCall(any(ParcelableCall.class));
+        }
+        // The dialer and car UI share a variant, as do the non-UI services without external call
+        // support; the companion and the non-UI service with external call support each need
+        // their own.
+        assertEquals(4, mInCallController.getNumParcelableCallsBuilt());
+        assertEquals(services.size() - 4, mInCallController.getNumParcelableCallsReused());
+    }
+
+    /**
+     * Measures the cost of sending call updates to a dialer, car mode UI, wearable companion and
+     * several non-UI InCallServices, with and without sharing {@link ParcelableCall}s.
+     */
+    @LargeTest
+    @Test
+    public void testParcelableCallSharingBenchmark() throws Exception {
+        final int numUpdates = 2000;
+        Map<InCallController.InCallServiceInfo, IInCallService> services =
+                setupBoundServicesForUpdates(5 /* numNonUiServices */);
+
+        when(mFeatureFlags.shareParcelableCallAcrossServices()).thenReturn(false);
+        long unsharedNanos = runCallUpdates(numUpdates);
+        long unsharedBuilt = mInCallController.getNumParcelableCallsBuilt();
+        assertEquals((long) numUpdates * services.size(), unsharedBuilt);
+
+        when(mFeatureFlags.shareParcelableCallAcrossServices()).thenReturn(true);
+        long sharedNanos = runCallUpdates(numUpdates);
+        long sharedBuilt = mInCallController.getNumParcelableCallsBuilt() - unsharedBuilt;
+        assertEquals(4L * numUpdates, sharedBuilt);
+
+        Log.i(this, "testParcelableCallSharingBenchmark: %d updates to %d services;"
+                + " unshared=%dus (%d built), shared=%dus (%d built)", numUpdates,
+                services.size(), unsharedNanos / 1000, unsharedBuilt, sharedNanos / 1000,
+                sharedBuilt);
+    }
+
+    /**
+     * Ensures that call updates requested in quick succession are merged into a single update,
+     * while state changes are still sent immediately.
+     */
+    @SmallTest
+    @Test
+    public void testCallUpdatesCoalesced() throws Exception {
+        when(mFeatureFlags.coalesceInCallServiceUpdates()).thenReturn(true);
+        Map<InCallController.InCallServiceInfo, IInCallService> services =
+                setupBoundServicesForUpdates(1 /* numNonUiServices */);
+        mInCallController.addCall(mMockCall);
+        ArgumentCaptor<Call.Listener> listenerCaptor =
+                ArgumentCaptor.forClass(Call.Listener.class);
+        verify(mMockCall).addListener(listenerCaptor.capture());
+        Call.Listener listener = listenerCaptor.getValue();
+
+        // Several changes are sent as a single update.
+        listener.onStatusHintsChanged(mMockCall);
+        listener.onExtrasChanged(mMockCall, Call.SOURCE_CONNECTION_SERVICE, new Bundle(), null);
+        listener.onVideoStateChanged(mMockCall, 0, 1);
+        for (IInCallService service : services.values()) {
+            verify(service, never()).updateCall(any(ParcelableCall.class));
+        }
+        waitForHandlerActionDelayed(mInCallController.getHandler(), TEST_TIMEOUT, 100);
+        for (IInCallService service : services.values()) {
+            verify(service, times(1)).updateCall(any(ParcelableCall.class));
+        }
+        assertEquals(2, mInCallController.getNumCallUpdatesMerged());
+
+        // A state change is sent immediately, and includes the pending change.
+        listener.onConnectionCapabilitiesChanged(mMockCall);
+        mInCallController.onCallStateChanged(mMockCall, CallState.DIALING, CallState.ACTIVE);
+        for (IInCallService service : services.values()) {
+            verify(service, times(2)).updateCall(any(ParcelableCall.class));
+        }
+        waitForHandlerActionDelayed(mInCallController.getHandler(), TEST_TIMEOUT, 100);
+        for (IInCallService service : services.values()) {
+            verify(service, times(2)).updateCall(any(ParcelableCall.class));
+        }
+        assertEquals(3, mInCallController.getNumCallUpdatesMerged());
+
+        // A pending change for a removed call is dropped.
+        listener.onCallerInfoChanged(mMockCall);
+        when(mMockCallsManager.getCalls()).thenReturn(Collections.emptyList());
+        mInCallController.onCallRemoved(mMockCall);
+        assertEquals(1, mInCallController.getNumCallUpdatesDropped());
+    }
+
+    private long runCallUpdates(int numUpdates) {
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < numUpdates; i++) {
+            mInCallController.onCallStateChanged(mMockCall, CallState.DIALING, CallState.ACTIVE);
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Registers a bound dialer, car mode UI, wearable companion and {@code numNonUiServices}
+     * non-UI InCallServices for the current user.  The companion and the first non-UI service
+     * support external calls.
+     */
+    private Map<InCallController.InCallServiceInfo, IInCallService> setupBoundServicesForUpdates(
+            int numNonUiServices) {
+        when(mMockContext.getPackageManager()).thenReturn(mMockPackageManager);
+        when(mMockCall.isExternalCall()).thenReturn(false);
+        when(mMockCall.getAssociatedUser()).thenReturn(mUserHandle);
+        Map<InCallController.InCallServiceInfo, IInCallService> services = new ArrayMap<>();
+        services.put(new InCallController.InCallServiceInfo(
+                new ComponentName(DEF_PKG, DEF_CLASS), false /* external */, false /* selfMgd */,
+                InCallController.IN_CALL_SERVICE_TYPE_DEFAULT_DIALER_UI, false),
+                mock(IInCallService.class));
+        services.put(new InCallController.InCallServiceInfo(
+                new ComponentName(CAR_PKG, CAR_CLASS), false /* external */, false /* selfMgd */,
+                InCallController.IN_CALL_SERVICE_TYPE_CAR_MODE_UI, false),
+                mock(IInCallService.class));
+        services.put(new InCallController.InCallServiceInfo(
+                new ComponentName(COMPANION_PKG, COMPANION_CLASS), true /* external */,
+                false /* selfMgd */, InCallController.IN_CALL_SERVICE_TYPE_COMPANION, false),
+                mock(IInCallService.class));
+        for (int i = 0; i < numNonUiServices; i++) {
+            services.put(new InCallController.InCallServiceInfo(
+                    new ComponentName(NONUI_PKG + i, NONUI_CLASS), i == 0 /* external */,
+                    false /* selfMgd */, InCallController.IN_CALL_SERVICE_TYPE_NON_UI, false),
+                    mock(IInCallService.class));
+        }
+        mInCallController.getInCallServices().put(mUserHandle, services);
+        return services;
+    }
+
     private void setupMocks(boolean isExternalCall) {
         setupMocks(isExternalCall, false /* isSelfManagedCall */);
     }
@@ -17,18 +17,24 @@
 package com.android.server.telecom.tests;
 
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.media.AudioAttributes;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.ToneGenerator;
@@ -43,6 +49,7 @@ import com.android.server.telecom.DockManager;
 import com.android.server.telecom.InCallTonePlayer;
 import com.android.server.telecom.TelecomSystem;
 import com.android.server.telecom.Timeouts;
+import com.android.server.telecom.TonePlaybackEngine;
 import com.android.server.telecom.WiredHeadsetManager;
 import com.android.server.telecom.bluetooth.BluetoothDeviceManager;
 import com.android.server.telecom.bluetooth.BluetoothRouteManager;
@@ -54,10 +61,13 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.mockito.Mock;
 
+import java.util.concurrent.RejectedExecutionException;
+
 @RunWith(JUnit4.class)
 public class InCallTonePlayerTest extends TelecomTestCase {
 
     private static final long TEST_TIMEOUT = 5000L;
+    private static final int TEST_TONE_RESOURCE_ID = 1;
     private InCallTonePlayer.Factory mFactory;
     private CallAudioRoutePeripheralAdapter mCallAudioRoutePeripheralAdapter;
 
@@ -116,6 +126,7 @@ public class InCallTonePlayerTest extends TelecomTestCase {
     private Call mCall;
 
     private InCallTonePlayer mInCallTonePlayer;
+    private TonePlaybackEngine mTonePlaybackEngine;
 
     @Override
     @Before
@@ -140,6 +151,9 @@ public class InCallTonePlayerTest extends TelecomTestCase {
     public void tearDown() throws Exception {
         super.tearDown();
         mInCallTonePlayer.cleanup();
+        if (mTonePlaybackEngine != null) {
+            mTonePlaybackEngine.quit();
+        }
     }
 
     @SmallTest
@@ -279,4 +293,103 @@ public class InCallTonePlayerTest extends TelecomTestCase {
                 .get(eq(AudioManager.STREAM_VOICE_CALL), anyInt());
         verify(mCallAudioManager).setIsTonePlaying(any(Call.class), eq(true));
     }
+
+    @SmallTest
+    @Test
+    public void testEngineReusesToneGenerator() {
+        mFactory = createFactoryWithEngine();
+        when(mAudioManagerAdapter.isVolumeOverZero()).thenReturn(true);
+
+        mInCallTonePlayer = mFactory.createPlayer(mCall, InCallTonePlayer.TONE_RING_BACK);
+        assertTrue(mInCallTonePlayer.startTone());
+        verify(mToneGenerator, timeout(TEST_TIMEOUT)).startTone(anyInt());
+        mInCallTonePlayer.stopTone();
+        verify(mCallAudioManager, timeout(TEST_TIMEOUT)).setIsTonePlaying(any(Call.class),
+                eq(false));
+
+        // The second tone on the same stream uses the generator kept from the first.
+        mInCallTonePlayer = mFactory.createPlayer(mCall, InCallTonePlayer.TONE_RING_BACK);
+        assertTrue(mInCallTonePlayer.startTone());
+        verify(mToneGenerator, timeout(TEST_TIMEOUT).times(2)).startTone(anyInt());
+        verify(mToneGeneratorFactory, times(1)).get(anyInt(), anyInt());
+        mInCallTonePlayer.stopTone();
+        verify(mCallAudioManager, timeout(TEST_TIMEOUT).times(2)).setIsTonePlaying(
+                any(Call.class), eq(false));
+    }
+
+    @SmallTest
+    @Test
+    public void testEnginePlaysMediaTone() {
+        mFactory = createFactoryWithEngine();
+        when(mAudioManagerAdapter.isVolumeOverZero()).thenReturn(true);
+
+        mInCallTonePlayer = mFactory.createPlayer(mCall, InCallTonePlayer.TONE_CALL_ENDED);
+        assertTrue(mInCallTonePlayer.startTone());
+        // The engine also prepares the next media tone in the background.
+        verify(mMediaPlayerFactory, timeout(TEST_TIMEOUT).atLeastOnce()).get(anyInt(), any());
+        verify(mCallAudioManager).setIsTonePlaying(any(Call.class), eq(true));
+        verify(mCallAudioManager, timeout(TEST_TIMEOUT)).setIsTonePlaying(any(Call.class),
+                eq(false));
+        // Correctness check: ensure we can't start the tone again.
+        assertFalse(mInCallTonePlayer.startTone());
+    }
+
+    @SmallTest
+    @Test
+    public void testEngineReusesPreparedMediaTone() {
+        InCallTonePlayer.MediaPlayerAdapter firstPlayer =
+                mock(InCallTonePlayer.MediaPlayerAdapter.class);
+        InCallTonePlayer.MediaPlayerAdapter secondPlayer =
+                mock(InCallTonePlayer.MediaPlayerAdapter.class);
+        InCallTonePlayer.MediaPlayerAdapter thirdPlayer =
+                mock(InCallTonePlayer.MediaPlayerAdapter.class);
+        when(mMediaPlayerFactory.get(anyInt(), any()))
+                .thenReturn(firstPlayer, secondPlayer, thirdPlayer);
+        // Prepare media tones inline so that nothing runs on the workers.
+        mTonePlaybackEngine = new TonePlaybackEngine(mToneGeneratorFactory, mMediaPlayerFactory,
+                Runnable::run);
+        AudioAttributes attributes = new AudioAttributes.Builder().build();
+
+        assertSame(firstPlayer, mTonePlaybackEngine.acquireMediaTone(TEST_TONE_RESOURCE_ID,
+                AudioManager.STREAM_VOICE_CALL, attributes));
+        verify(mMediaPlayerFactory, times(2)).get(eq(TEST_TONE_RESOURCE_ID), any());
+
+        // The same tone played again uses the player prepared after the first one, and a single
+        // replacement is prepared.
+        assertSame(secondPlayer, mTonePlaybackEngine.acquireMediaTone(TEST_TONE_RESOURCE_ID,
+                AudioManager.STREAM_VOICE_CALL, attributes));
+        verify(mMediaPlayerFactory, times(3)).get(eq(TEST_TONE_RESOURCE_ID), any());
+
+        // The prepared player which was never used is released with the engine.
+        mTonePlaybackEngine.quit();
+        verify(thirdPlayer).release();
+        verify(firstPlayer, never()).release();
+        verify(secondPlayer, never()).release();
+    }
+
+    @SmallTest
+    @Test
+    public void testEngineMediaToneWhenPreparationRejected() {
+        InCallTonePlayer.MediaPlayerAdapter player =
+                mock(InCallTonePlayer.MediaPlayerAdapter.class);
+        when(mMediaPlayerFactory.get(anyInt(), any())).thenReturn(player);
+        // Rejects as the workers do once quit() has shut them down.
+        mTonePlaybackEngine = new TonePlaybackEngine(mToneGeneratorFactory, mMediaPlayerFactory,
+                r -> {
+                    throw new RejectedExecutionException();
+                });
+
+        assertSame(player, mTonePlaybackEngine.acquireMediaTone(TEST_TONE_RESOURCE_ID,
+                AudioManager.STREAM_VOICE_CALL, new AudioAttributes.Builder().build()));
+        verify(mMediaPlayerFactory, times(1)).get(eq(TEST_TONE_RESOURCE_ID), any());
+    }
+
+    private InCallTonePlayer.Factory createFactoryWithEngine() {
+        mTonePlaybackEngine = new TonePlaybackEngine(mToneGeneratorFactory, mMediaPlayerFactory);
+        InCallTonePlayer.Factory factory = new InCallTonePlayer.Factory(
+                mCallAudioRoutePeripheralAdapter, mLock, mToneGeneratorFactory,
+                mMediaPlayerFactory, mAudioManagerAdapter, mTonePlaybackEngine);
+        factory.setCallAudioManager(mCallAudioManager);
+        return factory;
+    }
 }
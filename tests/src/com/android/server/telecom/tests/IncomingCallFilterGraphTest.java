@@ -27,10 +27,15 @@ import com.android.server.telecom.TelecomSystem;
 import com.android.server.telecom.Timeouts;
 import com.android.server.telecom.callfiltering.CallFilter;
 import com.android.server.telecom.callfiltering.CallFilterResultCallback;
+import com.android.server.telecom.callfiltering.CallFilteringScheduler;
 import com.android.server.telecom.callfiltering.CallFilteringResult;
 import com.android.server.telecom.callfiltering.IncomingCallFilterGraph;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.when;
 
@@ -40,8 +45,12 @@ import org.junit.runners.JUnit4;
 import org.mockito.Mock;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 @RunWith(JUnit4.class)
@@ -175,4 +184,88 @@ public class IncomingCallFilterGraphTest extends TelecomTestCase {
 
         assertEquals(REJECT_CALL_RESULT, testResult.get(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
     }
+
+    @SmallTest
+    @Test
+    public void testFiltersOnSharedScheduler() throws Exception {
+        CallFilteringScheduler scheduler = new CallFilteringScheduler(2);
+        CompletableFuture<CallFilteringResult> testResult = new CompletableFuture<>();
+        CallFilterResultCallback listener = (call, result, timeout) -> testResult.complete(result);
+
+        IncomingCallFilterGraph graph = new IncomingCallFilterGraph(mCall, listener, mContext,
+                mTimeoutsAdapter, mLock, scheduler);
+        AllowFilter allowFilter = new AllowFilter();
+        DisallowFilter disallowFilter = new DisallowFilter();
+        graph.addFilter(allowFilter);
+        graph.addFilter(disallowFilter);
+        IncomingCallFilterGraph.addEdge(allowFilter, disallowFilter);
+        graph.performFiltering();
+
+        assertEquals(REJECT_CALL_RESULT, testResult.get(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertNull(graph.getHandlerThread());
+        assertEquals(1, scheduler.getFilterCount(AllowFilter.class));
+        assertEquals(1, scheduler.getFilterCount(DisallowFilter.class));
+        // The graph's timeout must not fire later on the shared thread.
+        Handler handler = scheduler.getHandler(mCall);
+        waitForHandlerAction(handler, TEST_TIMEOUT);
+        assertFalse(handler.hasMessages(0 /* what */, graph));
+    }
+
+    /**
+     * Simulates a burst of incoming calls being filtered at once on the shared scheduler; all
+     * calls should complete filtering without starting any per-call threads.
+     */
+    @SmallTest
+    @Test
+    public void testFilteringBurstOnSharedScheduler() throws Exception {
+        final int numCalls = 50;
+        CallFilteringScheduler scheduler = new CallFilteringScheduler(2);
+        List<CompletableFuture<CallFilteringResult>> results = new ArrayList<>();
+        for (int i = 0; i < numCalls; i++) {
+            Call call = mock(Call.class);
+            when(call.getId()).thenReturn("TC@" + i);
+            CompletableFuture<CallFilteringResult> testResult = new CompletableFuture<>();
+            results.add(testResult);
+            IncomingCallFilterGraph graph = new IncomingCallFilterGraph(call,
+                    (c, result, timeout) -> testResult.complete(result), mContext,
+                    mTimeoutsAdapter, mLock, scheduler);
+            AllowFilter allowFilter = new AllowFilter();
+            DisallowFilter disallowFilter = new DisallowFilter();
+            graph.addFilter(allowFilter);
+            graph.addFilter(disallowFilter);
+            IncomingCallFilterGraph.addEdge(allowFilter, disallowFilter);
+            graph.performFiltering();
+            assertNull(graph.getHandlerThread());
+        }
+
+        for (CompletableFuture<CallFilteringResult> result : results) {
+            assertEquals(REJECT_CALL_RESULT, result.get(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(numCalls, scheduler.getFilterCount(DisallowFilter.class));
+    }
+
+    /**
+     * A blocking query which is slow to return for one call must not hold up the blocking
+     * queries of other calls.
+     */
+    @SmallTest
+    @Test
+    public void testBlockingWorkRunsConcurrently() throws Exception {
+        CallFilteringScheduler scheduler = new CallFilteringScheduler(2);
+        assertTrue(scheduler.getMaxBlockingThreads() > 1);
+        Executor executor = scheduler.getBlockingExecutor("test");
+        CountDownLatch secondQueryDone = new CountDownLatch(1);
+        CompletableFuture<Boolean> firstQuery = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                firstQuery.complete(
+                        secondQueryDone.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                firstQuery.complete(false);
+            }
+        });
+        executor.execute(secondQueryDone::countDown);
+
+        assertTrue(firstQuery.get(TEST_TIMEOUT * 2, TimeUnit.MILLISECONDS));
+    }
 }
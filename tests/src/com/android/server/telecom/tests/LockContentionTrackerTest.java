@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.server.telecom.LockContentionTracker;
+import com.android.server.telecom.TelecomSystem;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class LockContentionTrackerTest extends TelecomTestCase {
+    private static final long TEST_TIMEOUT = 5000;
+    private static final long HOLD_MILLIS = 50;
+
+    private final TelecomSystem.SyncRoot mLock = new TelecomSystem.SyncRoot() { };
+
+    @SmallTest
+    @Test
+    public void testDisabledTrackerRecordsNothing() {
+        LockContentionTracker tracker = new LockContentionTracker(false);
+        try (LockContentionTracker.Section section = tracker.enter("site")) {
+            synchronized (mLock) {
+                section.acquired();
+            }
+        }
+        assertNull(tracker.getSiteStats("site"));
+    }
+
+    @SmallTest
+    @Test
+    public void testRecordsWaitAndHold() throws Exception {
+        LockContentionTracker tracker = new LockContentionTracker(true);
+        CountDownLatch lockHeld = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            try (LockContentionTracker.Section section = tracker.enter("holder")) {
+                synchronized (mLock) {
+                    section.acquired();
+                    lockHeld.countDown();
+                    try {
+                        Thread.sleep(HOLD_MILLIS);
+                    } catch (InterruptedException e) {
+                        // do nothing
+                    }
+                }
+            }
+        });
+        holder.start();
+        assertTrue(lockHeld.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+        try (LockContentionTracker.Section section = tracker.enter("waiter")) {
+            synchronized (mLock) {
+                section.acquired();
+            }
+        }
+        holder.join(TEST_TIMEOUT);
+
+        LockContentionTracker.SiteStats holderStats = tracker.getSiteStats("holder");
+        LockContentionTracker.SiteStats waiterStats = tracker.getSiteStats("waiter");
+        assertEquals(1, holderStats.getCount());
+        assertEquals(1, waiterStats.getCount());
+        assertTrue(holderStats.getTotalHoldNanos()
+                >= TimeUnit.MILLISECONDS.toNanos(HOLD_MILLIS));
+        // The waiter was blocked for most of the time the holder slept.
+        assertTrue(waiterStats.getTotalWaitNanos() > 0);
+        assertTrue(waiterStats.getTotalWaitNanos() <= holderStats.getTotalHoldNanos());
+
+        StringWriter output = new StringWriter();
+        tracker.dump(new IndentingPrintWriter(output, "  "));
+        // Sites which waited longest are listed first.
+        assertTrue(output.toString().indexOf("waiter:") < output.toString().indexOf("holder:"));
+    }
+
+    @SmallTest
+    @Test
+    public void testSectionNotAcquiredIsNotCounted() {
+        LockContentionTracker tracker = new LockContentionTracker(true);
+        try (LockContentionTracker.Section section = tracker.enter("site")) {
+            // The lock was never taken, for example because a permission check failed first.
+        }
+        assertEquals(0, tracker.getSiteStats("site").getCount());
+    }
+}
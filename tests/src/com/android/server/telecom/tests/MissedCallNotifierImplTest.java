@@ -656,6 +656,72 @@ public class MissedCallNotifierImplTest extends TelecomTestCase {
                 nullable(Notification.class), eq(PRIMARY_USER));
     }
 
+    @SmallTest
+    @Test
+    public void testLoadManyCallsFromDbPostsOneNotification() throws Exception {
+        final int numMissedCalls = 500;
+        when(mFeatureFlags.batchMissedCallReload()).thenReturn(true);
+        TelecomSystem.setInstance(mTelecomSystem);
+        when(mTelecomSystem.isBootComplete()).thenReturn(true);
+        CallerInfoLookupHelper mockCallerInfoLookupHelper = mock(CallerInfoLookupHelper.class);
+        MissedCallNotifier.CallInfoFactory mockCallInfoFactory =
+                mock(MissedCallNotifier.CallInfoFactory.class);
+
+        MockMissedCallCursorBuilder cursorBuilder = new MockMissedCallCursorBuilder();
+        for (int i = 0; i < numMissedCalls; i++) {
+            // Every call is from a different number; the newest call is in the middle.
+            cursorBuilder.addEntry(String.format("650555%04d", i),
+                    CallLog.Calls.PRESENTATION_ALLOWED,
+                    i == numMissedCalls / 2 ? CALL_TIMESTAMP : CALL_TIMESTAMP - i - 1);
+        }
+        Cursor mockMissedCallsCursor = cursorBuilder.build();
+
+        Uri queryUri = ContentProvider.maybeAddUserId(CallLog.Calls.CONTENT_URI,
+                PRIMARY_USER.getIdentifier());
+        IContentProvider cp = getContentProviderForUser(PRIMARY_USER.getIdentifier());
+
+        when(cp.query(any(), eq(queryUri), nullable(String[].class),
+                nullable(Bundle.class), nullable(ICancellationSignal.class)))
+                .thenReturn(mockMissedCallsCursor);
+
+        PhoneAccount phoneAccount = makePhoneAccount(PRIMARY_USER, NO_CAPABILITY);
+        MissedCallNotifier.CallInfo fakeCallInfo = makeFakeCallInfo(TEL_CALL_HANDLE,
+                CALLER_NAME, CALL_TIMESTAMP, phoneAccount.getAccountHandle());
+        when(mockCallInfoFactory.makeCallInfo(nullable(CallerInfo.class),
+                nullable(PhoneAccountHandle.class), nullable(Uri.class), anyLong()))
+                .thenReturn(fakeCallInfo);
+
+        Notification.Builder publicBuilder = makeNotificationBuilder("public");
+        Notification.Builder privateBuilder = makeNotificationBuilder("private");
+        MissedCallNotifierImpl.NotificationBuilderFactory fakeBuilderFactory =
+                makeNotificationBuilderFactory(publicBuilder, privateBuilder);
+
+        MissedCallNotifier missedCallNotifier = new MissedCallNotifierImpl(mContext,
+                mPhoneAccountRegistrar, mDefaultDialerCache, fakeBuilderFactory,
+                mDeviceIdleControllerAdapter, mFeatureFlags);
+
+        // AsyncQueryHandler used in reloadFromDatabase interacts poorly with the below
+        // timeout-verify, so run this in a new handler to mitigate that.
+        Handler h = new Handler(Looper.getMainLooper());
+        h.post(() -> missedCallNotifier.reloadFromDatabase(
+                mockCallerInfoLookupHelper, mockCallInfoFactory, PRIMARY_USER));
+        waitForHandlerAction(h, TEST_TIMEOUT);
+
+        // A single notification counting every call is posted for the newest call, without a
+        // contacts lookup for any of them.
+        verify(mNotificationManager, timeout(TEST_TIMEOUT)).notifyAsUser(
+                nullable(String.class), eq(1), nullable(Notification.class), eq(PRIMARY_USER));
+        Uri newestHandle = Uri.fromParts(PhoneAccount.SCHEME_TEL,
+                String.format("650555%04d", numMissedCalls / 2), null);
+        verify(mockCallInfoFactory).makeCallInfo(nullable(CallerInfo.class),
+                nullable(PhoneAccountHandle.class), eq(newestHandle), eq(CALL_TIMESTAMP));
+        verify(privateBuilder).setContentText(String.format(MISSED_CALLS_MSG, numMissedCalls));
+        verify(mockCallerInfoLookupHelper, never()).startLookup(nullable(Uri.class),
+                any(CallerInfoLookupHelper.OnQueryCompleteListener.class));
+        verify(mNotificationManager, times(1)).notifyAsUser(nullable(String.class), eq(1),
+                nullable(Notification.class), eq(PRIMARY_USER));
+    }
+
     @SmallTest
     @Test
     public void testDialerHandleMissedCall() {
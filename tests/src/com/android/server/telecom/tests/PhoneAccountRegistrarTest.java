@@ -16,6 +16,7 @@
 
 package com.android.server.telecom.tests;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -38,8 +39,10 @@ import static org.mockito.Mockito.when;
 import android.annotation.Nullable;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Rect;
 import android.graphics.drawable.Icon;
@@ -57,6 +60,7 @@ import android.telecom.TelecomManager;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.util.Xml;
@@ -69,6 +73,7 @@ import com.android.server.telecom.AppLabelProxy;
 import com.android.server.telecom.DefaultDialerCache;
 import com.android.server.telecom.PhoneAccountRegistrar;
 import com.android.server.telecom.PhoneAccountRegistrar.DefaultPhoneAccountHandle;
+import com.android.server.telecom.PhoneAccountStateBinarySerializer;
 import com.android.server.telecom.TelecomSystem;
 
 import org.junit.After;
@@ -87,8 +92,10 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -105,6 +112,8 @@ public class PhoneAccountRegistrarTest extends TelecomTestCase {
             PhoneAccountRegistrar.MAX_PHONE_ACCOUNT_FIELD_CHAR_LIMIT + 1;
     private static final String INVALID_STR = "a".repeat(INVALID_CHAR_LIMIT_COUNT);
     private static final String FILE_NAME = "phone-account-registrar-test-1223.xml";
+    private static final String BINARY_FILE_NAME = "phone-account-registrar-test-1223"
+            + PhoneAccountRegistrar.BINARY_FILE_SUFFIX;
     private static final String TEST_LABEL = "right";
     private static final String TEST_ID = "123";
     private final String PACKAGE_1 = "PACKAGE_1";
@@ -129,13 +138,17 @@ public class PhoneAccountRegistrarTest extends TelecomTestCase {
                 mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
                 FILE_NAME)
                 .delete();
+        new File(
+                mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
+                BINARY_FILE_NAME)
+                .delete();
         when(mDefaultDialerCache.getDefaultDialerApplication(anyInt()))
                 .thenReturn("com.android.dialer");
         when(mAppLabelProxy.getAppLabel(anyString()))
                 .thenReturn(TEST_LABEL);
         mRegistrar = new PhoneAccountRegistrar(
                 mComponentContextFixture.getTestDouble().getApplicationContext(),
-                mLock, FILE_NAME, mDefaultDialerCache, mAppLabelProxy);
+                mLock, FILE_NAME, mDefaultDialerCache, mAppLabelProxy, mFeatureFlags);
     }
 
     @Override
@@ -146,6 +159,10 @@ public class PhoneAccountRegistrarTest extends TelecomTestCase {
                 mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
                 FILE_NAME)
                 .delete();
+        new File(
+                mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
+                BINARY_FILE_NAME)
+                .delete();
         super.tearDown();
     }
 
@@ -1700,6 +1717,440 @@ public class PhoneAccountRegistrarTest extends TelecomTestCase {
         }
     }
 
+    /**
+     * Verifies that lookups narrowed by the account index return the same accounts, in the same
+     * order, as a scan of every account, including after accounts are added and removed.
+     */
+    @SmallTest
+    @Test
+    public void testIndexedLookupMatchesScan() throws Exception {
+        mComponentContextFixture.addConnectionService(makeQuickConnectionServiceComponentName(),
+                Mockito.mock(IConnectionService.class));
+        registerAndEnableAccount(makeQuickAccountBuilder("tel0", 0, null)
+                .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER)
+                .addSupportedUriScheme(PhoneAccount.SCHEME_TEL)
+                .build());
+        registerAndEnableAccount(makeQuickAccountBuilder("sip0", 1, null)
+                .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER)
+                .addSupportedUriScheme(PhoneAccount.SCHEME_SIP)
+                .build());
+        registerAndEnableAccount(makeQuickAccountBuilder("tel10", 2, USER_HANDLE_10)
+                .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER)
+                .addSupportedUriScheme(PhoneAccount.SCHEME_TEL)
+                .build());
+        for (int i = 0; i < 4; i++) {
+            registerAndEnableAccount(makeBuilderWithBindCapabilities(makeQuickAccountHandle(
+                    new ComponentName(i % 2 == 0 ? PACKAGE_1 : PACKAGE_2, "cls"), "voip" + i))
+                    .build());
+        }
+        assertIndexedLookupsMatchScan();
+
+        mRegistrar.unregisterPhoneAccount(makeQuickAccountHandle("sip0"));
+        mRegistrar.clearAccounts(PACKAGE_1, Process.myUserHandle());
+        assertIndexedLookupsMatchScan();
+        when(mFeatureFlags.indexedPhoneAccountLookup()).thenReturn(true);
+        assertEquals(0, mRegistrar.getPhoneAccountsForPackage(PACKAGE_1,
+                Process.myUserHandle()).size());
+        assertEquals(2, mRegistrar.getPhoneAccountsForPackage(PACKAGE_2,
+                Process.myUserHandle()).size());
+        assertNull(mRegistrar.getPhoneAccountUnchecked(makeQuickAccountHandle("sip0")));
+    }
+
+    /**
+     * Verifies that the account index is kept up to date as accounts are registered and
+     * unregistered, rather than built again for each change.
+     */
+    @SmallTest
+    @Test
+    public void testAccountIndexUpdatedInPlace() throws Exception {
+        final int numPackages = 20;
+        final int accountsPerPackage = 5;
+        when(mFeatureFlags.indexedPhoneAccountLookup()).thenReturn(true);
+        for (int i = 0; i < numPackages * accountsPerPackage; i++) {
+            // Labels in reverse order, so that each registration changes the sort order.
+            registerAndEnableAccount(makeBuilderWithBindCapabilities(makeQuickAccountHandle(
+                    new ComponentName("pkg" + (i % numPackages), "cls"), "voip" + i))
+                    .setLabel("label" + (1000 - i))
+                    .addSupportedUriScheme(PhoneAccount.SCHEME_SIP)
+                    .build());
+        }
+        assertEquals(1, mRegistrar.getNumAccountIndexBuilds());
+
+        mRegistrar.unregisterPhoneAccount(makeQuickAccountHandle(
+                new ComponentName("pkg0", "cls"), "voip0"));
+        mRegistrar.clearAccounts("pkg1", Process.myUserHandle());
+        assertEquals(accountsPerPackage - 1, mRegistrar.getPhoneAccountsForPackage("pkg0",
+                Process.myUserHandle()).size());
+        assertEquals(0, mRegistrar.getPhoneAccountsForPackage("pkg1",
+                Process.myUserHandle()).size());
+        assertNull(mRegistrar.getPhoneAccountUnchecked(makeQuickAccountHandle(
+                new ComponentName("pkg0", "cls"), "voip0")));
+        assertEquals(1, mRegistrar.getNumAccountIndexBuilds());
+
+        // The index, updated in place, gives the same results in the same order as a scan.
+        List<List<PhoneAccountHandle>> indexed = new ArrayList<>();
+        List<List<PhoneAccountHandle>> scanned = new ArrayList<>();
+        for (boolean useIndex : new boolean[] {true, false}) {
+            when(mFeatureFlags.indexedPhoneAccountLookup()).thenReturn(useIndex);
+            List<List<PhoneAccountHandle>> results = useIndex ? indexed : scanned;
+            results.add(mRegistrar.getCallCapablePhoneAccounts(PhoneAccount.SCHEME_SIP, true,
+                    Process.myUserHandle(), false));
+            results.add(mRegistrar.getPhoneAccountsForPackage("pkg2", Process.myUserHandle()));
+            results.add(mRegistrar.getAllPhoneAccountHandles(Process.myUserHandle(), false));
+        }
+        assertEquals(scanned, indexed);
+        assertEquals(1, mRegistrar.getNumAccountIndexBuilds());
+    }
+
+    /**
+     * Benchmarks account lookups with thousands of registered accounts, with and without the
+     * account index.
+     */
+    @LargeTest
+    @Test
+    public void testIndexedLookupWithManyAccounts() throws Exception {
+        final int numPackages = 300;
+        final int numIterations = 200;
+        mComponentContextFixture.addConnectionService(makeQuickConnectionServiceComponentName(),
+                Mockito.mock(IConnectionService.class));
+        PhoneAccountRegistrar.State state = new PhoneAccountRegistrar.State();
+        for (int i = 0; i < PhoneAccountRegistrar.MAX_PHONE_ACCOUNT_REGISTRATIONS; i++) {
+            state.accounts.add(makeQuickAccountBuilder("tel" + i, i, null)
+                    .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER)
+                    .addSupportedUriScheme(PhoneAccount.SCHEME_TEL)
+                    .setIsEnabled(true)
+                    .build());
+        }
+        for (int i = 0; i < numPackages * PhoneAccountRegistrar.MAX_PHONE_ACCOUNT_REGISTRATIONS;
+                i++) {
+            state.accounts.add(makeBuilderWithBindCapabilities(makeQuickAccountHandle(
+                    new ComponentName("pkg" + (i % numPackages), "cls"), "voip" + i))
+                    .setCapabilities(PhoneAccount.CAPABILITY_SUPPORTS_TRANSACTIONAL_OPERATIONS
+                            | PhoneAccount.CAPABILITY_SELF_MANAGED)
+                    .addSupportedUriScheme(PhoneAccount.SCHEME_SIP)
+                    .setIsEnabled(true)
+                    .build());
+        }
+        // Account handles are persisted with the user's serial number.
+        when(UserManager.get(mContext).getSerialNumberForUser(Process.myUserHandle()))
+                .thenReturn(0L);
+        when(UserManager.get(mContext).getUserForSerialNumber(0L))
+                .thenReturn(Process.myUserHandle());
+        writeStateToFile(state);
+        mRegistrar = new PhoneAccountRegistrar(
+                mComponentContextFixture.getTestDouble().getApplicationContext(),
+                mLock, FILE_NAME, mDefaultDialerCache, mAppLabelProxy, mFeatureFlags);
+        assertEquals(state.accounts.size(), mRegistrar.getAllPhoneAccounts(null, true).size());
+
+        long scanNanos = runLookups(false /* indexed */, numPackages, numIterations);
+        long indexedNanos = runLookups(true /* indexed */, numPackages, numIterations);
+        Log.i(this, "testIndexedLookupWithManyAccounts: %d accounts, scan=%dms, indexed=%dms",
+                state.accounts.size(), scanNanos / 1000000, indexedNanos / 1000000);
+        assertIndexedLookupsMatchScan();
+    }
+
+    /**
+     * Verifies that component resolution is cached, and that the cache is invalidated when the
+     * package of the component changes.
+     */
+    @SmallTest
+    @Test
+    public void testResolveComponentCacheInvalidatedOnPackageChange() throws Exception {
+        when(mFeatureFlags.cacheResolveComponent()).thenReturn(true);
+        mRegistrar = new PhoneAccountRegistrar(
+                mComponentContextFixture.getTestDouble().getApplicationContext(),
+                mLock, FILE_NAME, mDefaultDialerCache, mAppLabelProxy, mFeatureFlags);
+        ComponentName componentName = makeQuickConnectionServiceComponentName();
+        mComponentContextFixture.addConnectionService(componentName,
+                Mockito.mock(IConnectionService.class));
+        PackageManager packageManager = mContext.getPackageManager();
+        PhoneAccountHandle handle = makeQuickAccountHandle(TEST_ID);
+
+        assertTrue(mRegistrar.phoneAccountRequiresBindPermission(handle));
+        assertTrue(mRegistrar.phoneAccountRequiresBindPermission(handle));
+        verify(packageManager, times(1)).queryIntentServicesAsUser(any(Intent.class), anyInt(),
+                anyInt());
+
+        // A change to another package leaves the cached component in place.
+        sendPackageBroadcast(Intent.ACTION_PACKAGE_CHANGED, PACKAGE_1);
+        assertTrue(mRegistrar.phoneAccountRequiresBindPermission(handle));
+        verify(packageManager, times(1)).queryIntentServicesAsUser(any(Intent.class), anyInt(),
+                anyInt());
+
+        sendPackageBroadcast(Intent.ACTION_PACKAGE_CHANGED, componentName.getPackageName());
+        assertTrue(mRegistrar.phoneAccountRequiresBindPermission(handle));
+        verify(packageManager, times(2)).queryIntentServicesAsUser(any(Intent.class), anyInt(),
+                anyInt());
+    }
+
+    /**
+     * Verifies that a burst of changes is persisted with fewer writes than changes when writes
+     * are coalesced, and that flushing makes the changes durable.
+     */
+    @SmallTest
+    @Test
+    public void testCoalescedWritesAreFlushed() throws Exception {
+        final int numAccounts = PhoneAccountRegistrar.MAX_PHONE_ACCOUNT_REGISTRATIONS;
+        when(mFeatureFlags.coalescePhoneAccountWrites()).thenReturn(true);
+        when(UserManager.get(mContext).getSerialNumberForUser(Process.myUserHandle()))
+                .thenReturn(0L);
+        when(UserManager.get(mContext).getUserForSerialNumber(0L))
+                .thenReturn(Process.myUserHandle());
+        mRegistrar = new PhoneAccountRegistrar(
+                mComponentContextFixture.getTestDouble().getApplicationContext(),
+                mLock, FILE_NAME, mDefaultDialerCache, mAppLabelProxy, mFeatureFlags);
+
+        for (int i = 0; i < numAccounts; i++) {
+            registerAndEnableAccount(makeBuilderWithBindCapabilities(
+                    makeQuickAccountHandle(new ComponentName(PACKAGE_1, "cls"), "voip" + i))
+                    .build());
+        }
+        mRegistrar.flushPendingWrites();
+        assertTrue(mRegistrar.getNumStateWrites() >= 1);
+        assertTrue(mRegistrar.getNumStateWrites() < numAccounts);
+
+        // Nothing is left to write once the pending write has been flushed.
+        long numStateWrites = mRegistrar.getNumStateWrites();
+        waitForHandlerActionDelayed(mRegistrar.getWriteHandler(), 5000,
+                PhoneAccountRegistrar.WRITE_DELAY_MILLIS);
+        assertEquals(numStateWrites, mRegistrar.getNumStateWrites());
+
+        PhoneAccountRegistrar reloaded = new PhoneAccountRegistrar(
+                mComponentContextFixture.getTestDouble().getApplicationContext(),
+                mLock, FILE_NAME, mDefaultDialerCache, mAppLabelProxy, mFeatureFlags);
+        assertEquals(numAccounts, reloaded.getAllPhoneAccountHandlesForPackage(
+                Process.myUserHandle(), PACKAGE_1).size());
+    }
+
+    @SmallTest
+    @Test
+    public void testBinaryStateRoundTrip() throws Exception {
+        PhoneAccountRegistrar.State input = makeQuickState();
+        Bundle extras = new Bundle();
+        extras.putInt("EXTRA_INT", 1);
+        extras.putBoolean("EXTRA_BOOL", true);
+        extras.putString("EXTRA_STR", "Hello");
+        input.accounts.add(makeQuickAccountBuilder("id3", 3, null)
+                .setExtras(extras)
+                .setSupportedUriSchemes(Arrays.asList(PhoneAccount.SCHEME_TEL,
+                        PhoneAccount.SCHEME_VOICEMAIL))
+                .build());
+        input.accounts.add(makeQuickAccountBuilder("id4", 4, null)
+                .setIcon(Icon.createWithBitmap(makeIconBitmap(0xff00ff00)))
+                .build());
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PhoneAccountStateBinarySerializer.writeState(input,
+                PhoneAccountRegistrar.EXPECTED_STATE_VERSION, os, mContext);
+        PhoneAccountRegistrar.State result = PhoneAccountStateBinarySerializer.readState(
+                os.toByteArray(), PhoneAccountRegistrar.EXPECTED_STATE_VERSION, mContext);
+
+        assertEquals(input.accounts.size(), result.accounts.size());
+        // Bitmap icons are read back as undecoded image data.
+        Icon icon = result.accounts.remove(result.accounts.size() - 1).getIcon();
+        assertEquals(Icon.TYPE_DATA, icon.getType());
+        assertNotNull(BitmapFactory.decodeByteArray(icon.getDataBytes(), icon.getDataOffset(),
+                icon.getDataLength()));
+        input.accounts.remove(input.accounts.size() - 1);
+        assertStateEquals(input, result);
+    }
+
+    @SmallTest
+    @Test
+    public void testBinaryStateMigratedFromXml() throws Exception {
+        PhoneAccountRegistrar.State state = makeQuickState();
+        writeStateToFile(state);
+        when(mFeatureFlags.binaryPhoneAccountStorage()).thenReturn(true);
+        when(mFeatureFlags.coalescePhoneAccountWrites()).thenReturn(true);
+
+        // Reading the XML state writes it in the binary format.
+        mRegistrar = new PhoneAccountRegistrar(
+                mComponentContextFixture.getTestDouble().getApplicationContext(),
+                mLock, FILE_NAME, mDefaultDialerCache, mAppLabelProxy, mFeatureFlags);
+        mRegistrar.flushPendingWrites();
+        File binaryFile = new File(
+                mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
+                BINARY_FILE_NAME);
+        assertTrue(binaryFile.exists());
+
+        // The binary state is used from then on, even without the XML state.
+        new File(mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
+                FILE_NAME).delete();
+        PhoneAccountRegistrar reloaded = new PhoneAccountRegistrar(
+                mComponentContextFixture.getTestDouble().getApplicationContext(),
+                mLock, FILE_NAME, mDefaultDialerCache, mAppLabelProxy, mFeatureFlags);
+        for (PhoneAccount account : state.accounts) {
+            assertPhoneAccountEquals(account,
+                    reloaded.getPhoneAccountUnchecked(account.getAccountHandle()));
+        }
+    }
+
+    /**
+     * Verifies that only the binary state is written while the binary format is in use, and that
+     * it is migrated back to XML when the flag is turned off, so that no changes are lost.
+     */
+    @SmallTest
+    @Test
+    public void testBinaryStateMigratedToXmlWhenTurnedOff() throws Exception {
+        writeStateToFile(makeQuickState());
+        File xmlFile = new File(
+                mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
+                FILE_NAME);
+        byte[] xmlState = Files.readAllBytes(xmlFile.toPath());
+        when(mFeatureFlags.binaryPhoneAccountStorage()).thenReturn(true);
+        when(mFeatureFlags.coalescePhoneAccountWrites()).thenReturn(true);
+        mRegistrar = new PhoneAccountRegistrar(
+                mComponentContextFixture.getTestDouble().getApplicationContext(),
+                mLock, FILE_NAME, mDefaultDialerCache, mAppLabelProxy, mFeatureFlags);
+        PhoneAccount account = makeQuickAccountBuilder("binaryId", 1, null).build();
+        registerAndEnableAccount(account);
+        mRegistrar.flushPendingWrites();
+        File binaryFile = new File(
+                mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
+                BINARY_FILE_NAME);
+        assertTrue(binaryFile.exists());
+        assertArrayEquals(xmlState, Files.readAllBytes(xmlFile.toPath()));
+
+        // Turning the flag off migrates the binary state, which has the account, back to XML and
+        // drops the binary state so that it is migrated again if the flag is turned back on.
+        when(mFeatureFlags.binaryPhoneAccountStorage()).thenReturn(false);
+        PhoneAccountRegistrar reloaded = new PhoneAccountRegistrar(
+                mComponentContextFixture.getTestDouble().getApplicationContext(),
+                mLock, FILE_NAME, mDefaultDialerCache, mAppLabelProxy, mFeatureFlags);
+        assertNotNull(reloaded.getPhoneAccountUnchecked(account.getAccountHandle()));
+        assertFalse(binaryFile.exists());
+
+        // The account is in the XML state itself.
+        PhoneAccountRegistrar reloadedFromXml = new PhoneAccountRegistrar(
+                mComponentContextFixture.getTestDouble().getApplicationContext(),
+                mLock, FILE_NAME, mDefaultDialerCache, mAppLabelProxy, mFeatureFlags);
+        assertNotNull(reloadedFromXml.getPhoneAccountUnchecked(account.getAccountHandle()));
+    }
+
+    /**
+     * Compares the cold-start time and heap used to read the state of 120 accounts with bitmap
+     * icons from XML and from the binary format.
+     */
+    @LargeTest
+    @Test
+    public void testBinaryStateReadBenchmark() throws Exception {
+        final int numAccounts = 120;
+        PhoneAccountRegistrar.State state = new PhoneAccountRegistrar.State();
+        for (int i = 0; i < numAccounts; i++) {
+            state.accounts.add(makeBuilderWithBindCapabilities(makeQuickAccountHandle(
+                    new ComponentName("pkg" + i, "cls"), "voip" + i))
+                    .setIcon(Icon.createWithBitmap(makeIconBitmap(0xff000000 | i)))
+                    .setShortDescription("desc" + i)
+                    .addSupportedUriScheme(PhoneAccount.SCHEME_SIP)
+                    .setIsEnabled(true)
+                    .build());
+        }
+        when(UserManager.get(mContext).getSerialNumberForUser(Process.myUserHandle()))
+                .thenReturn(0L);
+        when(UserManager.get(mContext).getUserForSerialNumber(0L))
+                .thenReturn(Process.myUserHandle());
+        writeStateToFile(state);
+        when(mFeatureFlags.binaryPhoneAccountStorage()).thenReturn(false);
+        long[] xml = measureRead(numAccounts);
+
+        File binaryFile = new File(
+                mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
+                BINARY_FILE_NAME);
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(binaryFile))) {
+            PhoneAccountStateBinarySerializer.writeState(state,
+                    PhoneAccountRegistrar.EXPECTED_STATE_VERSION, os, mContext);
+        }
+        when(mFeatureFlags.binaryPhoneAccountStorage()).thenReturn(true);
+        long[] binary = measureRead(numAccounts);
+        Log.i(this, "testBinaryStateReadBenchmark: %d accounts, xml=%dms/%dKB (%d bytes on disk),"
+                + " binary=%dms/%dKB (%d bytes on disk)", numAccounts,
+                xml[0], xml[1] / 1024, new File(binaryFile.getParentFile(), FILE_NAME).length(),
+                binary[0], binary[1] / 1024, binaryFile.length());
+    }
+
+    /**
+     * Creates a registrar which reads the state file.
+     *
+     * @return the time taken in milliseconds and the heap retained in bytes.
+     */
+    private long[] measureRead(int expectedAccounts) {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long startNanos = System.nanoTime();
+        PhoneAccountRegistrar registrar = new PhoneAccountRegistrar(
+                mComponentContextFixture.getTestDouble().getApplicationContext(),
+                mLock, FILE_NAME, mDefaultDialerCache, mAppLabelProxy, mFeatureFlags);
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+        runtime.gc();
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        assertEquals(expectedAccounts, registrar.getAllPhoneAccounts(null, true).size());
+        return new long[] {elapsedMillis, heapAfter - heapBefore};
+    }
+
+    private static Bitmap makeIconBitmap(int color) {
+        Bitmap bitmap = Bitmap.createBitmap(96, 96, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return bitmap;
+    }
+
+    private void sendPackageBroadcast(String action, String packageName) {
+        Intent intent = new Intent(action, Uri.fromParts("package", packageName, null));
+        mComponentContextFixture.getBroadcastReceivers().forEach(
+                r -> r.onReceive(mContext, intent));
+    }
+
+    private long runLookups(boolean indexed, int numPackages, int numIterations) {
+        when(mFeatureFlags.indexedPhoneAccountLookup()).thenReturn(indexed);
+        UserHandle user = Process.myUserHandle();
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            assertEquals(PhoneAccountRegistrar.MAX_PHONE_ACCOUNT_REGISTRATIONS,
+                    mRegistrar.getCallCapablePhoneAccounts(PhoneAccount.SCHEME_TEL, false, user,
+                            false).size());
+            assertEquals(PhoneAccountRegistrar.MAX_PHONE_ACCOUNT_REGISTRATIONS,
+                    mRegistrar.getPhoneAccountsForPackage("pkg" + (i % numPackages), user)
+                            .size());
+            assertNotNull(mRegistrar.getPhoneAccountUnchecked(makeQuickAccountHandle(
+                    new ComponentName("pkg" + (i % numPackages), "cls"), "voip" + i)));
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+    private void assertIndexedLookupsMatchScan() {
+        List<List<PhoneAccountHandle>> scanned = runComparedLookups(false);
+        List<List<PhoneAccountHandle>> indexed = runComparedLookups(true);
+        assertEquals(scanned, indexed);
+    }
+
+    private List<List<PhoneAccountHandle>> runComparedLookups(boolean indexed) {
+        when(mFeatureFlags.indexedPhoneAccountLookup()).thenReturn(indexed);
+        UserHandle user = Process.myUserHandle();
+        List<List<PhoneAccountHandle>> results = new ArrayList<>();
+        results.add(mRegistrar.getCallCapablePhoneAccounts(PhoneAccount.SCHEME_TEL, false, user,
+                false));
+        results.add(mRegistrar.getCallCapablePhoneAccounts(PhoneAccount.SCHEME_SIP, true, user,
+                false));
+        results.add(mRegistrar.getCallCapablePhoneAccounts(null, false, USER_HANDLE_10, true));
+        results.add(mRegistrar.getSelfManagedPhoneAccounts(user));
+        results.add(mRegistrar.getPhoneAccountsForPackage(PACKAGE_2, user));
+        results.add(mRegistrar.getAllPhoneAccountHandles(user, false));
+        results.add(mRegistrar.getAllPhoneAccountHandles(USER_HANDLE_10, false));
+        return results;
+    }
+
+    private void writeStateToFile(PhoneAccountRegistrar.State state) throws Exception {
+        File file = new File(
+                mComponentContextFixture.getTestDouble().getApplicationContext().getFilesDir(),
+                FILE_NAME);
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+            XmlSerializer serializer = new FastXmlSerializer();
+            serializer.setOutput(os, "utf-8");
+            PhoneAccountRegistrar.sStateXml.writeToXml(state, serializer, mContext);
+            serializer.flush();
+        }
+    }
+
     private static PhoneAccount.Builder makeBuilderWithBindCapabilities(PhoneAccountHandle handle) {
         return new PhoneAccount.Builder(handle, TEST_LABEL)
                 .setCapabilities(PhoneAccount.CAPABILITY_SUPPORTS_TRANSACTIONAL_OPERATIONS);
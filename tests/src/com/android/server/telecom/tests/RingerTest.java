@@ -28,6 +28,7 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -56,8 +57,10 @@ import android.os.Vibrator;
 import android.os.VibratorInfo;
 import android.platform.test.flag.junit.CheckFlagsRule;
 import android.platform.test.flag.junit.DeviceFlagsValueProvider;
+import android.telecom.Log;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.server.telecom.AsyncRingtonePlayer;
@@ -76,17 +79,22 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Spy;
 
 import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @RunWith(JUnit4.class)
 public class RingerTest extends TelecomTestCase {
     @Rule
     public final CheckFlagsRule mCheckFlagsRule = DeviceFlagsValueProvider.createCheckFlagsRule();
 
+    private static final long TEST_TIMEOUT = 5000;
     private static final Uri FAKE_RINGTONE_URI = Uri.parse("content://media/fake/audio/1729");
     // Returned when the a URI-based VibrationEffect is attempted, to avoid depending on actual
     // device configuration for ringtone URIs. The actual Uri can be verified via the
@@ -784,6 +792,123 @@ public class RingerTest extends TelecomTestCase {
                 .vibrate(any(VibrationEffect.class), any(VibrationAttributes.class));
     }
 
+    @SmallTest
+    @Test
+    public void testWarmPipelineReusesVibrationEffect() throws Exception {
+        when(mFeatureFlags.warmRingerPipeline()).thenReturn(true);
+        createRingerUnderTest();
+        verify(mockRingtoneFactory).enableCache(any(Runnable.class));
+        Ringtone mockRingtone = ensureRingtoneMocked();
+        when(mockRingtone.getUri()).thenReturn(FAKE_RINGTONE_URI);
+        ensureRingerIsAudible();
+        enableVibrationWhenRinging();
+
+        assertTrue(startRingingAndWaitForAsync(mockCall1, false));
+        mRingerUnderTest.stopRinging();
+        resetRingCompletionFuture();
+        assertTrue(startRingingAndWaitForAsync(mockCall2, false));
+
+        verify(mockRingtone, times(2)).play();
+        verify(spyVibrationEffectProxy, times(1)).get(eq(FAKE_RINGTONE_URI), any(Context.class));
+        verify(mockVibrator, times(2))
+                .vibrate(eq(URI_VIBRATION_EFFECT), any(VibrationAttributes.class));
+    }
+
+    @SmallTest
+    @Test
+    public void testWarmPipelineClearedOnRingtoneSettingChange() throws Exception {
+        when(mFeatureFlags.warmRingerPipeline()).thenReturn(true);
+        createRingerUnderTest();
+        ArgumentCaptor<Runnable> settingChangedCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mockRingtoneFactory).enableCache(settingChangedCaptor.capture());
+        Ringtone mockRingtone = ensureRingtoneMocked();
+        when(mockRingtone.getUri()).thenReturn(FAKE_RINGTONE_URI);
+        ensureRingerIsAudible();
+        enableVibrationWhenRinging();
+
+        assertTrue(startRingingAndWaitForAsync(mockCall1, false));
+        mRingerUnderTest.stopRinging();
+        settingChangedCaptor.getValue().run();
+        resetRingCompletionFuture();
+        assertTrue(startRingingAndWaitForAsync(mockCall2, false));
+
+        verify(spyVibrationEffectProxy, times(2)).get(eq(FAKE_RINGTONE_URI), any(Context.class));
+    }
+
+    @SmallTest
+    @Test
+    public void testPrepareForIncomingCallResolvesDefaultRingtone() throws Exception {
+        when(mockRingtoneFactory.getDefaultRingtoneUri(any(Call.class)))
+                .thenReturn(FAKE_RINGTONE_URI);
+        mRingerUnderTest.prepareForIncomingCall(mockCall1);
+        // Nothing is resolved ahead of time unless the pipeline is kept warm.
+        verifyZeroInteractions(mockRingtoneFactory);
+
+        when(mFeatureFlags.warmRingerPipeline()).thenReturn(true);
+        createRingerUnderTest();
+        mRingerUnderTest.prepareForIncomingCall(mockCall1);
+
+        verify(spyVibrationEffectProxy, timeout(TEST_TIMEOUT))
+                .get(eq(FAKE_RINGTONE_URI), any(Context.class));
+        verify(mockRingtoneFactory).getDefaultRingtoneUri(mockCall1);
+    }
+
+    /**
+     * Measures the time from an incoming call being added to its ringtone starting to play, with
+     * and without the warm ringing pipeline.
+     */
+    @LargeTest
+    @Test
+    public void testIncomingCallToAudibleRingBenchmark() throws Exception {
+        final int iterations = 50;
+        Ringtone mockRingtone = ensureRingtoneMocked();
+        when(mockRingtone.getUri()).thenReturn(FAKE_RINGTONE_URI);
+        when(mockRingtoneFactory.getDefaultRingtoneUri(any(Call.class)))
+                .thenReturn(FAKE_RINGTONE_URI);
+        ensureRingerIsAudible();
+        enableVibrationWhenRinging();
+
+        long coldNanos = measureIncomingCallToRing(mockRingtone, iterations);
+        when(mFeatureFlags.warmRingerPipeline()).thenReturn(true);
+        createRingerUnderTest();
+        long warmNanos = measureIncomingCallToRing(mockRingtone, iterations);
+        Log.i(this, "testIncomingCallToAudibleRingBenchmark: cold %d us, warm %d us per call",
+                TimeUnit.NANOSECONDS.toMicros(coldNanos),
+                TimeUnit.NANOSECONDS.toMicros(warmNanos));
+    }
+
+    /**
+     * @return the average time, in nanoseconds, from a call being added to its ringtone playing.
+     */
+    private long measureIncomingCallToRing(Ringtone mockRingtone, int iterations)
+            throws Exception {
+        long totalNanos = 0;
+        for (int i = 0; i < iterations; i++) {
+            AtomicLong playNanos = new AtomicLong(0);
+            CountDownLatch playLatch = new CountDownLatch(1);
+            doAnswer(invocation -> {
+                playNanos.set(System.nanoTime());
+                playLatch.countDown();
+                return null;
+            }).when(mockRingtone).play();
+            resetRingCompletionFuture();
+
+            long startNanos = System.nanoTime();
+            // The steps CallsManager takes for a new incoming call, once it has been filtered.
+            mRingerUnderTest.prepareForIncomingCall(mockCall1);
+            assertTrue(startRingingAndWaitForAsync(mockCall1, false));
+            assertTrue(playLatch.await(TEST_TIMEOUT, TimeUnit.MILLISECONDS));
+            totalNanos += playNanos.get() - startNanos;
+            mRingerUnderTest.stopRinging();
+        }
+        return totalNanos / iterations;
+    }
+
+    private void resetRingCompletionFuture() {
+        mRingCompletionFuture = new CompletableFuture<>();
+        mRingerUnderTest.setBlockOnRingingFuture(mRingCompletionFuture);
+    }
+
     /**
      * Call startRinging and wait for its effects to have played out, to allow reliable assertions
      * after it. The effects are generally "start playing ringtone" and "start vibration" - not
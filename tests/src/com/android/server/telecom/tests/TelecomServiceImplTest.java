@@ -56,6 +56,7 @@ import com.android.server.telecom.AnomalyReporterAdapter;
 import com.android.server.telecom.Call;
 import com.android.server.telecom.CallIntentProcessor;
 import com.android.server.telecom.CallState;
+import com.android.server.telecom.CallStateSnapshot;
 import com.android.server.telecom.CallsManager;
 import com.android.server.telecom.DefaultDialerCache;
 import com.android.server.telecom.InCallController;
@@ -2139,6 +2140,38 @@ public class TelecomServiceImplTest extends TelecomTestCase {
         verify(mFakeCallsManager, never()).hasOngoingCalls(any(UserHandle.class), anyBoolean());
     }
 
+    @SmallTest
+    @Test
+    public void testIsInCallUsesSnapshotWhenLockFree() throws Exception {
+        when(mFeatureFlags.lockFreeCallStateQueries()).thenReturn(true);
+        CallStateSnapshot.Entry selfManagedActive = new CallStateSnapshot.Entry(
+                CallState.ACTIVE, true /* isSelfManaged */, false /* isExternal */,
+                false /* hasParent */, true /* isMultiUser */, UserHandle.CURRENT);
+        when(mFakeCallsManager.getCallStateSnapshot()).thenReturn(new CallStateSnapshot(
+                new CallStateSnapshot.Entry[] {selfManagedActive},
+                TelephonyManager.CALL_STATE_OFFHOOK));
+
+        assertTrue(mTSIBinder.isInCall(DEFAULT_DIALER_PACKAGE, null));
+        assertFalse(mTSIBinder.isInManagedCall(DEFAULT_DIALER_PACKAGE, null));
+        verify(mFakeCallsManager, never()).hasOngoingCalls(any(UserHandle.class), anyBoolean());
+        verify(mFakeCallsManager, never()).hasOngoingManagedCalls(any(UserHandle.class),
+                anyBoolean());
+    }
+
+    @SmallTest
+    @Test
+    public void testIsRingingUsesSnapshotWhenLockFree() throws Exception {
+        when(mFeatureFlags.lockFreeCallStateQueries()).thenReturn(true);
+        CallStateSnapshot.Entry ringing = new CallStateSnapshot.Entry(
+                CallState.RINGING, false /* isSelfManaged */, false /* isExternal */,
+                false /* hasParent */, false /* isMultiUser */, UserHandle.CURRENT);
+        when(mFakeCallsManager.getCallStateSnapshot()).thenReturn(new CallStateSnapshot(
+                new CallStateSnapshot.Entry[] {ringing}, TelephonyManager.CALL_STATE_RINGING));
+
+        assertTrue(mTSIBinder.isRinging(DEFAULT_DIALER_PACKAGE));
+        verify(mFakeCallsManager, never()).hasRingingOrSimulatedRingingCall();
+    }
+
     @SmallTest
     @Test
     public void testIsInManagedCall() throws Exception {
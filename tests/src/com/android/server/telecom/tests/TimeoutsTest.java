@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.telecom.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.UserHandle;
+import android.provider.DeviceConfig;
+import android.provider.Settings;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.dx.mockito.inline.extended.ExtendedMockito;
+import com.android.server.telecom.Timeouts;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoSession;
+import org.mockito.quality.Strictness;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+@RunWith(JUnit4.class)
+public class TimeoutsTest extends TelecomTestCase {
+    private static final String CALL_SCREENING_TIMEOUT = "telecom.call_screening_timeout";
+    private static final String VOIP_TRANSITORY_TIMEOUT =
+            "transitory_state_voip_normal_timeout_millis";
+
+    @Mock private Context mMockContext;
+    @Mock private ContentResolver mContentResolver;
+
+    private MockitoSession mMockitoSession;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockitoSession = ExtendedMockito.mockitoSession()
+                .strictness(Strictness.WARN)
+                .spyStatic(Settings.Secure.class)
+                .spyStatic(DeviceConfig.class)
+                .startMocking();
+        when(mMockContext.getContentResolver()).thenReturn(mContentResolver);
+        when(mContentResolver.getUserId()).thenReturn(UserHandle.USER_SYSTEM);
+        ExtendedMockito.doNothing().when(() -> DeviceConfig.addOnPropertiesChangedListener(
+                any(String.class), any(Executor.class),
+                any(DeviceConfig.OnPropertiesChangedListener.class)));
+        ExtendedMockito.doNothing().when(() -> DeviceConfig.removeOnPropertiesChangedListener(
+                any(DeviceConfig.OnPropertiesChangedListener.class)));
+        setCallScreeningTimeout(5000L);
+        setVoipTransitoryTimeout(5000L);
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        Timeouts.disableCache();
+        mMockitoSession.finishMocking();
+        super.tearDown();
+    }
+
+    @SmallTest
+    @Test
+    public void testSettingsLookupsCached() {
+        Timeouts.enableCache(mMockContext);
+
+        assertEquals(5000L, Timeouts.getCallScreeningTimeoutMillis(mContentResolver));
+        assertEquals(5000L, Timeouts.getCallScreeningTimeoutMillis(mContentResolver));
+        ExtendedMockito.verify(() -> Settings.Secure.getLongForUser(any(ContentResolver.class),
+                eq(CALL_SCREENING_TIMEOUT), anyLong(), anyInt()), times(1));
+
+        assertEquals(5000L, Timeouts.getVoipCallTransitoryStateTimeoutMillis());
+        assertEquals(5000L, Timeouts.getVoipCallTransitoryStateTimeoutMillis());
+        ExtendedMockito.verify(() -> DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+                VOIP_TRANSITORY_TIMEOUT, 5000L), times(1));
+    }
+
+    @SmallTest
+    @Test
+    public void testCachedValuesUpdateLive() {
+        Timeouts.enableCache(mMockContext);
+        ArgumentCaptor<ContentObserver> observerCaptor =
+                ArgumentCaptor.forClass(ContentObserver.class);
+        verify(mContentResolver).registerContentObserver(eq(Settings.Secure.CONTENT_URI),
+                eq(true), observerCaptor.capture(), eq(UserHandle.USER_ALL));
+        ArgumentCaptor<DeviceConfig.OnPropertiesChangedListener> listenerCaptor =
+                ArgumentCaptor.forClass(DeviceConfig.OnPropertiesChangedListener.class);
+        ExtendedMockito.verify(() -> DeviceConfig.addOnPropertiesChangedListener(
+                eq(DeviceConfig.NAMESPACE_TELEPHONY), any(Executor.class),
+                listenerCaptor.capture()));
+        assertEquals(5000L, Timeouts.getCallScreeningTimeoutMillis(mContentResolver));
+        assertEquals(5000L, Timeouts.getVoipCallTransitoryStateTimeoutMillis());
+
+        // A change to an unrelated setting keeps the cached values.
+        setCallScreeningTimeout(8000L);
+        observerCaptor.getValue().onChange(false,
+                List.of(Settings.Secure.getUriFor(Settings.Secure.DIALER_DEFAULT_APPLICATION)), 0,
+                UserHandle.SYSTEM);
+        assertEquals(5000L, Timeouts.getCallScreeningTimeoutMillis(mContentResolver));
+
+        observerCaptor.getValue().onChange(false,
+                List.of(Settings.Secure.getUriFor(CALL_SCREENING_TIMEOUT)), 0,
+                UserHandle.SYSTEM);
+        assertEquals(8000L, Timeouts.getCallScreeningTimeoutMillis(mContentResolver));
+
+        setVoipTransitoryTimeout(2000L);
+        listenerCaptor.getValue().onPropertiesChanged(
+                new DeviceConfig.Properties.Builder(DeviceConfig.NAMESPACE_TELEPHONY)
+                        .setLong(VOIP_TRANSITORY_TIMEOUT, 2000L)
+                        .build());
+        assertEquals(2000L, Timeouts.getVoipCallTransitoryStateTimeoutMillis());
+    }
+
+    @SmallTest
+    @Test
+    public void testLookupsNotCachedWhenDisabled() {
+        assertEquals(5000L, Timeouts.getCallScreeningTimeoutMillis(mContentResolver));
+        setCallScreeningTimeout(8000L);
+        assertEquals(8000L, Timeouts.getCallScreeningTimeoutMillis(mContentResolver));
+    }
+
+    private void setCallScreeningTimeout(long timeoutMillis) {
+        ExtendedMockito.doReturn(timeoutMillis).when(() -> Settings.Secure.getLongForUser(
+                any(ContentResolver.class), eq(CALL_SCREENING_TIMEOUT), anyLong(), anyInt()));
+    }
+
+    private void setVoipTransitoryTimeout(long timeoutMillis) {
+        ExtendedMockito.doReturn(timeoutMillis).when(() -> DeviceConfig.getLong(
+                DeviceConfig.NAMESPACE_TELEPHONY, VOIP_TRANSITORY_TIMEOUT, 5000L));
+    }
+}
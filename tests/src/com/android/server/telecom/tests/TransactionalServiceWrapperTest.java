@@ -22,6 +22,7 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.isA;
+import static org.mockito.ArgumentMatchers.eq;
 
 
 import android.content.ComponentName;
@@ -148,7 +149,8 @@ public class TransactionalServiceWrapperTest extends TelecomTestCase {
 
         //THEN
         verify(mTransactionManager, times(1))
-                .addTransaction(isA(EndCallTransaction.class), isA(OutcomeReceiver.class));
+                .addTransaction(isA(EndCallTransaction.class), eq(CALL_ID_1),
+                        isA(OutcomeReceiver.class));
     }
 
     @Test
@@ -163,7 +165,8 @@ public class TransactionalServiceWrapperTest extends TelecomTestCase {
 
         //THEN
         verify(mTransactionManager, times(1))
-                .addTransaction(isA(EndCallTransaction.class), isA(OutcomeReceiver.class));
+                .addTransaction(isA(EndCallTransaction.class), eq(CALL_ID_1),
+                        isA(OutcomeReceiver.class));
     }
 
     @Test
@@ -177,6 +180,7 @@ public class TransactionalServiceWrapperTest extends TelecomTestCase {
 
         //THEN
         verify(mTransactionManager, times(1))
-                .addTransaction(isA(HoldCallTransaction.class), isA(OutcomeReceiver.class));
+                .addTransaction(isA(HoldCallTransaction.class), eq(CALL_ID_1),
+                        isA(OutcomeReceiver.class));
     }
 }
@@ -16,19 +16,32 @@
 
 package com.android.server.telecom.tests;
 
+import static android.telecom.TelecomManager.TELECOM_TRANSACTION_SUCCESS;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 
 import android.os.OutcomeReceiver;
+import android.os.ResultReceiver;
 import android.telecom.CallException;
 import android.util.Log;
 
+import androidx.test.filters.LargeTest;
 import androidx.test.filters.SmallTest;
 
+import com.android.internal.telecom.ICallEventCallback;
 import com.android.server.telecom.TelecomSystem;
+import com.android.server.telecom.TransactionalServiceWrapper;
+import com.android.server.telecom.voip.CallEventCallbackAckTransaction;
 import com.android.server.telecom.voip.ParallelTransaction;
 import com.android.server.telecom.voip.SerialTransaction;
 import com.android.server.telecom.voip.TransactionManager;
+import com.android.server.telecom.voip.TransactionScheduler;
 import com.android.server.telecom.voip.VoipCallTransaction;
 import com.android.server.telecom.voip.VoipCallTransactionResult;
 
@@ -37,11 +50,15 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -250,4 +267,180 @@ public class VoipCallTransactionTest extends TelecomTestCase {
         String message = exceptionFuture.get(7000L, TimeUnit.MILLISECONDS);
         assertTrue(message.contains("timeout"));
     }
+
+    @SmallTest
+    @Test
+    public void testSerialTransactionSuccessOnSharedScheduler()
+            throws ExecutionException, InterruptedException, TimeoutException {
+        TransactionScheduler scheduler = new TransactionScheduler(2);
+        mTransactionManager.setTransactionScheduler(scheduler);
+        List<VoipCallTransaction> subTransactions = new ArrayList<>();
+        subTransactions.add(new TestVoipCallTransaction("t1", 100L,
+                TestVoipCallTransaction.SUCCESS));
+        subTransactions.add(new TestVoipCallTransaction("t2", 100L,
+                TestVoipCallTransaction.SUCCESS));
+        subTransactions.add(new TestVoipCallTransaction("t3", 100L,
+                TestVoipCallTransaction.SUCCESS));
+        CompletableFuture<VoipCallTransactionResult> resultFuture = new CompletableFuture<>();
+        OutcomeReceiver<VoipCallTransactionResult, CallException> outcomeReceiver =
+                resultFuture::complete;
+        mTransactionManager.addTransaction(new SerialTransaction(subTransactions, mLock),
+                outcomeReceiver);
+        assertEquals(VoipCallTransactionResult.RESULT_SUCCEED,
+                resultFuture.get(5000L, TimeUnit.MILLISECONDS).getResult());
+        assertEquals("t1 success;\nt2 success;\nt3 success;\n", mLog.toString());
+        // The serial transaction and each of its sub transactions use the pool.
+        assertEquals(4, scheduler.getNumTransactionsScheduled());
+        scheduler.quit();
+    }
+
+    @SmallTest
+    @Test
+    public void testTransactionTimeoutOnSharedScheduler()
+            throws ExecutionException, InterruptedException, TimeoutException {
+        TransactionScheduler scheduler = new TransactionScheduler(1);
+        mTransactionManager.setTransactionScheduler(scheduler);
+        VoipCallTransaction t = new TestVoipCallTransaction("t", 10000L,
+                TestVoipCallTransaction.SUCCESS);
+        CompletableFuture<String> exceptionFuture = new CompletableFuture<>();
+        OutcomeReceiver<VoipCallTransactionResult, CallException> outcomeReceiver =
+                new OutcomeReceiver<>() {
+                    @Override
+                    public void onResult(VoipCallTransactionResult result) {
+                        exceptionFuture.complete("unexpected result");
+                    }
+
+                    @Override
+                    public void onError(CallException e) {
+                        exceptionFuture.complete(e.getMessage());
+                    }
+                };
+        mTransactionManager.addTransaction(t, outcomeReceiver);
+        String message = exceptionFuture.get(7000L, TimeUnit.MILLISECONDS);
+        assertTrue(message.contains("timeout"));
+        scheduler.quit();
+    }
+
+    /**
+     * Verifies that waiting for a client to ack a call event does not hold up other transactions
+     * on the thread it shares with them.
+     */
+    @SmallTest
+    @Test
+    public void testCallEventAckDoesNotBlockSharedScheduler() throws Exception {
+        TransactionScheduler scheduler = new TransactionScheduler(1);
+        mTransactionManager.setTransactionScheduler(scheduler);
+        mTransactionManager.setPerCallQueuesEnabled(true);
+        ICallEventCallback callback = mock(ICallEventCallback.class);
+        CompletableFuture<VoipCallTransactionResult> ackFuture = new CompletableFuture<>();
+        mTransactionManager.addTransaction(new CallEventCallbackAckTransaction(callback,
+                TransactionalServiceWrapper.ON_SET_ACTIVE, "call1", mLock), "call1",
+                ackFuture::complete);
+        ArgumentCaptor<ResultReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(ResultReceiver.class);
+        verify(callback, timeout(1000L)).onSetActive(eq("call1"), receiverCaptor.capture());
+
+        // The client has not acked yet; a transaction for another call still runs.
+        CompletableFuture<VoipCallTransactionResult> otherFuture = new CompletableFuture<>();
+        mTransactionManager.addTransaction(new TestVoipCallTransaction("other", 100L,
+                TestVoipCallTransaction.SUCCESS), "call2", otherFuture::complete);
+        assertEquals(VoipCallTransactionResult.RESULT_SUCCEED,
+                otherFuture.get(1000L, TimeUnit.MILLISECONDS).getResult());
+        assertFalse(ackFuture.isDone());
+
+        receiverCaptor.getValue().send(TELECOM_TRANSACTION_SUCCESS, null);
+        assertEquals(VoipCallTransactionResult.RESULT_SUCCEED,
+                ackFuture.get(1000L, TimeUnit.MILLISECONDS).getResult());
+        scheduler.quit();
+    }
+
+    /**
+     * Microbenchmark comparing transaction throughput and the number of threads started when
+     * each transaction starts its own thread versus when transactions share a pool.
+     */
+    @LargeTest
+    @Test
+    public void testTransactionThroughputWithSharedScheduler() throws Exception {
+        final int numTransactions = 500;
+
+        long perThreadStart = System.nanoTime();
+        int perThreadThreads = runTransactions(numTransactions);
+        long perThreadNanos = System.nanoTime() - perThreadStart;
+
+        TransactionScheduler scheduler = new TransactionScheduler(2);
+        mTransactionManager.setTransactionScheduler(scheduler);
+        long pooledStart = System.nanoTime();
+        int pooledThreads = runTransactions(numTransactions);
+        long pooledNanos = System.nanoTime() - pooledStart;
+
+        Log.i("VoipCallTransactionTest", String.format(
+                "per-transaction threads: %.1f tx/s, %d threads; pooled: %.1f tx/s, %d threads",
+                numTransactions * 1e9 / perThreadNanos, perThreadThreads,
+                numTransactions * 1e9 / pooledNanos, pooledThreads));
+        assertEquals(numTransactions, scheduler.getNumTransactionsScheduled());
+        assertTrue(pooledThreads <= scheduler.getNumThreads());
+        scheduler.quit();
+    }
+
+    /**
+     * Runs transactions which do nothing, and waits for them to complete.
+     * @return the number of distinct threads the transactions were processed on.
+     */
+    private int runTransactions(int numTransactions) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(numTransactions);
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        OutcomeReceiver<VoipCallTransactionResult, CallException> outcomeReceiver =
+                result -> latch.countDown();
+        for (int i = 0; i < numTransactions; i++) {
+            mTransactionManager.addTransaction(new VoipCallTransaction(mLock) {
+                @Override
+                public CompletionStage<VoipCallTransactionResult> processTransaction(Void v) {
+                    threads.add(Thread.currentThread());
+                    return super.processTransaction(v);
+                }
+            }, outcomeReceiver);
+        }
+        assertTrue(latch.await(60000L, TimeUnit.MILLISECONDS));
+        return threads.size();
+    }
+
+    @SmallTest
+    @Test
+    public void testPerCallQueuesRunIndependentCallsConcurrently() throws Exception {
+        mTransactionManager.setPerCallQueuesEnabled(true);
+        CompletableFuture<VoipCallTransactionResult> slowFuture = new CompletableFuture<>();
+        CompletableFuture<VoipCallTransactionResult> fastFuture = new CompletableFuture<>();
+        mTransactionManager.addTransaction(new TestVoipCallTransaction("slow", 2000L,
+                TestVoipCallTransaction.SUCCESS), "call1", slowFuture::complete);
+        mTransactionManager.addTransaction(new TestVoipCallTransaction("fast", 100L,
+                TestVoipCallTransaction.SUCCESS), "call2", fastFuture::complete);
+
+        // The transaction for call2 must not wait behind the slow one for call1.
+        fastFuture.get(1000L, TimeUnit.MILLISECONDS);
+        slowFuture.get(5000L, TimeUnit.MILLISECONDS);
+        assertEquals("fast success;\nslow success;\n", mLog.toString());
+    }
+
+    @SmallTest
+    @Test
+    public void testPerCallQueuesKeepOrderWithinCallAndForGlobal() throws Exception {
+        mTransactionManager.setPerCallQueuesEnabled(true);
+        CompletableFuture<VoipCallTransactionResult> globalFuture = new CompletableFuture<>();
+        mTransactionManager.addTransaction(new TestVoipCallTransaction("call1-a", 500L,
+                TestVoipCallTransaction.SUCCESS), "call1", result -> { });
+        mTransactionManager.addTransaction(new TestVoipCallTransaction("call1-b", 100L,
+                TestVoipCallTransaction.SUCCESS), "call1", result -> { });
+        // A global transaction runs only after everything queued before it.
+        mTransactionManager.addTransaction(new TestVoipCallTransaction("global", 100L,
+                TestVoipCallTransaction.SUCCESS), globalFuture::complete);
+        // ...and everything queued after it waits for it.
+        CompletableFuture<VoipCallTransactionResult> call2Future = new CompletableFuture<>();
+        mTransactionManager.addTransaction(new TestVoipCallTransaction("call2", 100L,
+                TestVoipCallTransaction.SUCCESS), "call2", call2Future::complete);
+
+        globalFuture.get(5000L, TimeUnit.MILLISECONDS);
+        call2Future.get(5000L, TimeUnit.MILLISECONDS);
+        assertEquals("call1-a success;\ncall1-b success;\nglobal success;\ncall2 success;\n",
+                mLog.toString());
+    }
 }